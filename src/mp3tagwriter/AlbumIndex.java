@@ -0,0 +1,651 @@
+package mp3tagwriter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.datatype.Artwork;
+
+/**
+ * This class is used to group songs into albums, keyed on album artist (or
+ * artist when there is none), album and year. The index is built from one
+ * parallel scan and kept current from the writer's commits, so groups follow
+ * tag changes without scanning again. Group-wide operations are planned from
+ * the index and written with at most one commit per file. Tag queries are
+ * answered from the same index, so selecting songs reads only the files that
+ * were never indexed. Entries remember the modification time and length of
+ * their file, so a saved index can be restored and checked without reading
+ * unchanged files.
+ *
+ * @author Aditya Nivarthi
+ */
+public class AlbumIndex implements TagWriter.CommitListener {
+
+    private static final Logger log = Logger.getLogger(AlbumIndex.class.getName());
+    private static final int ALBUM = TagQuery.FIELDS.indexOf(FieldKey.ALBUM);
+    private static final int ALBUM_ARTIST = TagQuery.FIELDS.indexOf(FieldKey.ALBUM_ARTIST);
+    private static final int ARTIST = TagQuery.FIELDS.indexOf(FieldKey.ARTIST);
+    private static final int GENRE = TagQuery.FIELDS.indexOf(FieldKey.GENRE);
+    private static final int TRACK = TagQuery.FIELDS.indexOf(FieldKey.TRACK);
+    private static final int YEAR = TagQuery.FIELDS.indexOf(FieldKey.YEAR);
+    private final TagWriter writer;
+    private final PathStore paths;
+    /**
+     * Entries by path id, null for songs not indexed
+     */
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<Key, BitSet> groups = new TreeMap<>();
+
+    /**
+     * Operations that can be run on whole albums.
+     */
+    public enum Operation {
+
+        /**
+         * Sets TRACK_TOTAL to the number of songs in the album
+         */
+        FILL_TRACK_TOTAL,
+        /**
+         * Numbers the songs 1 to n in their current track order, then by
+         * file name
+         */
+        RENUMBER_TRACKS,
+        /**
+         * Gives every song the artwork most songs of the album have
+         */
+        UNIFY_ARTWORK,
+        /**
+         * Gives every song the genre most songs of the album have
+         */
+        UNIFY_GENRE
+    }
+
+    /**
+     * Identity of an album.
+     */
+    public static class Key implements Comparable<Key> {
+
+        public final String albumArtist;
+        public final String album;
+        public final String year;
+
+        private Key(String albumArtist, String album, String year) {
+            this.albumArtist = albumArtist;
+            this.album = album;
+            this.year = year;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.albumArtist.equals(other.albumArtist) && this.album.equals(other.album) && this.year.equals(other.year);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.albumArtist.hashCode() * 31 + this.album.hashCode()) * 31 + this.year.hashCode();
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int c = this.albumArtist.compareToIgnoreCase(other.albumArtist);
+            if (c == 0) {
+                c = this.album.compareToIgnoreCase(other.album);
+            }
+            if (c == 0) {
+                c = this.year.compareTo(other.year);
+            }
+            if (c == 0) {
+                c = (this.albumArtist + this.album).compareTo(other.albumArtist + other.album);
+            }
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return (this.albumArtist.isEmpty() ? "Unknown Artist" : this.albumArtist) + " - " + (this.album.isEmpty() ? "Unknown Album" : this.album)
+                    + (this.year.isEmpty() ? "" : " (" + this.year + ")");
+        }
+    }
+
+    /**
+     * The indexed values of one song.
+     */
+    private static class Entry {
+
+        private final Key key;
+        private final int track;
+        private final String genre;
+        private final String artworkHash;
+        private final String[] values;
+        private final long modified;
+        private final long length;
+
+        private Entry(Tag tag, File songFile) {
+            this(TagQuery.valuesOf(tag), artworkHash(tag), songFile.lastModified(), songFile.length());
+        }
+
+        private Entry(String[] values, String artworkHash, long modified, long length) {
+            String albumArtist = values[ALBUM_ARTIST];
+            if (albumArtist.isEmpty()) {
+                albumArtist = values[ARTIST];
+            }
+            this.key = new Key(albumArtist.trim(), values[ALBUM].trim(), values[YEAR].trim());
+            this.track = parseTrack(values[TRACK]);
+            this.genre = values[GENRE];
+            this.artworkHash = artworkHash;
+            this.values = values;
+            this.modified = modified;
+            this.length = length;
+        }
+
+        private static String artworkHash(Tag tag) {
+            Artwork art = tag.getFirstArtwork();
+            return art == null || art.getBinaryData() == null ? null : ArtworkRecompressor.hash(art.getBinaryData());
+        }
+
+        /**
+         * Determines if the entry was made from the file as it is now
+         *
+         * @param songFile The song file
+         * @return true if its modification time and length are unchanged
+         */
+        private boolean isCurrent(File songFile) {
+            return songFile.lastModified() == this.modified && songFile.length() == this.length;
+        }
+    }
+
+    /**
+     * Constructor for AlbumIndex. The index listens to the writer's commits.
+     *
+     * @param writer The writer to read and write tags with
+     */
+    public AlbumIndex(TagWriter writer) {
+        this.writer = writer;
+        this.paths = writer.getPaths();
+        writer.addCommitListener(this);
+    }
+
+    /**
+     * Reads the tags of every song not indexed yet, in parallel, and adds them
+     * to their albums
+     *
+     * @param songs Names of song files
+     */
+    public void scan(List<String> songs) {
+        List<String> unknown = new ArrayList<>();
+        synchronized (this) {
+            for (String song : songs) {
+                if (this.entry(this.paths.add(song)) == null) {
+                    unknown.add(song);
+                }
+            }
+        }
+        this.writer.getScheduler().run(unknown, new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                index(songName);
+            }
+        });
+    }
+
+    /**
+     * Checks every given song against its entry and reads again, in
+     * parallel, the songs that changed since they were indexed or were never
+     * indexed. Entries of songs that no longer exist are dropped
+     *
+     * @param songs Names of song files
+     * @return count Number of songs read
+     */
+    public int validate(List<String> songs) {
+        final AtomicInteger read = new AtomicInteger();
+        this.writer.getScheduler().run(songs, new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                File songFile = new File(songName);
+                int id = paths.add(songName);
+                Entry entry = entry(id);
+                if (!songFile.isFile()) {
+                    if (entry != null) {
+                        remove(id);
+                    }
+                } else if (entry == null || !entry.isCurrent(songFile)) {
+                    index(songName);
+                    read.incrementAndGet();
+                }
+            }
+        });
+        return read.get();
+    }
+
+    /**
+     * Writes the entries of the given songs, with their file modification
+     * times and lengths. Values are written once each and referred to by
+     * number, since most of them repeat across an album
+     *
+     * @param out The stream to write to
+     * @param songs Names of song files, in the order readStates gets them
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeStates(DataOutputStream out, List<String> songs) throws IOException {
+        Entry[] saved = new Entry[songs.size()];
+        Map<String, Integer> pool = new LinkedHashMap<>();
+        synchronized (this) {
+            for (int i = 0; i < saved.length; i++) {
+                saved[i] = this.entry(this.paths.find(songs.get(i)));
+                if (saved[i] != null) {
+                    for (String value : saved[i].values) {
+                        intern(pool, value);
+                    }
+                    if (saved[i].artworkHash != null) {
+                        intern(pool, saved[i].artworkHash);
+                    }
+                }
+            }
+        }
+        out.writeInt(TagQuery.FIELDS.size());
+        out.writeInt(pool.size());
+        for (String value : pool.keySet()) {
+            out.writeUTF(value);
+        }
+        for (Entry entry : saved) {
+            out.writeBoolean(entry != null);
+            if (entry == null) {
+                continue;
+            }
+            out.writeLong(entry.modified);
+            out.writeLong(entry.length);
+            for (String value : entry.values) {
+                out.writeInt(pool.get(value));
+            }
+            out.writeInt(entry.artworkHash == null ? -1 : pool.get(entry.artworkHash));
+        }
+    }
+
+    /**
+     * Restores entries written by writeStates without reading the songs.
+     * The restored entries are trusted until validate checks them
+     *
+     * @param in The stream to read from
+     * @param songs Names of song files, in the order writeStates got them
+     * @throws IOException if the stream cannot be read or was written with
+     * other fields
+     */
+    public void readStates(DataInputStream in, List<String> songs) throws IOException {
+        if (in.readInt() != TagQuery.FIELDS.size()) {
+            throw new IOException("Saved tag state has other fields");
+        }
+        String[] pool = new String[in.readInt()];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = in.readUTF();
+        }
+        try {
+            for (String song : songs) {
+                if (!in.readBoolean()) {
+                    continue;
+                }
+                long modified = in.readLong();
+                long length = in.readLong();
+                String[] values = new String[TagQuery.FIELDS.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = pool[in.readInt()];
+                }
+                int artwork = in.readInt();
+                this.put(this.paths.add(song), new Entry(values, artwork < 0 ? null : pool[artwork], modified, length));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt saved tag state", e);
+        }
+    }
+
+    /**
+     * Gets the indexed values of a song without reading it
+     *
+     * @param id The path id of the song
+     * @return values The values in the order of TagQuery.FIELDS, which must
+     * not be changed, or null if the song is not indexed
+     */
+    public String[] getValues(int id) {
+        Entry entry = this.entry(id);
+        return entry == null ? null : entry.values;
+    }
+
+    /**
+     * Moves a committed song to the album its new tag belongs to
+     *
+     * @param songFile The song file
+     * @param tag The tag as written
+     */
+    @Override
+    public void committed(File songFile, Tag tag) {
+        int id = this.paths.find(songFile.getAbsolutePath());
+        synchronized (this) {
+            if (this.entry(id) == null) {
+                id = this.paths.find(songFile.getPath());
+            }
+            if (this.entry(id) == null) {
+                return;
+            }
+        }
+        if (tag != null) {
+            this.put(id, new Entry(tag, songFile));
+        }
+    }
+
+    /**
+     * Forgets every song, for when tags were changed behind the writer's back
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.groups.clear();
+    }
+
+    /**
+     * Gets the albums of the given songs, or of every indexed song
+     *
+     * @param songs Names of song files, or null for every indexed song
+     * @return albums Song names by album, sorted by album and then file name
+     */
+    public synchronized Map<Key, List<String>> getAlbums(Collection<String> songs) {
+        BitSet wanted = null;
+        if (songs != null) {
+            wanted = new BitSet();
+            for (String song : songs) {
+                int id = this.paths.find(song);
+                if (id >= 0) {
+                    wanted.set(id);
+                }
+            }
+        }
+        Map<Key, List<String>> albums = new LinkedHashMap<>();
+        for (Map.Entry<Key, BitSet> group : this.groups.entrySet()) {
+            BitSet ids = group.getValue();
+            if (wanted != null) {
+                ids = (BitSet) ids.clone();
+                ids.and(wanted);
+            }
+            List<String> members = new ArrayList<>(ids.cardinality());
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                members.add(this.paths.get(id));
+            }
+            if (!members.isEmpty()) {
+                Collections.sort(members);
+                albums.put(group.getKey(), members);
+            }
+        }
+        return albums;
+    }
+
+    /**
+     * Selects the songs whose tags match a query. Songs not indexed yet are
+     * scanned first; the query itself runs on the index only
+     *
+     * @param query The query
+     * @param songs Names of song files
+     * @return matches The matching songs, in the order given
+     */
+    public List<String> select(TagQuery query, List<String> songs) {
+        this.scan(songs);
+        List<String> matches = new ArrayList<>();
+        synchronized (this) {
+            for (String song : songs) {
+                Entry entry = this.entry(this.paths.find(song));
+                if (entry != null && query.matches(entry.values)) {
+                    matches.add(song);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Runs album operations on the given albums in one pass. The changes of
+     * each song are planned from the index and written with at most one
+     * commit; the whole run is one undo batch
+     *
+     * @param albums Song names by album, as returned by getAlbums
+     * @param operations The operations to run
+     * @return changed Number of songs committed
+     */
+    public int apply(Map<Key, List<String>> albums, Set<Operation> operations) {
+        final Map<String, Map<FieldKey, String>> plans = new HashMap<>();
+        final Map<String, Artwork> artworkPlans = new HashMap<>();
+        List<String> songs = new ArrayList<>();
+        for (List<String> album : albums.values()) {
+            this.plan(album, operations, plans, artworkPlans);
+            songs.addAll(album);
+        }
+
+        final AtomicInteger changed = new AtomicInteger();
+        this.writer.getJournal().begin("Album operations");
+        try {
+            this.writer.getScheduler().run(songs, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    try {
+                        if (writer.applyFields(songName, plans.get(songName), artworkPlans.get(songName))) {
+                            changed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Could not update " + songName, e);
+                    }
+                }
+            });
+        } finally {
+            this.writer.getJournal().end();
+        }
+        return changed.get();
+    }
+
+    /**
+     * Plans the field and artwork changes of every song of one album
+     *
+     * @param album Song names of the album
+     * @param operations The operations to run
+     * @param plans Field values by song, filled in
+     * @param artworkPlans Artwork by song, filled in for songs that need it
+     */
+    private void plan(List<String> album, Set<Operation> operations, Map<String, Map<FieldKey, String>> plans, Map<String, Artwork> artworkPlans) {
+        final Map<String, Entry> members = new LinkedHashMap<>();
+        synchronized (this) {
+            for (String song : album) {
+                Entry entry = this.entry(this.paths.find(song));
+                if (entry != null) {
+                    members.put(song, entry);
+                }
+            }
+        }
+        List<String> order = new ArrayList<>(members.keySet());
+        Collections.sort(order, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int c = Integer.compare(members.get(a).track, members.get(b).track);
+                return c != 0 ? c : new File(a).getName().compareToIgnoreCase(new File(b).getName());
+            }
+        });
+
+        Map<String, Integer> genres = new LinkedHashMap<>();
+        Map<String, Integer> artworks = new LinkedHashMap<>();
+        Map<String, String> artworkSources = new HashMap<>();
+        for (String song : order) {
+            Entry entry = members.get(song);
+            if (!entry.genre.isEmpty()) {
+                increment(genres, entry.genre);
+            }
+            if (entry.artworkHash != null) {
+                increment(artworks, entry.artworkHash);
+                if (!artworkSources.containsKey(entry.artworkHash)) {
+                    artworkSources.put(entry.artworkHash, song);
+                }
+            }
+        }
+        String genre = mostCommon(genres);
+        String artworkHash = mostCommon(artworks);
+        Artwork artwork = null;
+        if (operations.contains(Operation.UNIFY_ARTWORK) && artworkHash != null) {
+            artwork = this.readArtwork(artworkSources.get(artworkHash));
+        }
+
+        for (int i = 0; i < order.size(); i++) {
+            String song = order.get(i);
+            Entry entry = members.get(song);
+            Map<FieldKey, String> values = new EnumMap<>(FieldKey.class);
+            if (operations.contains(Operation.RENUMBER_TRACKS)) {
+                values.put(FieldKey.TRACK, Integer.toString(i + 1));
+            }
+            if (operations.contains(Operation.FILL_TRACK_TOTAL)) {
+                values.put(FieldKey.TRACK_TOTAL, Integer.toString(order.size()));
+            }
+            if (operations.contains(Operation.UNIFY_GENRE) && genre != null) {
+                values.put(FieldKey.GENRE, genre);
+            }
+            plans.put(song, values);
+            if (artwork != null && !artworkHash.equals(entry.artworkHash)) {
+                artworkPlans.put(song, artwork);
+            }
+        }
+    }
+
+    /**
+     * Gets the entry of a path id
+     *
+     * @param id The path id, or -1
+     * @return entry The entry, or null if the song is not indexed
+     */
+    private synchronized Entry entry(int id) {
+        return id < 0 || id >= this.entries.size() ? null : this.entries.get(id);
+    }
+
+    private synchronized void put(int id, Entry entry) {
+        while (this.entries.size() <= id) {
+            this.entries.add(null);
+        }
+        Entry old = this.entries.set(id, entry);
+        if (old != null && !old.key.equals(entry.key)) {
+            BitSet group = this.groups.get(old.key);
+            group.clear(id);
+            if (group.isEmpty()) {
+                this.groups.remove(old.key);
+            }
+        }
+        BitSet group = this.groups.get(entry.key);
+        if (group == null) {
+            group = new BitSet();
+            this.groups.put(entry.key, group);
+        }
+        group.set(id);
+    }
+
+    /**
+     * Reads a song's tag into the index
+     *
+     * @param songName Name of song file
+     */
+    private void index(String songName) {
+        try {
+            File songFile = new File(songName);
+            long modified = songFile.lastModified();
+            long length = songFile.length();
+            Tag tag = FastTagReader.read(songFile);
+            if (tag != null) {
+                this.put(this.paths.add(songName), new Entry(TagQuery.valuesOf(tag), Entry.artworkHash(tag), modified, length));
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "Could not index " + songName, e);
+        }
+    }
+
+    /**
+     * Drops the entry of a path id from the index and its album
+     *
+     * @param id The path id
+     */
+    private synchronized void remove(int id) {
+        Entry old = this.entry(id);
+        if (old == null) {
+            return;
+        }
+        this.entries.set(id, null);
+        BitSet group = this.groups.get(old.key);
+        group.clear(id);
+        if (group.isEmpty()) {
+            this.groups.remove(old.key);
+        }
+    }
+
+    private static void intern(Map<String, Integer> pool, String value) {
+        if (!pool.containsKey(value)) {
+            pool.put(value, pool.size());
+        }
+    }
+
+    private Artwork readArtwork(String songName) {
+        try {
+            Tag tag = FastTagReader.read(new File(songName));
+            return tag == null ? null : tag.getFirstArtwork();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not read artwork of " + songName, e);
+            return null;
+        }
+    }
+
+    private static void increment(Map<String, Integer> counts, String value) {
+        Integer count = counts.get(value);
+        counts.put(value, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Gets the most common value, preferring the first one seen on ties
+     *
+     * @param counts Counts by value, in the order values were first seen
+     * @return value The most common value, or null if there are none
+     */
+    private static String mostCommon(Map<String, Integer> counts) {
+        String best = null;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (best == null || e.getValue() > counts.get(best)) {
+                best = e.getKey();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Parses a track field such as "3" or "03/12"
+     *
+     * @param track The track field
+     * @return number The track number, or Integer.MAX_VALUE if there is none
+     */
+    private static int parseTrack(String track) {
+        int end = 0;
+        String trimmed = track.trim();
+        while (end < trimmed.length() && Character.isDigit(trimmed.charAt(end))) {
+            end++;
+        }
+        try {
+            return end == 0 ? Integer.MAX_VALUE : Integer.parseInt(trimmed.substring(0, end));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package mp3tagwriter;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * This class is used to shrink embedded album artwork. Images are scaled down
+ * to a maximum dimension and re-encoded as JPEG. Identical images are only
+ * processed once while they are recent, keyed by a hash of their bytes: the
+ * results of the last few images are kept, which covers the songs of an
+ * album, since batches visit songs in directory order.
+ *
+ * @author Aditya Nivarthi
+ */
+public class ArtworkRecompressor {
+
+    public static final String JPEG_MIME_TYPE = "image/jpeg";
+    private static final int RECENT_RESULTS = 32;
+    private static final byte[] NOT_SMALLER = new byte[0];
+    private final int maxDimension;
+    private final float quality;
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> running = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> recent = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return this.size() > RECENT_RESULTS;
+        }
+    };
+    private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicInteger filesRewritten = new AtomicInteger();
+
+    /**
+     * Constructor for ArtworkRecompressor.
+     *
+     * @param maxDimension Largest width or height to keep
+     * @param quality JPEG quality between 0 and 1
+     */
+    public ArtworkRecompressor(int maxDimension, float quality) {
+        this.maxDimension = Math.max(1, maxDimension);
+        this.quality = Math.max(0f, Math.min(1f, quality));
+    }
+
+    /**
+     * Gets the recompressed version of an image, processing it only if no
+     * identical image is being processed or was processed recently
+     *
+     * @param original The original image bytes
+     * @return The recompressed bytes, or null if they would not be smaller
+     * @throws IOException if the image cannot be decoded or encoded
+     */
+    public byte[] recompress(final byte[] original) throws IOException {
+        String hash = hash(original);
+        this.seen.add(hash);
+        byte[] result = this.recentResult(hash);
+        if (result != null) {
+            return result == NOT_SMALLER ? null : result;
+        }
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                byte[] result = encode(original);
+                return result.length < original.length ? result : NOT_SMALLER;
+            }
+        });
+        FutureTask<byte[]> existing = this.running.putIfAbsent(hash, task);
+        if (existing == null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+        try {
+            result = task.get();
+            if (existing == null) {
+                synchronized (this.recent) {
+                    this.recent.put(hash, result);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            if (existing == null) {
+                this.running.remove(hash);
+            }
+        }
+        return result == NOT_SMALLER ? null : result;
+    }
+
+    /**
+     * Gets the result of an image processed recently
+     *
+     * @param hash Hash of the original image bytes
+     * @return result The recompressed bytes, NOT_SMALLER, or null if the
+     * image was not processed recently
+     */
+    private byte[] recentResult(String hash) {
+        synchronized (this.recent) {
+            return this.recent.get(hash);
+        }
+    }
+
+    /**
+     * Records that a file was rewritten with smaller artwork
+     *
+     * @param saved Artwork bytes saved in the file
+     */
+    public void recordSaving(long saved) {
+        this.bytesSaved.addAndGet(saved);
+        this.filesRewritten.incrementAndGet();
+    }
+
+    /**
+     * Gets the total artwork bytes saved so far. Files may keep the freed
+     * space as tag padding
+     *
+     * @return bytesSaved Artwork bytes saved across all rewritten files
+     */
+    public long getBytesSaved() {
+        return this.bytesSaved.get();
+    }
+
+    /**
+     * Gets the number of files rewritten so far
+     *
+     * @return filesRewritten Number of files rewritten
+     */
+    public int getFilesRewritten() {
+        return this.filesRewritten.get();
+    }
+
+    /**
+     * Gets the number of distinct images processed so far
+     *
+     * @return count Number of distinct images
+     */
+    public int getDistinctImages() {
+        return this.seen.size();
+    }
+
+    /**
+     * Reads the width and height of an image from its header, without
+     * decoding its pixels
+     *
+     * @param image The image bytes
+     * @return size The width and height
+     * @throws IOException if the image format is not supported
+     */
+    public static Dimension size(byte[] image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales an image to fit the maximum dimension and encodes it as JPEG
+     *
+     * @param original The original image bytes
+     * @return The JPEG bytes
+     * @throws IOException if the image cannot be decoded or encoded
+     */
+    private byte[] encode(byte[] original) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(original));
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = Math.min(1.0, (double) this.maxDimension / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+        // Halve in steps so bilinear filtering does not skip source pixels
+        BufferedImage current = image;
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG encoder available");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(this.quality);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(current, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Hashes image bytes for de-duplication
+     *
+     * @param data The image bytes
+     * @return hash Hex SHA-1 of the bytes
+     */
+    static String hash(byte[] data) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(data)).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
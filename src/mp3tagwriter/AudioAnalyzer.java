@@ -0,0 +1,458 @@
+package mp3tagwriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to find the length, bitrate and sample rate of mp3
+ * files without decoding them. Only the first frame is read, together with
+ * the Xing, Info or VBRI header encoders put in it; files without one are
+ * estimated from the bitrate of that frame, unless full scans are turned on,
+ * in which case every frame header is walked. Files are analyzed on low
+ * priority threads, and results are kept by path and only reused while the
+ * file's modification time and size are unchanged.
+ *
+ * @author Aditya Nivarthi
+ */
+public class AudioAnalyzer {
+
+    private static final Logger log = Logger.getLogger(AudioAnalyzer.class.getName());
+    private static final int SEARCH_BYTES = 64 * 1024;
+    private static final int SCAN_BUFFER = 256 * 1024;
+    private static final int VBRI_OFFSET = 36;
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger active = new AtomicInteger();
+    private final ExecutorService threads;
+    private volatile boolean fullScan = false;
+    private volatile boolean dirty = false;
+
+    private static class Entry {
+
+        private final long modified;
+        private final long size;
+        private final AudioInfo info;
+        private final boolean failed;
+
+        private Entry(long modified, long size, AudioInfo info) {
+            this(modified, size, info, false);
+        }
+
+        private Entry(long modified, long size, AudioInfo info, boolean failed) {
+            this.modified = modified;
+            this.size = size;
+            this.info = info;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * Constructor for AudioAnalyzer. Loads any results saved in the file.
+     *
+     * @param file The file results are kept in
+     */
+    public AudioAnalyzer(File file) {
+        this.file = file;
+        final AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "audio-analyzer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 3) {
+                    this.entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), null));
+                } else if (parts.length == 8) {
+                    AudioInfo info = new AudioInfo(Long.parseLong(parts[3]), Integer.parseInt(parts[4]), "1".equals(parts[5]), Integer.parseInt(parts[6]), AudioInfo.Source.valueOf(parts[7]));
+                    this.entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), info));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.log(Level.WARNING, "Ignoring unreadable audio info cache " + file, e);
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Turns full scans of files without a VBR header on or off. Results
+     * estimated before are analyzed again when next asked for
+     *
+     * @param fullScan true to count every frame of such files
+     */
+    public void setFullScan(boolean fullScan) {
+        this.fullScan = fullScan;
+    }
+
+    /**
+     * Determines if files without a VBR header are fully scanned
+     *
+     * @return true if every frame of such files is counted
+     */
+    public boolean isFullScan() {
+        return this.fullScan;
+    }
+
+    /**
+     * Gets the analysis of a song on the calling thread, reusing a current
+     * cached one
+     *
+     * @param songFile The song file
+     * @return info The analysis, or null if the file is not MPEG audio
+     * @throws IOException if the file cannot be read
+     */
+    public AudioInfo get(File songFile) throws IOException {
+        String key = songFile.getAbsolutePath();
+        long modified = songFile.lastModified();
+        long size = songFile.length();
+        Entry entry = this.entries.get(key);
+        if (this.isCurrent(entry, modified, size)) {
+            return entry.info;
+        }
+        AudioInfo info = analyze(songFile, this.fullScan);
+        this.entries.put(key, new Entry(modified, size, info));
+        this.dirty = true;
+        return info;
+    }
+
+    /**
+     * Gets the cached analysis of a song if it is current, or else queues
+     * the song to be analyzed in the background. A song that cannot be read
+     * is not queued again until it changes
+     *
+     * @param songFile The song file
+     * @param done Run on the analyzing thread once a queued song is done
+     * @return info The cached analysis, or null if there is none yet or the
+     * file is not MPEG audio
+     */
+    public AudioInfo request(final File songFile, final Runnable done) {
+        final String key = songFile.getAbsolutePath();
+        Entry entry = this.entries.get(key);
+        if (this.isCurrent(entry, songFile.lastModified(), songFile.length())) {
+            return entry.info;
+        }
+        if (this.queued.add(key)) {
+            this.active.incrementAndGet();
+            this.threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long modified = songFile.lastModified();
+                    long size = songFile.length();
+                    try {
+                        get(songFile);
+                    } catch (IOException e) {
+                        log.log(Level.FINE, "Could not analyze " + key, e);
+                        entries.put(key, new Entry(modified, size, null, true));
+                    } finally {
+                        queued.remove(key);
+                        finished();
+                    }
+                    done.run();
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Analyzes songs in parallel on the low priority threads and waits for
+     * them
+     *
+     * @param songs Names of song files
+     * @return infos The analyses in the order given, null for files that are
+     * not MPEG audio or cannot be read
+     */
+    public List<AudioInfo> getAll(List<String> songs) {
+        List<Future<AudioInfo>> futures = new ArrayList<>(songs.size());
+        for (final String song : songs) {
+            this.active.incrementAndGet();
+            futures.add(this.threads.submit(new Callable<AudioInfo>() {
+                @Override
+                public AudioInfo call() throws IOException {
+                    try {
+                        return get(new File(song));
+                    } finally {
+                        finished();
+                    }
+                }
+            }));
+        }
+        List<AudioInfo> infos = new ArrayList<>(songs.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                infos.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                log.log(Level.FINE, "Could not analyze " + songs.get(i), e.getCause());
+                infos.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<AudioInfo> future : futures) {
+                    future.cancel(false);
+                }
+                while (infos.size() < songs.size()) {
+                    infos.add(null);
+                }
+                break;
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Writes the results back to their file if anything changed
+     */
+    public synchronized void save() {
+        if (!this.dirty) {
+            return;
+        }
+        this.dirty = false;
+        File temp = new File(this.file.getPath() + ".tmp");
+        try {
+            this.file.getAbsoluteFile().getParentFile().mkdirs();
+            try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    if (entry.failed) {
+                        continue;
+                    }
+                    AudioInfo info = entry.info;
+                    out.write(e.getKey() + "\t" + entry.modified + "\t" + entry.size);
+                    if (info != null) {
+                        out.write("\t" + info.durationMillis + "\t" + info.bitrate + "\t" + (info.vbr ? 1 : 0) + "\t" + info.sampleRate + "\t" + info.source.name());
+                    }
+                    out.newLine();
+                }
+            }
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.dirty = true;
+            log.log(Level.WARNING, "Could not save audio info cache " + this.file, e);
+        }
+    }
+
+    /**
+     * Analyzes the audio of an mp3 file
+     *
+     * @param songFile The song file
+     * @param fullScan true to count every frame when there is no VBR header
+     * @return info The analysis, or null if no MPEG frame is found
+     * @throws IOException if the file cannot be read
+     */
+    public static AudioInfo analyze(File songFile, boolean fullScan) throws IOException {
+        if (SongFormat.forFileName(songFile.getName()) != SongFormat.MP3) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(songFile.toPath(), StandardOpenOption.READ)) {
+            long[] region = TagRegion.audioRegion(channel);
+            byte[] b = TagRegion.read(channel, region[0], (int) Math.min(SEARCH_BYTES, region[1] - region[0]));
+            if (b == null) {
+                return null;
+            }
+            int offset = firstFrame(b);
+            if (offset < 0) {
+                return null;
+            }
+            MpegHeader header = MpegHeader.parse(b, offset);
+            long frameStart = region[0] + offset;
+            AudioInfo info = infoHeader(b, offset, header, region[1] - frameStart);
+            if (info != null) {
+                return info;
+            }
+            if (fullScan) {
+                return scan(channel, frameStart, region[1], header);
+            }
+            long millis = (region[1] - frameStart) * 8 / header.bitrate;
+            return new AudioInfo(millis, header.bitrate, false, header.sampleRate, AudioInfo.Source.ESTIMATE);
+        }
+    }
+
+    /**
+     * Finds the first frame header that is followed by another one, or that
+     * runs to the end of the bytes
+     *
+     * @param b Bytes from the start of the audio
+     * @return offset Offset of the frame, or -1 if there is none
+     */
+    private static int firstFrame(byte[] b) {
+        for (int i = 0; i + 4 <= b.length; i++) {
+            MpegHeader header = MpegHeader.parse(b, i);
+            if (header == null || header.frameLength < 4) {
+                continue;
+            }
+            int next = i + header.frameLength;
+            if (next + 4 > b.length) {
+                return i;
+            }
+            MpegHeader following = MpegHeader.parse(b, next);
+            if (following != null && following.version == header.version && following.layer == header.layer && following.sampleRate == header.sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a Xing, Info or VBRI header in the first frame
+     *
+     * @param b Bytes from the start of the audio
+     * @param offset Offset of the first frame in b
+     * @param header The header of the first frame
+     * @param audioLength Bytes from the first frame to the end of the audio
+     * @return info The analysis, or null if the frame has no header with a
+     * frame count
+     */
+    private static AudioInfo infoHeader(byte[] b, int offset, MpegHeader header, long audioLength) {
+        long frames = -1;
+        long bytes = -1;
+        boolean vbr = true;
+        AudioInfo.Source source = AudioInfo.Source.XING;
+        int x = offset + header.sideInfoEnd();
+        int v = offset + VBRI_OFFSET;
+        if (header.layer == 3 && x + 16 <= b.length && (tag(b, x, "Xing") || tag(b, x, "Info"))) {
+            vbr = tag(b, x, "Xing");
+            int flags = readInt(b, x + 4);
+            int field = x + 8;
+            if ((flags & 1) != 0) {
+                frames = readInt(b, field) & 0xffffffffL;
+                field += 4;
+            }
+            if ((flags & 2) != 0 && field + 4 <= b.length) {
+                bytes = readInt(b, field) & 0xffffffffL;
+            }
+        } else if (v + 18 <= b.length && tag(b, v, "VBRI")) {
+            source = AudioInfo.Source.VBRI;
+            bytes = readInt(b, v + 10) & 0xffffffffL;
+            frames = readInt(b, v + 14) & 0xffffffffL;
+        }
+        if (frames <= 0) {
+            return null;
+        }
+        long millis = frames * header.samplesPerFrame * 1000 / header.sampleRate;
+        if (bytes <= 0) {
+            bytes = audioLength - header.frameLength;
+        }
+        int bitrate = millis > 0 ? (int) (bytes * 8 / millis) : header.bitrate;
+        return new AudioInfo(millis, bitrate, vbr, header.sampleRate, source);
+    }
+
+    /**
+     * Counts every frame of the audio by walking from header to header,
+     * searching forward for the next header where the chain breaks
+     *
+     * @param channel The file to read from
+     * @param start Offset of the first frame
+     * @param end Offset past the audio
+     * @param first The header of the first frame
+     * @return info The analysis
+     * @throws IOException if the file cannot be read
+     */
+    private static AudioInfo scan(FileChannel channel, long start, long end, MpegHeader first) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER);
+        byte[] b = buffer.array();
+        long bufferStart = 0;
+        int bufferLength = 0;
+        long samples = 0;
+        long bytes = 0;
+        int lowest = Integer.MAX_VALUE;
+        int highest = 0;
+        long position = start;
+        while (position + 4 <= end) {
+            if (position < bufferStart || position + 4 > bufferStart + bufferLength) {
+                buffer.clear();
+                buffer.limit((int) Math.min(SCAN_BUFFER, end - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) <= 0) {
+                        break;
+                    }
+                }
+                bufferStart = position;
+                bufferLength = buffer.position();
+                if (bufferLength < 4) {
+                    break;
+                }
+            }
+            MpegHeader header = MpegHeader.parse(b, (int) (position - bufferStart));
+            if (header == null || header.frameLength < 4 || header.sampleRate != first.sampleRate || header.layer != first.layer) {
+                position++;
+                continue;
+            }
+            samples += header.samplesPerFrame;
+            bytes += header.frameLength;
+            lowest = Math.min(lowest, header.bitrate);
+            highest = Math.max(highest, header.bitrate);
+            position += header.frameLength;
+        }
+        long millis = samples * 1000 / first.sampleRate;
+        int bitrate = millis > 0 ? (int) (bytes * 8 / millis) : first.bitrate;
+        return new AudioInfo(millis, bitrate, lowest != highest, first.sampleRate, AudioInfo.Source.FRAME_SCAN);
+    }
+
+    /**
+     * Determines if a cached result can be reused
+     *
+     * @param entry The cached result, or null
+     * @param modified The file's modification time now
+     * @param size The file's size now
+     * @return true if the file is unchanged and the result is not an
+     * estimate that a full scan should replace
+     */
+    private boolean isCurrent(Entry entry, long modified, long size) {
+        return entry != null && entry.modified == modified && entry.size == size
+                && !(this.fullScan && entry.info != null && entry.info.source == AudioInfo.Source.ESTIMATE);
+    }
+
+    /**
+     * Saves the results once no song is left to analyze
+     */
+    private void finished() {
+        if (this.active.decrementAndGet() == 0) {
+            this.save();
+        }
+    }
+
+    private static boolean tag(byte[] b, int offset, String tag) {
+        for (int i = 0; i < tag.length(); i++) {
+            if (b[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,164 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class is used to fingerprint the audio of a song file. Only the audio
+ * region is hashed, so files that differ only in their tags get the same
+ * fingerprint.
+ *
+ * @author Aditya Nivarthi
+ */
+public class AudioFingerprint {
+
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+    private static final long CORE_BLOCK = 256L * 1024;
+    private static final String EMPTY = hex(digest());
+
+    /**
+     * Hash of the whole audio region
+     */
+    public final String exact;
+
+    /**
+     * Hash of the audio after any leading VBR info frame, cut down to whole
+     * 256 KB blocks. It matches files that only differ in their encoder info
+     * frame or a few trailing bytes. Audio shorter than one block uses the
+     * exact hash
+     */
+    public final String core;
+
+    /**
+     * Constructor for AudioFingerprint.
+     *
+     * @param exact Hash of the whole audio region
+     * @param core Hash of the core audio region
+     */
+    public AudioFingerprint(String exact, String core) {
+        this.exact = exact;
+        this.core = core;
+    }
+
+    /**
+     * Determines if the audio region was empty, as in a file that holds only
+     * tags. Every such file has the same fingerprint
+     *
+     * @return true if there was no audio to hash
+     */
+    public boolean isEmpty() {
+        return EMPTY.equals(this.exact);
+    }
+
+    /**
+     * Fingerprints a file
+     *
+     * @param file The song file
+     * @return fingerprint The fingerprint of its audio
+     * @throws IOException if the file cannot be read
+     */
+    public static AudioFingerprint of(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] region = TagRegion.audioRegion(channel);
+            long coreStart = region[0] + infoFrameLength(channel, region[0]);
+            long coreEnd = coreStart + (region[1] - coreStart) / CORE_BLOCK * CORE_BLOCK;
+            MessageDigest exact = digest();
+            MessageDigest core = digest();
+            update(channel, region[0], coreStart, exact);
+            update(channel, coreStart, coreEnd, exact, core);
+            update(channel, coreEnd, region[1], exact);
+            String exactHash = hex(exact);
+            return new AudioFingerprint(exactHash, coreEnd > coreStart ? hex(core) : exactHash);
+        }
+    }
+
+    /**
+     * Hashes a region of a file through memory mapped reads
+     *
+     * @param channel The file to read from
+     * @param start Offset of the first byte
+     * @param end Offset past the last byte
+     * @return hash Hex MD5 of the region
+     * @throws IOException if the file cannot be read
+     */
+    public static String hash(FileChannel channel, long start, long end) throws IOException {
+        MessageDigest md = digest();
+        update(channel, start, end, md);
+        return hex(md);
+    }
+
+    /**
+     * Feeds a region of a file to one or more digests, mapping it in chunks
+     *
+     * @param channel The file to read from
+     * @param start Offset of the first byte
+     * @param end Offset past the last byte
+     * @param digests The digests to update
+     * @throws IOException if the file cannot be read
+     */
+    static void update(FileChannel channel, long start, long end, MessageDigest... digests) throws IOException {
+        for (long position = start; position < end; position += MAP_CHUNK) {
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK, end - position));
+            for (MessageDigest md : digests) {
+                chunk.rewind();
+                md.update(chunk);
+            }
+        }
+    }
+
+    /**
+     * Measures a leading Xing, Info or VBRI frame. Encoders write these with
+     * per-file details, so they are left out of the core hash
+     *
+     * @param channel The file to read from
+     * @param audioStart Offset of the first audio frame
+     * @return length The length of the info frame, or 0 if there is none
+     * @throws IOException if the file cannot be read
+     */
+    static int infoFrameLength(FileChannel channel, long audioStart) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        channel.read(buffer, audioStart);
+        byte[] b = buffer.array();
+        MpegHeader header = MpegHeader.parse(b, 0);
+        if (header == null) {
+            return 0;
+        }
+        int x = header.sideInfoEnd();
+        String xing = new String(b, x, 4, "US-ASCII");
+        String vbri = new String(b, 36, 4, "US-ASCII");
+        return "Xing".equals(xing) || "Info".equals(xing) || "VBRI".equals(vbri) ? header.frameLength : 0;
+    }
+
+    /**
+     * Creates the digest fingerprints are made with
+     *
+     * @return digest A new MD5 digest
+     */
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finishes a digest as a hex string
+     *
+     * @param md The digest
+     * @return hash The hash, as 32 hex digits
+     */
+    static String hex(MessageDigest md) {
+        String hex = new BigInteger(1, md.digest()).toString(16);
+        while (hex.length() < 32) {
+            hex = "0" + hex;
+        }
+        return hex;
+    }
+}
@@ -0,0 +1,86 @@
+package mp3tagwriter;
+
+/**
+ * This class is used to hold the length and quality of the audio of an mp3
+ * file, as found by AudioAnalyzer.
+ *
+ * @author Aditya Nivarthi
+ */
+public class AudioInfo {
+
+    /**
+     * Ways the length of a song was found.
+     */
+    public enum Source {
+
+        /**
+         * Frame count of a Xing or Info header
+         */
+        XING,
+        /**
+         * Frame count of a VBRI header
+         */
+        VBRI,
+        /**
+         * Audio size divided by the bitrate of the first frame, exact only
+         * for constant bitrate files
+         */
+        ESTIMATE,
+        /**
+         * Count of every frame in the file
+         */
+        FRAME_SCAN
+    }
+
+    public final long durationMillis;
+
+    /**
+     * Average bitrate in kbps
+     */
+    public final int bitrate;
+    public final boolean vbr;
+    public final int sampleRate;
+    public final Source source;
+
+    /**
+     * Constructor for AudioInfo.
+     *
+     * @param durationMillis Length of the audio in milliseconds
+     * @param bitrate Average bitrate in kbps
+     * @param vbr true if the bitrate varies between frames
+     * @param sampleRate Sample rate in Hz
+     * @param source How the length was found
+     */
+    public AudioInfo(long durationMillis, int bitrate, boolean vbr, int sampleRate, Source source) {
+        this.durationMillis = durationMillis;
+        this.bitrate = bitrate;
+        this.vbr = vbr;
+        this.sampleRate = sampleRate;
+        this.source = source;
+    }
+
+    /**
+     * Formats the length as minutes and seconds, marked with a tilde when it
+     * is an estimate
+     *
+     * @return length The length, such as "3:07"
+     */
+    public String formatDuration() {
+        long seconds = (this.durationMillis + 500) / 1000;
+        return (this.source == Source.ESTIMATE ? "~" : "") + seconds / 60 + ":" + (seconds % 60 < 10 ? "0" : "") + seconds % 60;
+    }
+
+    /**
+     * Formats the bitrate with its mode
+     *
+     * @return bitrate The bitrate, such as "192 kbps VBR"
+     */
+    public String formatBitrate() {
+        return this.bitrate + " kbps " + (this.vbr ? "VBR" : "CBR");
+    }
+
+    @Override
+    public String toString() {
+        return this.formatDuration() + ", " + this.formatBitrate() + ", " + this.sampleRate + " Hz";
+    }
+}
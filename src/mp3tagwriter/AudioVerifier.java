@@ -0,0 +1,372 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to check that committing a tag left a song's audio
+ * alone. The audio region is hashed through memory mapped reads before and
+ * after the commit, leaving out the tags, and a song whose hashes differ has
+ * its outcome turned from saved into failed, in the progress of its batch.
+ * Commits that fail partway are hashed again too. Hashing runs on threads
+ * of its own: the first hash overlaps the journal snapshot of the song, and
+ * the second overlaps the work on the next songs, so a batch only waits for
+ * the checks of its songs still running when it reports them. Ogg pages are
+ * hashed without their headers, since a tag that grows by a page renumbers
+ * the audio pages after it.
+ *
+ * @author Aditya Nivarthi
+ */
+public class AudioVerifier {
+
+    private static final Logger log = Logger.getLogger(AudioVerifier.class.getName());
+    private static final String OPERATION = "Verify audio";
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+    private static final int SAMPLE_BLOCKS = 16;
+    private static final int SAMPLE_BLOCK = 64 * 1024;
+    private static final int OGG_PAGE_HEADER_LENGTH = 27;
+    private final ExecutorService threads;
+    private final Semaphore slots;
+    private final AtomicInteger verified = new AtomicInteger();
+    private final AtomicInteger mismatched = new AtomicInteger();
+    private int pending = 0;
+    private volatile Verification mode;
+
+    /**
+     * A check of one commit, started before the song is written.
+     */
+    public class Check {
+
+        private final File songFile;
+        private final BatchProgress progress;
+        private final Verification mode;
+        private final Future<String> before;
+        private SongOutcome outcome;
+        private boolean attached = false;
+        private boolean ended = false;
+        private String failure;
+
+        private Check(final File songFile, BatchProgress progress, final Verification mode) {
+            this.songFile = songFile;
+            this.progress = progress;
+            this.mode = mode;
+            this.before = threads.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return hash(songFile, mode);
+                }
+            });
+        }
+
+        /**
+         * Waits for the song to be hashed as it was, which has to happen
+         * before it is written
+         */
+        public void awaitBefore() {
+            try {
+                this.before.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.log(Level.FINE, "Could not hash " + this.songFile + " before its commit", e.getCause());
+            }
+        }
+
+        /**
+         * Ends the commit. Whether or not the song was written in full, it is
+         * hashed again in the background and compared with the hash from
+         * before the write, unless the write never started
+         */
+        public void finish() {
+            final String original;
+            try {
+                original = this.before.isDone() ? this.before.get() : null;
+            } catch (InterruptedException | ExecutionException e) {
+                this.end(null);
+                return;
+            }
+            if (original == null) {
+                this.before.cancel(false);
+                this.end(null);
+                return;
+            }
+            threads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    compare(original);
+                }
+            });
+        }
+
+        /**
+         * Ties the check to the outcome of the operation that made the
+         * commit, which a failed check marks as failed. The operation calls
+         * this once its outcome is recorded, whether or not the check has
+         * ended
+         *
+         * @param outcome The outcome, or null to record a failed check as an
+         * outcome of its own
+         */
+        public synchronized void attach(SongOutcome outcome) {
+            this.attached = true;
+            this.outcome = outcome;
+            if (!this.ended) {
+                if (outcome != null) {
+                    outcome.checkStarted();
+                }
+            } else if (this.failure != null) {
+                this.report();
+            }
+        }
+
+        /**
+         * Ends the check, reporting its failure if the check is attached
+         *
+         * @param failure Why the audio does not match, or null if it does or
+         * was not compared
+         */
+        private void end(String failure) {
+            synchronized (this) {
+                this.ended = true;
+                this.failure = failure;
+                if (this.attached) {
+                    if (failure != null) {
+                        this.report();
+                    }
+                    if (this.outcome != null) {
+                        this.outcome.checkEnded();
+                    }
+                }
+            }
+            done();
+        }
+
+        /**
+         * Marks the outcome of the commit as failed, or records a failed
+         * outcome of its own if there is none
+         */
+        private void report() {
+            if (this.outcome == null) {
+                if (this.progress != null) {
+                    this.progress.recordOutcome(new SongOutcome(this.songFile.getPath(), OPERATION, SongOutcome.Status.FAILED, 1, this.failure, false));
+                }
+            } else if (this.outcome.markFailed(this.failure) && this.progress != null) {
+                this.progress.recordLateFailure(this.outcome);
+            }
+        }
+
+        /**
+         * Hashes the written song and ends the check as failed if its audio
+         * changed
+         *
+         * @param original Hash of the audio before the write
+         */
+        private void compare(String original) {
+            String reason = null;
+            try {
+                if (original.equals(hash(this.songFile, this.mode))) {
+                    verified.incrementAndGet();
+                } else {
+                    reason = "Audio changed by commit";
+                }
+            } catch (IOException | RuntimeException e) {
+                reason = "Audio unreadable after commit: " + e.getMessage();
+            } finally {
+                if (reason != null) {
+                    mismatched.incrementAndGet();
+                    log.severe(reason + ": " + this.songFile);
+                }
+                this.end(reason);
+            }
+        }
+    }
+
+    /**
+     * Constructor for AudioVerifier.
+     *
+     * @param mode How commits are checked
+     */
+    public AudioVerifier(Verification mode) {
+        final AtomicInteger count = new AtomicInteger();
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.mode = mode;
+        this.slots = new Semaphore(cores * 4);
+        this.threads = Executors.newFixedThreadPool(cores, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "audio-verifier-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets how commits are checked, from the next commit on
+     *
+     * @param mode The verification
+     */
+    public void setMode(Verification mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Gets how commits are checked
+     *
+     * @return mode The verification
+     */
+    public Verification getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Starts checking a commit by hashing the song as it is. Once too many
+     * checks are running, this waits for one of them to end, so that a fast
+     * batch cannot queue up unbounded work
+     *
+     * @param songFile The song about to be written
+     * @param progress The batch to record a failed check in, or null
+     * @return check The check, or null if commits are not checked
+     */
+    public Check begin(File songFile, BatchProgress progress) {
+        Verification current = this.mode;
+        if (current == Verification.OFF) {
+            return null;
+        }
+        this.slots.acquireUninterruptibly();
+        synchronized (this) {
+            this.pending++;
+        }
+        return new Check(songFile, progress, current);
+    }
+
+    /**
+     * Waits until every check started so far has ended
+     */
+    public synchronized void await() {
+        while (this.pending > 0) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of commits whose audio was found unchanged
+     *
+     * @return count The number of commits
+     */
+    public int getVerified() {
+        return this.verified.get();
+    }
+
+    /**
+     * Gets the number of commits whose audio changed or could no longer be
+     * read
+     *
+     * @return count The number of commits
+     */
+    public int getMismatched() {
+        return this.mismatched.get();
+    }
+
+    /**
+     * Hashes the audio of a song file, leaving out its tags
+     *
+     * @param songFile The song file
+     * @param mode SAMPLED to hash only spread out blocks and the length of
+     * the audio, FULL to hash all of it
+     * @return hash Hex MD5 of the audio
+     * @throws IOException if the file cannot be read
+     */
+    public static String hash(File songFile, Verification mode) throws IOException {
+        try (FileChannel channel = FileChannel.open(songFile.toPath(), StandardOpenOption.READ)) {
+            long[] region = TagRegion.audioRegion(channel);
+            long length = region[1] - region[0];
+            MessageDigest md = AudioFingerprint.digest();
+            if (TagRegion.oggHeaderEnd(channel) > 0) {
+                updateOggBodies(channel, region[0], region[1], md);
+            } else if (mode != Verification.SAMPLED || length <= (long) SAMPLE_BLOCKS * SAMPLE_BLOCK) {
+                AudioFingerprint.update(channel, region[0], region[1], md);
+            } else {
+                md.update(ByteBuffer.allocate(8).putLong(length).array());
+                for (int i = 0; i < SAMPLE_BLOCKS; i++) {
+                    long position = region[0] + (length - SAMPLE_BLOCK) * i / (SAMPLE_BLOCKS - 1);
+                    AudioFingerprint.update(channel, position, position + SAMPLE_BLOCK, md);
+                }
+            }
+            return AudioFingerprint.hex(md);
+        }
+    }
+
+    /**
+     * Feeds the bodies of the Ogg pages in a region to a digest, leaving out
+     * the page headers. Anything after the last whole page is fed as it is
+     *
+     * @param channel The file to read from
+     * @param start Offset of the first page
+     * @param end Offset past the last page
+     * @param md The digest to update
+     * @throws IOException if the file cannot be read
+     */
+    private static void updateOggBodies(FileChannel channel, long start, long end, MessageDigest md) throws IOException {
+        long position = start;
+        while (position < end) {
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK, end - position));
+            int offset = 0;
+            while (offset + OGG_PAGE_HEADER_LENGTH <= chunk.limit() && chunk.get(offset) == 'O' && chunk.get(offset + 1) == 'g' && chunk.get(offset + 2) == 'g' && chunk.get(offset + 3) == 'S') {
+                int segments = chunk.get(offset + 26) & 0xff;
+                int bodyStart = offset + OGG_PAGE_HEADER_LENGTH + segments;
+                if (bodyStart > chunk.limit()) {
+                    break;
+                }
+                int body = 0;
+                for (int i = offset + OGG_PAGE_HEADER_LENGTH; i < bodyStart; i++) {
+                    body += chunk.get(i) & 0xff;
+                }
+                if (bodyStart + body > chunk.limit()) {
+                    break;
+                }
+                ByteBuffer page = chunk.duplicate();
+                page.limit(bodyStart + body).position(bodyStart);
+                md.update(page);
+                offset = bodyStart + body;
+            }
+            if (offset == 0) {
+                AudioFingerprint.update(channel, position, end, md);
+                return;
+            }
+            position += offset;
+        }
+    }
+
+    /**
+     * Ends a check, letting the next one start
+     */
+    private void done() {
+        this.slots.release();
+        synchronized (this) {
+            if (--this.pending == 0) {
+                this.notifyAll();
+            }
+        }
+    }
+}
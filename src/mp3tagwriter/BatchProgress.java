@@ -0,0 +1,272 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is used to follow a running batch: how many songs and bytes are
+ * done, which songs failed, were retried or skipped and why, and whether the
+ * batch was asked to stop.
+ * Counters are updated by the batch's workers and read by whoever displays
+ * them.
+ *
+ * @author Aditya Nivarthi
+ */
+public class BatchProgress {
+
+    private static final int MAX_FAILURES = 1000;
+    private final String label;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger retried = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<SongOutcome> failures = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos = 0;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor for BatchProgress.
+     *
+     * @param label Name of the batch
+     */
+    public BatchProgress(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Adds songs to the number the batch will process
+     *
+     * @param songs Number of songs
+     */
+    public void addTotal(int songs) {
+        this.total.addAndGet(songs);
+    }
+
+    /**
+     * Counts a song as processed, whether or not it failed
+     *
+     * @param songName Name of song file
+     */
+    public void processed(String songName) {
+        this.bytes.addAndGet(new File(songName).length());
+        this.processed.incrementAndGet();
+    }
+
+    /**
+     * Records why a song failed. Only the first MAX_FAILURES reasons are kept
+     *
+     * @param songName Name of song file
+     * @param reason Why it failed
+     */
+    public void recordFailure(String songName, String reason) {
+        this.recordOutcome(new SongOutcome(songName, this.label, SongOutcome.Status.FAILED, 1, reason, false));
+    }
+
+    /**
+     * Records how the batch's operation on a song ended. Only the first
+     * MAX_FAILURES failed songs are kept
+     *
+     * @param outcome The outcome
+     */
+    public void recordOutcome(SongOutcome outcome) {
+        if (outcome.attempts > 1) {
+            this.retried.incrementAndGet();
+        }
+        switch (outcome.status) {
+            case FAILED:
+                this.failed.incrementAndGet();
+                synchronized (this.failures) {
+                    if (this.failures.size() < MAX_FAILURES) {
+                        this.failures.add(outcome);
+                    }
+                }
+                break;
+            case SKIPPED:
+                this.skipped.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Counts a song that was recorded as saved as failed instead, once its
+     * outcome has been marked failed
+     *
+     * @param outcome The outcome, already recorded
+     */
+    public void recordLateFailure(SongOutcome outcome) {
+        this.failed.incrementAndGet();
+        synchronized (this.failures) {
+            if (this.failures.size() < MAX_FAILURES) {
+                this.failures.add(outcome);
+            }
+        }
+    }
+
+    /**
+     * Asks the batch to stop. Songs already being written are finished, the
+     * rest are skipped
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Determines if the batch was asked to stop
+     *
+     * @return true if cancel was called
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Marks the batch as finished, stopping its clock
+     */
+    public void finish() {
+        this.endNanos = System.nanoTime();
+    }
+
+    /**
+     * Determines if the batch has finished
+     *
+     * @return true once finish was called
+     */
+    public boolean isFinished() {
+        return this.endNanos != 0;
+    }
+
+    /**
+     * Gets the name of the batch
+     *
+     * @return label The name
+     */
+    public String getLabel() {
+        return this.label;
+    }
+
+    /**
+     * Gets the number of songs the batch will process
+     *
+     * @return total Number of songs
+     */
+    public int getTotal() {
+        return this.total.get();
+    }
+
+    /**
+     * Gets the number of songs processed so far, including failed ones
+     *
+     * @return processed Number of songs
+     */
+    public int getProcessed() {
+        return this.processed.get();
+    }
+
+    /**
+     * Gets the number of songs that failed so far
+     *
+     * @return failed Number of songs
+     */
+    public int getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Gets the number of songs that needed more than one attempt, whether or
+     * not they were saved in the end
+     *
+     * @return retried Number of songs
+     */
+    public int getRetried() {
+        return this.retried.get();
+    }
+
+    /**
+     * Gets the number of songs skipped because the batch was cancelled
+     * while they waited
+     *
+     * @return skipped Number of songs
+     */
+    public int getSkipped() {
+        return this.skipped.get();
+    }
+
+    /**
+     * Gets the reasons recorded for failed songs
+     *
+     * @return failures Copy of the reasons, in the order they happened
+     */
+    public List<String> getFailures() {
+        List<String> reasons = new ArrayList<>();
+        synchronized (this.failures) {
+            for (SongOutcome outcome : this.failures) {
+                reasons.add(outcome.toString());
+            }
+        }
+        return reasons;
+    }
+
+    /**
+     * Gets the outcomes recorded for failed songs
+     *
+     * @return failures Copy of the outcomes, in the order they happened
+     */
+    public List<SongOutcome> getFailedOutcomes() {
+        synchronized (this.failures) {
+            return new ArrayList<>(this.failures);
+        }
+    }
+
+    /**
+     * Gets the songs processed per second since the batch started
+     *
+     * @return rate Songs per second
+     */
+    public double getFilesPerSecond() {
+        return this.processed.get() / this.elapsedSeconds();
+    }
+
+    /**
+     * Gets the bytes of song files processed per second since the batch
+     * started
+     *
+     * @return rate Bytes per second
+     */
+    public double getBytesPerSecond() {
+        return this.bytes.get() / this.elapsedSeconds();
+    }
+
+    /**
+     * Estimates the time left from the song rate so far
+     *
+     * @return seconds Estimated seconds left, or -1 if there is no rate yet
+     */
+    public long getEtaSeconds() {
+        double rate = this.getFilesPerSecond();
+        if (rate <= 0) {
+            return -1;
+        }
+        return Math.round(Math.max(0, this.total.get() - this.processed.get()) / rate);
+    }
+
+    @Override
+    public String toString() {
+        int saved = this.processed.get() - this.failed.get() - this.skipped.get();
+        return this.label + ": " + saved + " of " + this.total.get() + " files saved, " + this.failed.get() + " failed"
+                + (this.retried.get() > 0 ? ", " + this.retried.get() + " retried" : "")
+                + (this.cancelled ? ", cancelled" : "");
+    }
+
+    private double elapsedSeconds() {
+        long end = this.endNanos == 0 ? System.nanoTime() : this.endNanos;
+        return Math.max(1e-3, (end - this.startNanos) / 1e9);
+    }
+}
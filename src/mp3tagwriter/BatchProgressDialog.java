@@ -0,0 +1,128 @@
+package mp3tagwriter;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+import javax.swing.BorderFactory;
+import javax.swing.BoxLayout;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+/**
+ * This class is used to show the progress of a running batch without blocking
+ * the window: files and megabytes per second, time left, the songs that
+ * failed and why, and a button that stops the batch after the songs being
+ * written.
+ *
+ * @author Aditya Nivarthi
+ */
+public class BatchProgressDialog extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+    private static final int REFRESH_MILLIS = 250;
+    private final BatchProgress progress;
+    private final JProgressBar bar = new JProgressBar();
+    private final JLabel counts = new JLabel(" ");
+    private final JLabel rates = new JLabel(" ");
+    private final DefaultListModel<String> failures = new DefaultListModel<>();
+    private final JButton button = new JButton("Cancel");
+    private final Timer timer;
+
+    /**
+     * Constructor for BatchProgressDialog. Must be called on the event
+     * dispatch thread; the dialog refreshes itself until the batch finishes.
+     *
+     * @param owner The window the dialog belongs to
+     * @param progress The batch to follow
+     */
+    public BatchProgressDialog(Window owner, BatchProgress progress) {
+        super(owner, progress.getLabel(), ModalityType.MODELESS);
+        this.progress = progress;
+        this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        JPanel status = new JPanel();
+        status.setLayout(new BoxLayout(status, BoxLayout.Y_AXIS));
+        status.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        this.bar.setStringPainted(true);
+        status.add(this.bar);
+        status.add(this.counts);
+        status.add(this.rates);
+
+        JScrollPane failurePane = new JScrollPane(new JList<>(this.failures));
+        failurePane.setBorder(BorderFactory.createTitledBorder("Failures"));
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(this.button);
+        this.button.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (BatchProgressDialog.this.progress.isFinished()) {
+                    dispose();
+                } else {
+                    BatchProgressDialog.this.progress.cancel();
+                    button.setEnabled(false);
+                    button.setText("Cancelling...");
+                }
+            }
+        });
+
+        this.getContentPane().add(status, BorderLayout.NORTH);
+        this.getContentPane().add(failurePane, BorderLayout.CENTER);
+        this.getContentPane().add(buttons, BorderLayout.SOUTH);
+        this.setSize(460, 300);
+        this.setLocationRelativeTo(owner);
+
+        this.timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        this.timer.start();
+        this.refresh();
+    }
+
+    /**
+     * Copies the batch's figures into the dialog, and switches the button to
+     * closing once the batch has finished
+     */
+    private void refresh() {
+        boolean finished = this.progress.isFinished();
+        int total = this.progress.getTotal();
+        int processed = this.progress.getProcessed();
+        this.bar.setMaximum(Math.max(1, total));
+        this.bar.setValue(processed);
+        int retried = this.progress.getRetried();
+        this.counts.setText(processed + " of " + total + " files, " + this.progress.getFailed() + " failed" + (retried > 0 ? ", " + retried + " retried" : ""));
+
+        String rate = String.format("%.1f files/s, %.1f MB/s", this.progress.getFilesPerSecond(), this.progress.getBytesPerSecond() / (1024 * 1024));
+        long eta = this.progress.getEtaSeconds();
+        if (finished) {
+            this.rates.setText(rate + (this.progress.isCancelled() ? ", cancelled" : ", done"));
+        } else {
+            this.rates.setText(rate + ", " + (eta < 0 ? "estimating time left" : String.format("%d:%02d left", eta / 60, eta % 60)));
+        }
+
+        List<String> reasons = this.progress.getFailures();
+        for (int i = this.failures.size(); i < reasons.size(); i++) {
+            this.failures.addElement(reasons.get(i));
+        }
+
+        if (finished) {
+            this.timer.stop();
+            this.setTitle(this.progress.toString());
+            this.button.setText("Close");
+            this.button.setEnabled(true);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used for scheduling batch work on song files. It orders files
+ * by their on-disk locality (device, directory, then inode or name) and runs
+ * each device with its own concurrency level, tuned from observed latency.
+ * Workers come from a pool kept by the scheduler, so runs made one after
+ * another, such as the windows of a streaming batch, reuse the same threads.
+ * Workers take on the thread state of the caller that registered kinds of
+ * it, such as the undo batch the caller writes to, for as long as they work
+ * for that caller.
+ *
+ * @author Aditya Nivarthi
+ */
+public class BatchScheduler {
+
+    private static final Logger log = Logger.getLogger(BatchScheduler.class.getName());
+    private static final int WORKER_PRIORITY = Thread.NORM_PRIORITY - 1;
+    private static final long IDLE_WORKER_SECONDS = 60;
+    private final int maxConcurrency;
+    private final ThreadPoolExecutor workers;
+    private final List<ThreadState> states = new CopyOnWriteArrayList<>();
+
+    /**
+     * A unit of work run against a single song file.
+     */
+    public interface FileTask {
+
+        /**
+         * Processes the given song file
+         *
+         * @param songName Name of song file
+         */
+        void process(String songName);
+    }
+
+    /**
+     * State of a thread that the workers of a run take on from the thread
+     * that started the run.
+     */
+    public interface ThreadState {
+
+        /**
+         * Reads the state of the calling thread
+         *
+         * @return state The state, or null if there is none
+         */
+        Object capture();
+
+        /**
+         * Gives the calling thread a state captured from another thread
+         *
+         * @param state The captured state, or null
+         * @return previous The state the calling thread had before
+         */
+        Object attach(Object state);
+
+        /**
+         * Gives the calling thread back the state it had before attach
+         *
+         * @param previous The state attach returned
+         */
+        void detach(Object previous);
+    }
+
+    /**
+     * Constructor for BatchScheduler. Allows up to two workers per core on
+     * devices that keep up with it.
+     */
+    public BatchScheduler() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Constructor for BatchScheduler.
+     *
+     * @param maxConcurrency Highest number of workers to run on one device
+     */
+    public BatchScheduler(int maxConcurrency) {
+        final AtomicInteger count = new AtomicInteger();
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_WORKER_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "batch-" + count.incrementAndGet());
+                thread.setPriority(WORKER_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Registers a kind of thread state that workers take on from the thread
+     * that starts a run
+     *
+     * @param state The kind of thread state
+     */
+    public void inherit(ThreadState state) {
+        this.states.add(state);
+    }
+
+    /**
+     * Runs a task on each selected song, in locality order, and waits for all
+     * of them to finish.
+     *
+     * @param selectedIndices List of selected indexes in window
+     * @param list List of all songs in window
+     * @param task The task to run on each song
+     */
+    public void run(int[] selectedIndices, PathListModel list, FileTask task) {
+        List<String> songs = new ArrayList<>(selectedIndices.length);
+        for (int i : selectedIndices) {
+            songs.add(list.get(i));
+        }
+        this.run(songs, task);
+    }
+
+    /**
+     * Runs a task on each song, in locality order, and waits for all of them
+     * to finish. When called from a runtime task, songs not started yet are
+     * skipped once that task is cancelled. If the calling thread is
+     * interrupted, songs not started yet are skipped, and this returns once
+     * the songs already started have finished, with the interrupt status
+     * set.
+     *
+     * @param songs Names of song files
+     * @param task The task to run on each song
+     */
+    public void run(List<String> songs, FileTask task) {
+        List<List<Location>> devices = this.order(songs);
+        TaskRuntime.Task scope = TaskRuntime.current();
+        Map<ThreadState, Object> captured = new LinkedHashMap<>();
+        for (ThreadState state : this.states) {
+            captured.put(state, state.capture());
+        }
+        List<DeviceQueue> queues = new ArrayList<>();
+        int count = 0;
+        for (List<Location> queue : devices) {
+            queues.add(new DeviceQueue(queue, this.maxConcurrency));
+            count += Math.min(this.maxConcurrency, queue.size());
+        }
+        CountDownLatch finished = new CountDownLatch(count);
+        for (DeviceQueue device : queues) {
+            for (int i = 0; i < Math.min(this.maxConcurrency, device.queue.size()); i++) {
+                this.workers.execute(new DeviceWorker(device, task, scope, captured, finished));
+            }
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                for (DeviceQueue device : queues) {
+                    device.stop();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Groups songs by device and sorts each group by directory, then by inode
+     * where the file system exposes it, otherwise by file name.
+     *
+     * @param songs Names of song files
+     * @return One ordered list of locations per device
+     */
+    public List<List<Location>> order(List<String> songs) {
+        Map<String, Object> deviceByDirectory = new HashMap<>();
+        Map<Object, List<Location>> byDevice = new LinkedHashMap<>();
+        for (String song : songs) {
+            Location loc = Location.of(song, deviceByDirectory);
+            List<Location> group = byDevice.get(loc.device);
+            if (group == null) {
+                group = new ArrayList<>();
+                byDevice.put(loc.device, group);
+            }
+            group.add(loc);
+        }
+        List<List<Location>> ordered = new ArrayList<>(byDevice.values());
+        for (List<Location> group : ordered) {
+            Collections.sort(group, Location.LOCALITY_ORDER);
+        }
+        return ordered;
+    }
+
+    /**
+     * Physical placement of a song file.
+     */
+    public static class Location {
+
+        private static final Comparator<Location> LOCALITY_ORDER = new Comparator<Location>() {
+            @Override
+            public int compare(Location a, Location b) {
+                int c = a.directory.compareTo(b.directory);
+                if (c != 0) {
+                    return c;
+                }
+                if (a.inode >= 0 && b.inode >= 0 && a.inode != b.inode) {
+                    return a.inode < b.inode ? -1 : 1;
+                }
+                return a.songName.compareTo(b.songName);
+            }
+        };
+
+        public final String songName;
+        public final String directory;
+        public final Object device;
+        public final long inode;
+
+        private Location(String songName, String directory, Object device, long inode) {
+            this.songName = songName;
+            this.directory = directory;
+            this.device = device;
+            this.inode = inode;
+        }
+
+        /**
+         * Looks up the device and inode of a song file. Device lookups are
+         * cached per directory since they are shared by every file in it.
+         *
+         * @param songName Name of song file
+         * @param deviceByDirectory Cache of device keys by directory
+         * @return loc The location of the song file
+         */
+        private static Location of(String songName, Map<String, Object> deviceByDirectory) {
+            File songFile = new File(songName);
+            String directory = songFile.getAbsoluteFile().getParent();
+            directory = directory == null ? "" : directory;
+            Path path = songFile.toPath();
+            Object device = deviceByDirectory.get(directory);
+            long inode = -1;
+            try {
+                Map<String, Object> attrs = Files.readAttributes(path, "unix:dev,ino");
+                inode = ((Number) attrs.get("ino")).longValue();
+                if (device == null) {
+                    device = attrs.get("dev");
+                }
+            } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+                if (device == null) {
+                    try {
+                        device = Files.getFileStore(path).name();
+                    } catch (IOException ex) {
+                        device = directory;
+                    }
+                }
+            }
+            deviceByDirectory.put(directory, device);
+            return new Location(songName, directory, device, inode);
+        }
+    }
+
+    /**
+     * Ordered work queue for one device, with a concurrency limit that is
+     * raised while latency stays near the best seen and cut when it climbs,
+     * so seek-bound disks settle low and solid state disks settle high.
+     */
+    private static class DeviceQueue {
+
+        private static final double SMOOTHING = 0.2;
+        private final List<Location> queue;
+        private final int maxLimit;
+        private int next = 0;
+        private int limit = 1;
+        private int active = 0;
+        private double averageNanos = -1;
+        private double bestNanos = Double.MAX_VALUE;
+        private boolean stopped = false;
+
+        private DeviceQueue(List<Location> queue, int maxLimit) {
+            this.queue = queue;
+            this.maxLimit = maxLimit;
+        }
+
+        /**
+         * Waits for a free slot and takes the next song in locality order
+         *
+         * @return The next song, or null once the queue is drained or stopped
+         * @throws InterruptedException if the batch is interrupted
+         */
+        private synchronized Location take() throws InterruptedException {
+            while (this.active >= this.limit && this.next < this.queue.size() && !this.stopped) {
+                this.wait();
+            }
+            if (this.next >= this.queue.size() || this.stopped) {
+                return null;
+            }
+            this.active++;
+            return this.queue.get(this.next++);
+        }
+
+        /**
+         * Releases a slot and retunes the limit from the time the song took
+         *
+         * @param nanos Time spent on the song
+         */
+        private synchronized void done(long nanos) {
+            this.active--;
+            this.averageNanos = this.averageNanos < 0 ? nanos : this.averageNanos + SMOOTHING * (nanos - this.averageNanos);
+            this.bestNanos = Math.min(this.bestNanos, this.averageNanos);
+            if (this.averageNanos <= this.bestNanos * 2 && this.limit < this.maxLimit) {
+                this.limit++;
+            } else if (this.averageNanos > this.bestNanos * 4 && this.limit > 1) {
+                this.limit = Math.max(1, this.limit / 2);
+            }
+            this.notifyAll();
+        }
+
+        /**
+         * Releases a slot taken for a song that was skipped, without retuning
+         * the limit
+         */
+        private synchronized void skip() {
+            this.active--;
+            this.notifyAll();
+        }
+
+        /**
+         * Stops handing out songs. Songs already taken are finished
+         */
+        private synchronized void stop() {
+            this.stopped = true;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Worker that drains a device queue.
+     */
+    private static class DeviceWorker implements Runnable {
+
+        private final DeviceQueue device;
+        private final FileTask task;
+        private final TaskRuntime.Task scope;
+        private final Map<ThreadState, Object> captured;
+        private final CountDownLatch finished;
+
+        private DeviceWorker(DeviceQueue device, FileTask task, TaskRuntime.Task scope, Map<ThreadState, Object> captured, CountDownLatch finished) {
+            this.device = device;
+            this.task = task;
+            this.scope = scope;
+            this.captured = captured;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            Map<ThreadState, Object> previous = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<ThreadState, Object> state : this.captured.entrySet()) {
+                    previous.put(state.getKey(), state.getKey().attach(state.getValue()));
+                }
+                Location loc;
+                while ((loc = this.device.take()) != null) {
+                    if (this.scope != null && this.scope.isCancelled()) {
+                        this.device.skip();
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        this.task.process(loc.songName);
+                    } catch (RuntimeException e) {
+                        log.log(Level.WARNING, "Batch task failed on " + loc.songName, e);
+                    } finally {
+                        this.device.done(System.nanoTime() - start);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (Map.Entry<ThreadState, Object> state : previous.entrySet()) {
+                    state.getKey().detach(state.getValue());
+                }
+                this.finished.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to pause work on a mount whose storage keeps failing.
+ * The outcomes of the latest attempts on each mount are kept; once enough of
+ * them failed, the mount is opened and every worker on it waits instead of
+ * adding load to a struggling share. After a cool-down one song is let
+ * through as a probe: if it succeeds the mount closes again, otherwise it
+ * stays open for twice as long, up to a limit. Other mounts are not held up.
+ *
+ * @author Aditya Nivarthi
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+    private static final long POLL_MILLIS = 250;
+    private final int window;
+    private final int minSamples;
+    private final double failureRatio;
+    private final long baseCooldownMillis;
+    private final long maxCooldownMillis;
+    private final Map<Object, Mount> mounts = new HashMap<>();
+    private final Map<String, Object> mountByDirectory = new ConcurrentHashMap<>();
+
+    /**
+     * Recent outcomes and state of one mount.
+     */
+    private static class Mount {
+
+        private final String name;
+        private final boolean[] failed;
+        private int next = 0;
+        private int samples = 0;
+        private int failures = 0;
+        private long openUntilNanos = 0;
+        private boolean open = false;
+        private boolean probing = false;
+        private long cooldownMillis;
+
+        private Mount(String name, int window, long cooldownMillis) {
+            this.name = name;
+            this.failed = new boolean[window];
+            this.cooldownMillis = cooldownMillis;
+        }
+
+        private void clear() {
+            this.next = 0;
+            this.samples = 0;
+            this.failures = 0;
+            Arrays.fill(this.failed, false);
+        }
+    }
+
+    /**
+     * Constructor for CircuitBreaker.
+     *
+     * @param window Number of latest attempts per mount whose outcomes are
+     * kept
+     * @param minSamples Fewest outcomes a mount needs before it can open
+     * @param failureRatio Share of kept outcomes that must be failures to open
+     * the mount
+     * @param baseCooldownMillis How long a mount first stays open
+     * @param maxCooldownMillis Longest a mount stays open after failed probes
+     */
+    public CircuitBreaker(int window, int minSamples, double failureRatio, long baseCooldownMillis, long maxCooldownMillis) {
+        this.window = Math.max(1, window);
+        this.minSamples = Math.max(1, Math.min(this.window, minSamples));
+        this.failureRatio = failureRatio;
+        this.baseCooldownMillis = Math.max(1, baseCooldownMillis);
+        this.maxCooldownMillis = Math.max(this.baseCooldownMillis, maxCooldownMillis);
+    }
+
+    /**
+     * Waits until a song's mount lets work through. When the mount's
+     * cool-down has passed, the caller becomes its probe. Every call that
+     * returns true must be followed by record
+     *
+     * @param songFile The song about to be worked on
+     * @param progress The batch the song belongs to, or null
+     * @return true if the song may be worked on, false if the batch was
+     * cancelled or the thread interrupted while waiting
+     */
+    public boolean acquire(File songFile, BatchProgress progress) {
+        Mount mount = this.mountOf(songFile);
+        synchronized (this) {
+            while (mount.open) {
+                long left = (mount.openUntilNanos - System.nanoTime()) / 1000000;
+                if (left <= 0 && !mount.probing) {
+                    mount.probing = true;
+                    return true;
+                }
+                if (progress != null && progress.isCancelled()) {
+                    return false;
+                }
+                try {
+                    this.wait(left <= 0 ? POLL_MILLIS : Math.min(left, POLL_MILLIS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records how an attempt on a song ended, opening its mount if too many
+     * of the latest attempts failed, or settling the mount if the song was
+     * its probe
+     *
+     * @param songFile The song worked on
+     * @param storageFailure true if the song failed because of the storage
+     */
+    public void record(File songFile, boolean storageFailure) {
+        Mount mount = this.mountOf(songFile);
+        synchronized (this) {
+            if (mount.open) {
+                if (!mount.probing) {
+                    return;
+                }
+                mount.probing = false;
+                if (storageFailure) {
+                    mount.cooldownMillis = Math.min(this.maxCooldownMillis, mount.cooldownMillis * 2);
+                    this.open(mount, "probe failed");
+                } else {
+                    mount.open = false;
+                    mount.cooldownMillis = this.baseCooldownMillis;
+                    mount.clear();
+                    log.info("Resuming work on " + mount.name);
+                }
+                this.notifyAll();
+                return;
+            }
+            if (mount.samples == this.window) {
+                mount.failures -= mount.failed[mount.next] ? 1 : 0;
+            } else {
+                mount.samples++;
+            }
+            mount.failed[mount.next] = storageFailure;
+            mount.failures += storageFailure ? 1 : 0;
+            mount.next = (mount.next + 1) % this.window;
+            if (storageFailure && mount.samples >= this.minSamples && mount.failures >= this.failureRatio * mount.samples) {
+                this.open(mount, mount.failures + " of the latest " + mount.samples + " attempts failed");
+            }
+        }
+    }
+
+    /**
+     * Determines if work on a song's mount is paused
+     *
+     * @param songFile The song
+     * @return true if the mount is open
+     */
+    public synchronized boolean isOpen(File songFile) {
+        return this.mountOf(songFile).open;
+    }
+
+    /**
+     * Opens a mount for its current cool-down
+     *
+     * @param mount The mount
+     * @param why Why it opens, for the log
+     */
+    private void open(Mount mount, String why) {
+        mount.open = true;
+        mount.openUntilNanos = System.nanoTime() + mount.cooldownMillis * 1000000L;
+        log.warning("Pausing work on " + mount.name + " for " + mount.cooldownMillis + " ms: " + why);
+    }
+
+    /**
+     * Gets the state of the mount a song is on. Mounts are looked up once per
+     * directory
+     *
+     * @param songFile The song
+     * @return mount The state of its mount
+     */
+    private Mount mountOf(File songFile) {
+        File parent = songFile.getAbsoluteFile().getParentFile();
+        String directory = parent == null ? "" : parent.getPath();
+        Object key = this.mountByDirectory.get(directory);
+        if (key == null) {
+            Path path = parent == null ? songFile.getAbsoluteFile().toPath() : parent.toPath();
+            try {
+                key = Files.getFileStore(path).toString();
+            } catch (IOException | SecurityException e) {
+                key = directory;
+            }
+            this.mountByDirectory.put(directory, key);
+        }
+        synchronized (this) {
+            Mount mount = this.mounts.get(key);
+            if (mount == null) {
+                mount = new Mount(key.toString(), this.window, this.baseCooldownMillis);
+                this.mounts.put(key, mount);
+            }
+            return mount;
+        }
+    }
+}
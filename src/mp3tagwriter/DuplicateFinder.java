@@ -0,0 +1,130 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to find songs with duplicate audio. Fingerprints are
+ * computed in parallel, skipping any that are still cached, and songs are
+ * grouped by the core hash of their audio. Songs without any audio are
+ * listed on their own, since they would all match each other.
+ *
+ * @author Aditya Nivarthi
+ */
+public class DuplicateFinder {
+
+    private static final Logger log = Logger.getLogger(DuplicateFinder.class.getName());
+    private final BatchScheduler scheduler;
+    private final FingerprintCache cache;
+
+    /**
+     * A set of songs with the same audio.
+     */
+    public static class Group {
+
+        /**
+         * True if the whole audio regions are identical, false if only the
+         * core audio matches
+         */
+        public final boolean exact;
+        public final List<String> songs;
+
+        private Group(boolean exact, List<String> songs) {
+            this.exact = exact;
+            this.songs = Collections.unmodifiableList(songs);
+        }
+    }
+
+    /**
+     * The duplicates found among a list of songs.
+     */
+    public static class Result {
+
+        /**
+         * Groups of two or more songs, in the order of their first member
+         */
+        public final List<Group> groups;
+        /**
+         * Songs whose audio region is empty
+         */
+        public final List<String> empty;
+
+        private Result(List<Group> groups, List<String> empty) {
+            this.groups = Collections.unmodifiableList(groups);
+            this.empty = Collections.unmodifiableList(empty);
+        }
+    }
+
+    /**
+     * Constructor for DuplicateFinder.
+     *
+     * @param scheduler The scheduler to read files with
+     * @param cache The cache of earlier fingerprints
+     */
+    public DuplicateFinder(BatchScheduler scheduler, FingerprintCache cache) {
+        this.scheduler = scheduler;
+        this.cache = cache;
+    }
+
+    /**
+     * Finds the groups of duplicate songs among the given songs
+     *
+     * @param songs Names of song files
+     * @return result The groups, and the songs without audio
+     */
+    public Result find(List<String> songs) {
+        final Map<String, AudioFingerprint> fingerprints = Collections.synchronizedMap(new LinkedHashMap<String, AudioFingerprint>());
+        this.scheduler.run(songs, new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                try {
+                    fingerprints.put(songName, cache.get(new File(songName)));
+                } catch (IOException e) {
+                    log.log(Level.FINE, "Could not fingerprint " + songName, e);
+                }
+            }
+        });
+        this.cache.save();
+
+        Map<String, List<String>> byCore = new LinkedHashMap<>();
+        List<String> empty = new ArrayList<>();
+        for (String song : songs) {
+            AudioFingerprint fingerprint = fingerprints.get(song);
+            if (fingerprint == null) {
+                continue;
+            }
+            if (fingerprint.isEmpty()) {
+                empty.add(song);
+                continue;
+            }
+            List<String> group = byCore.get(fingerprint.core);
+            if (group == null) {
+                group = new ArrayList<>();
+                byCore.put(fingerprint.core, group);
+            }
+            group.add(song);
+        }
+
+        List<Group> groups = new ArrayList<>();
+        for (List<String> group : byCore.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            Set<String> exact = new HashSet<>();
+            for (String song : group) {
+                exact.add(fingerprints.get(song).exact);
+            }
+            groups.add(new Group(exact.size() == 1, group));
+        }
+        return new Result(groups, empty);
+    }
+}
@@ -0,0 +1,44 @@
+package mp3tagwriter;
+
+import java.util.Locale;
+
+/**
+ * Ways tag writes can reach the disk, from fastest to safest.
+ *
+ * @author Aditya Nivarthi
+ */
+public enum Durability {
+
+    /**
+     * Tags that fit are written in place, larger ones through a temporary
+     * file, and nothing is synced. A crash mid-write can corrupt a file
+     */
+    NONE,
+    /**
+     * Every write goes through a temporary file that is renamed over the
+     * song, so a crash of the program never leaves a half-written file.
+     * Nothing is synced, so a power loss can still lose recent writes
+     */
+    ATOMIC,
+    /**
+     * Like ATOMIC, but temporary files are synced before they are renamed,
+     * and their directories after, in groups of files shared by concurrent
+     * writers. A write returns once its group is on disk
+     */
+    GROUP,
+    /**
+     * Like GROUP, but every file and its directory is synced on its own
+     */
+    STRICT;
+
+    /**
+     * Parses a durability name, ignoring case
+     *
+     * @param name The name
+     * @return durability The durability
+     * @throws IllegalArgumentException if there is no durability of that name
+     */
+    public static Durability parse(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,333 @@
+package mp3tagwriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.audio.exceptions.CannotReadException;
+import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
+import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
+import org.jaudiotagger.audio.flac.metadatablock.MetadataBlockDataPicture;
+import org.jaudiotagger.audio.generic.Utils;
+import org.jaudiotagger.audio.mp4.atom.Mp4BoxHeader;
+import org.jaudiotagger.tag.InvalidFrameException;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.TagException;
+import org.jaudiotagger.tag.TagField;
+import org.jaudiotagger.tag.flac.FlacTag;
+import org.jaudiotagger.tag.id3.ID3v22Tag;
+import org.jaudiotagger.tag.id3.ID3v23Tag;
+import org.jaudiotagger.tag.id3.ID3v24Tag;
+import org.jaudiotagger.tag.mp4.Mp4FieldKey;
+import org.jaudiotagger.tag.mp4.Mp4Tag;
+import org.jaudiotagger.tag.mp4.atom.Mp4DataBox;
+import org.jaudiotagger.tag.mp4.field.Mp4DiscNoField;
+import org.jaudiotagger.tag.mp4.field.Mp4FieldType;
+import org.jaudiotagger.tag.mp4.field.Mp4GenreField;
+import org.jaudiotagger.tag.mp4.field.Mp4TagBinaryField;
+import org.jaudiotagger.tag.mp4.field.Mp4TagByteField;
+import org.jaudiotagger.tag.mp4.field.Mp4TagCoverField;
+import org.jaudiotagger.tag.mp4.field.Mp4TagRawBinaryField;
+import org.jaudiotagger.tag.mp4.field.Mp4TagReverseDnsField;
+import org.jaudiotagger.tag.mp4.field.Mp4TagTextField;
+import org.jaudiotagger.tag.mp4.field.Mp4TagTextNumberField;
+import org.jaudiotagger.tag.mp4.field.Mp4TrackField;
+import org.jaudiotagger.tag.vorbiscomment.VorbisCommentReader;
+import org.jaudiotagger.tag.vorbiscomment.VorbisCommentTag;
+
+/**
+ * This class is used to read the tag of a song file from the bytes that hold
+ * it and nothing else: the ID3v2 tag of an mp3 file, the metadata blocks of a
+ * FLAC file, the comment packet of an Ogg Vorbis file and the ilst atom of an
+ * MP4 file. Unlike a full read, no audio frames or track tables are looked
+ * at, so reading a tag costs one or two small reads whatever the format. The
+ * tags read are the same classes a full read gives, but they cannot be
+ * committed; writes still read the song in full.
+ *
+ * @author Aditya Nivarthi
+ */
+public class FastTagReader {
+
+    private static final int OGG_COMMENT_PACKET = 1;
+    private static final String VORBIS = "vorbis";
+
+    /**
+     * Reads the tag of a song file
+     *
+     * @param songFile The song file
+     * @return tag The tag, or null if the song has none, as for an mp3 file
+     * without an ID3v2 tag
+     * @throws IOException if the file cannot be read or is not of its format
+     */
+    public static Tag read(File songFile) throws IOException {
+        SongFormat format = SongFormat.forFileName(songFile.getName());
+        if (format == null) {
+            return readFully(songFile);
+        }
+        try (FileChannel channel = FileChannel.open(songFile.toPath(), StandardOpenOption.READ)) {
+            switch (format) {
+                case MP3:
+                    return readId3v2(channel, songFile.getName());
+                case FLAC:
+                    return readFlac(channel);
+                case OGG:
+                    return readOgg(channel);
+                default:
+                    return readMp4(channel);
+            }
+        } catch (CannotReadException | TagException | RuntimeException e) {
+            throw new IOException("Could not read tag of " + songFile, e);
+        }
+    }
+
+    /**
+     * Reads a song through a full read, for formats without a fast reader
+     *
+     * @param songFile The song file
+     * @return tag The tag, or null if there is none
+     * @throws IOException if the song cannot be read
+     */
+    private static Tag readFully(File songFile) throws IOException {
+        try {
+            return SongFormat.tagOf(AudioFileIO.read(songFile));
+        } catch (CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | TagException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the ID3v2 tag at the start of an mp3 file
+     *
+     * @param channel The file to read from
+     * @param name Name of the file, for logging
+     * @return tag The tag, or null if there is none
+     * @throws IOException if the file cannot be read
+     * @throws TagException if the tag is corrupt
+     */
+    private static Tag readId3v2(FileChannel channel, String name) throws IOException, TagException {
+        int length = (int) TagRegion.id3v2Length(channel);
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer tag = ByteBuffer.wrap(readRegion(channel, 0, length));
+        switch (tag.get(3)) {
+            case 4:
+                return new ID3v24Tag(tag, name);
+            case 3:
+                return new ID3v23Tag(tag, name);
+            case 2:
+                return new ID3v22Tag(tag, name);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads the Vorbis comment and picture blocks of a FLAC file, skipping
+     * the other metadata blocks
+     *
+     * @param channel The file to read from
+     * @return tag The tag, empty if there is no comment block
+     * @throws IOException if the file cannot be read
+     * @throws CannotReadException if the file is not FLAC
+     * @throws InvalidFrameException if a picture block is corrupt
+     */
+    private static Tag readFlac(FileChannel channel) throws IOException, CannotReadException, InvalidFrameException {
+        long end = TagRegion.flacMetadataEnd(channel);
+        if (end == 0) {
+            throw new CannotReadException("Not a FLAC stream");
+        }
+        long start = TagRegion.id3v2Length(channel) + 4;
+        ByteBuffer blocks = ByteBuffer.wrap(readRegion(channel, start, (int) (end - start)));
+        VorbisCommentTag comment = null;
+        List<MetadataBlockDataPicture> images = new ArrayList<>();
+        while (blocks.remaining() >= TagRegion.FLAC_BLOCK_HEADER_LENGTH) {
+            int type = blocks.get() & 0x7f;
+            int length = ((blocks.get() & 0xff) << 16) | ((blocks.get() & 0xff) << 8) | (blocks.get() & 0xff);
+            if (length > blocks.remaining()) {
+                break;
+            }
+            if (type == 4) {
+                byte[] data = new byte[length];
+                blocks.get(data);
+                comment = new VorbisCommentReader().read(data, false);
+            } else if (type == 6) {
+                byte[] data = new byte[length];
+                blocks.get(data);
+                images.add(new MetadataBlockDataPicture(ByteBuffer.wrap(data)));
+            } else {
+                blocks.position(blocks.position() + length);
+            }
+        }
+        return new FlacTag(comment == null ? VorbisCommentTag.createNewTag() : comment, images);
+    }
+
+    /**
+     * Reads the comment packet of an Ogg Vorbis file from its header pages
+     *
+     * @param channel The file to read from
+     * @return tag The tag
+     * @throws IOException if the file cannot be read
+     * @throws CannotReadException if the file is not Ogg Vorbis
+     */
+    private static Tag readOgg(FileChannel channel) throws IOException, CannotReadException {
+        long end = TagRegion.oggHeaderEnd(channel);
+        if (end == 0) {
+            throw new CannotReadException("Not an Ogg stream");
+        }
+        return oggComment(readRegion(channel, 0, (int) end));
+    }
+
+    /**
+     * Reads the comment packet of an Ogg Vorbis stream from a copy of its
+     * header pages
+     *
+     * @param pages The header pages, from the start of the stream
+     * @return tag The tag
+     * @throws IOException if the comment packet cannot be decoded
+     * @throws CannotReadException if the pages are not Ogg Vorbis
+     */
+    static VorbisCommentTag oggComment(byte[] pages) throws IOException, CannotReadException {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        int packets = 0;
+        int position = 0;
+        while (position + TagRegion.OGG_PAGE_HEADER_LENGTH <= pages.length) {
+            int segments = pages[position + 26] & 0xff;
+            int body = position + TagRegion.OGG_PAGE_HEADER_LENGTH + segments;
+            for (int i = 0; i < segments && body <= pages.length; i++) {
+                int length = Math.min(pages[position + TagRegion.OGG_PAGE_HEADER_LENGTH + i] & 0xff, pages.length - body);
+                if (packets == OGG_COMMENT_PACKET) {
+                    packet.write(pages, body, length);
+                }
+                body += length;
+                if (length < 255 && packets++ == OGG_COMMENT_PACKET) {
+                    byte[] comment = packet.toByteArray();
+                    if (comment.length < 7 || comment[0] != 3 || !VORBIS.equals(new String(comment, 1, 6, "US-ASCII"))) {
+                        throw new CannotReadException("Not an Ogg Vorbis stream");
+                    }
+                    return new VorbisCommentReader().read(Arrays.copyOfRange(comment, 7, comment.length), true);
+                }
+            }
+            position = body;
+        }
+        throw new CannotReadException("No Vorbis comment packet");
+    }
+
+    /**
+     * Reads the ilst atom of an MP4 file, under moov.udta.meta or moov.meta.
+     * Files without one get an empty tag
+     *
+     * @param channel The file to read from
+     * @return tag The tag
+     * @throws IOException if the file cannot be read
+     * @throws CannotReadException if the file is not an MP4 container
+     */
+    private static Tag readMp4(FileChannel channel) throws IOException, CannotReadException {
+        if (!TagRegion.isMp4(channel)) {
+            throw new CannotReadException("Not an MP4 container");
+        }
+        long[] ilst = TagRegion.mp4ItemList(channel);
+        if (ilst == null) {
+            return new Mp4Tag();
+        }
+        return mp4Items(readRegion(channel, ilst[0], (int) (ilst[1] - ilst[0])));
+    }
+
+    /**
+     * Reads the items of a copy of an ilst atom's body into a tag
+     *
+     * @param body The body of the ilst atom
+     * @return tag The tag
+     * @throws IOException if an item cannot be decoded
+     */
+    static Mp4Tag mp4Items(byte[] body) throws IOException {
+        Mp4Tag tag = new Mp4Tag();
+        ByteBuffer items = ByteBuffer.wrap(body);
+        while (items.remaining() >= Mp4BoxHeader.HEADER_LENGTH) {
+            Mp4BoxHeader header = new Mp4BoxHeader(items);
+            if (header.getDataLength() > items.remaining()) {
+                break;
+            }
+            addMp4Field(tag, header, items.slice());
+            items.position(items.position() + header.getDataLength());
+        }
+        return tag;
+    }
+
+    /**
+     * Adds one item of an ilst atom to a tag, choosing the field class by the
+     * item's id and data type the way a full read does
+     *
+     * @param tag The tag to add to
+     * @param header Header of the item
+     * @param raw The item's body and everything after it
+     * @throws IOException if the item cannot be decoded
+     */
+    private static void addMp4Field(Mp4Tag tag, Mp4BoxHeader header, ByteBuffer raw) throws IOException {
+        String id = header.getId();
+        if (id.equals(Mp4TagReverseDnsField.IDENTIFIER)) {
+            try {
+                tag.addField(new Mp4TagReverseDnsField(header, raw));
+            } catch (RuntimeException e) {
+                tag.addField(new Mp4TagRawBinaryField(header, raw));
+            }
+            return;
+        }
+        int start = raw.position();
+        boolean data = Mp4DataBox.IDENTIFIER.equals(Utils.getString(raw, Mp4BoxHeader.IDENTIFIER_POS, Mp4BoxHeader.IDENTIFIER_LENGTH, "ISO-8859-1"));
+        raw.position(start);
+        if (!data) {
+            tag.addField(new Mp4TagRawBinaryField(header, raw));
+            return;
+        }
+        int type = Utils.getIntBE(raw, Mp4DataBox.TYPE_POS_INCLUDING_HEADER, Mp4DataBox.TYPE_POS_INCLUDING_HEADER + Mp4DataBox.TYPE_LENGTH - 1);
+        Mp4FieldType fieldType = Mp4FieldType.getFieldType(type);
+        TagField field;
+        if (id.equals(Mp4FieldKey.TRACK.getFieldName())) {
+            field = new Mp4TrackField(id, raw);
+        } else if (id.equals(Mp4FieldKey.DISCNUMBER.getFieldName())) {
+            field = new Mp4DiscNoField(id, raw);
+        } else if (id.equals(Mp4FieldKey.GENRE.getFieldName())) {
+            field = new Mp4GenreField(id, raw);
+        } else if (id.equals(Mp4FieldKey.ARTWORK.getFieldName()) || Mp4FieldType.isCoverArtType(fieldType)) {
+            int processed = 0;
+            while (processed < header.getDataLength()) {
+                if (processed > 0) {
+                    fieldType = Mp4FieldType.getFieldType(Utils.getIntBE(raw, processed + Mp4DataBox.TYPE_POS_INCLUDING_HEADER, processed + Mp4DataBox.TYPE_POS_INCLUDING_HEADER + Mp4DataBox.TYPE_LENGTH - 1));
+                }
+                Mp4TagCoverField cover = new Mp4TagCoverField(raw, fieldType);
+                tag.addField(cover);
+                processed += cover.getDataAndHeaderSize();
+            }
+            return;
+        } else if (fieldType == Mp4FieldType.TEXT) {
+            field = new Mp4TagTextField(id, raw);
+        } else if (fieldType == Mp4FieldType.IMPLICIT) {
+            field = new Mp4TagTextNumberField(id, raw);
+        } else if (fieldType == Mp4FieldType.INTEGER) {
+            field = new Mp4TagByteField(id, raw);
+        } else {
+            for (Mp4FieldKey key : Mp4FieldKey.values()) {
+                if (key.getFieldName().equals(id)) {
+                    return;
+                }
+            }
+            field = new Mp4TagBinaryField(id, raw);
+        }
+        tag.addField(field);
+    }
+
+    private static byte[] readRegion(FileChannel channel, long position, int length) throws IOException {
+        byte[] bytes = TagRegion.read(channel, position, length);
+        if (bytes == null) {
+            throw new IOException("File ends inside its tag");
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,99 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is used to make local song files behave like a flaky network
+ * share. A writer consults it before reading and before writing each song,
+ * and it fails a set share of those calls with an I/O error, or every call
+ * during an outage. The random sequence is seeded so that a run can be
+ * repeated.
+ *
+ * @author Aditya Nivarthi
+ */
+public class FaultInjector {
+
+    private final double failureRate;
+    private final Random random;
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger injected = new AtomicInteger();
+    private volatile boolean outage = false;
+
+    /**
+     * Constructor for FaultInjector.
+     *
+     * @param failureRate Share of calls that fail, from 0 to 1
+     * @param seed Seed of the random sequence
+     */
+    public FaultInjector(double failureRate, long seed) {
+        this.failureRate = Math.max(0, Math.min(1, failureRate));
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates the injector asked for with the system property
+     * mp3tagwriter.faults, whose value is the share of calls to fail
+     *
+     * @return injector The injector, or null if the property is not set
+     */
+    public static FaultInjector fromSystemProperty() {
+        String rate = System.getProperty("mp3tagwriter.faults");
+        if (rate == null || rate.isEmpty()) {
+            return null;
+        }
+        return new FaultInjector(Double.parseDouble(rate), Long.getLong("mp3tagwriter.faults.seed", 1));
+    }
+
+    /**
+     * Fails with an I/O error if this call was picked to fail
+     *
+     * @param songFile The song about to be accessed
+     * @param access What is about to be done, such as "read" or "write"
+     * @throws IOException if the call was picked to fail
+     */
+    public void check(File songFile, String access) throws IOException {
+        this.checked.incrementAndGet();
+        boolean fail;
+        if (this.outage) {
+            fail = true;
+        } else {
+            synchronized (this.random) {
+                fail = this.random.nextDouble() < this.failureRate;
+            }
+        }
+        if (fail) {
+            this.injected.incrementAndGet();
+            throw new IOException("Injected " + access + " fault on " + songFile.getName());
+        }
+    }
+
+    /**
+     * Starts or ends an outage, during which every call fails
+     *
+     * @param outage true to fail every call
+     */
+    public void setOutage(boolean outage) {
+        this.outage = outage;
+    }
+
+    /**
+     * Gets the number of calls checked so far
+     *
+     * @return checked Number of calls
+     */
+    public int getChecked() {
+        return this.checked.get();
+    }
+
+    /**
+     * Gets the number of calls failed so far
+     *
+     * @return injected Number of failed calls
+     */
+    public int getInjected() {
+        return this.injected.get();
+    }
+}
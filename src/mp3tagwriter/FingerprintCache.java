@@ -0,0 +1,111 @@
+package mp3tagwriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to remember audio fingerprints between runs. Entries are
+ * keyed by path and only reused while the file's modification time and size
+ * are unchanged.
+ *
+ * @author Aditya Nivarthi
+ */
+public class FingerprintCache {
+
+    private static final Logger log = Logger.getLogger(FingerprintCache.class.getName());
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    private static class Entry {
+
+        private final long modified;
+        private final long size;
+        private final AudioFingerprint fingerprint;
+
+        private Entry(long modified, long size, AudioFingerprint fingerprint) {
+            this.modified = modified;
+            this.size = size;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Constructor for FingerprintCache. Loads any entries saved in the file.
+     *
+     * @param file The file the cache is kept in
+     */
+    public FingerprintCache(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 5) {
+                    this.entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), new AudioFingerprint(parts[3], parts[4])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.log(Level.WARNING, "Ignoring unreadable fingerprint cache " + file, e);
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Gets the fingerprint of a file, computing it only if the cached one is
+     * missing or stale
+     *
+     * @param songFile The song file
+     * @return fingerprint The fingerprint of its audio
+     * @throws IOException if the file cannot be read
+     */
+    public AudioFingerprint get(File songFile) throws IOException {
+        String key = songFile.getAbsolutePath();
+        long modified = songFile.lastModified();
+        long size = songFile.length();
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.modified == modified && entry.size == size) {
+            return entry.fingerprint;
+        }
+        AudioFingerprint fingerprint = AudioFingerprint.of(songFile);
+        this.entries.put(key, new Entry(modified, size, fingerprint));
+        this.dirty = true;
+        return fingerprint;
+    }
+
+    /**
+     * Writes the cache back to its file if anything changed
+     */
+    public void save() {
+        if (!this.dirty) {
+            return;
+        }
+        File temp = new File(this.file.getPath() + ".tmp");
+        try {
+            this.file.getAbsoluteFile().getParentFile().mkdirs();
+            try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.write(e.getKey() + "\t" + entry.modified + "\t" + entry.size + "\t" + entry.fingerprint.exact + "\t" + entry.fingerprint.core);
+                    out.newLine();
+                }
+            }
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.dirty = false;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not save fingerprint cache " + this.file, e);
+        }
+    }
+}
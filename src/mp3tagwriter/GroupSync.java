@@ -0,0 +1,239 @@
+package mp3tagwriter;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to make replaced files durable in groups. Writers hand
+ * over a fully written temporary file and wait; a flusher thread takes every
+ * file waiting once a group is full or its oldest file has waited long
+ * enough, syncs the temporary files, renames them over their targets, syncs
+ * each directory once, and releases the writers. Concurrent writers so share
+ * directory syncs and give the file system whole groups to commit at once.
+ * Writers announce themselves before they start a temporary file, and a group
+ * is also taken once every announced writer is waiting, so a lone writer is
+ * never held back for the delay.
+ *
+ * @author Aditya Nivarthi
+ */
+public class GroupSync {
+
+    private static final Logger log = Logger.getLogger(GroupSync.class.getName());
+    private static final boolean DIRECTORY_SYNC = !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+    private final int maxFiles;
+    private final long maxDelayNanos;
+    private final List<Pending> pending = new ArrayList<>();
+    private long oldestNanos;
+    private int writing = 0;
+    private Thread flusher;
+
+    /**
+     * A replacement waiting for its group.
+     */
+    private static class Pending {
+
+        private final Path temp;
+        private final Path target;
+        private IOException failure;
+        private boolean done = false;
+
+        private Pending(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Constructor for GroupSync.
+     *
+     * @param maxFiles Number of files that makes a full group
+     * @param maxDelayMillis Longest time a file waits for its group to fill
+     */
+    public GroupSync(int maxFiles, long maxDelayMillis) {
+        this.maxFiles = Math.max(1, maxFiles);
+        this.maxDelayNanos = Math.max(0, maxDelayMillis) * 1000000L;
+    }
+
+    /**
+     * Announces a writer that will hand over a temporary file. Must be
+     * followed by replace or abandon
+     */
+    public synchronized void open() {
+        this.writing++;
+    }
+
+    /**
+     * Withdraws an announced writer that will not hand over a file
+     */
+    public synchronized void abandon() {
+        this.writing--;
+        this.notifyAll();
+    }
+
+    /**
+     * Replaces a file with a temporary file once the group it joins is
+     * synced, and waits for that. The writer must have been announced with
+     * open
+     *
+     * @param temp The fully written temporary file, in the target's directory
+     * @param target The file to replace
+     * @throws IOException if the temporary file could not be synced or
+     * renamed, in which case the target is left as it was, or if the
+     * directory could not be synced after the rename
+     */
+    public void replace(Path temp, Path target) throws IOException {
+        Pending entry = new Pending(temp, target);
+        synchronized (this) {
+            if (this.pending.isEmpty()) {
+                this.oldestNanos = System.nanoTime();
+            }
+            this.pending.add(entry);
+            this.writing--;
+            if (this.flusher == null) {
+                this.flusher = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushLoop();
+                    }
+                }, "group-sync");
+                this.flusher.setDaemon(true);
+                this.flusher.start();
+            }
+            this.notifyAll();
+            boolean interrupted = false;
+            while (!entry.done) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (entry.failure != null) {
+            throw entry.failure;
+        }
+    }
+
+    /**
+     * Replaces a file with a temporary file, syncing both and the directory
+     * on their own
+     *
+     * @param temp The fully written temporary file, in the target's directory
+     * @param target The file to replace
+     * @throws IOException if the temporary file could not be synced or
+     * renamed, or the directory could not be synced after the rename
+     */
+    public static void replaceNow(Path temp, Path target) throws IOException {
+        force(temp);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Takes groups of waiting files and makes them durable, forever
+     */
+    private void flushLoop() {
+        while (true) {
+            List<Pending> group;
+            synchronized (this) {
+                try {
+                    while (this.pending.isEmpty()) {
+                        this.wait();
+                    }
+                    long waited = System.nanoTime() - this.oldestNanos;
+                    while (this.pending.size() < this.maxFiles && this.writing > 0 && waited < this.maxDelayNanos) {
+                        long left = this.maxDelayNanos - waited;
+                        this.wait(left / 1000000, (int) (left % 1000000));
+                        waited = System.nanoTime() - this.oldestNanos;
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                group = new ArrayList<>(this.pending);
+                this.pending.clear();
+            }
+            this.flush(group);
+            synchronized (this) {
+                for (Pending entry : group) {
+                    entry.done = true;
+                }
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Syncs, renames and syncs the directories of one group. Files whose
+     * directory could not be synced fail, although they were renamed
+     *
+     * @param group The files of the group
+     */
+    private void flush(List<Pending> group) {
+        Map<Path, List<Pending>> directories = new LinkedHashMap<>();
+        for (Pending entry : group) {
+            try {
+                force(entry.temp);
+                Files.move(entry.temp, entry.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Path directory = entry.target.toAbsolutePath().getParent();
+                List<Pending> renamed = directories.get(directory);
+                if (renamed == null) {
+                    renamed = new ArrayList<>();
+                    directories.put(directory, renamed);
+                }
+                renamed.add(entry);
+            } catch (IOException e) {
+                entry.failure = e;
+                try {
+                    Files.deleteIfExists(entry.temp);
+                } catch (IOException ex) {
+                    log.log(Level.FINE, "Could not remove " + entry.temp, ex);
+                }
+            }
+        }
+        for (Map.Entry<Path, List<Pending>> directory : directories.entrySet()) {
+            try {
+                forceDirectory(directory.getKey());
+            } catch (IOException e) {
+                for (Pending entry : directory.getValue()) {
+                    entry.failure = e;
+                }
+            }
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Syncs a directory so renames in it are durable. Windows cannot open
+     * directories and makes renames durable itself, so nothing is done there
+     *
+     * @param directory The directory
+     * @throws IOException if the directory could not be synced
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        if (directory == null || !DIRECTORY_SYNC) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package mp3tagwriter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to run TagWriter operations as jobs submitted over a
+ * local HTTP/JSON API. Jobs are kept in a directory so queued and interrupted
+ * jobs run again after a restart; every operation is safe to repeat, so an
+ * interrupted job simply starts over. A fixed number of jobs run at once,
+ * each spreading its songs over the writer's BatchScheduler.
+ *
+ * <pre>
+ * POST   /jobs              submit {"operation": ..., "params": {...}, "songs": [...]}
+ * GET    /jobs              status of every job
+ * GET    /jobs/{id}         status of one job
+ * DELETE /jobs/{id}         cancel a job (also POST /jobs/{id}/cancel)
+ * </pre>
+ *
+ * @author Aditya Nivarthi
+ */
+public class JobServer {
+
+    private static final Logger log = Logger.getLogger(JobServer.class.getName());
+    private static final String JOB_SUFFIX = ".job";
+    private static final String STATE_SUFFIX = ".state";
+    private static final int PROGRESS_SAVE_INTERVAL = 100;
+    private final TagWriter writer;
+    private final File directory;
+    private final int workers;
+    private final Map<String, TagJob> jobs = new ConcurrentSkipListMap<>();
+    private final LinkedBlockingQueue<TagJob> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private HttpServer server;
+    private ExecutorService pool;
+    private volatile boolean stopping = false;
+
+    /**
+     * Constructor for JobServer.
+     *
+     * @param writer The writer to run operations with
+     * @param directory The directory to keep jobs in
+     * @param workers Number of jobs to run at once
+     * @throws IOException if the job directory cannot be read
+     */
+    public JobServer(TagWriter writer, File directory, int workers) throws IOException {
+        this.writer = writer;
+        this.directory = directory;
+        this.workers = Math.max(1, workers);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create job directory " + directory);
+        }
+        this.load();
+    }
+
+    /**
+     * Starts serving on the loopback interface and starts the job workers
+     *
+     * @param port The port to listen on, or 0 for any free port
+     * @return port The port listened on
+     * @throws IOException if the port cannot be bound
+     */
+    public int start(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/jobs", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    route(exchange);
+                } catch (IllegalArgumentException e) {
+                    respond(exchange, 400, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Request failed", e);
+                    respond(exchange, 500, "{\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.setExecutor(Executors.newFixedThreadPool(2));
+        this.server.start();
+
+        this.pool = Executors.newFixedThreadPool(this.workers);
+        for (int i = 0; i < this.workers; i++) {
+            this.pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            runJob(queue.take());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving. Running jobs are interrupted between songs and stay
+     * RUNNING on disk, so they run again on the next start
+     */
+    public void stop() {
+        this.stopping = true;
+        if (this.server != null) {
+            this.server.stop(0);
+            ((ExecutorService) this.server.getExecutor()).shutdown();
+        }
+        if (this.pool != null) {
+            this.pool.shutdownNow();
+        }
+        this.stopped.countDown();
+    }
+
+    /**
+     * Waits until the server is stopped
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        this.stopped.await();
+    }
+
+    /**
+     * Submits a job
+     *
+     * @param document The parsed JSON job
+     * @return job The queued job
+     * @throws IOException if the job cannot be saved
+     */
+    public TagJob submit(Object document) throws IOException {
+        TagJob job = TagJob.fromJson(Long.toString(this.nextId.getAndIncrement()), document);
+        File file = new File(this.directory, job.id + JOB_SUFFIX);
+        writeAtomically(file, job.definitionJson());
+        this.saveState(job);
+        this.jobs.put(job.id, job);
+        this.queue.add(job);
+        return job;
+    }
+
+    /**
+     * Runs the songs of one job, stopping between songs if it is cancelled.
+     * The whole job is one undo batch of its own, apart from other jobs
+     * running at the same time. Every PROGRESS_SAVE_INTERVAL songs, the
+     * worker that counts past the interval first saves the job's state,
+     * without waiting for audio checks still running
+     *
+     * @param job The job to run
+     */
+    private void runJob(final TagJob job) {
+        if (job.isCancelRequested()) {
+            return;
+        }
+        job.setState(TagJob.State.RUNNING);
+        this.saveState(job);
+        final AtomicInteger saved = new AtomicInteger();
+        this.writer.getJournal().begin("Job " + job.id + " (" + job.operation + ")");
+        try {
+            this.writer.getScheduler().run(job.songs, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    if (job.isCancelRequested() || stopping) {
+                        return;
+                    }
+                    job.process(writer, songName);
+                    int count = job.done.get() + job.failed.get();
+                    int last = saved.get();
+                    if (count - last >= PROGRESS_SAVE_INTERVAL && saved.compareAndSet(last, count)) {
+                        job.verify(false);
+                        saveState(job);
+                    }
+                }
+            });
+        } finally {
+            this.writer.getJournal().end();
+        }
+        job.verify(true);
+        if (this.stopping) {
+            return;
+        } else if (job.isCancelRequested()) {
+            job.setState(TagJob.State.CANCELLED);
+        } else if (job.done.get() + job.failed.get() == job.songs.size()) {
+            job.setState(TagJob.State.DONE);
+        }
+        this.saveState(job);
+    }
+
+    /**
+     * Dispatches a request on its method and path
+     *
+     * @param exchange The request
+     * @throws IOException if the response cannot be sent
+     */
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        List<String> path = new ArrayList<>(Arrays.asList(exchange.getRequestURI().getPath().split("/")));
+        path.removeAll(Arrays.asList(""));
+        if (path.size() == 1 && "POST".equals(method)) {
+            TagJob job = this.submit(Json.parse(readBody(exchange.getRequestBody())));
+            respond(exchange, 201, job.statusJson());
+            return;
+        }
+        if (path.size() == 1 && "GET".equals(method)) {
+            StringBuilder json = new StringBuilder("[");
+            for (TagJob job : this.jobs.values()) {
+                json.append(json.length() > 1 ? "," : "").append(job.statusJson());
+            }
+            respond(exchange, 200, json.append(']').toString());
+            return;
+        }
+        TagJob job = path.size() >= 2 ? this.jobs.get(path.get(1)) : null;
+        if (job == null) {
+            respond(exchange, 404, "{\"error\":\"No such job\"}");
+        } else if (path.size() == 2 && "GET".equals(method)) {
+            respond(exchange, 200, job.statusJson());
+        } else if ((path.size() == 2 && "DELETE".equals(method)) || (path.size() == 3 && "cancel".equals(path.get(2)) && "POST".equals(method))) {
+            if (!job.getState().isFinal()) {
+                job.cancel();
+                if (this.queue.remove(job)) {
+                    job.setState(TagJob.State.CANCELLED);
+                }
+                this.saveState(job);
+            }
+            respond(exchange, 200, job.statusJson());
+        } else {
+            respond(exchange, 405, "{\"error\":\"Method not allowed\"}");
+        }
+    }
+
+    /**
+     * Loads the jobs kept in the directory, queueing every job that had not
+     * finished
+     *
+     * @throws IOException if the directory cannot be listed
+     */
+    private void load() throws IOException {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list job directory " + this.directory);
+        }
+        Arrays.sort(files);
+        List<TagJob> unfinished = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(JOB_SUFFIX)) {
+                continue;
+            }
+            String id = name.substring(0, name.length() - JOB_SUFFIX.length());
+            try {
+                TagJob job = TagJob.fromJson(id, Json.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)));
+                File stateFile = new File(this.directory, id + STATE_SUFFIX);
+                if (stateFile.isFile()) {
+                    Map<?, ?> state = (Map<?, ?>) Json.parse(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8));
+                    job.setState(TagJob.State.valueOf((String) state.get("state")));
+                    job.done.set(Integer.parseInt((String) state.get("done")));
+                    job.failed.set(Integer.parseInt((String) state.get("failed")));
+                    if (Boolean.parseBoolean((String) state.get("cancel_requested"))) {
+                        job.cancel();
+                    }
+                }
+                if (!job.getState().isFinal()) {
+                    if (job.isCancelRequested()) {
+                        job.setState(TagJob.State.CANCELLED);
+                        this.saveState(job);
+                    } else {
+                        job.setState(TagJob.State.QUEUED);
+                        job.done.set(0);
+                        job.failed.set(0);
+                        unfinished.add(job);
+                    }
+                }
+                this.jobs.put(id, job);
+                this.nextId.set(Math.max(this.nextId.get(), Long.parseLong(id) + 1));
+            } catch (IOException | IllegalArgumentException | ClassCastException e) {
+                log.log(Level.WARNING, "Skipping unreadable job " + file, e);
+            }
+        }
+        this.queue.addAll(unfinished);
+    }
+
+    /**
+     * Writes the status of a job next to its definition, one thread at a
+     * time per job
+     *
+     * @param job The job
+     */
+    private void saveState(TagJob job) {
+        synchronized (job) {
+            try {
+                writeAtomically(new File(this.directory, job.id + STATE_SUFFIX), job.statusJson());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not save state of job " + job.id, e);
+            }
+        }
+    }
+
+    private static void writeAtomically(File file, String text) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package mp3tagwriter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is used for reading and writing the small JSON documents the
+ * tool exchanges with other programs.
+ *
+ * @author Aditya Nivarthi
+ */
+public class Json {
+
+    /**
+     * Quotes a string as a JSON string literal
+     *
+     * @param value The string to quote
+     * @return quoted The JSON literal, or null if value is null
+     */
+    public static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder ret = new StringBuilder(value.length() + 2);
+        ret.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    ret.append("\\\"");
+                    break;
+                case '\\':
+                    ret.append("\\\\");
+                    break;
+                case '\n':
+                    ret.append("\\n");
+                    break;
+                case '\r':
+                    ret.append("\\r");
+                    break;
+                case '\t':
+                    ret.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        ret.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        ret.append(c);
+                    }
+            }
+        }
+        ret.append('"');
+        return ret.toString();
+    }
+
+    /**
+     * Parses a flat JSON object whose values are strings, numbers, booleans
+     * or null. Non-string values are kept as their literal text, and null as
+     * a null value
+     *
+     * @param text The JSON text
+     * @return values The members of the object, in document order
+     * @throws IllegalArgumentException if the text is not a flat object
+     */
+    public static Map<String, String> parseObject(String text) {
+        Object value = parse(text);
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Not an object");
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+            if (e.getValue() instanceof Map || e.getValue() instanceof List) {
+                throw new IllegalArgumentException("Nested value for " + e.getKey());
+            }
+            values.put((String) e.getKey(), (String) e.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Parses a JSON document. Objects become maps in document order, arrays
+     * become lists, strings and other literals become strings holding their
+     * text, and null becomes null
+     *
+     * @param text The JSON text
+     * @return value The parsed value
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    public static Object parse(String text) {
+        int[] pos = {0};
+        Object value = parseValue(text, pos);
+        if (skip(text, pos[0]) != text.length()) {
+            throw new IllegalArgumentException("Trailing text at " + pos[0]);
+        }
+        return value;
+    }
+
+    private static Object parseValue(String text, int[] pos) {
+        char c = peek(text, pos);
+        if (c == '"') {
+            return parseString(text, pos);
+        }
+        if (c == '{') {
+            pos[0]++;
+            Map<String, Object> members = new LinkedHashMap<>();
+            if (peek(text, pos) == '}') {
+                pos[0]++;
+                return members;
+            }
+            do {
+                String key = parseString(text, pos);
+                expect(text, pos, ':');
+                members.put(key, parseValue(text, pos));
+            } while (next(text, pos, '}'));
+            return members;
+        }
+        if (c == '[') {
+            pos[0]++;
+            List<Object> items = new ArrayList<>();
+            if (peek(text, pos) == ']') {
+                pos[0]++;
+                return items;
+            }
+            do {
+                items.add(parseValue(text, pos));
+            } while (next(text, pos, ']'));
+            return items;
+        }
+        int start = pos[0];
+        while (pos[0] < text.length() && ",}] \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        String literal = text.substring(start, pos[0]);
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("Missing value at " + start);
+        }
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * Steps over the separator after a member or item
+     *
+     * @return true if another member or item follows, false at the closing
+     * character
+     */
+    private static boolean next(String text, int[] pos, char close) {
+        if (peek(text, pos) == ',') {
+            pos[0]++;
+            return true;
+        }
+        expect(text, pos, close);
+        return false;
+    }
+
+    private static String parseString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder ret = new StringBuilder();
+        while (pos[0] < text.length()) {
+            char c = text.charAt(pos[0]++);
+            if (c == '"') {
+                return ret.toString();
+            }
+            if (c != '\\') {
+                ret.append(c);
+                continue;
+            }
+            if (pos[0] >= text.length()) {
+                break;
+            }
+            char e = text.charAt(pos[0]++);
+            switch (e) {
+                case 'n':
+                    ret.append('\n');
+                    break;
+                case 'r':
+                    ret.append('\r');
+                    break;
+                case 't':
+                    ret.append('\t');
+                    break;
+                case 'b':
+                    ret.append('\b');
+                    break;
+                case 'f':
+                    ret.append('\f');
+                    break;
+                case 'u':
+                    if (pos[0] + 4 > text.length()) {
+                        throw new IllegalArgumentException("Bad escape at " + pos[0]);
+                    }
+                    ret.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default:
+                    ret.append(e);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static char peek(String text, int[] pos) {
+        pos[0] = skip(text, pos[0]);
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static int skip(String text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,226 @@
+package mp3tagwriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is used to audit the tags of a whole library. It walks a
+ * directory tree, reads only the tag headers of each mp3 file in parallel and
+ * streams one CSV or JSON line per file, keeping only the numbers needed for
+ * percentiles in memory.
+ *
+ * @author Aditya Nivarthi
+ */
+public class LibraryAudit {
+
+    private static final String CSV_HEADER = "path,file_bytes,id3v2_version,id3v2_bytes,padding_bytes,frames,artwork_count,artwork_bytes,id3v1,ape,error";
+    private final int threads;
+
+    /**
+     * Aggregate figures of an audit.
+     */
+    public static class Summary {
+
+        public long files;
+        public long errors;
+        public final Samples tagBytes = new Samples();
+        public final Samples paddingBytes = new Samples();
+        public final Samples artworkBytes = new Samples();
+        public final Samples frames = new Samples();
+        public long withId3v1;
+        public long withApe;
+
+        @Override
+        public synchronized String toString() {
+            return "files=" + files + " errors=" + errors + " id3v1=" + withId3v1 + " ape=" + withApe
+                    + "\nid3v2_bytes   " + tagBytes
+                    + "\npadding_bytes " + paddingBytes
+                    + "\nartwork_bytes " + artworkBytes
+                    + "\nframes        " + frames;
+        }
+    }
+
+    /**
+     * Growable list of samples that can report percentiles.
+     */
+    public static class Samples {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        private synchronized void add(long value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        /**
+         * Gets a percentile of the samples
+         *
+         * @param p Percentile between 0 and 100
+         * @return value The nearest-rank percentile, or 0 if there are no
+         * samples
+         */
+        public synchronized long percentile(double p) {
+            if (this.size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(this.values, this.size);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "p50=" + percentile(50) + " p90=" + percentile(90) + " p99=" + percentile(99) + " max=" + percentile(100);
+        }
+    }
+
+    /**
+     * Constructor for LibraryAudit. Runs eight readers per core, since the
+     * work is almost entirely waiting on the disk.
+     */
+    public LibraryAudit() {
+        this(Runtime.getRuntime().availableProcessors() * 8);
+    }
+
+    /**
+     * Constructor for LibraryAudit.
+     *
+     * @param threads Number of parallel readers
+     */
+    public LibraryAudit(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Audits every mp3 file under a directory
+     *
+     * @param root The directory to scan
+     * @param out Where to write one record per file
+     * @param format The record format
+     * @return summary The aggregate figures
+     * @throws IOException if the tree cannot be walked or the output written
+     */
+    public Summary run(Path root, final Writer out, final RecordFormat format) throws IOException {
+        final Summary summary = new Summary();
+        final IOException[] writeError = new IOException[1];
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(this.threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+        if (format == RecordFormat.CSV) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile() || !file.getFileName().toString().toLowerCase().endsWith(".mp3")) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            String record = audit(file, attrs.size(), format, summary);
+                            synchronized (out) {
+                                try {
+                                    out.write(record);
+                                    out.write('\n');
+                                } catch (IOException e) {
+                                    writeError[0] = e;
+                                }
+                            }
+                        }
+                    });
+                    return writeError[0] == null ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writeError[0] != null) {
+            throw writeError[0];
+        }
+        out.flush();
+        return summary;
+    }
+
+    /**
+     * Reads the tag headers of one file and formats its record
+     *
+     * @param file The file to audit
+     * @param fileBytes Size of the file
+     * @param format The record format
+     * @param summary Aggregate figures to add the file to
+     * @return record The formatted record
+     */
+    private static String audit(Path file, long fileBytes, RecordFormat format, Summary summary) {
+        TagRegion.Id3v2Layout layout = null;
+        boolean id3v1 = false;
+        boolean ape = false;
+        String error = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            layout = TagRegion.id3v2Layout(channel);
+            int id3v1Length = TagRegion.id3v1Length(channel);
+            id3v1 = id3v1Length > 0;
+            ape = TagRegion.apeLength(channel, channel.size() - id3v1Length) > 0;
+        } catch (IOException e) {
+            error = String.valueOf(e.getMessage());
+        }
+
+        synchronized (summary) {
+            summary.files++;
+            if (error != null) {
+                summary.errors++;
+            }
+            summary.withId3v1 += id3v1 ? 1 : 0;
+            summary.withApe += ape ? 1 : 0;
+        }
+        if (layout != null) {
+            summary.tagBytes.add(layout.length);
+            summary.paddingBytes.add(layout.padding);
+            summary.artworkBytes.add(layout.artworkBytes);
+            summary.frames.add(layout.frames);
+        }
+
+        String version = layout == null ? "" : "2." + layout.version;
+        long tagBytes = layout == null ? 0 : layout.length;
+        long padding = layout == null ? 0 : layout.padding;
+        int frames = layout == null ? 0 : layout.frames;
+        int artworkCount = layout == null ? 0 : layout.artworkCount;
+        long artworkBytes = layout == null ? 0 : layout.artworkBytes;
+        if (format == RecordFormat.JSON_LINES) {
+            return "{\"path\":" + Json.quote(file.toString()) + ",\"file_bytes\":" + fileBytes
+                    + ",\"id3v2_version\":" + Json.quote(layout == null ? null : version) + ",\"id3v2_bytes\":" + tagBytes
+                    + ",\"padding_bytes\":" + padding + ",\"frames\":" + frames + ",\"artwork_count\":" + artworkCount
+                    + ",\"artwork_bytes\":" + artworkBytes + ",\"id3v1\":" + id3v1 + ",\"ape\":" + ape
+                    + ",\"error\":" + Json.quote(error) + "}";
+        }
+        return Csv.quote(file.toString()) + "," + fileBytes + "," + version + "," + tagBytes + "," + padding + "," + frames
+                + "," + artworkCount + "," + artworkBytes + "," + id3v1 + "," + ape + "," + Csv.quote(error);
+    }
+}
@@ -0,0 +1,195 @@
+package mp3tagwriter;
+
+/**
+ * This class is used to measure the loudness of decoded audio the way
+ * ReplayGain 2.0 does, after EBU R128: samples are K-weighted, their mean
+ * square is taken over 400 ms blocks that overlap by 300 ms, and the blocks
+ * are gated at -70 LUFS and at 10 LU below their own average. Blocks are
+ * only counted in a histogram of 0.1 LU bins, so a meter uses the same
+ * memory however long the audio is, and the histograms of an album's tracks
+ * add up to the histogram of the album.
+ *
+ * @author Aditya Nivarthi
+ */
+public class LoudnessMeter {
+
+    /**
+     * Loudness ReplayGain 2.0 brings every song to, in LUFS
+     */
+    public static final double REFERENCE_LUFS = -18;
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double RELATIVE_GATE = -10;
+    private static final double BIN_WIDTH = 0.1;
+
+    /**
+     * Number of bins in a histogram
+     */
+    public static final int BINS = 1000;
+    private static final double SHELF_FREQUENCY = 1681.974450955533;
+    private static final double SHELF_GAIN = 3.999843853973347;
+    private static final double SHELF_Q = 0.7071752369554196;
+    private static final double HIGH_PASS_FREQUENCY = 38.13547087602444;
+    private static final double HIGH_PASS_Q = 0.5003270373238773;
+    private final int channels;
+    private final double[] weights;
+    private final double[] shelf;
+    private final double[] highPass;
+    private final double[][] state;
+    private final int hopFrames;
+    private final double[] hops = new double[4];
+    private final long[] histogram = new long[BINS];
+    private int hopCount = 0;
+    private int frameInHop = 0;
+    private double hopSum = 0;
+    private double peak = 0;
+
+    /**
+     * Constructor for LoudnessMeter.
+     *
+     * @param sampleRate Sample rate of the audio in Hz
+     * @param channels Number of channels; the fourth and fifth of five, or
+     * the fifth and sixth of six, count as surround, and the fourth of six
+     * as low frequency effects, which are left out
+     */
+    public LoudnessMeter(float sampleRate, int channels) {
+        this.channels = channels;
+        this.weights = new double[channels];
+        for (int c = 0; c < channels; c++) {
+            this.weights[c] = 1;
+        }
+        if (channels == 5) {
+            this.weights[3] = 1.41;
+            this.weights[4] = 1.41;
+        } else if (channels == 6) {
+            this.weights[3] = 0;
+            this.weights[4] = 1.41;
+            this.weights[5] = 1.41;
+        }
+        double k = Math.tan(Math.PI * SHELF_FREQUENCY / sampleRate);
+        double vh = Math.pow(10, SHELF_GAIN / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / SHELF_Q + k * k;
+        this.shelf = new double[]{(vh + vb * k / SHELF_Q + k * k) / a0, 2 * (k * k - vh) / a0, (vh - vb * k / SHELF_Q + k * k) / a0, 2 * (k * k - 1) / a0, (1 - k / SHELF_Q + k * k) / a0};
+        k = Math.tan(Math.PI * HIGH_PASS_FREQUENCY / sampleRate);
+        a0 = 1 + k / HIGH_PASS_Q + k * k;
+        this.highPass = new double[]{1, -2, 1, 2 * (k * k - 1) / a0, (1 - k / HIGH_PASS_Q + k * k) / a0};
+        this.state = new double[channels][4];
+        this.hopFrames = Math.max(1, Math.round(sampleRate / 10));
+    }
+
+    /**
+     * Measures interleaved samples
+     *
+     * @param samples Samples from -1 to 1, one per channel per frame
+     * @param frames Number of frames in samples
+     */
+    public void process(double[] samples, int frames) {
+        int i = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            double sum = 0;
+            for (int c = 0; c < this.channels; c++) {
+                double x = samples[i++];
+                double magnitude = Math.abs(x);
+                if (magnitude > this.peak) {
+                    this.peak = magnitude;
+                }
+                double[] s = this.state[c];
+                double y = this.shelf[0] * x + s[0];
+                s[0] = this.shelf[1] * x - this.shelf[3] * y + s[1];
+                s[1] = this.shelf[2] * x - this.shelf[4] * y;
+                double z = this.highPass[0] * y + s[2];
+                s[2] = this.highPass[1] * y - this.highPass[3] * z + s[3];
+                s[3] = this.highPass[2] * y - this.highPass[4] * z;
+                sum += this.weights[c] * z * z;
+            }
+            this.hopSum += sum;
+            if (++this.frameInHop == this.hopFrames) {
+                this.endHop();
+            }
+        }
+    }
+
+    /**
+     * Gets the highest absolute sample seen
+     *
+     * @return peak The peak, where 1 is full scale
+     */
+    public double getPeak() {
+        return this.peak;
+    }
+
+    /**
+     * Gets the counts of gated blocks by loudness
+     *
+     * @return histogram Copy of the counts, of 0.1 LU bins from -70 LUFS
+     */
+    public long[] getHistogram() {
+        return this.histogram.clone();
+    }
+
+    /**
+     * Computes the gated loudness of blocks counted in a histogram
+     *
+     * @param histogram Counts of blocks by loudness, as from getHistogram,
+     * possibly added up over several meters
+     * @return loudness The loudness in LUFS, or NaN if every block was
+     * quieter than -70 LUFS
+     */
+    public static double loudness(long[] histogram) {
+        double energy = 0;
+        long blocks = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            energy += histogram[bin] * binEnergy(bin);
+            blocks += histogram[bin];
+        }
+        if (blocks == 0) {
+            return Double.NaN;
+        }
+        double threshold = energyToLoudness(energy / blocks) + RELATIVE_GATE;
+        int first = Math.max(0, (int) Math.ceil((threshold - ABSOLUTE_GATE) / BIN_WIDTH - 0.5));
+        energy = 0;
+        blocks = 0;
+        for (int bin = first; bin < BINS; bin++) {
+            energy += histogram[bin] * binEnergy(bin);
+            blocks += histogram[bin];
+        }
+        return blocks == 0 ? Double.NaN : energyToLoudness(energy / blocks);
+    }
+
+    /**
+     * Ends a 100 ms hop, counting the 400 ms block that ends with it
+     */
+    private void endHop() {
+        this.hops[this.hopCount % 4] = this.hopSum / this.hopFrames;
+        this.hopCount++;
+        this.hopSum = 0;
+        this.frameInHop = 0;
+        if (this.hopCount < 4) {
+            return;
+        }
+        double loudness = energyToLoudness((this.hops[0] + this.hops[1] + this.hops[2] + this.hops[3]) / 4);
+        if (loudness >= ABSOLUTE_GATE) {
+            this.histogram[Math.min(BINS - 1, (int) ((loudness - ABSOLUTE_GATE) / BIN_WIDTH))]++;
+        }
+    }
+
+    /**
+     * Converts a weighted mean square to loudness
+     *
+     * @param energy The mean square
+     * @return loudness The loudness in LUFS
+     */
+    private static double energyToLoudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    /**
+     * Gets the mean square a bin stands for, at its center
+     *
+     * @param bin The bin
+     * @return energy The mean square
+     */
+    private static double binEnergy(int bin) {
+        return Math.pow(10, (ABSOLUTE_GATE + (bin + 0.5) * BIN_WIDTH + 0.691) / 10);
+    }
+}
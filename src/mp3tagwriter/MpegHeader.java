@@ -0,0 +1,92 @@
+package mp3tagwriter;
+
+/**
+ * This class is used to decode the 4 byte header of an MPEG audio frame.
+ *
+ * @author Aditya Nivarthi
+ */
+public class MpegHeader {
+
+    private static final int[][] BITRATES = {
+        {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+        {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    /**
+     * MPEG version: 1 for MPEG 1, 2 for MPEG 2, 25 for MPEG 2.5
+     */
+    public final int version;
+    public final int layer;
+    public final int bitrate;
+    public final int sampleRate;
+    public final boolean padding;
+    public final boolean mono;
+    public final int samplesPerFrame;
+    public final int frameLength;
+
+    private MpegHeader(int version, int layer, int bitrate, int sampleRate, boolean padding, boolean mono) {
+        this.version = version;
+        this.layer = layer;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.padding = padding;
+        this.mono = mono;
+        if (layer == 1) {
+            this.samplesPerFrame = 384;
+            this.frameLength = (12 * bitrate * 1000 / sampleRate + (padding ? 1 : 0)) * 4;
+        } else {
+            this.samplesPerFrame = layer == 3 && version != 1 ? 576 : 1152;
+            this.frameLength = this.samplesPerFrame / 8 * bitrate * 1000 / sampleRate + (padding ? 1 : 0);
+        }
+    }
+
+    /**
+     * Decodes a frame header
+     *
+     * @param b Bytes holding the header
+     * @param offset Offset of the header in b
+     * @return header The decoded header, or null if the bytes are not a valid
+     * frame header
+     */
+    public static MpegHeader parse(byte[] b, int offset) {
+        if (offset + 4 > b.length || (b[offset] & 0xff) != 0xff || (b[offset + 1] & 0xe0) != 0xe0) {
+            return null;
+        }
+        int versionBits = (b[offset + 1] >> 3) & 0x3;
+        int layerBits = (b[offset + 1] >> 1) & 0x3;
+        int bitrateIndex = (b[offset + 2] >> 4) & 0xf;
+        int rateIndex = (b[offset + 2] >> 2) & 0x3;
+        if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) {
+            return null;
+        }
+        int version = versionBits == 3 ? 1 : versionBits == 2 ? 2 : 25;
+        int layer = 4 - layerBits;
+        int table;
+        if (version == 1) {
+            table = layer - 1;
+        } else {
+            table = layer == 1 ? 3 : 4;
+        }
+        int sampleRate = SAMPLE_RATES[rateIndex] / (version == 1 ? 1 : version == 2 ? 2 : 4);
+        boolean padding = ((b[offset + 2] >> 1) & 0x1) != 0;
+        boolean mono = ((b[offset + 3] >> 6) & 0x3) == 3;
+        return new MpegHeader(version, layer, BITRATES[table][bitrateIndex], sampleRate, padding, mono);
+    }
+
+    /**
+     * Offset of the Xing/Info tag within a Layer III frame, which sits after
+     * the side information
+     *
+     * @return offset Offset from the start of the frame
+     */
+    public int sideInfoEnd() {
+        if (this.version == 1) {
+            return this.mono ? 4 + 17 : 4 + 32;
+        }
+        return this.mono ? 4 + 9 : 4 + 17;
+    }
+}
@@ -0,0 +1,239 @@
+package mp3tagwriter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import javax.swing.AbstractListModel;
+
+/**
+ * This class is used to list song files by their ids in a path store instead
+ * of as strings, so a list of a million songs costs an int per row on top of
+ * the store. Paths are rebuilt when a row is read, which the list only does
+ * for the rows it shows. A path is listed at most once.
+ *
+ * @author Aditya Nivarthi
+ */
+public class PathListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+    private final PathStore paths;
+    private final BitSet listed = new BitSet();
+    private int[] ids = new int[256];
+    private int size = 0;
+
+    /**
+     * Constructor for PathListModel.
+     *
+     * @param paths The store that holds the listed paths
+     */
+    public PathListModel(PathStore paths) {
+        this.paths = paths;
+    }
+
+    @Override
+    public int getSize() {
+        return this.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return this.get(index);
+    }
+
+    /**
+     * Gets the number of rows
+     *
+     * @return size Number of rows
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets the path of a row
+     *
+     * @param index The row
+     * @return path The file path
+     */
+    public String get(int index) {
+        return this.paths.get(this.getId(index));
+    }
+
+    /**
+     * Gets the path store id of a row
+     *
+     * @param index The row
+     * @return id The id of the row's path
+     */
+    public synchronized int getId(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return this.ids[index];
+    }
+
+    /**
+     * Determines if a path is listed
+     *
+     * @param path The file path
+     * @return true if it is listed
+     */
+    public synchronized boolean contains(String path) {
+        int id = this.paths.find(path);
+        return id >= 0 && this.listed.get(id);
+    }
+
+    /**
+     * Finds the row of a path
+     *
+     * @param path The file path
+     * @return index The row, or -1 if the path is not listed
+     */
+    public synchronized int indexOf(String path) {
+        int id = this.paths.find(path);
+        if (id < 0 || !this.listed.get(id)) {
+            return -1;
+        }
+        for (int i = 0; i < this.size; i++) {
+            if (this.ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a path to the end of the list, unless it is listed already
+     *
+     * @param path The file path
+     */
+    public void addElement(String path) {
+        int index;
+        synchronized (this) {
+            index = this.size;
+        }
+        this.add(index, path);
+    }
+
+    /**
+     * Inserts a path at a row, unless it is listed already
+     *
+     * @param index The row
+     * @param path The file path
+     */
+    public void add(int index, String path) {
+        synchronized (this) {
+            if (index < 0 || index > this.size) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            int id = this.paths.add(path);
+            if (this.listed.get(id)) {
+                return;
+            }
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            System.arraycopy(this.ids, index, this.ids, index + 1, this.size - index);
+            this.ids[index] = id;
+            this.listed.set(id);
+            this.size++;
+        }
+        this.fireIntervalAdded(this, index, index);
+    }
+
+    /**
+     * Adds paths to the end of the list in one change, skipping those listed
+     * already
+     *
+     * @param added The file paths
+     */
+    public void addAll(List<String> added) {
+        int first;
+        int last;
+        synchronized (this) {
+            first = this.size;
+            if (this.size + added.size() > this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, Math.max(this.ids.length * 2, this.size + added.size()));
+            }
+            for (String path : added) {
+                int id = this.paths.add(path);
+                if (!this.listed.get(id)) {
+                    this.ids[this.size++] = id;
+                    this.listed.set(id);
+                }
+            }
+            last = this.size - 1;
+        }
+        if (last >= first) {
+            this.fireIntervalAdded(this, first, last);
+        }
+    }
+
+    /**
+     * Removes a path from the list
+     *
+     * @param path The file path
+     * @return true if it was listed
+     */
+    public boolean removeElement(String path) {
+        int index;
+        synchronized (this) {
+            index = this.indexOf(path);
+            if (index < 0) {
+                return false;
+            }
+            this.listed.clear(this.ids[index]);
+            System.arraycopy(this.ids, index + 1, this.ids, index, this.size - index - 1);
+            this.size--;
+        }
+        this.fireIntervalRemoved(this, index, index);
+        return true;
+    }
+
+    /**
+     * Removes several rows in one pass over the list
+     *
+     * @param indices The rows, in increasing order
+     */
+    public void removeRows(int[] indices) {
+        if (indices.length == 0) {
+            return;
+        }
+        int oldSize;
+        int newSize;
+        synchronized (this) {
+            oldSize = this.size;
+            int kept = indices[0];
+            int next = 0;
+            for (int i = indices[0]; i < this.size; i++) {
+                if (next < indices.length && indices[next] == i) {
+                    this.listed.clear(this.ids[i]);
+                    next++;
+                } else {
+                    this.ids[kept++] = this.ids[i];
+                }
+            }
+            this.size = kept;
+            newSize = kept;
+        }
+        this.fireIntervalRemoved(this, newSize, oldSize - 1);
+        if (indices[0] < newSize) {
+            this.fireContentsChanged(this, indices[0], newSize - 1);
+        }
+    }
+
+    /**
+     * Removes every row. The paths stay in the store
+     */
+    public void clear() {
+        int removed;
+        synchronized (this) {
+            removed = this.size;
+            this.size = 0;
+            this.listed.clear();
+        }
+        if (removed > 0) {
+            this.fireIntervalRemoved(this, 0, removed - 1);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class is used to hold very many file paths compactly. Each path is
+ * stored as the id of its directory plus its own name, packed as UTF-8 into
+ * one shared byte array. Directories go into a directory table that is itself
+ * a path store, so every directory name is stored once however many paths
+ * share it. Paths are addressed by int ids, which stay valid for the life of
+ * the store, so lists and caches can keep ids instead of strings.
+ *
+ * @author Aditya Nivarthi
+ */
+public class PathStore {
+
+    /**
+     * The directory table, created with the first path that has a directory
+     */
+    private PathStore directories;
+    /**
+     * Directory id of each path, -1 for paths without a directory
+     */
+    private int[] directoryOf = new int[1024];
+    private int[] nameStart = new int[1025];
+    private byte[] names = new byte[16384];
+    private int size = 0;
+    /**
+     * Open addressing table of id + 1, 0 meaning empty. Kept at most half full
+     */
+    private int[] table = new int[2048];
+
+    /**
+     * Adds a path if it is not stored yet
+     *
+     * @param path The file path
+     * @return id The id of the path
+     */
+    public synchronized int add(String path) {
+        int split = splitPoint(path);
+        byte[] name = path.substring(split).getBytes(StandardCharsets.UTF_8);
+        int directoryId = -1;
+        if (split > 0) {
+            if (this.directories == null) {
+                this.directories = new PathStore();
+            }
+            directoryId = this.directories.add(path.substring(0, split));
+        }
+        int hash = hash(directoryId, name, 0, name.length);
+        int slot = this.slot(directoryId, name, hash);
+        if (this.table[slot] != 0) {
+            return this.table[slot] - 1;
+        }
+
+        if (this.size == this.directoryOf.length) {
+            int capacity = this.size * 2;
+            this.directoryOf = Arrays.copyOf(this.directoryOf, capacity);
+            this.nameStart = Arrays.copyOf(this.nameStart, capacity + 1);
+        }
+        int start = this.nameStart[this.size];
+        if (start + name.length > this.names.length) {
+            this.names = Arrays.copyOf(this.names, Math.max(this.names.length + (this.names.length >> 1), start + name.length));
+        }
+        System.arraycopy(name, 0, this.names, start, name.length);
+        int id = this.size++;
+        this.directoryOf[id] = directoryId;
+        this.nameStart[id + 1] = start + name.length;
+        this.table[slot] = id + 1;
+        if (this.size * 2 > this.table.length) {
+            this.rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Finds the id of a stored path
+     *
+     * @param path The file path
+     * @return id The id of the path, or -1 if it is not stored
+     */
+    public synchronized int find(String path) {
+        int split = splitPoint(path);
+        int directoryId = -1;
+        if (split > 0) {
+            directoryId = this.directories == null ? -1 : this.directories.find(path.substring(0, split));
+            if (directoryId < 0) {
+                return -1;
+            }
+        }
+        byte[] name = path.substring(split).getBytes(StandardCharsets.UTF_8);
+        return this.table[this.slot(directoryId, name, hash(directoryId, name, 0, name.length))] - 1;
+    }
+
+    /**
+     * Gets a stored path
+     *
+     * @param id The id of the path
+     * @return path The file path
+     */
+    public String get(int id) {
+        return this.appendTo(new StringBuilder(96), id).toString();
+    }
+
+    /**
+     * Appends a stored path to a builder
+     *
+     * @param builder The builder
+     * @param id The id of the path
+     * @return builder The same builder
+     */
+    private synchronized StringBuilder appendTo(StringBuilder builder, int id) {
+        if (id < 0 || id >= this.size) {
+            throw new IndexOutOfBoundsException("No path " + id);
+        }
+        if (this.directoryOf[id] >= 0) {
+            this.directories.appendTo(builder, this.directoryOf[id]);
+        }
+        int start = this.nameStart[id];
+        return builder.append(new String(this.names, start, this.nameStart[id + 1] - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the number of stored paths. Ids run from 0 to size - 1
+     *
+     * @return size Number of paths
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets the number of distinct directories, at every level
+     *
+     * @return count Number of directories
+     */
+    public synchronized int getDirectoryCount() {
+        return this.directories == null ? 0 : this.directories.size() + this.directories.getDirectoryCount();
+    }
+
+    /**
+     * Finds the slot of a path in the table
+     *
+     * @param directoryId The id of the path's directory
+     * @param name The path's file name as UTF-8
+     * @param hash The hash of the directory id and name
+     * @return slot The slot holding the path, or the empty slot where it
+     * would go
+     */
+    private int slot(int directoryId, byte[] name, int hash) {
+        int mask = this.table.length - 1;
+        int slot = hash & mask;
+        while (this.table[slot] != 0) {
+            int id = this.table[slot] - 1;
+            if (this.directoryOf[id] == directoryId && this.nameEquals(id, name)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean nameEquals(int id, byte[] name) {
+        int start = this.nameStart[id];
+        if (this.nameStart[id + 1] - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (this.names[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        this.table = new int[this.table.length * 2];
+        int mask = this.table.length - 1;
+        for (int id = 0; id < this.size; id++) {
+            int slot = hash(this.directoryOf[id], this.names, this.nameStart[id], this.nameStart[id + 1]) & mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = id + 1;
+        }
+    }
+
+    private static int hash(int directoryId, byte[] name, int start, int end) {
+        int h = directoryId * 0x9E3779B9;
+        for (int i = start; i < end; i++) {
+            h = h * 31 + name[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds where the directory part of a path ends. A trailing separator
+     * belongs to the name, so directories split from their parents too
+     *
+     * @param path The file or directory path
+     * @return index Index just past the last separator before the name, or 0
+     */
+    private static int splitPoint(String path) {
+        int from = path.length() - 2;
+        return Math.max(path.lastIndexOf('/', from), path.lastIndexOf(File.separatorChar, from)) + 1;
+    }
+}
@@ -17,11 +17,23 @@ public class PictureView extends JComponent {
      * Constructor for PictureView object. Sets the image file and the width and
      * height
      *
-     * @param i The image to display as artwork
+     * @param i The image to display as artwork, or null to display nothing
      */
     public PictureView(BufferedImage i) {
         this.image = i;
-        this.setSize(i.getWidth(), i.getHeight());
+        if (i != null) {
+            this.setSize(i.getWidth(), i.getHeight());
+        }
+    }
+
+    /**
+     * Swaps the displayed image and repaints
+     *
+     * @param i The image to display as artwork, or null to display nothing
+     */
+    public void setImage(BufferedImage i) {
+        this.image = i;
+        this.repaint();
     }
 
     /**
@@ -31,6 +43,9 @@ public class PictureView extends JComponent {
      */
     @Override
     public void paint(Graphics g) {
+        if (image == null) {
+            return;
+        }
         g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
     }
 }
@@ -0,0 +1,106 @@
+package mp3tagwriter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * This class is used to keep the songs an operation gave up on, with why and
+ * with a way to run the same operation on them again once the storage has
+ * recovered. Only the latest MAX_ENTRIES songs are kept, so a long running
+ * server against a dead share does not grow without bound.
+ *
+ * @author Aditya Nivarthi
+ */
+public class Quarantine {
+
+    /**
+     * Most songs kept in quarantine
+     */
+    public static final int MAX_ENTRIES = 10000;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    /**
+     * A song that failed, and the operation to run on it again.
+     */
+    public static class Entry {
+
+        public final SongOutcome outcome;
+        private final Runnable retry;
+
+        private Entry(SongOutcome outcome, Runnable retry) {
+            this.outcome = outcome;
+            this.retry = retry;
+        }
+
+        /**
+         * Runs the operation that failed on the song again
+         */
+        public void retry() {
+            this.retry.run();
+        }
+
+        @Override
+        public String toString() {
+            return this.outcome.operation + ": " + this.outcome;
+        }
+    }
+
+    /**
+     * Adds a failed song
+     *
+     * @param outcome How the song failed
+     * @param retry Runs the operation on the song again
+     */
+    public synchronized void add(SongOutcome outcome, Runnable retry) {
+        this.keep(new Entry(outcome, retry));
+    }
+
+    /**
+     * Puts back songs taken out with drain that were not retried
+     *
+     * @param entries The songs
+     */
+    public synchronized void addAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            this.keep(entry);
+        }
+    }
+
+    /**
+     * Removes and returns every song in quarantine, for retrying them
+     *
+     * @return entries The songs, in the order they failed
+     */
+    public synchronized List<Entry> drain() {
+        List<Entry> drained = new ArrayList<>(this.entries);
+        this.entries.clear();
+        return drained;
+    }
+
+    /**
+     * Gets the songs in quarantine
+     *
+     * @return entries Copy of the songs, in the order they failed
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(this.entries);
+    }
+
+    /**
+     * Gets the number of songs in quarantine
+     *
+     * @return size Number of songs
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    private void keep(Entry entry) {
+        if (this.entries.size() >= MAX_ENTRIES) {
+            this.entries.removeFirst();
+        }
+        this.entries.addLast(entry);
+    }
+}
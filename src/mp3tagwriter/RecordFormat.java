@@ -0,0 +1,22 @@
+package mp3tagwriter;
+
+/**
+ * Formats of the record files the tool reads and writes, one record per line.
+ *
+ * @author Aditya Nivarthi
+ */
+public enum RecordFormat {
+
+    CSV, JSON_LINES;
+
+    /**
+     * Picks a format from a file name
+     *
+     * @param fileName Name of the record file
+     * @return JSON_LINES for .json and .jsonl files, otherwise CSV
+     */
+    public static RecordFormat forFileName(String fileName) {
+        String lower = fileName.toLowerCase();
+        return lower.endsWith(".jsonl") || lower.endsWith(".json") ? JSON_LINES : CSV;
+    }
+}
@@ -0,0 +1,504 @@
+package mp3tagwriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.tag.Tag;
+
+/**
+ * This class is used to write ReplayGain 2.0 track and album gain and peak
+ * tags. Songs are decoded in parallel, one per core, with a small fixed
+ * buffer each, and whole albums are worked through a chunk at a time, so
+ * memory stays bounded however large the library is. Songs whose four
+ * fields already hold valid values are left alone, unless another song of
+ * their album needs them. Measurements are cached by the hash of the audio
+ * alone, so they survive tag edits and renames, and albums that gain a song
+ * are not decoded again.
+ *
+ * Decoding goes through javax.sound.sampled. The JDK providers only read
+ * uncompressed formats such as WAV and AIFF; MP3, Ogg and FLAC songs are
+ * read by the mp3spi, vorbisspi and jflac providers shipped in res. AAC songs
+ * have no provider and are reported as undecodable, as are songs shorter
+ * than one 400 ms block or quieter than the absolute gate.
+ *
+ * @author Aditya Nivarthi
+ */
+public class ReplayGainScanner {
+
+    public static final String TRACK_GAIN = "REPLAYGAIN_TRACK_GAIN";
+    public static final String TRACK_PEAK = "REPLAYGAIN_TRACK_PEAK";
+    public static final String ALBUM_GAIN = "REPLAYGAIN_ALBUM_GAIN";
+    public static final String ALBUM_PEAK = "REPLAYGAIN_ALBUM_PEAK";
+    private static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(TRACK_GAIN, TRACK_PEAK, ALBUM_GAIN, ALBUM_PEAK));
+    private static final int CHUNK_SONGS = 256;
+    private static final int BUFFER_BYTES = 65536;
+    private static final Logger log = Logger.getLogger(ReplayGainScanner.class.getName());
+    private final TagWriter writer;
+    private final AlbumIndex albums;
+    private final FingerprintCache fingerprints;
+    private final BatchScheduler scheduler = new BatchScheduler(Runtime.getRuntime().availableProcessors());
+    private final File file;
+    private final Map<String, Measurement> cache = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    /**
+     * Counts of songs by how a scan ended for them.
+     */
+    public static class Result {
+
+        /**
+         * Songs whose gain fields were written
+         */
+        public final int written;
+
+        /**
+         * Songs that already had valid gain fields
+         */
+        public final int current;
+
+        /**
+         * Songs that could not be decoded or were silent
+         */
+        public final int unmeasured;
+
+        /**
+         * Songs whose fields could not be written
+         */
+        public final int failed;
+
+        private Result(int written, int current, int unmeasured, int failed) {
+            this.written = written;
+            this.current = current;
+            this.unmeasured = unmeasured;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return this.written + " written, " + this.current + " already tagged, " + this.unmeasured + " not measured, " + this.failed + " failed";
+        }
+    }
+
+    /**
+     * Loudness of the audio of one song, kept as the peak and the nonzero
+     * bins of its block histogram.
+     */
+    private static class Measurement {
+
+        private final double peak;
+        private final short[] bins;
+        private final int[] counts;
+
+        private Measurement(double peak, long[] histogram) {
+            int nonzero = 0;
+            for (long count : histogram) {
+                if (count > 0) {
+                    nonzero++;
+                }
+            }
+            this.peak = peak;
+            this.bins = new short[nonzero];
+            this.counts = new int[nonzero];
+            for (int bin = 0, i = 0; bin < histogram.length; bin++) {
+                if (histogram[bin] > 0) {
+                    this.bins[i] = (short) bin;
+                    this.counts[i++] = (int) Math.min(Integer.MAX_VALUE, histogram[bin]);
+                }
+            }
+        }
+
+        private Measurement(double peak, short[] bins, int[] counts) {
+            this.peak = peak;
+            this.bins = bins;
+            this.counts = counts;
+        }
+
+        /**
+         * Adds this song's blocks to a histogram
+         *
+         * @param histogram The histogram to add to
+         */
+        private void addTo(long[] histogram) {
+            for (int i = 0; i < this.bins.length; i++) {
+                histogram[this.bins[i]] += this.counts[i];
+            }
+        }
+    }
+
+    /**
+     * Constructor for ReplayGainScanner. Loads any measurements saved in the
+     * file.
+     *
+     * @param writer The writer to commit the gain fields through
+     * @param albums The album index to group songs by
+     * @param fingerprints The cache of audio fingerprints
+     * @param file The file the measurements are kept in
+     */
+    public ReplayGainScanner(TagWriter writer, AlbumIndex albums, FingerprintCache fingerprints, File file) {
+        this.writer = writer;
+        this.albums = albums;
+        this.fingerprints = fingerprints;
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 3) {
+                    continue;
+                }
+                String[] pairs = parts[2].isEmpty() ? new String[0] : parts[2].split(",");
+                short[] bins = new short[pairs.length];
+                int[] counts = new int[pairs.length];
+                for (int i = 0; i < pairs.length; i++) {
+                    int colon = pairs[i].indexOf(':');
+                    bins[i] = Short.parseShort(pairs[i].substring(0, colon));
+                    counts[i] = Integer.parseInt(pairs[i].substring(colon + 1));
+                }
+                this.cache.put(parts[0], new Measurement(Double.parseDouble(parts[1]), bins, counts));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Ignoring unreadable ReplayGain cache " + file, e);
+            this.cache.clear();
+        }
+    }
+
+    /**
+     * Writes track and album gain fields to the given songs. Songs missing
+     * from the album index are scanned into it first; songs without an album,
+     * or without a tag at all, are treated as albums of their own
+     *
+     * @param songs Names of song files
+     * @return result Counts of songs by how they ended
+     */
+    public Result scan(List<String> songs) {
+        this.albums.scan(songs);
+        List<List<String>> groups = new ArrayList<>();
+        Set<String> untagged = new LinkedHashSet<>(songs);
+        for (Map.Entry<AlbumIndex.Key, List<String>> album : this.albums.getAlbums(songs).entrySet()) {
+            untagged.removeAll(album.getValue());
+            if (album.getKey().album.isEmpty()) {
+                for (String song : album.getValue()) {
+                    groups.add(Collections.singletonList(song));
+                }
+            } else {
+                groups.add(album.getValue());
+            }
+        }
+        for (String song : untagged) {
+            groups.add(Collections.singletonList(song));
+        }
+        AtomicInteger[] counts = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+        TaskRuntime.Task scope = TaskRuntime.current();
+        List<List<String>> chunk = new ArrayList<>();
+        int size = 0;
+        for (List<String> group : groups) {
+            if (scope != null && scope.isCancelled()) {
+                break;
+            }
+            chunk.add(group);
+            size += group.size();
+            if (size >= CHUNK_SONGS) {
+                this.scanChunk(chunk, counts);
+                chunk.clear();
+                size = 0;
+            }
+        }
+        if (!chunk.isEmpty() && (scope == null || !scope.isCancelled())) {
+            this.scanChunk(chunk, counts);
+        }
+        this.fingerprints.save();
+        this.save();
+        return new Result(counts[0].get(), counts[1].get(), counts[2].get(), counts[3].get());
+    }
+
+    /**
+     * Writes the measurements back to their file if anything changed
+     */
+    public void save() {
+        if (!this.dirty) {
+            return;
+        }
+        File temp = new File(this.file.getPath() + ".tmp");
+        try {
+            this.file.getAbsoluteFile().getParentFile().mkdirs();
+            try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Measurement> e : this.cache.entrySet()) {
+                    Measurement m = e.getValue();
+                    StringBuilder line = new StringBuilder(e.getKey()).append('\t').append(m.peak).append('\t');
+                    for (int i = 0; i < m.bins.length; i++) {
+                        line.append(i == 0 ? "" : ",").append(m.bins[i]).append(':').append(m.counts[i]);
+                    }
+                    out.write(line.toString());
+                    out.newLine();
+                }
+            }
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.dirty = false;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not save ReplayGain cache " + this.file, e);
+        }
+    }
+
+    /**
+     * Checks, measures and writes the songs of a chunk of whole albums, each
+     * step in parallel
+     *
+     * @param chunk Albums, as lists of song names
+     * @param counts Counts of written, current, unmeasured and failed songs
+     */
+    private void scanChunk(List<List<String>> chunk, final AtomicInteger[] counts) {
+        List<String> songs = new ArrayList<>();
+        for (List<String> album : chunk) {
+            songs.addAll(album);
+        }
+        final Set<String> tagged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.scheduler.run(songs, new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                if (hasGain(songName)) {
+                    tagged.add(songName);
+                }
+            }
+        });
+        List<List<String>> stale = new ArrayList<>();
+        List<String> measure = new ArrayList<>();
+        for (List<String> album : chunk) {
+            if (tagged.containsAll(album)) {
+                counts[1].addAndGet(album.size());
+            } else {
+                stale.add(album);
+                measure.addAll(album);
+            }
+        }
+        final Map<String, Measurement> measured = new ConcurrentHashMap<>();
+        this.scheduler.run(measure, new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                Measurement m = measure(songName);
+                if (m != null) {
+                    measured.put(songName, m);
+                }
+            }
+        });
+        final Map<String, Map<String, String>> fields = new HashMap<>();
+        for (List<String> album : stale) {
+            long[] histogram = new long[LoudnessMeter.BINS];
+            double albumPeak = 0;
+            boolean complete = true;
+            for (String song : album) {
+                Measurement m = measured.get(song);
+                if (m == null) {
+                    complete = false;
+                    continue;
+                }
+                m.addTo(histogram);
+                albumPeak = Math.max(albumPeak, m.peak);
+            }
+            double albumLoudness = LoudnessMeter.loudness(histogram);
+            for (String song : album) {
+                Measurement m = measured.get(song);
+                long[] trackHistogram = new long[LoudnessMeter.BINS];
+                if (m != null) {
+                    m.addTo(trackHistogram);
+                }
+                double trackLoudness = LoudnessMeter.loudness(trackHistogram);
+                if (m == null || Double.isNaN(trackLoudness) || !complete || Double.isNaN(albumLoudness)) {
+                    counts[2].incrementAndGet();
+                    continue;
+                }
+                Map<String, String> values = new LinkedHashMap<>();
+                values.put(TRACK_GAIN, formatGain(trackLoudness));
+                values.put(TRACK_PEAK, formatPeak(m.peak));
+                values.put(ALBUM_GAIN, formatGain(albumLoudness));
+                values.put(ALBUM_PEAK, formatPeak(albumPeak));
+                fields.put(song, values);
+            }
+        }
+        this.writer.getScheduler().run(new ArrayList<>(fields.keySet()), new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                try {
+                    writer.applyCustomFields(songName, fields.get(songName));
+                    counts[0].incrementAndGet();
+                } catch (IOException e) {
+                    counts[3].incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks whether a song already holds valid values in all four gain
+     * fields
+     *
+     * @param songName Name of song file
+     * @return true if every field parses
+     */
+    private static boolean hasGain(String songName) {
+        try {
+            Tag tag = SongFormat.tagOf(AudioFileIO.read(new File(songName)));
+            if (tag == null) {
+                return false;
+            }
+            for (String field : FIELDS) {
+                String value = SongFormat.getCustomField(tag, field).trim();
+                if (value.toLowerCase(Locale.ROOT).endsWith("db")) {
+                    value = value.substring(0, value.length() - 2).trim();
+                }
+                if (Double.isNaN(Double.parseDouble(value))) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Measures a song, or takes its measurement from the cache when its audio
+     * was measured before
+     *
+     * @param songName Name of song file
+     * @return measurement The measurement, or null if the song cannot be
+     * decoded
+     */
+    private Measurement measure(String songName) {
+        File songFile = new File(songName);
+        String key = null;
+        try {
+            key = this.fingerprints.get(songFile).exact;
+            Measurement cached = this.cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "Could not fingerprint " + songName, e);
+        }
+        try {
+            Measurement m = decode(songFile);
+            if (key != null) {
+                this.cache.put(key, m);
+                this.dirty = true;
+            }
+            return m;
+        } catch (UnsupportedAudioFileException e) {
+            log.fine("No decoder for " + songName);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Could not decode " + songName, e);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a song through javax.sound.sampled and measures it, converting
+     * compressed audio to 16 bit PCM on the way
+     *
+     * @param songFile The song file
+     * @return measurement The measurement
+     * @throws UnsupportedAudioFileException if no installed provider decodes
+     * the file
+     * @throws IOException if the file cannot be read
+     */
+    private static Measurement decode(File songFile) throws UnsupportedAudioFileException, IOException {
+        AudioInputStream source = AudioSystem.getAudioInputStream(songFile);
+        AudioFormat format = source.getFormat();
+        AudioFormat.Encoding encoding = format.getEncoding();
+        AudioInputStream in = source;
+        if (!encoding.equals(AudioFormat.Encoding.PCM_SIGNED) && !encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED) && !encoding.equals(AudioFormat.Encoding.PCM_FLOAT)) {
+            format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16, format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+            in = AudioSystem.getAudioInputStream(format, source);
+        }
+        try {
+            int channels = format.getChannels();
+            int sampleBytes = format.getSampleSizeInBits() / 8;
+            int frameBytes = channels * sampleBytes;
+            if (sampleBytes < 1 || sampleBytes > 4 && !(sampleBytes == 8 && format.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT))) {
+                throw new UnsupportedAudioFileException(format.getSampleSizeInBits() + " bit samples are not supported");
+            }
+            LoudnessMeter meter = new LoudnessMeter(format.getSampleRate(), channels);
+            byte[] buffer = new byte[BUFFER_BYTES - BUFFER_BYTES % frameBytes];
+            double[] samples = new double[buffer.length / sampleBytes];
+            boolean bigEndian = format.isBigEndian();
+            boolean unsigned = format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+            boolean floating = format.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT);
+            double scale = 1.0 / (1L << (sampleBytes * 8 - 1));
+            int filled = 0;
+            int read;
+            while ((read = in.read(buffer, filled, buffer.length - filled)) >= 0) {
+                filled += read;
+                int frames = filled / frameBytes;
+                if (frames == 0) {
+                    continue;
+                }
+                for (int i = 0, offset = 0; i < frames * channels; i++, offset += sampleBytes) {
+                    long bits = 0;
+                    for (int b = 0; b < sampleBytes; b++) {
+                        int value = buffer[offset + (bigEndian ? b : sampleBytes - 1 - b)] & 0xff;
+                        bits = (bits << 8) | value;
+                    }
+                    if (floating) {
+                        samples[i] = sampleBytes == 4 ? Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits);
+                    } else if (unsigned) {
+                        samples[i] = (bits - (1L << (sampleBytes * 8 - 1))) * scale;
+                    } else {
+                        samples[i] = (bits << (64 - sampleBytes * 8) >> (64 - sampleBytes * 8)) * scale;
+                    }
+                }
+                meter.process(samples, frames);
+                int used = frames * frameBytes;
+                System.arraycopy(buffer, used, buffer, 0, filled - used);
+                filled -= used;
+            }
+            return new Measurement(meter.getPeak(), meter.getHistogram());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Formats the gain that brings audio of a loudness to the reference
+     *
+     * @param loudness The loudness in LUFS
+     * @return gain The gain, such as "-6.52 dB"
+     */
+    private static String formatGain(double loudness) {
+        return String.format(Locale.ROOT, "%.2f dB", LoudnessMeter.REFERENCE_LUFS - loudness);
+    }
+
+    /**
+     * Formats a peak the way ReplayGain tags hold it
+     *
+     * @param peak The peak, where 1 is full scale
+     * @return peak The peak, such as "0.988525"
+     */
+    private static String formatPeak(double peak) {
+        return String.format(Locale.ROOT, "%.6f", peak);
+    }
+}
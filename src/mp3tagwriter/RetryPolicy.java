@@ -0,0 +1,91 @@
+package mp3tagwriter;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
+
+/**
+ * This class is used to decide whether a failed song is tried again and how
+ * long to wait first. Only failures of the storage are retried; a song that
+ * is missing, read only or not valid audio fails the same way every time.
+ * Each wait is drawn at random from the upper half of a delay that doubles
+ * with every attempt, so workers that failed together do not come back
+ * together.
+ *
+ * @author Aditya Nivarthi
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * Constructor for RetryPolicy.
+     *
+     * @param maxAttempts Most times a song is tried, including the first
+     * @param baseDelayMillis Longest wait before the first retry
+     * @param maxDelayMillis Longest wait before any retry
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Determines if a failure came from the storage rather than from the
+     * song, so that trying again may succeed
+     *
+     * @param failure What went wrong
+     * @return true if an I/O error other than a missing or unwritable file
+     * caused it
+     */
+    public static boolean isTransient(Throwable failure) {
+        boolean io = false;
+        for (Throwable t = failure; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof FileNotFoundException || t instanceof NoSuchFileException || t instanceof AccessDeniedException || t instanceof ReadOnlyFileException) {
+                return false;
+            }
+            io |= t instanceof IOException;
+        }
+        return io;
+    }
+
+    /**
+     * Determines if a song is tried again after a failure
+     *
+     * @param attempts Number of times the song was tried so far
+     * @param failure What went wrong the last time
+     * @return true if the song should be tried again
+     */
+    public boolean shouldRetry(int attempts, Throwable failure) {
+        return attempts < this.maxAttempts && isTransient(failure);
+    }
+
+    /**
+     * Picks how long to wait before trying a song again: a random time
+     * between half and all of the base delay doubled for every attempt made,
+     * capped at the maximum
+     *
+     * @param attempts Number of times the song was tried so far
+     * @return millis Time to wait
+     */
+    public long delayMillis(int attempts) {
+        long bound = this.baseDelayMillis << Math.min(30, Math.max(0, attempts - 1));
+        bound = Math.min(this.maxDelayMillis, bound);
+        return ThreadLocalRandom.current().nextLong(bound / 2, bound + 1);
+    }
+
+    /**
+     * Gets the most times a song is tried
+     *
+     * @return attempts Number of attempts, including the first
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+}
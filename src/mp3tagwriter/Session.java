@@ -0,0 +1,180 @@
+package mp3tagwriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class is used to save and restore a working set: the listed songs, the
+ * selected rows, the edits typed into the fields but not yet applied, and the
+ * album index entries of the songs. The file is a compressed binary stream in
+ * which each directory is written once, so a session of a large library
+ * loads without parsing any song; the restored entries carry the
+ * modification time and length of their files, so that only the songs that
+ * changed since have to be read again.
+ *
+ * @author Aditya Nivarthi
+ */
+public class Session {
+
+    private static final int MAGIC = 0x4d545353;
+    private static final int VERSION = 1;
+    public final List<String> songs;
+    public final int[] selected;
+    public final String editedSong;
+    public final Map<String, String> edits;
+
+    /**
+     * Constructor for Session.
+     *
+     * @param songs Names of the listed song files, in list order
+     * @param selected The selected rows
+     * @param editedSong Name of the song the edits were typed for, or null
+     * @param edits Unapplied field texts by field name
+     */
+    public Session(List<String> songs, int[] selected, String editedSong, Map<String, String> edits) {
+        this.songs = Collections.unmodifiableList(new ArrayList<>(songs));
+        this.selected = selected.clone();
+        this.editedSong = editedSong;
+        this.edits = Collections.unmodifiableMap(new LinkedHashMap<>(edits));
+    }
+
+    /**
+     * Writes the session to a file, replacing it in one step
+     *
+     * @param file The session file
+     * @param albums The album index whose entries of the songs are saved
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file, AlbumIndex albums) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            this.writeSongs(out);
+            out.writeInt(this.selected.length);
+            for (int row : this.selected) {
+                out.writeInt(row);
+            }
+            out.writeBoolean(this.editedSong != null);
+            if (this.editedSong != null) {
+                out.writeUTF(this.editedSong);
+            }
+            out.writeInt(this.edits.size());
+            for (Map.Entry<String, String> edit : this.edits.entrySet()) {
+                out.writeUTF(edit.getKey());
+                out.writeUTF(edit.getValue());
+            }
+            albums.writeStates(out, this.songs);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a session from a file and restores the album index entries of
+     * its songs, without reading any song
+     *
+     * @param file The session file
+     * @param albums The album index to restore the entries into
+     * @return session The session
+     * @throws IOException if the file cannot be read or is not a session
+     */
+    public static Session load(File file, AlbumIndex albums) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a session file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported session version " + version);
+            }
+            List<String> songs = readSongs(in);
+            int[] selected = new int[in.readInt()];
+            for (int i = 0; i < selected.length; i++) {
+                selected[i] = in.readInt();
+            }
+            String editedSong = in.readBoolean() ? in.readUTF() : null;
+            int count = in.readInt();
+            Map<String, String> edits = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                edits.put(in.readUTF(), in.readUTF());
+            }
+            albums.readStates(in, songs);
+            return new Session(songs, selected, editedSong, edits);
+        } catch (EOFException e) {
+            throw new IOException(file.getName() + " is truncated", e);
+        }
+    }
+
+    /**
+     * Writes the song names as a table of their directories followed by each
+     * song's directory number and file name
+     *
+     * @param out The stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeSongs(DataOutputStream out) throws IOException {
+        Map<String, Integer> directories = new LinkedHashMap<>();
+        int[] directoryOf = new int[this.songs.size()];
+        for (int i = 0; i < directoryOf.length; i++) {
+            String parent = new File(this.songs.get(i)).getParent();
+            String directory = parent == null ? "" : parent;
+            Integer index = directories.get(directory);
+            if (index == null) {
+                index = directories.size();
+                directories.put(directory, index);
+            }
+            directoryOf[i] = index;
+        }
+        out.writeInt(directories.size());
+        for (String directory : directories.keySet()) {
+            out.writeUTF(directory);
+        }
+        out.writeInt(directoryOf.length);
+        for (int i = 0; i < directoryOf.length; i++) {
+            out.writeInt(directoryOf[i]);
+            out.writeUTF(new File(this.songs.get(i)).getName());
+        }
+    }
+
+    /**
+     * Reads song names written by writeSongs
+     *
+     * @param in The stream to read from
+     * @return songs Names of song files, in list order
+     * @throws IOException if the stream cannot be read or is corrupt
+     */
+    private static List<String> readSongs(DataInputStream in) throws IOException {
+        String[] directories = new String[in.readInt()];
+        for (int i = 0; i < directories.length; i++) {
+            directories[i] = in.readUTF();
+        }
+        int count = in.readInt();
+        List<String> songs = new ArrayList<>(Math.min(count, 65536));
+        try {
+            for (int i = 0; i < count; i++) {
+                String directory = directories[in.readInt()];
+                String name = in.readUTF();
+                songs.add(directory.isEmpty() ? name : new File(directory, name).getPath());
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt session file", e);
+        }
+        return songs;
+    }
+}
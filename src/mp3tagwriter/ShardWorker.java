@@ -0,0 +1,359 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to share a large tagging job between worker processes,
+ * on one host or on several hosts mounting the same directory. The job is
+ * split into shard files under pending/. A worker claims a shard by renaming
+ * it into leased/ under its own name, which only one worker can do, and keeps
+ * the lease alive by touching it. A lease whose modification time stops
+ * changing is renamed back into pending/ by any other worker, so the shards
+ * of dead workers are run again. Results of finished shards go to done/.
+ *
+ * Expiry is judged by how long a lease's modification time has stayed the
+ * same on the observing worker's own clock, so clock skew between hosts does
+ * not matter. Every operation is safe to repeat, so a shard that runs twice
+ * after a lease was wrongly taken over gives the same files.
+ *
+ * @author Aditya Nivarthi
+ */
+public class ShardWorker {
+
+    private static final Logger log = Logger.getLogger(ShardWorker.class.getName());
+    private static final String PENDING = "pending";
+    private static final String LEASED = "leased";
+    private static final String DONE = "done";
+    private static final String SHARD_SUFFIX = ".shard";
+    private static final String RESULT_SUFFIX = ".result";
+    private static final char LEASE_SEPARATOR = '@';
+    private static final long IDLE_WAIT_MILLIS = 1000;
+    private final TagWriter writer;
+    private final File directory;
+    private final String workerId;
+    private final long leaseMillis;
+    private final Map<String, long[]> observedLeases = new HashMap<>();
+
+    /**
+     * Figures of a shared job directory.
+     */
+    public static class Status {
+
+        public int pending;
+        public int leased;
+        public int done;
+        public long songsDone;
+        public long songsFailed;
+        public final Map<String, Integer> leasesByWorker = new HashMap<>();
+
+        /**
+         * Determines if every shard has finished
+         *
+         * @return true if no shard is pending or leased
+         */
+        public boolean isFinished() {
+            return this.pending == 0 && this.leased == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "shards pending=" + pending + " leased=" + leased + " done=" + done
+                    + "\nsongs done=" + songsDone + " failed=" + songsFailed + " (finished shards only)"
+                    + "\nleases " + leasesByWorker;
+        }
+    }
+
+    /**
+     * Constructor for ShardWorker. The worker is named after its process id
+     * and host.
+     *
+     * @param writer The writer to run operations with
+     * @param directory The shared job directory
+     * @param leaseMillis How long a lease may go without being touched before
+     * other workers take it over
+     */
+    public ShardWorker(TagWriter writer, File directory, long leaseMillis) {
+        this.writer = writer;
+        this.directory = directory;
+        this.workerId = ManagementFactory.getRuntimeMXBean().getName().replace(LEASE_SEPARATOR, '.').replace(File.separatorChar, '_');
+        this.leaseMillis = Math.max(1000, leaseMillis);
+    }
+
+    /**
+     * Splits a job into shards in a shared job directory
+     *
+     * @param directory The shared job directory
+     * @param job The job to split; its id prefixes the shard names
+     * @param songsPerShard Number of songs in each shard
+     * @return count Number of shards written
+     * @throws IOException if a shard cannot be written
+     */
+    public static int submit(File directory, TagJob job, int songsPerShard) throws IOException {
+        File pending = subdirectory(directory, PENDING);
+        subdirectory(directory, LEASED);
+        subdirectory(directory, DONE);
+        int shards = 0;
+        for (int start = 0; start < job.songs.size(); start += songsPerShard) {
+            List<String> songs = job.songs.subList(start, Math.min(job.songs.size(), start + songsPerShard));
+            TagJob shard = new TagJob(job.id, job.operation, job.params, songs);
+            String name = String.format("%s-%06d%s", job.id, shards++, SHARD_SUFFIX);
+            File temp = new File(directory, name + ".tmp");
+            Files.write(temp.toPath(), shard.definitionJson().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), new File(pending, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return shards;
+    }
+
+    /**
+     * Counts the shards of a shared job directory and adds up the results of
+     * finished ones
+     *
+     * @param directory The shared job directory
+     * @return status The figures
+     * @throws IOException if a directory cannot be listed
+     */
+    public static Status status(File directory) throws IOException {
+        Status status = new Status();
+        status.pending = list(new File(directory, PENDING), SHARD_SUFFIX).length;
+        for (File lease : leases(directory)) {
+            status.leased++;
+            String worker = lease.getName().substring(lease.getName().lastIndexOf(LEASE_SEPARATOR) + 1);
+            Integer count = status.leasesByWorker.get(worker);
+            status.leasesByWorker.put(worker, count == null ? 1 : count + 1);
+        }
+        for (File result : list(new File(directory, DONE), RESULT_SUFFIX)) {
+            try {
+                Map<?, ?> values = (Map<?, ?>) Json.parse(new String(Files.readAllBytes(result.toPath()), StandardCharsets.UTF_8));
+                status.songsDone += Long.parseLong((String) values.get("done"));
+                status.songsFailed += Long.parseLong((String) values.get("failed"));
+                status.done++;
+            } catch (NoSuchFileException e) {
+            } catch (IllegalArgumentException | ClassCastException e) {
+                log.log(Level.WARNING, "Unreadable result " + result, e);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Claims and runs shards until every shard of the directory has finished
+     *
+     * @return shards Number of shards this worker finished
+     * @throws IOException if the job directory cannot be listed
+     * @throws InterruptedException if interrupted while waiting for work
+     */
+    public int run() throws IOException, InterruptedException {
+        int finished = 0;
+        File pending = subdirectory(this.directory, PENDING);
+        subdirectory(this.directory, LEASED);
+        subdirectory(this.directory, DONE);
+        while (true) {
+            File lease = this.claim(pending);
+            if (lease != null) {
+                if (this.runShard(lease)) {
+                    finished++;
+                }
+                continue;
+            }
+            if (this.reclaimExpired() > 0) {
+                continue;
+            }
+            if (list(pending, SHARD_SUFFIX).length == 0 && leases(this.directory).length == 0) {
+                return finished;
+            }
+            Thread.sleep(IDLE_WAIT_MILLIS);
+        }
+    }
+
+    /**
+     * Claims one pending shard by renaming it into leased/. Shards are tried
+     * from a random point so workers starting together rarely race for the
+     * same one
+     *
+     * @param pending The pending shard directory
+     * @return lease The leased shard file, or null if none could be claimed
+     * @throws IOException if the directory cannot be listed
+     */
+    private File claim(File pending) throws IOException {
+        List<File> shards = new ArrayList<>(Arrays.asList(list(pending, SHARD_SUFFIX)));
+        Collections.shuffle(shards);
+        for (File shard : shards) {
+            File lease = new File(new File(this.directory, LEASED), shard.getName() + LEASE_SEPARATOR + this.workerId);
+            try {
+                Files.move(shard.toPath(), lease.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                lease.setLastModified(System.currentTimeMillis());
+                return lease;
+            } catch (NoSuchFileException e) {
+                // Another worker claimed it first
+            } catch (AtomicMoveNotSupportedException e) {
+                throw new IOException("Job directory does not support atomic rename", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves leases that have not been touched for the lease time back into
+     * pending/
+     *
+     * @return count Number of shards moved back
+     * @throws IOException if the lease directory cannot be listed
+     */
+    private int reclaimExpired() throws IOException {
+        int reclaimed = 0;
+        long now = System.nanoTime();
+        Map<String, long[]> seen = new HashMap<>();
+        for (File lease : leases(this.directory)) {
+            long modified = lease.lastModified();
+            long[] observed = this.observedLeases.get(lease.getName());
+            if (observed == null || observed[0] != modified) {
+                observed = new long[]{modified, now};
+            }
+            seen.put(lease.getName(), observed);
+            if (now - observed[1] < this.leaseMillis * 1000000L) {
+                continue;
+            }
+            String shardName = lease.getName().substring(0, lease.getName().lastIndexOf(LEASE_SEPARATOR));
+            try {
+                Files.move(lease.toPath(), new File(new File(this.directory, PENDING), shardName).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                seen.remove(lease.getName());
+                reclaimed++;
+                log.log(Level.WARNING, "Lease {0} expired, shard returned to pending", lease.getName());
+            } catch (NoSuchFileException e) {
+                // Finished or reclaimed by someone else meanwhile
+            }
+        }
+        this.observedLeases.clear();
+        this.observedLeases.putAll(seen);
+        return reclaimed;
+    }
+
+    /**
+     * Runs the songs of a leased shard while a timer keeps the lease alive,
+     * then writes its result, counted from the outcome of every song once the
+     * checks of its commits have ended, and releases the lease. If the lease
+     * is lost midway the shard stops and its result is not written
+     *
+     * @param lease The leased shard file
+     * @return true if the shard finished under this worker's lease
+     * @throws IOException if the shard's result cannot be written
+     */
+    private boolean runShard(final File lease) throws IOException {
+        String name = lease.getName().substring(0, lease.getName().lastIndexOf(LEASE_SEPARATOR));
+        final TagJob shard;
+        try {
+            shard = TagJob.fromJson(name.substring(0, name.length() - SHARD_SUFFIX.length()), Json.parse(new String(Files.readAllBytes(lease.toPath()), StandardCharsets.UTF_8)));
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IllegalArgumentException | ClassCastException e) {
+            log.log(Level.SEVERE, "Unreadable shard " + lease, e);
+            return false;
+        }
+
+        Timer heartbeat = new Timer("lease " + name, true);
+        heartbeat.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                if (!lease.setLastModified(System.currentTimeMillis())) {
+                    shard.cancel();
+                    log.log(Level.WARNING, "Lost lease {0}", lease.getName());
+                    this.cancel();
+                }
+            }
+        }, this.leaseMillis / 4, this.leaseMillis / 4);
+        this.writer.getJournal().begin("Shard " + name + " (" + shard.operation + ")");
+        try {
+            this.writer.getScheduler().run(shard.songs, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    if (shard.isCancelRequested()) {
+                        return;
+                    }
+                    shard.process(writer, songName);
+                }
+            });
+            shard.verify(true);
+        } finally {
+            this.writer.getJournal().end();
+            heartbeat.cancel();
+        }
+        if (shard.isCancelRequested()) {
+            return false;
+        }
+
+        shard.setState(TagJob.State.DONE);
+        File result = new File(new File(this.directory, DONE), shard.id + RESULT_SUFFIX);
+        File temp = new File(this.directory, result.getName() + "." + this.workerId + ".tmp");
+        String status = shard.statusJson();
+        Files.write(temp.toPath(), ("{\"worker\":" + Json.quote(this.workerId) + "," + status.substring(1)).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), result.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(lease.toPath());
+        return true;
+    }
+
+    private static File subdirectory(File directory, String name) throws IOException {
+        File sub = new File(directory, name);
+        if (!sub.isDirectory() && !sub.mkdirs() && !sub.isDirectory()) {
+            throw new IOException("Cannot create " + sub);
+        }
+        return sub;
+    }
+
+    /**
+     * Lists the leases of a shared job directory. Other files in leased/,
+     * such as those left by editors or network file systems, are not leases
+     * and are left alone
+     *
+     * @param directory The shared job directory
+     * @return leases The lease files
+     * @throws IOException if the lease directory cannot be listed
+     */
+    private static File[] leases(File directory) throws IOException {
+        List<File> leases = new ArrayList<>();
+        for (File file : list(new File(directory, LEASED), null)) {
+            String name = file.getName();
+            int separator = name.lastIndexOf(LEASE_SEPARATOR);
+            if (separator > SHARD_SUFFIX.length() && separator < name.length() - 1 && name.startsWith(SHARD_SUFFIX, separator - SHARD_SUFFIX.length())) {
+                leases.add(file);
+            }
+        }
+        return leases.toArray(new File[leases.size()]);
+    }
+
+    private static File[] list(File directory, String suffix) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            if (!directory.exists()) {
+                return new File[0];
+            }
+            throw new IOException("Cannot list " + directory);
+        }
+        if (suffix == null) {
+            return files;
+        }
+        List<File> matching = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(suffix)) {
+                matching.add(file);
+            }
+        }
+        return matching.toArray(new File[matching.size()]);
+    }
+}
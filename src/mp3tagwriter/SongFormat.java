@@ -0,0 +1,161 @@
+package mp3tagwriter;
+
+import java.util.Locale;
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.mp3.MP3File;
+import org.jaudiotagger.tag.FieldDataInvalidException;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.TagField;
+import org.jaudiotagger.tag.flac.FlacTag;
+import org.jaudiotagger.tag.id3.AbstractID3v2Frame;
+import org.jaudiotagger.tag.id3.AbstractID3v2Tag;
+import org.jaudiotagger.tag.id3.ID3v24Tag;
+import org.jaudiotagger.tag.id3.framebody.FrameBodyTXXX;
+import org.jaudiotagger.tag.id3.valuepair.TextEncoding;
+import org.jaudiotagger.tag.mp4.Mp4Tag;
+import org.jaudiotagger.tag.mp4.field.Mp4TagReverseDnsField;
+import org.jaudiotagger.tag.vorbiscomment.VorbisCommentTag;
+
+/**
+ * Formats of song files the tool reads and writes tags of.
+ *
+ * @author Aditya Nivarthi
+ */
+public enum SongFormat {
+
+    /**
+     * MPEG audio with an ID3v2 tag at the start
+     */
+    MP3("mp3"),
+    /**
+     * FLAC with a Vorbis comment block and picture blocks
+     */
+    FLAC("flac"),
+    /**
+     * Ogg Vorbis with a Vorbis comment packet
+     */
+    OGG("ogg"),
+    /**
+     * MPEG-4 audio with an iTunes style ilst atom
+     */
+    MP4("m4a", "m4b", "mp4");
+
+    private static final String ID3_USER_TEXT = "TXXX";
+    private static final String MP4_ISSUER = "com.apple.iTunes";
+    private final String[] extensions;
+
+    private SongFormat(String... extensions) {
+        this.extensions = extensions;
+    }
+
+    /**
+     * Gets the format of a song file from its extension
+     *
+     * @param fileName Name of the file
+     * @return format The format, or null if it is not a song file
+     */
+    public static SongFormat forFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        for (SongFormat format : values()) {
+            for (String e : format.extensions) {
+                if (e.equals(extension)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determines if a file is a song file of a supported format
+     *
+     * @param fileName Name of the file
+     * @return true if tags of the file can be read and written
+     */
+    public static boolean isSong(String fileName) {
+        return forFileName(fileName) != null;
+    }
+
+    /**
+     * Gets the tag of a read song: the ID3v2 tag of an mp3 file, otherwise
+     * the tag of its format
+     *
+     * @param song The song
+     * @return tag The tag, or null if the song has none
+     */
+    public static Tag tagOf(AudioFile song) {
+        return song instanceof MP3File ? ((MP3File) song).getID3v2Tag() : song.getTag();
+    }
+
+    /**
+     * Gets the tag of a read song, giving it an empty one first if it has
+     * none. Mp3 files get an ID3v2.4 tag
+     *
+     * @param song The song
+     * @return tag The tag to edit
+     */
+    public static Tag tagOrCreate(AudioFile song) {
+        if (song instanceof MP3File) {
+            MP3File mp3 = (MP3File) song;
+            if (mp3.getID3v2Tag() == null) {
+                mp3.setID3v2Tag(new ID3v24Tag());
+            }
+            return mp3.getID3v2Tag();
+        }
+        return song.getTagOrCreateAndSetDefault();
+    }
+
+    /**
+     * Gets a field that has no generic key, such as REPLAYGAIN_TRACK_GAIN:
+     * an ID3v2 user text frame, a Vorbis comment, or an iTunes style
+     * reverse DNS atom. Names are matched ignoring case
+     *
+     * @param tag The tag
+     * @param name Name of the field
+     * @return value The value, or an empty string if the field is not set
+     */
+    public static String getCustomField(Tag tag, String name) {
+        if (tag instanceof AbstractID3v2Tag) {
+            for (TagField field : tag.getFields(ID3_USER_TEXT)) {
+                FrameBodyTXXX body = (FrameBodyTXXX) ((AbstractID3v2Frame) field).getBody();
+                if (name.equalsIgnoreCase(body.getDescription())) {
+                    return body.getText();
+                }
+            }
+            return "";
+        }
+        if (tag instanceof Mp4Tag) {
+            return tag.getFirst(Mp4TagReverseDnsField.IDENTIFIER + ":" + MP4_ISSUER + ":" + name.toLowerCase(Locale.ROOT));
+        }
+        return tag.getFirst(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Sets a field that has no generic key, replacing any value it had
+     *
+     * @param tag The tag
+     * @param name Name of the field
+     * @param value The value
+     * @throws FieldDataInvalidException if the tag cannot hold the field
+     */
+    public static void setCustomField(Tag tag, String name, String value) throws FieldDataInvalidException {
+        if (tag instanceof AbstractID3v2Tag) {
+            AbstractID3v2Frame frame = ((AbstractID3v2Tag) tag).createFrame(ID3_USER_TEXT);
+            frame.setBody(new FrameBodyTXXX(TextEncoding.ISO_8859_1, name.toUpperCase(Locale.ROOT), value));
+            tag.setField(frame);
+        } else if (tag instanceof Mp4Tag) {
+            String descriptor = name.toLowerCase(Locale.ROOT);
+            tag.setField(new Mp4TagReverseDnsField(Mp4TagReverseDnsField.IDENTIFIER + ":" + MP4_ISSUER + ":" + descriptor, MP4_ISSUER, descriptor, value));
+        } else if (tag instanceof FlacTag) {
+            tag.setField(((FlacTag) tag).createField(name.toUpperCase(Locale.ROOT), value));
+        } else if (tag instanceof VorbisCommentTag) {
+            tag.setField(((VorbisCommentTag) tag).createField(name.toUpperCase(Locale.ROOT), value));
+        } else {
+            throw new FieldDataInvalidException("Cannot store " + name + " in " + tag.getClass().getSimpleName());
+        }
+    }
+}
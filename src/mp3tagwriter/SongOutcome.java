@@ -0,0 +1,130 @@
+package mp3tagwriter;
+
+import java.io.File;
+
+/**
+ * This class is used to describe how an operation on one song ended: whether
+ * it was saved, failed or skipped, after how many attempts, and why it
+ * failed. A saved song whose commit is still being checked may turn out
+ * failed once the check ends.
+ *
+ * @author Aditya Nivarthi
+ */
+public class SongOutcome {
+
+    /**
+     * Ways an operation on a song can end.
+     */
+    public enum Status {
+
+        /**
+         * The song was written, or needed no change
+         */
+        SAVED,
+        /**
+         * The song could not be written
+         */
+        FAILED,
+        /**
+         * The song was not tried because its batch was cancelled
+         */
+        SKIPPED
+    }
+
+    public final String songName;
+    public final String operation;
+    public final int attempts;
+    public final boolean transientFailure;
+    public volatile Status status;
+    public volatile String reason;
+    private int checks = 0;
+
+    /**
+     * Constructor for SongOutcome.
+     *
+     * @param songName Name of song file
+     * @param operation Name of the operation
+     * @param status How the operation ended
+     * @param attempts Number of times the operation was tried
+     * @param reason Why it failed, or null if it did not
+     * @param transientFailure true if the failure came from the storage and
+     * may go away on its own
+     */
+    public SongOutcome(String songName, String operation, Status status, int attempts, String reason, boolean transientFailure) {
+        this.songName = songName;
+        this.operation = operation;
+        this.status = status;
+        this.attempts = attempts;
+        this.reason = reason;
+        this.transientFailure = transientFailure;
+    }
+
+    /**
+     * Counts a check of one of the song's commits as running
+     */
+    synchronized void checkStarted() {
+        this.checks++;
+    }
+
+    /**
+     * Counts a check of one of the song's commits as ended
+     */
+    synchronized void checkEnded() {
+        if (--this.checks == 0) {
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Determines if checks of the song's commits are still running
+     *
+     * @return true if the status may still change
+     */
+    public synchronized boolean isChecking() {
+        return this.checks > 0;
+    }
+
+    /**
+     * Waits until the checks of the song's commits have ended, after which
+     * the status no longer changes
+     */
+    public synchronized void awaitChecks() {
+        while (this.checks > 0) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Turns a saved song into a failed one, such as when the check of its
+     * commit found its audio changed
+     *
+     * @param reason Why it failed
+     * @return true if the song was counted as saved until now
+     */
+    synchronized boolean markFailed(String reason) {
+        if (this.status != Status.SAVED) {
+            return false;
+        }
+        this.reason = reason;
+        this.status = Status.FAILED;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        String name = new File(this.songName).getName();
+        switch (this.status) {
+            case SAVED:
+                return name + ": saved" + (this.attempts > 1 ? " after " + this.attempts + " attempts" : "");
+            case SKIPPED:
+                return name + ": skipped";
+            default:
+                return name + ": " + this.reason + (this.attempts > 1 ? " (" + this.attempts + " attempts)" : "");
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package mp3tagwriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used for running batch work over very large selections
+ * within a memory target. Songs are fed to the scheduler in bounded windows,
+ * so only a window's worth of tag graphs can be alive at once. The window is
+ * sized from an estimate of heap use per song, learned from the heap growth
+ * seen in earlier windows, so the target is a goal rather than a limit: a
+ * first window, or a window of songs with unusually large tags, may use
+ * more.
+ *
+ * @author Aditya Nivarthi
+ */
+public class StreamingBatch {
+
+    private static final Logger log = Logger.getLogger(StreamingBatch.class.getName());
+    private static final long INITIAL_BYTES_PER_SONG = 4L * 1024 * 1024;
+    private static final int MAX_WINDOW = 4096;
+    private final BatchScheduler scheduler;
+    private final long targetBytes;
+    private volatile long bytesPerSong = INITIAL_BYTES_PER_SONG;
+
+    /**
+     * Result of a finished batch.
+     */
+    public static class Report {
+
+        public final int songs;
+        public final int windows;
+        /**
+         * Highest heap use of the whole JVM seen during the batch, which
+         * includes memory used by anything else running.
+         */
+        public final long peakHeapBytes;
+
+        private Report(int songs, int windows, long peakHeapBytes) {
+            this.songs = songs;
+            this.windows = windows;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        @Override
+        public String toString() {
+            return songs + " songs in " + windows + " windows, peak JVM heap " + (peakHeapBytes / (1024 * 1024)) + " MB";
+        }
+    }
+
+    /**
+     * Constructor for StreamingBatch. Aims to keep live tag data within a
+     * quarter of the maximum heap.
+     *
+     * @param scheduler The scheduler to run each window with
+     */
+    public StreamingBatch(BatchScheduler scheduler) {
+        this(scheduler, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Constructor for StreamingBatch.
+     *
+     * @param scheduler The scheduler to run each window with
+     * @param targetBytes Heap that live tag data in one window should stay
+     * within, by estimate
+     */
+    public StreamingBatch(BatchScheduler scheduler, long targetBytes) {
+        this.scheduler = scheduler;
+        this.targetBytes = Math.max(1, targetBytes);
+    }
+
+    /**
+     * Runs a task on each selected song, one bounded window at a time.
+     *
+     * @param selectedIndices List of selected indexes in window
+     * @param list List of all songs in window
+     * @param task The task to run on each song. It must not keep references
+     * to the tags it reads once it returns
+     * @return report Song count, window count and peak heap of the batch
+     */
+    public Report run(int[] selectedIndices, PathListModel list, BatchScheduler.FileTask task) {
+        return this.run(selectedIndices, list, task, null);
+    }
+
+    /**
+     * Runs a task on each selected song, one bounded window at a time, and
+     * reports to a progress. Once the progress is cancelled, songs not yet
+     * started are skipped
+     *
+     * @param selectedIndices List of selected indexes in window
+     * @param list List of all songs in window
+     * @param task The task to run on each song. It must not keep references
+     * to the tags it reads once it returns
+     * @param progress The progress to report to, or null
+     * @return report Song count, window count and peak heap of the batch
+     */
+    public Report run(int[] selectedIndices, PathListModel list, final BatchScheduler.FileTask task, final BatchProgress progress) {
+        if (progress != null) {
+            progress.addTotal(selectedIndices.length);
+        }
+        final AtomicLong peakHeap = new AtomicLong(usedHeap());
+        int windows = 0;
+        int start = 0;
+        while (start < selectedIndices.length && (progress == null || !progress.isCancelled())) {
+            int size = this.windowSize();
+            int end = Math.min(selectedIndices.length, start + size);
+            List<String> window = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                window.add(list.get(selectedIndices[i]));
+            }
+
+            long before = usedHeap();
+            this.scheduler.run(window, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    if (progress != null && progress.isCancelled()) {
+                        return;
+                    }
+                    if (progress == null) {
+                        task.process(songName);
+                    } else {
+                        try {
+                            task.process(songName);
+                        } catch (RuntimeException e) {
+                            log.log(Level.WARNING, "Batch task failed on " + songName, e);
+                            progress.recordFailure(songName, e.toString());
+                        }
+                        progress.processed(songName);
+                    }
+                    long used = usedHeap();
+                    long peak;
+                    while (used > (peak = peakHeap.get()) && !peakHeap.compareAndSet(peak, used)) {
+                    }
+                }
+            });
+            this.learn(peakHeap.get() - before, window.size());
+            windows++;
+            start = end;
+        }
+        Report report = new Report(selectedIndices.length, windows, peakHeap.get());
+        log.info(report.toString());
+        return report;
+    }
+
+    /**
+     * Number of songs that fit into the target at the current estimate
+     *
+     * @return size The window size
+     */
+    private int windowSize() {
+        long size = this.targetBytes / Math.max(1, this.bytesPerSong);
+        return (int) Math.max(1, Math.min(MAX_WINDOW, size));
+    }
+
+    /**
+     * Updates the per-song estimate from the heap growth seen in a window.
+     * Collection makes the growth an underestimate at times, so the estimate
+     * only moves halfway towards lower readings.
+     *
+     * @param growth Heap growth seen during the window
+     * @param songs Number of songs in the window
+     */
+    private void learn(long growth, int songs) {
+        if (growth <= 0 || songs == 0) {
+            return;
+        }
+        long observed = growth / songs;
+        this.bytesPerSong = observed > this.bytesPerSong ? observed : (this.bytesPerSong + observed) / 2;
+    }
+
+    /**
+     * Heap currently in use
+     *
+     * @return bytes Used heap in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
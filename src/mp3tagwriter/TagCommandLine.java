@@ -0,0 +1,663 @@
+package mp3tagwriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+
+/**
+ * This class is used to run the tool without its window. It handles the
+ * command line modes of TagDriver.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagCommandLine {
+
+    private static final String USAGE = "Usage:\n"
+            + "  audit <directory> <output.csv|output.jsonl>   Report tag size, padding and artwork of every mp3 file\n"
+            + "  duplicates <directory>                        List song files with the same audio\n"
+            + "  export <directory> <sheet.csv|sheet.jsonl>    Write the preserved tags of every song file to a sheet\n"
+            + "  import <sheet.csv|sheet.jsonl>                Apply an edited sheet, committing only changed rows\n"
+            + "  serve <port> [job directory]                  Run tagging jobs submitted over HTTP on 127.0.0.1\n"
+            + "  albums <directory> [fill-totals] [renumber] [unify-art] [unify-genre]\n"
+            + "                                                List albums and run album operations on them\n"
+            + "  shard <shared directory> <job.json> [music directory]\n"
+            + "                                                Split a job into shards for worker processes\n"
+            + "  work <shared directory> [lease seconds]       Run shards until every shard has finished\n"
+            + "  shard-status <shared directory>               Show the progress of a sharded job\n"
+            + "  query <directory> <query>                     List song files whose tags match a query\n"
+            + "  audio-info <directory> [full]                 List length, bitrate and sample rate of every mp3 file\n"
+            + "  replaygain <directory>                        Write ReplayGain track and album gain to every song file\n"
+            + "  path-benchmark [paths]                        Compare the heap used by paths as strings and in a path store\n"
+            + "  durability-benchmark <directory> [files]      Compare tag write throughput of every durability mode\n"
+            + "  fault-test <directory> [failure rate] [files]\n"
+            + "                                                Write copies of songs with injected I/O faults, then retry the quarantine\n";
+
+    private static final int SONGS_PER_SHARD = 500;
+    private static final int DEFAULT_LEASE_SECONDS = 60;
+
+    /**
+     * Runs a command line mode.
+     *
+     * @param args Program arguments, starting with the mode name
+     * @return status 0 on success, otherwise a non-zero exit status
+     */
+    public static int run(String[] args) {
+        try {
+            switch (args[0]) {
+                case "audit":
+                    if (args.length != 3) {
+                        break;
+                    }
+                    return audit(args[1], args[2]);
+                case "duplicates":
+                    if (args.length != 2) {
+                        break;
+                    }
+                    return duplicates(args[1]);
+                case "export":
+                    if (args.length != 3) {
+                        break;
+                    }
+                    return export(args[1], args[2]);
+                case "import":
+                    if (args.length != 2) {
+                        break;
+                    }
+                    return importSheet(args[1]);
+                case "serve":
+                    if (args.length != 2 && args.length != 3) {
+                        break;
+                    }
+                    return serve(Integer.parseInt(args[1]), args.length == 3 ? new File(args[2]) : new File(TagWriter.DATA_DIRECTORY, "jobs"));
+                case "albums":
+                    if (args.length < 2) {
+                        break;
+                    }
+                    return albums(args[1], Arrays.asList(args).subList(2, args.length));
+                case "shard":
+                    if (args.length != 3 && args.length != 4) {
+                        break;
+                    }
+                    return shard(new File(args[1]), args[2], args.length == 4 ? args[3] : null);
+                case "work":
+                    if (args.length != 2 && args.length != 3) {
+                        break;
+                    }
+                    return work(new File(args[1]), args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_LEASE_SECONDS);
+                case "shard-status":
+                    if (args.length != 2) {
+                        break;
+                    }
+                    System.out.println(ShardWorker.status(new File(args[1])));
+                    return 0;
+                case "query":
+                    if (args.length != 3) {
+                        break;
+                    }
+                    return query(args[1], args[2]);
+                case "audio-info":
+                    if (args.length != 2 && (args.length != 3 || !"full".equals(args[2]))) {
+                        break;
+                    }
+                    return audioInfo(args[1], args.length == 3);
+                case "replaygain":
+                    if (args.length != 2) {
+                        break;
+                    }
+                    return replayGain(args[1]);
+                case "path-benchmark":
+                    if (args.length > 2) {
+                        break;
+                    }
+                    return pathBenchmark(args.length == 2 ? Integer.parseInt(args[1]) : 1000000);
+                case "durability-benchmark":
+                    if (args.length != 2 && args.length != 3) {
+                        break;
+                    }
+                    return durabilityBenchmark(args[1], args.length == 3 ? Integer.parseInt(args[2]) : 200);
+                case "fault-test":
+                    if (args.length < 2 || args.length > 4) {
+                        break;
+                    }
+                    return faultTest(args[1], args.length >= 3 ? Double.parseDouble(args[2]) : 0.1, args.length == 4 ? Integer.parseInt(args[3]) : 200);
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (NumberFormatException e) {
+            System.err.println("Not a number: " + e.getMessage());
+        }
+        System.err.print(USAGE);
+        return 2;
+    }
+
+    /**
+     * Audits a library and writes per-file records and a summary
+     *
+     * @param directory The directory to scan
+     * @param output The file to write records to
+     * @return status 0 on success
+     * @throws IOException if the scan or the output fails
+     */
+    private static int audit(String directory, String output) throws IOException {
+        long start = System.nanoTime();
+        LibraryAudit.Summary summary;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(output)), StandardCharsets.UTF_8), 1 << 16)) {
+            summary = new LibraryAudit().run(Paths.get(directory), out, RecordFormat.forFileName(output));
+        }
+        System.out.println(summary);
+        System.out.println("elapsed " + (System.nanoTime() - start) / 1000000 + " ms");
+        return 0;
+    }
+
+    /**
+     * Lists the groups of songs with duplicate audio under a directory, and
+     * the songs that have no audio
+     *
+     * @param directory The directory to scan
+     * @return status 0 on success
+     * @throws IOException if the directory cannot be walked
+     */
+    private static int duplicates(String directory) throws IOException {
+        DuplicateFinder finder = new DuplicateFinder(new BatchScheduler(), new FingerprintCache(new File(TagWriter.DATA_DIRECTORY, "fingerprints.cache")));
+        DuplicateFinder.Result result = finder.find(listSongs(directory));
+        for (DuplicateFinder.Group group : result.groups) {
+            System.out.println(group.exact ? "identical:" : "near-identical:");
+            for (String song : group.songs) {
+                System.out.println("  " + song);
+            }
+        }
+        if (!result.empty.isEmpty()) {
+            System.out.println("no audio:");
+            for (String song : result.empty) {
+                System.out.println("  " + song);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Exports the preserved tags of every song under a directory
+     *
+     * @param directory The directory to scan
+     * @param output The sheet to write
+     * @return status 0 on success
+     * @throws IOException if the scan or the output fails
+     */
+    private static int export(String directory, String output) throws IOException {
+        int rows;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(output)), StandardCharsets.UTF_8), 1 << 16)) {
+            rows = new TagSheet(new TagWriter()).exportTree(Paths.get(directory), out, RecordFormat.forFileName(output));
+        }
+        System.out.println(rows + " rows exported");
+        return 0;
+    }
+
+    /**
+     * Imports an edited sheet
+     *
+     * @param input The sheet to read
+     * @return status 0 if every row was applied, 1 if any failed
+     * @throws IOException if the sheet cannot be read
+     */
+    private static int importSheet(String input) throws IOException {
+        TagSheet.ImportResult result;
+        TagWriter writer = new TagWriter();
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            result = new TagSheet(writer).importSheet(in, RecordFormat.forFileName(input));
+        }
+        writer.awaitVerification();
+        System.out.println(result);
+        int damaged = writer.getVerifier().getMismatched();
+        if (damaged > 0) {
+            System.out.println(damaged + " songs failed audio verification");
+        }
+        return result.failed.get() == 0 && damaged == 0 ? 0 : 1;
+    }
+
+    /**
+     * Runs the job server until the process is stopped
+     *
+     * @param port The port to listen on
+     * @param directory The directory to keep jobs in
+     * @return status 0 once stopped
+     * @throws IOException if the server cannot start
+     */
+    private static int serve(int port, File directory) throws IOException {
+        final JobServer server = new JobServer(new TagWriter(), directory, 2);
+        System.out.println("Serving jobs from " + directory + " on http://127.0.0.1:" + server.start(port) + "/jobs");
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        try {
+            server.await();
+        } catch (InterruptedException e) {
+            server.stop();
+        }
+        return 0;
+    }
+
+    /**
+     * Lists the albums under a directory and runs album operations on all of
+     * them
+     *
+     * @param directory The directory to scan
+     * @param operationNames Names of the operations to run, possibly none
+     * @return status 0 on success, 2 for an unknown operation
+     * @throws IOException if the directory cannot be walked
+     */
+    private static int albums(String directory, List<String> operationNames) throws IOException {
+        Set<AlbumIndex.Operation> operations = EnumSet.noneOf(AlbumIndex.Operation.class);
+        for (String name : operationNames) {
+            switch (name) {
+                case "fill-totals":
+                    operations.add(AlbumIndex.Operation.FILL_TRACK_TOTAL);
+                    break;
+                case "renumber":
+                    operations.add(AlbumIndex.Operation.RENUMBER_TRACKS);
+                    break;
+                case "unify-art":
+                    operations.add(AlbumIndex.Operation.UNIFY_ARTWORK);
+                    break;
+                case "unify-genre":
+                    operations.add(AlbumIndex.Operation.UNIFY_GENRE);
+                    break;
+                default:
+                    System.err.println("Unknown album operation: " + name);
+                    return 2;
+            }
+        }
+        AlbumIndex index = new AlbumIndex(new TagWriter());
+        index.scan(listSongs(directory));
+        Map<AlbumIndex.Key, List<String>> albums = index.getAlbums(null);
+        for (Map.Entry<AlbumIndex.Key, List<String>> album : albums.entrySet()) {
+            System.out.println(album.getKey() + ": " + album.getValue().size() + " songs");
+        }
+        if (!operations.isEmpty()) {
+            System.out.println(index.apply(albums, operations) + " files saved");
+        }
+        return 0;
+    }
+
+    /**
+     * Lists the songs under a directory whose tags match a query
+     *
+     * @param directory The directory to scan
+     * @param text The query
+     * @return status 0 on success, 2 for an invalid query
+     * @throws IOException if the directory cannot be walked
+     */
+    private static int query(String directory, String text) throws IOException {
+        TagQuery query;
+        try {
+            query = TagQuery.parse(text);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid query: " + e.getMessage());
+            return 2;
+        }
+        AlbumIndex index = new AlbumIndex(new TagWriter());
+        List<String> songs = listSongs(directory);
+        index.scan(songs);
+        long start = System.nanoTime();
+        List<String> matches = index.select(query, songs);
+        long elapsed = System.nanoTime() - start;
+        for (String song : matches) {
+            System.out.println(song);
+        }
+        System.err.println(matches.size() + " of " + songs.size() + " songs match, query took " + elapsed / 1000000 + " ms");
+        return 0;
+    }
+
+    /**
+     * Lists the length, bitrate and sample rate of every mp3 file under a
+     * directory, read from the first frame of each
+     *
+     * @param directory The directory to scan
+     * @param fullScan true to count every frame of files without a VBR
+     * header instead of estimating their length
+     * @return status 0 on success
+     * @throws IOException if the directory cannot be listed
+     */
+    private static int audioInfo(String directory, boolean fullScan) throws IOException {
+        AudioAnalyzer analyzer = new AudioAnalyzer(new File(TagWriter.DATA_DIRECTORY, "audio-info.cache"));
+        analyzer.setFullScan(fullScan);
+        List<String> songs = listSongs(directory);
+        long start = System.nanoTime();
+        List<AudioInfo> infos = analyzer.getAll(songs);
+        long elapsed = System.nanoTime() - start;
+        int analyzed = 0;
+        for (int i = 0; i < songs.size(); i++) {
+            AudioInfo info = infos.get(i);
+            if (info != null) {
+                System.out.println(info.formatDuration() + "\t" + info.formatBitrate() + "\t" + info.sampleRate + " Hz\t" + info.source.name().toLowerCase() + "\t" + songs.get(i));
+                analyzed++;
+            }
+        }
+        analyzer.save();
+        System.err.println(analyzed + " of " + songs.size() + " songs analyzed in " + elapsed / 1000000 + " ms");
+        return 0;
+    }
+
+    /**
+     * Writes ReplayGain track and album gain to every song file under a
+     * directory that does not hold valid values already
+     *
+     * @param directory The directory to scan
+     * @return status 0 if every song that needed gain got it, 1 otherwise
+     * @throws IOException if the directory cannot be listed
+     */
+    private static int replayGain(String directory) throws IOException {
+        TagWriter writer = new TagWriter();
+        ReplayGainScanner scanner = new ReplayGainScanner(writer, new AlbumIndex(writer), new FingerprintCache(new File(TagWriter.DATA_DIRECTORY, "fingerprints.cache")), new File(TagWriter.DATA_DIRECTORY, "replaygain.cache"));
+        long start = System.nanoTime();
+        ReplayGainScanner.Result result = scanner.scan(listSongs(directory));
+        System.err.println(result + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        if (result.unmeasured > 0) {
+            System.err.println("Songs that were not measured are M4A songs, which no decoder on the class path reads, or songs too short or too quiet to measure");
+        }
+        return result.unmeasured + result.failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Measures the heap used by library-like paths held as strings and held
+     * in a path store. Paths follow an artist/album/track layout with 12
+     * tracks per album and 4 albums per artist
+     *
+     * @param count Number of paths
+     * @return status 0
+     */
+    private static int pathBenchmark(int count) {
+        String root = new File(System.getProperty("user.home"), "Music").getAbsolutePath() + File.separator;
+        long before = settledHeap();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(benchmarkPath(root, i));
+        }
+        long stringBytes = settledHeap() - before;
+        int kept = strings.size();
+        strings = null;
+
+        before = settledHeap();
+        PathStore store = new PathStore();
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = store.add(benchmarkPath(root, i));
+        }
+        long storeBytes = settledHeap() - before;
+        if (!store.get(ids[count - 1]).equals(benchmarkPath(root, count - 1))) {
+            throw new IllegalStateException("Path store returned a different path");
+        }
+
+        double perMillion = 1000000.0 / Math.max(1, count) / (1024 * 1024);
+        System.out.println(kept + " paths, " + store.getDirectoryCount() + " directories, e.g. " + benchmarkPath(root, 0));
+        System.out.println(String.format("strings:    %.1f MB per million paths", stringBytes * perMillion));
+        System.out.println(String.format("path store: %.1f MB per million paths, including the id list", storeBytes * perMillion));
+        return 0;
+    }
+
+    private static String benchmarkPath(String root, int i) {
+        int album = i / 12;
+        int artist = album / 4;
+        return root + "Artist " + artist + File.separator + "Album " + album + File.separator + String.format("%02d - Track %d.mp3", i % 12 + 1, i);
+    }
+
+    private static long settledHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Writes a title to copies of the songs under a directory once per
+     * durability mode, as a parallel batch, and reports the throughput of
+     * each. Copies and their undo journal are kept in a scratch directory
+     * beside the songs, so they share the songs' file system, and removed
+     * afterwards
+     *
+     * @param directory The directory to take songs from
+     * @param count Most songs to copy
+     * @return status 0 on success, 1 if there are no songs
+     * @throws IOException if the copies cannot be made
+     */
+    private static int durabilityBenchmark(String directory, int count) throws IOException {
+        List<String> sources = listSongs(directory);
+        sources = sources.subList(0, Math.min(count, sources.size()));
+        if (sources.isEmpty()) {
+            System.err.println("No song files under " + directory);
+            return 1;
+        }
+        Path scratch = Files.createTempDirectory(Paths.get(directory), ".durability-benchmark");
+        try {
+            for (Durability mode : Durability.values()) {
+                Path copies = Files.createDirectory(scratch.resolve(mode.name().toLowerCase()));
+                List<String> songs = new ArrayList<>();
+                long bytes = 0;
+                for (int i = 0; i < sources.size(); i++) {
+                    String source = sources.get(i);
+                    Path copy = copies.resolve(i + source.substring(source.lastIndexOf('.')));
+                    Files.copy(Paths.get(source), copy);
+                    songs.add(copy.toString());
+                    bytes += Files.size(copy);
+                }
+                final TagWriter writer = new TagWriter(scratch.resolve("journal-" + mode.name().toLowerCase()).toFile());
+                writer.setDurability(mode);
+                final Map<FieldKey, String> values = new EnumMap<>(FieldKey.class);
+                values.put(FieldKey.TITLE, "Durability benchmark " + mode.name().toLowerCase());
+                final AtomicInteger failed = new AtomicInteger();
+                long start = System.nanoTime();
+                writer.getJournal().begin("Durability benchmark");
+                try {
+                    writer.getScheduler().run(songs, new BatchScheduler.FileTask() {
+                        @Override
+                        public void process(String songName) {
+                            try {
+                                writer.applyFields(songName, values);
+                            } catch (IOException e) {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    });
+                } finally {
+                    writer.getJournal().end();
+                }
+                writer.awaitVerification();
+                double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+                System.out.println(String.format("%-7s %8.1f files/s %8.1f MB/s  %d failed, %d failed verification", mode.name().toLowerCase(), songs.size() / seconds, bytes / seconds / (1024 * 1024), failed.get(), writer.getVerifier().getMismatched()));
+            }
+        } finally {
+            deleteTree(scratch);
+        }
+        return 0;
+    }
+
+    /**
+     * Writes a title to copies of songs while a fault injector fails a share
+     * of reads and writes, reports how the retries, circuit breaker and
+     * quarantine handled it, then retries the quarantine with faults off and
+     * checks that every copy got its title
+     *
+     * @param directory The directory to take songs from
+     * @param failureRate Share of reads and writes to fail
+     * @param count Most songs to copy
+     * @return status 0 if every copy was written in the end, 1 otherwise
+     * @throws IOException if the copies cannot be made
+     */
+    private static int faultTest(String directory, double failureRate, int count) throws IOException {
+        List<String> sources = listSongs(directory);
+        sources = sources.subList(0, Math.min(count, sources.size()));
+        if (sources.isEmpty()) {
+            System.err.println("No song files under " + directory);
+            return 1;
+        }
+        Path scratch = Files.createTempDirectory(Paths.get(directory), ".fault-test");
+        try {
+            Path copies = Files.createDirectory(scratch.resolve("songs"));
+            List<String> songs = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                String source = sources.get(i);
+                Path copy = copies.resolve(i + source.substring(source.lastIndexOf('.')));
+                Files.copy(Paths.get(source), copy);
+                songs.add(copy.toString());
+            }
+            final TagWriter writer = new TagWriter(scratch.resolve("journal").toFile());
+            FaultInjector faults = new FaultInjector(failureRate, 1);
+            writer.setFaultInjector(faults);
+            final Map<FieldKey, String> values = new EnumMap<>(FieldKey.class);
+            values.put(FieldKey.TITLE, "Fault test");
+
+            final BatchProgress progress = new BatchProgress("Fault test");
+            progress.addTotal(songs.size());
+            writer.setProgress(progress);
+            long start = System.nanoTime();
+            writer.getScheduler().run(songs, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    try {
+                        writer.applyFields(songName, values);
+                    } catch (IOException e) {
+                        // Recorded in the progress and quarantined
+                    }
+                    progress.processed(songName);
+                }
+            });
+            writer.awaitVerification();
+            progress.finish();
+            System.out.println(String.format("%s in %.1f s, %d of %d accesses failed", progress, (System.nanoTime() - start) / 1e9, faults.getInjected(), faults.getChecked()));
+            for (String failure : progress.getFailures()) {
+                System.out.println("  " + failure);
+            }
+
+            writer.setFaultInjector(null);
+            BatchProgress retry = new BatchProgress("Retry quarantined");
+            writer.setProgress(retry);
+            int retried = writer.retryQuarantined();
+            writer.awaitVerification();
+            retry.finish();
+            writer.setProgress(null);
+            System.out.println(retry + ", " + retried + " quarantined operations run");
+
+            int missing = 0;
+            for (String songName : songs) {
+                Tag tag = FastTagReader.read(new File(songName));
+                if (tag == null || !"Fault test".equals(tag.getFirst(FieldKey.TITLE))) {
+                    missing++;
+                }
+            }
+            System.out.println((songs.size() - missing) + " of " + songs.size() + " copies written");
+            return missing == 0 ? 0 : 1;
+        } finally {
+            deleteTree(scratch);
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Splits a job into shards in a shared directory
+     *
+     * @param directory The shared job directory
+     * @param jobFile A job document as accepted by the job server
+     * @param musicDirectory If not null, the songs of the job are every song
+     * file under this directory instead of the document's songs
+     * @return status 0 on success
+     * @throws IOException if the job cannot be read or the shards written
+     */
+    private static int shard(File directory, String jobFile, String musicDirectory) throws IOException {
+        Object document = Json.parse(new String(Files.readAllBytes(Paths.get(jobFile)), StandardCharsets.UTF_8));
+        if (musicDirectory != null && document instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>) document;
+            map.put("songs", new ArrayList<Object>(listSongs(musicDirectory)));
+        }
+        TagJob job = TagJob.fromJson(Long.toString(System.currentTimeMillis()), document);
+        int shards = ShardWorker.submit(directory, job, SONGS_PER_SHARD);
+        System.out.println(job.songs.size() + " songs in " + shards + " shards");
+        return 0;
+    }
+
+    /**
+     * Runs shards of a shared directory as one worker process
+     *
+     * @param directory The shared job directory
+     * @param leaseSeconds How long a lease may go untouched before it expires
+     * @return status 0 once every shard has finished
+     * @throws IOException if the job directory cannot be used
+     */
+    private static int work(File directory, int leaseSeconds) throws IOException {
+        try {
+            int shards = new ShardWorker(new TagWriter(), directory, leaseSeconds * 1000L).run();
+            System.out.println(shards + " shards finished by this worker");
+            System.out.println(ShardWorker.status(directory));
+            return 0;
+        } catch (InterruptedException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Lists every song file under a directory
+     *
+     * @param directory The directory to scan
+     * @return songs Absolute names of the song files
+     * @throws IOException if the directory cannot be walked
+     */
+    static List<String> listSongs(String directory) throws IOException {
+        final List<String> songs = new ArrayList<>();
+        Files.walkFileTree(Paths.get(directory), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && SongFormat.isSong(file.getFileName().toString())) {
+                    songs.add(file.toAbsolutePath().toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return songs;
+    }
+}
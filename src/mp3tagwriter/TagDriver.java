@@ -1,28 +1,51 @@
 package mp3tagwriter;
 
+import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import javax.swing.DefaultListModel;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.ButtonGroup;
+import javax.swing.JCheckBox;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JMenu;
+import javax.swing.JMenuBar;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.ListSelectionModel;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
-import org.jaudiotagger.audio.AudioFileIO;
-import org.jaudiotagger.audio.exceptions.CannotReadException;
-import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
-import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
-import org.jaudiotagger.audio.mp3.MP3File;
-import org.jaudiotagger.tag.FieldKey;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 import org.jaudiotagger.tag.KeyNotFoundException;
-import org.jaudiotagger.tag.Tag;
-import org.jaudiotagger.tag.TagException;
 import org.jaudiotagger.tag.datatype.Artwork;
 
 /**
@@ -34,15 +57,33 @@ import org.jaudiotagger.tag.datatype.Artwork;
  */
 public class TagDriver {
 
+    private static final String[] EDIT_FIELDS = {"title", "artist", "featuring", "album", "albumArtist", "composer", "year", "genre", "track"};
     private TagWindow window;
     private TagWriter writer;
+    private AlbumIndex albums;
+    private AudioAnalyzer analyzer;
+    private TagTableModel tagTable;
+    private String lastQuery = "";
+    private TagPrefetcher prefetcher;
+    private final PictureView pictureView = new PictureView(null);
+    private final AtomicLong viewSequence = new AtomicLong();
+    private long shownSequence = 0;
+    private final TaskRuntime tasks = new TaskRuntime();
+    private TagViewModel shownView = null;
+    private Session restored = null;
+    private long restoredSequence = 0;
+    private boolean syncingSelection = false;
 
     /**
-     * Main driver. Creates a new driver object.
+     * Main driver. Creates a new driver object, or runs a command line mode if
+     * one is given.
      *
-     * @param args Program arguments. None are used specifically
+     * @param args Program arguments. See TagCommandLine for the modes
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(TagCommandLine.run(args));
+        }
         TagDriver tagDriver;
         tagDriver = new TagDriver();
     }
@@ -53,6 +94,10 @@ public class TagDriver {
      */
     public TagDriver() {
         this.writer = new TagWriter();
+        this.albums = new AlbumIndex(this.writer);
+        this.analyzer = new AudioAnalyzer(new File(TagWriter.DATA_DIRECTORY, "audio-info.cache"));
+        this.prefetcher = new TagPrefetcher();
+        this.writer.addCommitListener(this.prefetcher);
 
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -60,6 +105,8 @@ public class TagDriver {
         }
 
         this.window = new TagWindow();
+        this.window.FileListViewer.setModel(new PathListModel(this.writer.getPaths()));
+        this.window.AlbumArtPane.add(this.pictureView);
         this.window.setVisible(true);
         this.setAllWindowFields(true);
         final JFileChooser chooser = new JFileChooser();
@@ -73,18 +120,18 @@ public class TagDriver {
             public void actionPerformed(ActionEvent e) {
                 chooser.setMultiSelectionEnabled(true);
                 if (chooser.showOpenDialog(window.FileLabel) == JFileChooser.APPROVE_OPTION) {
-                    new Thread() {
+                    tasks.submit("Add Files", null, new Runnable() {
                         @Override
                         public void run() {
                             for (File f : chooser.getSelectedFiles()) {
-                                DefaultListModel list = (DefaultListModel) window.FileListViewer.getModel();
+                                PathListModel list = (PathListModel) window.FileListViewer.getModel();
                                 if (!list.contains(f.getAbsolutePath())) {
                                     list.addElement(f.getAbsolutePath());
                                 }
                             }
                             window.FileListViewer.repaint();
                         }
-                    }.start();
+                    });
                 }
             }
         });
@@ -95,17 +142,22 @@ public class TagDriver {
         this.window.FileListViewer.addListSelectionListener(new ListSelectionListener() {
             @Override
             public void valueChanged(ListSelectionEvent e) {
-                new Thread() {
+                if (e.getValueIsAdjusting()) {
+                    return;
+                }
+                tasks.submit("Load Tags", TaskRuntime.READS, new Runnable() {
                     @Override
                     public void run() {
-                        DefaultListModel list = (DefaultListModel) window.FileListViewer.getModel();
+                        PathListModel list = (PathListModel) window.FileListViewer.getModel();
                         if (window.FileListViewer.getSelectedIndices().length > 1) {
                             fillInfoOnLoadMultipleFiles(writer.multiSelect);
                         } else if (window.FileListViewer.getSelectedIndices().length == 1) {
-                            fillInfoOnLoad((String) list.get(window.FileListViewer.getSelectedIndices()[0]));
+                            int index = window.FileListViewer.getSelectedIndices()[0];
+                            fillInfoOnLoad(list.get(index));
+                            prefetcher.selected(list, index);
                         }
                     }
-                }.start();
+                });
             }
         });
 
@@ -115,20 +167,29 @@ public class TagDriver {
         this.window.ApplyButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                new Thread() {
+                tasks.submit("Apply", TaskRuntime.WRITES, new Runnable() {
                     @Override
                     public void run() {
                         if (window.FileListViewer.getSelectedIndices().length == 1) {
-                            writer.changeTags(window.FilePathTextField.getText(), window.AlbumTextField.getText(), window.AlbumArtistTextField.getText(), window.ArtistTextField.getText(), window.ComposerTextField.getText(), window.FeaturingTextField.getText(), window.GenreTextField.getText(), window.TitleTextField.getText(), window.TrackNumberTextField.getText(), window.YearTextField.getText());
+                            BatchProgress progress = saveSingle("Apply", window.FilePathTextField.getText(), new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.changeTags(window.FilePathTextField.getText(), window.AlbumTextField.getText(), window.AlbumArtistTextField.getText(), window.ArtistTextField.getText(), window.ComposerTextField.getText(), window.FeaturingTextField.getText(), window.GenreTextField.getText(), window.TitleTextField.getText(), window.TrackNumberTextField.getText(), window.YearTextField.getText());
+                                }
+                            });
                             fillInfoOnLoad(window.FilePathTextField.getText());
-                            JOptionPane.showMessageDialog(null, "File saved!");
+                            showMessage(savedMessage(progress));
                         } else if (window.FileListViewer.getSelectedIndices().length > 1) {
-                            writer.changeMultipleTags(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel(), window.AlbumTextField.getText(), window.AlbumArtistTextField.getText(), window.ArtistTextField.getText(), window.ComposerTextField.getText(), window.FeaturingTextField.getText(), window.GenreTextField.getText(), window.TitleTextField.getText(), window.TrackNumberTextField.getText(), window.YearTextField.getText());
+                            runBatch("Apply", new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.changeMultipleTags(window.FileListViewer.getSelectedIndices(), (PathListModel) window.FileListViewer.getModel(), window.AlbumTextField.getText(), window.AlbumArtistTextField.getText(), window.ArtistTextField.getText(), window.ComposerTextField.getText(), window.FeaturingTextField.getText(), window.GenreTextField.getText(), window.TitleTextField.getText(), window.TrackNumberTextField.getText(), window.YearTextField.getText());
+                                }
+                            });
                             fillInfoOnLoadMultipleFiles(writer.multiSelect);
-                            JOptionPane.showMessageDialog(null, "Files saved!");
                         }
                     }
-                }.start();
+                });
             }
         });
 
@@ -138,15 +199,15 @@ public class TagDriver {
         this.window.RemoveButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                new Thread() {
+                tasks.submit("Remove Files", null, new Runnable() {
                     @Override
                     public void run() {
-                        DefaultListModel list = (DefaultListModel) window.FileListViewer.getModel();
+                        PathListModel list = (PathListModel) window.FileListViewer.getModel();
                         if (list.size() > 0) {
                             clearFileListInfo(writer.emptyString);
                         }
                     }
-                }.start();
+                });
             }
         });
 
@@ -156,20 +217,29 @@ public class TagDriver {
         this.window.TextCaseButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                new Thread() {
+                tasks.submit("Fix Text Case", TaskRuntime.WRITES, new Runnable() {
                     @Override
                     public void run() {
                         if (window.FileListViewer.getSelectedIndices().length == 1) {
-                            writer.fixTextCase(window.FilePathTextField.getText(), window.AlbumTextField.getText(), window.AlbumArtistTextField.getText(), window.ArtistTextField.getText(), window.ComposerTextField.getText(), window.FeaturingTextField.getText(), window.GenreTextField.getText(), window.TitleTextField.getText(), window.TrackNumberTextField.getText(), window.YearTextField.getText());
+                            BatchProgress progress = saveSingle("Fix Text Case", window.FilePathTextField.getText(), new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.fixTextCase(window.FilePathTextField.getText(), window.AlbumTextField.getText(), window.AlbumArtistTextField.getText(), window.ArtistTextField.getText(), window.ComposerTextField.getText(), window.FeaturingTextField.getText(), window.GenreTextField.getText(), window.TitleTextField.getText(), window.TrackNumberTextField.getText(), window.YearTextField.getText());
+                                }
+                            });
                             fillInfoOnLoad(window.FilePathTextField.getText());
-                            JOptionPane.showMessageDialog(null, "File saved!");
+                            showMessage(savedMessage(progress));
                         } else if (window.FileListViewer.getSelectedIndices().length > 1) {
-                            writer.fixTextCaseMultipleFiles(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel());
-                            fillInfoOnLoad(writer.multiSelect);
-                            JOptionPane.showMessageDialog(null, "Files saved!");
+                            runBatch("Fix Text Case", new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.fixTextCaseMultipleFiles(window.FileListViewer.getSelectedIndices(), (PathListModel) window.FileListViewer.getModel());
+                                }
+                            });
+                            fillInfoOnLoadMultipleFiles(writer.multiSelect);
                         }
                     }
-                }.start();
+                });
             }
         });
 
@@ -179,20 +249,29 @@ public class TagDriver {
         this.window.TitleFromFileButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                new Thread() {
+                tasks.submit("Title From File Name", TaskRuntime.WRITES, new Runnable() {
                     @Override
                     public void run() {
                         if (window.FileListViewer.getSelectedIndices().length == 1) {
-                            writer.titleFromFileName(window.FilePathTextField.getText());
+                            BatchProgress progress = saveSingle("Title From File Name", window.FilePathTextField.getText(), new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.titleFromFileName(window.FilePathTextField.getText());
+                                }
+                            });
                             fillInfoOnLoad(window.FilePathTextField.getText());
-                            JOptionPane.showMessageDialog(null, "File saved!");
+                            showMessage(savedMessage(progress));
                         } else if (window.FileListViewer.getSelectedIndices().length > 1) {
-                            writer.titleFromFileNameMultipleFiles(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel());
+                            runBatch("Title From File Name", new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.titleFromFileNameMultipleFiles(window.FileListViewer.getSelectedIndices(), (PathListModel) window.FileListViewer.getModel());
+                                }
+                            });
                             fillInfoOnLoadMultipleFiles(writer.multiSelect);
-                            JOptionPane.showMessageDialog(null, "Files saved!");
                         }
                     }
-                }.start();
+                });
             }
         });
 
@@ -203,23 +282,32 @@ public class TagDriver {
             @Override
             public void actionPerformed(ActionEvent e) {
                 if (chooser.showOpenDialog(window.FileLabel) == JFileChooser.APPROVE_OPTION) {
-                    new Thread() {
+                    tasks.submit("Add Album Art", TaskRuntime.WRITES, new Runnable() {
                         @Override
                         public void run() {
-                            DefaultListModel list = (DefaultListModel) window.FileListViewer.getModel();
+                            final PathListModel list = (PathListModel) window.FileListViewer.getModel();
                             if (!window.FilePathTextField.getText().equals(writer.emptyString) && window.FileListViewer.getSelectedIndices().length == 1) {
-                                File f = chooser.getSelectedFile();
-                                writer.addAlbumArt(window.FilePathTextField.getText(), f);
-                                fillInfoOnLoad((String) list.get(window.FileListViewer.getSelectedIndices()[0]));
-                                JOptionPane.showMessageDialog(null, "File saved!");
+                                final File f = chooser.getSelectedFile();
+                                BatchProgress progress = saveSingle("Add Album Art", window.FilePathTextField.getText(), new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        writer.addAlbumArt(window.FilePathTextField.getText(), f);
+                                    }
+                                });
+                                fillInfoOnLoad(list.get(window.FileListViewer.getSelectedIndices()[0]));
+                                showMessage(savedMessage(progress));
                             } else if (window.FileListViewer.getSelectedIndices().length > 1) {
-                                File f = chooser.getSelectedFile();
-                                writer.addAlbumArtMultipleFiles(window.FileListViewer.getSelectedIndices(), list, f);
+                                final File f = chooser.getSelectedFile();
+                                runBatch("Add Album Art", new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        writer.addAlbumArtMultipleFiles(window.FileListViewer.getSelectedIndices(), list, f);
+                                    }
+                                });
                                 fillInfoOnLoadMultipleFiles(writer.multiSelect);
-                                JOptionPane.showMessageDialog(null, "Files saved!");
                             }
                         }
-                    }.start();
+                    });
                 }
             }
         });
@@ -230,20 +318,28 @@ public class TagDriver {
         this.window.CleanTagsButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                new Thread() {
+                tasks.submit("Clean Extra Tags", TaskRuntime.WRITES, new Runnable() {
                     @Override
                     public void run() {
                         if (window.FileListViewer.getSelectedIndices().length == 1) {
-                            writer.cleanFileTags(window.FilePathTextField.getText());
+                            BatchProgress progress = saveSingle("Clean Extra Tags", window.FilePathTextField.getText(), new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.cleanFileTags(window.FilePathTextField.getText());
+                                }
+                            });
                             fillInfoOnLoad(window.FilePathTextField.getText());
-                            JOptionPane.showMessageDialog(null, "File saved!");
+                            showMessage(savedMessage(progress));
                         } else if (window.FileListViewer.getSelectedIndices().length > 1) {
-                            writer.cleanFileTagsMultipleFiles(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel());
-                            JOptionPane.showMessageDialog(null, "Files saved!");
+                            runBatch("Clean Extra Tags", new Runnable() {
+                                @Override
+                                public void run() {
+                                    writer.cleanFileTagsMultipleFiles(window.FileListViewer.getSelectedIndices(), (PathListModel) window.FileListViewer.getModel());
+                                }
+                            });
                         }
                     }
-                }
-                        .start();
+                });
             }
         }
         );
@@ -256,13 +352,8 @@ public class TagDriver {
             public void actionPerformed(ActionEvent e) {
                 chooser.setMultiSelectionEnabled(false);
                 if (chooser.showOpenDialog(window.FileLabel) == JFileChooser.APPROVE_OPTION) {
-                    new Thread() {
-                        @Override
-                        public void run() {
-                            File from = chooser.getSelectedFile();
-                            window.CopyFromTextField.setText(from.getAbsolutePath());
-                        }
-                    }.start();
+                    File from = chooser.getSelectedFile();
+                    window.CopyFromTextField.setText(from.getAbsolutePath());
                 }
             }
         });
@@ -275,13 +366,8 @@ public class TagDriver {
             public void actionPerformed(ActionEvent e) {
                 chooser.setMultiSelectionEnabled(false);
                 if (chooser.showOpenDialog(window.FileLabel) == JFileChooser.APPROVE_OPTION) {
-                    new Thread() {
-                        @Override
-                        public void run() {
-                            File to = chooser.getSelectedFile();
-                            window.CopyToTextField.setText(to.getAbsolutePath());
-                        }
-                    }.start();
+                    File to = chooser.getSelectedFile();
+                    window.CopyToTextField.setText(to.getAbsolutePath());
                 }
             }
         });
@@ -292,31 +378,855 @@ public class TagDriver {
         this.window.ClearCopyButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                new Thread() {
+                window.CopyFromTextField.setText(writer.emptyString);
+                window.CopyToTextField.setText(writer.emptyString);
+            }
+        });
+
+        /**
+         * Action listener on the "Copy Tag" button.
+         */
+        this.window.CopyTagButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                tasks.submit("Copy Tag", TaskRuntime.WRITES, new Runnable() {
                     @Override
                     public void run() {
-                        window.CopyFromTextField.setText(writer.emptyString);
-                        window.CopyToTextField.setText(writer.emptyString);
+                        BatchProgress progress = saveSingle("Copy Tag", window.CopyToTextField.getText(), new Runnable() {
+                            @Override
+                            public void run() {
+                                writer.copyTagInfo(window.CopyFromTextField.getText(), window.CopyToTextField.getText());
+                            }
+                        });
+                        showMessage(savedMessage(progress));
                     }
-                }.start();
+                });
             }
         });
 
+        this.initTagTable();
+        this.initToolsMenu();
+
+    }
+
+    /**
+     * Creates the "Tag Table" tab, which shows the listed songs with their
+     * tags and selects in the list the songs selected in the table.
+     */
+    private void initTagTable() {
+        final PathListModel list = (PathListModel) window.FileListViewer.getModel();
+        final TagTableModel model = new TagTableModel(list, albums, analyzer, tasks);
+        tagTable = model;
+        writer.addCommitListener(model);
+        final JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.setRowHeight(table.getFontMetrics(table.getFont()).getHeight() + 2);
+        final JTextField filterField = new JTextField();
+        filterField.setToolTipText("Text any column contains, or a query such as genre = \"Rock\" AND year < 2000");
+
         /**
-         * Action listener on the "Copy Tag" button.
+         * Listener syncing the list selection to the table selection.
          */
-        this.window.CopyTagButton.addActionListener(new ActionListener() {
+        final ListSelectionListener tableSelection = new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                if (e.getValueIsAdjusting() || syncingSelection) {
+                    return;
+                }
+                int[] selected = table.getSelectedRows();
+                int[] rows = new int[selected.length];
+                for (int i = 0; i < selected.length; i++) {
+                    rows[i] = model.getListRow(selected[i]);
+                }
+                Arrays.sort(rows);
+                syncingSelection = true;
+                window.FileListViewer.setSelectedIndices(rows);
+                if (rows.length > 0) {
+                    window.FileListViewer.ensureIndexIsVisible(rows[0]);
+                }
+                syncingSelection = false;
+            }
+        };
+        table.getSelectionModel().addListSelectionListener(tableSelection);
+
+        /**
+         * Listener syncing the table selection to the list selection.
+         */
+        final ListSelectionListener listSelection = new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                if (e.getValueIsAdjusting() || syncingSelection) {
+                    return;
+                }
+                syncingSelection = true;
+                ListSelectionModel selection = table.getSelectionModel();
+                selection.setValueIsAdjusting(true);
+                selection.clearSelection();
+                for (int listRow : window.FileListViewer.getSelectedIndices()) {
+                    int row = model.getViewRow(listRow);
+                    if (row >= 0) {
+                        selection.addSelectionInterval(row, row);
+                    }
+                }
+                selection.setValueIsAdjusting(false);
+                syncingSelection = false;
+            }
+        };
+        window.FileListViewer.addListSelectionListener(listSelection);
+
+        /**
+         * Listener selecting the list's selection again once the table rows
+         * were rebuilt. It is told before the table, so the table clearing
+         * its selection does not clear the list's.
+         */
+        model.addTableModelListener(new TableModelListener() {
+            @Override
+            public void tableChanged(TableModelEvent e) {
+                if (e.getType() != TableModelEvent.UPDATE || e.getLastRow() != Integer.MAX_VALUE) {
+                    return;
+                }
+                syncingSelection = true;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        syncingSelection = false;
+                        listSelection.valueChanged(new ListSelectionEvent(window.FileListViewer, 0, 0, false));
+                    }
+                });
+            }
+        });
+
+        /**
+         * Mouse listener sorting by a column when its header is clicked.
+         */
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = table.columnAtPoint(e.getPoint());
+                if (column < 0) {
+                    return;
+                }
+                model.sortBy(table.convertColumnIndexToModel(column));
+                for (int i = 0; i < table.getColumnCount(); i++) {
+                    table.getColumnModel().getColumn(i).setHeaderValue(model.getColumnName(table.convertColumnIndexToModel(i)));
+                }
+                table.getTableHeader().repaint();
+            }
+        });
+
+        /**
+         * Mouse listener showing a song's tags when its row is double clicked.
+         */
+        table.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && table.rowAtPoint(e.getPoint()) >= 0) {
+                    window.TagInfoTab.setSelectedIndex(0);
+                }
+            }
+        });
+
+        /**
+         * Document listener filtering the table as the filter is typed.
+         */
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                model.setFilter(filterField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                model.setFilter(filterField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                model.setFilter(filterField.getText());
+            }
+        });
+
+        JPanel filterPanel = new JPanel(new BorderLayout(4, 0));
+        filterPanel.add(new JLabel("Filter:"), BorderLayout.WEST);
+        filterPanel.add(filterField, BorderLayout.CENTER);
+        JPanel panel = new JPanel(new BorderLayout(0, 4));
+        panel.add(filterPanel, BorderLayout.NORTH);
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        window.TagInfoTab.addTab("Tag Table", panel);
+    }
+
+    /**
+     * Creates the "Tools" menu for operations that do not belong to a single
+     * tab.
+     */
+    private void initToolsMenu() {
+        JMenuBar menuBar = new JMenuBar();
+        JMenu tools = new JMenu("Tools");
+        menuBar.add(tools);
+
+        /**
+         * Action listener on the "Save Session" menu item.
+         */
+        JMenuItem saveSession = new JMenuItem("Save Session...");
+        saveSession.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final JFileChooser sessionChooser = new JFileChooser();
+                if (sessionChooser.showSaveDialog(window) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                PathListModel list = (PathListModel) window.FileListViewer.getModel();
+                final List<String> songs = new ArrayList<>();
+                for (int i = 0; i < list.size(); i++) {
+                    songs.add(list.get(i));
+                }
+                final int[] selected = window.FileListViewer.getSelectedIndices();
+                Map<String, String> edits = pendingEdits();
+                final Session session = new Session(songs, selected, edits.isEmpty() ? null : shownView.filePath, edits);
+                tasks.submit("Save Session", TaskRuntime.READS, new Runnable() {
+                    @Override
+                    public void run() {
+                        albums.scan(songs);
+                        try {
+                            session.save(sessionChooser.getSelectedFile(), albums);
+                            showMessage(songs.size() + " songs saved in session!");
+                        } catch (IOException ex) {
+                            showMessage("Session not saved: " + ex.getMessage());
+                        }
+                    }
+                });
+            }
+        });
+        tools.add(saveSession);
+
+        /**
+         * Action listener on the "Open Session" menu item.
+         */
+        JMenuItem openSession = new JMenuItem("Open Session...");
+        openSession.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final JFileChooser sessionChooser = new JFileChooser();
+                if (sessionChooser.showOpenDialog(window) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                tasks.submit("Open Session", null, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            showSession(Session.load(sessionChooser.getSelectedFile(), albums));
+                        } catch (IOException ex) {
+                            showMessage("Session not opened: " + ex.getMessage());
+                        }
+                    }
+                });
+            }
+        });
+        tools.add(openSession);
+
+        /**
+         * Action listener on the "Undo Last Batch" menu item.
+         */
+        JMenuItem undo = new JMenuItem("Undo Last Batch");
+        undo.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                tasks.submit("Undo Last Batch", TaskRuntime.WRITES, new Runnable() {
+                    @Override
+                    public void run() {
+                        int restored = writer.getJournal().revertLast();
+                        albums.clear();
+                        if (restored < 0) {
+                            showMessage("Nothing to undo!");
+                        } else {
+                            if (window.FileListViewer.getSelectedIndices().length == 1) {
+                                fillInfoOnLoad(window.FilePathTextField.getText());
+                            } else if (window.FileListViewer.getSelectedIndices().length > 1) {
+                                fillInfoOnLoadMultipleFiles(writer.multiSelect);
+                            }
+                            showMessage(restored + " files restored!");
+                        }
+                    }
+                });
+            }
+        });
+        tools.add(undo);
+
+        /**
+         * Action listener on the "Retry Quarantined Files" menu item.
+         */
+        JMenuItem retryQuarantined = new JMenuItem("Retry Quarantined Files");
+        retryQuarantined.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (writer.getQuarantine().size() == 0) {
+                    JOptionPane.showMessageDialog(window, "No quarantined files!");
+                    return;
+                }
+                tasks.submit("Retry Quarantined Files", TaskRuntime.WRITES, new Runnable() {
+                    @Override
+                    public void run() {
+                        runBatch("Retry Quarantined Files", new Runnable() {
+                            @Override
+                            public void run() {
+                                writer.retryQuarantined();
+                            }
+                        });
+                        albums.clear();
+                    }
+                });
+            }
+        });
+        tools.add(retryQuarantined);
+
+        /**
+         * Action listener on the "Recompress Album Art" menu item.
+         */
+        JMenuItem recompress = new JMenuItem("Recompress Album Art...");
+        recompress.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final int[] selectedIndices = window.FileListViewer.getSelectedIndices();
+                if (selectedIndices.length == 0) {
+                    return;
+                }
+                JTextField sizeField = new JTextField("600");
+                JTextField qualityField = new JTextField("0.85");
+                Object[] fields = {"Maximum width/height:", sizeField, "JPEG quality (0-1):", qualityField};
+                if (JOptionPane.showConfirmDialog(window, fields, "Recompress Album Art", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+                    return;
+                }
+                final ArtworkRecompressor recompressor;
+                try {
+                    recompressor = new ArtworkRecompressor(Integer.parseInt(sizeField.getText().trim()), Float.parseFloat(qualityField.getText().trim()));
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(window, "Invalid size or quality!");
+                    return;
+                }
+                tasks.submit("Recompress Album Art", TaskRuntime.WRITES, new Runnable() {
+                    @Override
+                    public void run() {
+                        runBatch("Recompress Album Art", new Runnable() {
+                            @Override
+                            public void run() {
+                                writer.recompressAlbumArtMultipleFiles(selectedIndices, (PathListModel) window.FileListViewer.getModel(), recompressor);
+                            }
+                        });
+                        if (selectedIndices.length == 1) {
+                            fillInfoOnLoad(window.FilePathTextField.getText());
+                        } else {
+                            fillInfoOnLoadMultipleFiles(writer.multiSelect);
+                        }
+                        showMessage(recompressor.getFilesRewritten() + " files saved, " + recompressor.getDistinctImages() + " distinct images, " + (recompressor.getBytesSaved() / 1024) + " KB saved!");
+                    }
+                });
+            }
+        });
+        tools.add(recompress);
+
+        /**
+         * Action listener on the "Find Duplicates" menu item.
+         */
+        JMenuItem duplicates = new JMenuItem("Find Duplicates");
+        duplicates.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                tasks.submit("Find Duplicates", TaskRuntime.READS, new Runnable() {
+                    @Override
+                    public void run() {
+                        findDuplicates();
+                    }
+                });
+            }
+        });
+        tools.add(duplicates);
+
+        /**
+         * Action listener on the "Export Tags" menu item.
+         */
+        JMenuItem export = new JMenuItem("Export Tags...");
+        export.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final JFileChooser sheetChooser = new JFileChooser();
+                if (sheetChooser.showSaveDialog(window) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                final List<String> songs = selectedOrAllSongs();
+                tasks.submit("Export Tags", TaskRuntime.READS, new Runnable() {
+                    @Override
+                    public void run() {
+                        File sheet = sheetChooser.getSelectedFile();
+                        try (Writer out = Files.newBufferedWriter(sheet.toPath(), StandardCharsets.UTF_8)) {
+                            int rows = new TagSheet(writer).export(songs, out, RecordFormat.forFileName(sheet.getName()));
+                            showMessage(rows + " rows exported!");
+                        } catch (IOException ex) {
+                            showMessage("Export failed: " + ex.getMessage());
+                        }
+                    }
+                });
+            }
+        });
+        tools.add(export);
+
+        /**
+         * Action listener on the "Import Tags" menu item.
+         */
+        JMenuItem importTags = new JMenuItem("Import Tags...");
+        importTags.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final JFileChooser sheetChooser = new JFileChooser();
+                if (sheetChooser.showOpenDialog(window) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                tasks.submit("Import Tags", TaskRuntime.WRITES, new Runnable() {
+                    @Override
+                    public void run() {
+                        File sheet = sheetChooser.getSelectedFile();
+                        try (BufferedReader in = Files.newBufferedReader(sheet.toPath(), StandardCharsets.UTF_8)) {
+                            TagSheet.ImportResult result = new TagSheet(writer).importSheet(in, RecordFormat.forFileName(sheet.getName()));
+                            if (window.FileListViewer.getSelectedIndices().length == 1) {
+                                fillInfoOnLoad(window.FilePathTextField.getText());
+                            } else if (window.FileListViewer.getSelectedIndices().length > 1) {
+                                fillInfoOnLoadMultipleFiles(writer.multiSelect);
+                            }
+                            showMessage(result + "!");
+                        } catch (IOException ex) {
+                            showMessage("Import failed: " + ex.getMessage());
+                        }
+                    }
+                });
+            }
+        });
+        tools.add(importTags);
+
+        /**
+         * Action listener on the "Album Operations" menu item.
+         */
+        JMenuItem albumOperations = new JMenuItem("Album Operations...");
+        albumOperations.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JCheckBox fillTotals = new JCheckBox("Fill in track totals", true);
+                JCheckBox renumber = new JCheckBox("Renumber tracks");
+                JCheckBox unifyArt = new JCheckBox("Unify album art");
+                JCheckBox unifyGenre = new JCheckBox("Unify genre");
+                Object[] fields = {"Run on every album of the selected songs:", fillTotals, renumber, unifyArt, unifyGenre};
+                if (JOptionPane.showConfirmDialog(window, fields, "Album Operations", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+                    return;
+                }
+                final Set<AlbumIndex.Operation> operations = EnumSet.noneOf(AlbumIndex.Operation.class);
+                if (fillTotals.isSelected()) {
+                    operations.add(AlbumIndex.Operation.FILL_TRACK_TOTAL);
+                }
+                if (renumber.isSelected()) {
+                    operations.add(AlbumIndex.Operation.RENUMBER_TRACKS);
+                }
+                if (unifyArt.isSelected()) {
+                    operations.add(AlbumIndex.Operation.UNIFY_ARTWORK);
+                }
+                if (unifyGenre.isSelected()) {
+                    operations.add(AlbumIndex.Operation.UNIFY_GENRE);
+                }
+                final List<String> songs = selectedOrAllSongs();
+                tasks.submit("Album Operations", TaskRuntime.WRITES, new Runnable() {
+                    @Override
+                    public void run() {
+                        albums.scan(songs);
+                        Map<AlbumIndex.Key, List<String>> selected = albums.getAlbums(new HashSet<>(songs));
+                        int changed = albums.apply(selected, operations);
+                        if (window.FileListViewer.getSelectedIndices().length == 1) {
+                            fillInfoOnLoad(window.FilePathTextField.getText());
+                        } else if (window.FileListViewer.getSelectedIndices().length > 1) {
+                            fillInfoOnLoadMultipleFiles(writer.multiSelect);
+                        }
+                        showMessage(selected.size() + " albums, " + changed + " files saved!");
+                    }
+                });
+            }
+        });
+        tools.add(albumOperations);
+
+        /**
+         * Action listener on the "Analyze Loudness" menu item.
+         */
+        JMenuItem loudness = new JMenuItem("Analyze Loudness");
+        loudness.setToolTipText("Write ReplayGain track and album gain to the selected songs, or to all songs");
+        loudness.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final List<String> songs = selectedOrAllSongs();
+                tasks.submit("Analyze Loudness", TaskRuntime.WRITES, new Runnable() {
+                    @Override
+                    public void run() {
+                        ReplayGainScanner scanner = new ReplayGainScanner(writer, albums, new FingerprintCache(new File(TagWriter.DATA_DIRECTORY, "fingerprints.cache")), new File(TagWriter.DATA_DIRECTORY, "replaygain.cache"));
+                        ReplayGainScanner.Result result = scanner.scan(songs);
+                        showMessage(result.unmeasured > 0 ? result + " (M4A songs and songs too short or too quiet are not measured)" : result.toString());
+                    }
+                });
+            }
+        });
+        tools.add(loudness);
+
+        /**
+         * Action listener on the "Select By Query" menu item.
+         */
+        JMenuItem selectByQuery = new JMenuItem("Select By Query...");
+        selectByQuery.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String text = JOptionPane.showInputDialog(window, "Select songs matching, for example genre = \"Rock\" AND year < 2000:", lastQuery);
+                if (text == null || text.trim().isEmpty()) {
+                    return;
+                }
+                final TagQuery query;
+                try {
+                    query = TagQuery.parse(text);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(window, "Invalid query: " + ex.getMessage());
+                    return;
+                }
+                lastQuery = text;
+                tasks.submit("Select By Query", TaskRuntime.READS, new Runnable() {
+                    @Override
+                    public void run() {
+                        selectByQuery(query);
+                    }
+                });
+            }
+        });
+        tools.add(selectByQuery);
+
+        /**
+         * Action listener on the "Prefetch Statistics" menu item.
+         */
+        JMenuItem prefetchStatistics = new JMenuItem("Prefetch Statistics");
+        prefetchStatistics.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                new Thread() {
+                JOptionPane.showMessageDialog(window, prefetcher.toString());
+            }
+        });
+        tools.add(prefetchStatistics);
+
+        /**
+         * Action listener on the "Running Tasks" menu item.
+         */
+        JMenuItem runningTasks = new JMenuItem("Running Tasks...");
+        runningTasks.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                new TaskListDialog(window, tasks).setVisible(true);
+            }
+        });
+        tools.add(runningTasks);
+
+        /**
+         * Radio menu items choosing how safely tags are written.
+         */
+        JMenu durability = new JMenu("Durability");
+        ButtonGroup durabilityGroup = new ButtonGroup();
+        for (final Durability mode : Durability.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(mode.name().charAt(0) + mode.name().substring(1).toLowerCase(), mode == writer.getDurability());
+            item.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    writer.setDurability(mode);
+                }
+            });
+            durabilityGroup.add(item);
+            durability.add(item);
+        }
+        tools.add(durability);
+
+        /**
+         * Radio menu items choosing how the audio of written songs is checked.
+         */
+        JMenu verification = new JMenu("Verify Audio");
+        verification.setToolTipText("Hash the audio of each song before and after its tag is written");
+        ButtonGroup verificationGroup = new ButtonGroup();
+        for (final Verification mode : Verification.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(mode.name().charAt(0) + mode.name().substring(1).toLowerCase(), mode == writer.getVerification());
+            item.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    writer.setVerification(mode);
+                }
+            });
+            verificationGroup.add(item);
+            verification.add(item);
+        }
+        tools.add(verification);
+
+        /**
+         * Action listener on the "Full Frame Scan" menu item.
+         */
+        final JCheckBoxMenuItem fullScan = new JCheckBoxMenuItem("Full Frame Scan", analyzer.isFullScan());
+        fullScan.setToolTipText("Count every frame of mp3 files without a VBR header instead of estimating their length");
+        fullScan.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                analyzer.setFullScan(fullScan.isSelected());
+                tagTable.repaintRows();
+            }
+        });
+        tools.add(fullScan);
+
+        window.setJMenuBar(menuBar);
+        window.validate();
+    }
+
+    /**
+     * Runs a batch operation while a non-modal progress dialog follows it.
+     *
+     * @param label Name of the batch
+     * @param work The batch operation
+     */
+    private void runBatch(String label, Runnable work) {
+        final BatchProgress progress = new BatchProgress(label);
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                new BatchProgressDialog(window, progress).setVisible(true);
+            }
+        });
+        this.runTracked(progress, work);
+    }
+
+    /**
+     * Runs an operation on a single song, recording whether it failed.
+     *
+     * @param label Name of the operation
+     * @param songName Name of song file
+     * @param work The operation
+     * @return progress The finished progress of the one song
+     */
+    private BatchProgress saveSingle(String label, String songName, Runnable work) {
+        BatchProgress progress = new BatchProgress(label);
+        progress.addTotal(1);
+        this.runTracked(progress, work);
+        progress.processed(songName);
+        return progress;
+    }
+
+    /**
+     * Runs an operation with the writer reporting to the given progress.
+     *
+     * @param progress The progress to report to
+     * @param work The operation
+     */
+    private void runTracked(BatchProgress progress, Runnable work) {
+        TaskRuntime.Task task = TaskRuntime.current();
+        writer.setProgress(progress);
+        if (task != null) {
+            task.setProgress(progress);
+        }
+        try {
+            work.run();
+        } finally {
+            writer.awaitVerification();
+            if (task != null) {
+                task.setProgress(null);
+            }
+            writer.setProgress(null);
+            progress.finish();
+        }
+    }
+
+    /**
+     * Shows a message without holding up the task that reports it.
+     *
+     * @param message The message to show
+     */
+    private void showMessage(final String message) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JOptionPane.showMessageDialog(window, message);
+            }
+        });
+    }
+
+    /**
+     * Describes the result of a single-song operation.
+     *
+     * @param progress The finished progress of the song
+     * @return message The message to show
+     */
+    private static String savedMessage(BatchProgress progress) {
+        if (progress.getFailed() == 0) {
+            return "File saved!";
+        }
+        return "File not saved: " + progress.getFailures().get(0);
+    }
+
+    /**
+     * Gets the selected songs, or all songs in the list if fewer than two are
+     * selected.
+     *
+     * @return songs Names of song files
+     */
+    private List<String> selectedOrAllSongs() {
+        PathListModel list = (PathListModel) window.FileListViewer.getModel();
+        int[] selectedIndices = window.FileListViewer.getSelectedIndices();
+        List<String> songs = new ArrayList<>();
+        if (selectedIndices.length > 1) {
+            for (int i : selectedIndices) {
+                songs.add(list.get(i));
+            }
+        } else {
+            for (int i = 0; i < list.size(); i++) {
+                songs.add(list.get(i));
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Shows a restored session on the event dispatch thread: the list and
+     * selection at once, and its unapplied edits once the song they were
+     * typed for is shown. The songs are then checked in the background and
+     * only those changed since the session was saved are read again.
+     *
+     * @param session The restored session
+     */
+    private void showSession(final Session session) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                PathListModel list = (PathListModel) window.FileListViewer.getModel();
+                list.clear();
+                list.addAll(session.songs);
+                restored = session.edits.isEmpty() ? null : session;
+                restoredSequence = viewSequence.get();
+                int[] rows = new int[session.selected.length];
+                int count = 0;
+                for (int row : session.selected) {
+                    if (row >= 0 && row < list.size()) {
+                        rows[count++] = row;
+                    }
+                }
+                window.FileListViewer.getSelectionModel().setValueIsAdjusting(true);
+                window.FileListViewer.setSelectedIndices(Arrays.copyOf(rows, count));
+                window.FileListViewer.getSelectionModel().setValueIsAdjusting(false);
+                if (count > 0) {
+                    window.FileListViewer.ensureIndexIsVisible(rows[0]);
+                }
+                tasks.submit("Validate Session", TaskRuntime.READS, new Runnable() {
                     @Override
                     public void run() {
-                        writer.copyTagInfo(window.CopyFromTextField.getText(), window.CopyToTextField.getText());
+                        albums.validate(session.songs);
                     }
-                }.start();
+                });
             }
         });
+    }
+
+    /**
+     * Gets the fields a single song is edited in, in the order of
+     * EDIT_FIELDS.
+     *
+     * @return fields The text fields
+     */
+    private JTextField[] editFields() {
+        return new JTextField[]{window.TitleTextField, window.ArtistTextField, window.FeaturingTextField, window.AlbumTextField, window.AlbumArtistTextField, window.ComposerTextField, window.YearTextField, window.GenreTextField, window.TrackNumberTextField};
+    }
 
+    /**
+     * Gets the texts typed into the fields of the shown song that differ from
+     * its tag. Must be called on the event dispatch thread.
+     *
+     * @return edits Field texts by field name, empty if nothing was edited
+     * or more than one song is shown
+     */
+    private Map<String, String> pendingEdits() {
+        Map<String, String> edits = new LinkedHashMap<>();
+        TagViewModel view = this.shownView;
+        if (view == null || window.FileListViewer.getSelectedIndices().length != 1 || !view.filePath.equals(window.FilePathTextField.getText())) {
+            return edits;
+        }
+        String[] shown = {view.title, view.artist, view.featuring, view.album, view.albumArtist, view.composer, view.year, view.genre, view.track};
+        JTextField[] fields = this.editFields();
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].getText().equals(shown[i])) {
+                edits.put(EDIT_FIELDS[i], fields[i].getText());
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * Selects the songs of the list that match a query, so the batch actions
+     * run on them. Tags come from the album index; only songs it has never
+     * seen are read.
+     *
+     * @param query The query
+     */
+    private void selectByQuery(TagQuery query) {
+        final PathListModel list = (PathListModel) window.FileListViewer.getModel();
+        List<String> songs = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            songs.add(list.get(i));
+        }
+        final Set<String> matches = new HashSet<>(albums.select(query, songs));
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                int[] indices = new int[matches.size()];
+                int count = 0;
+                for (int i = 0; i < list.size() && count < indices.length; i++) {
+                    if (matches.contains(list.get(i))) {
+                        indices[count++] = i;
+                    }
+                }
+                window.FileListViewer.getSelectionModel().setValueIsAdjusting(true);
+                window.FileListViewer.setSelectedIndices(Arrays.copyOf(indices, count));
+                window.FileListViewer.getSelectionModel().setValueIsAdjusting(false);
+                if (count > 0) {
+                    window.FileListViewer.ensureIndexIsVisible(indices[0]);
+                } else {
+                    JOptionPane.showMessageDialog(window, "No songs match!");
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds songs with duplicate audio among the selected songs, or among all
+     * songs if fewer than two are selected. Each group is moved to the top of
+     * the list and all duplicates are selected for batch actions. Songs
+     * without audio are only counted, not grouped.
+     */
+    private void findDuplicates() {
+        final PathListModel list = (PathListModel) window.FileListViewer.getModel();
+        List<String> songs = this.selectedOrAllSongs();
+        DuplicateFinder finder = new DuplicateFinder(writer.getScheduler(), new FingerprintCache(new File(TagWriter.DATA_DIRECTORY, "fingerprints.cache")));
+        DuplicateFinder.Result result = finder.find(songs);
+        final List<DuplicateFinder.Group> groups = result.groups;
+        final int emptySongs = result.empty.size();
+        int exact = 0;
+        for (DuplicateFinder.Group group : groups) {
+            exact += group.exact ? 1 : 0;
+        }
+        final int exactGroups = exact;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                int position = 0;
+                for (DuplicateFinder.Group group : groups) {
+                    for (String song : group.songs) {
+                        list.removeElement(song);
+                        list.add(position++, song);
+                    }
+                }
+                window.FileListViewer.clearSelection();
+                if (position > 0) {
+                    window.FileListViewer.setSelectionInterval(0, position - 1);
+                }
+                JOptionPane.showMessageDialog(null, groups.size() + " duplicate groups found (" + exactGroups + " identical, " + (groups.size() - exactGroups) + " near-identical)!" + (emptySongs > 0 ? "\n" + emptySongs + " files have no audio." : ""));
+            }
+        });
     }
 
     /**
@@ -346,58 +1256,25 @@ public class TagDriver {
      */
     public synchronized void clearFileListInfo(String filler) {
         try {
-            DefaultListModel list = (DefaultListModel) window.FileListViewer.getModel();
-            ArrayList<Object> objs = new ArrayList<>();
-
-            for (int i : window.FileListViewer.getSelectedIndices()) {
-                objs.add(list.get(i));
-            }
-
-            for (Object obj : objs) {
-                list.removeElement(obj);
-            }
+            PathListModel list = (PathListModel) window.FileListViewer.getModel();
+            int[] selectedIndices = window.FileListViewer.getSelectedIndices();
+            window.FileListViewer.clearSelection();
+            list.removeRows(selectedIndices);
 
             clearFieldInfo(filler);
-            this.removeArtwork();
-            window.repaint();
 
         } catch (Exception e) {
         }
     }
 
-    /**
-     * Clears text fields with a filler when multiple files are selected. Used
-     * to clear text before updating with new tag information.
-     *
-     * @param filler The filler text to insert
-     */
-    public synchronized void clearMultipleFieldInfos(String filler) {
-        window.FileNameTextField.setText(filler);
-        window.FilePathTextField.setText(filler);
-        window.TitleTextField.setText(filler);
-        window.FeaturingTextField.setText(filler);
-        window.TrackNumberTextField.setText(filler);
-    }
-
     /**
      * Clears text fields with a filler when files are selected. Used to clear
      * text before updating with new tag information.
      *
      * @param filler The filler text to insert
      */
-    public synchronized void clearFieldInfo(String filler) {
-        window.FileNameTextField.setText(filler);
-        window.FilePathTextField.setText(filler);
-        window.TitleTextField.setText(filler);
-        window.ArtistTextField.setText(filler);
-        window.FeaturingTextField.setText(filler);
-        window.AlbumArtistTextField.setText(filler);
-        window.AlbumTextField.setText(filler);
-        window.ComposerTextField.setText(filler);
-        window.YearTextField.setText(filler);
-        window.GenreTextField.setText(filler);
-        window.TrackNumberTextField.setText(filler);
-        this.removeArtwork();
+    public void clearFieldInfo(String filler) {
+        this.showView(TagViewModel.filled(filler), this.viewSequence.incrementAndGet());
     }
 
     /**
@@ -405,79 +1282,113 @@ public class TagDriver {
      *
      * @param art The artwork to paint
      */
-    public synchronized void paintArtwork(Artwork art) {
+    public void paintArtwork(Artwork art) {
         try {
-            if (art == null) {
-                this.removeArtwork();
-            } else {
-                BufferedImage albumArt = art.getImage();
-                PictureView pView = new PictureView(albumArt);
-                pView.setSize(window.AlbumArtPane.getWidth(), window.AlbumArtPane.getHeight());
-                window.AlbumArtPane.add(pView);
-            }
-            window.AlbumArtPane.repaint();
-            window.repaint();
+            this.paintArtwork(art == null ? null : art.getImage());
         } catch (IOException e) {
         }
     }
 
+    /**
+     * Paints an album artwork image in the corresponding panel, reusing the
+     * panel's one PictureView.
+     *
+     * @param albumArt The image to paint, or null to remove the artwork
+     */
+    public void paintArtwork(final BufferedImage albumArt) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                pictureView.setSize(window.AlbumArtPane.getWidth(), window.AlbumArtPane.getHeight());
+                pictureView.setImage(albumArt);
+            }
+        });
+    }
+
     /**
      * Remove the artwork from the panel.
      */
-    public synchronized void removeArtwork() {
-        this.window.AlbumArtPane.removeAll();
+    public void removeArtwork() {
+        this.paintArtwork((BufferedImage) null);
     }
 
     /**
-     * Fills the tag information from a selected file.
+     * Fills the tag information from a selected file, using the prefetched
+     * tag and thumbnail when there are current ones. The file is read on the
+     * calling thread and the fields are set in one step on the event dispatch
+     * thread.
      *
      * @param songName The name of the song file
      */
-    public synchronized void fillInfoOnLoad(String songName) {
+    public void fillInfoOnLoad(String songName) {
+        long sequence = this.viewSequence.incrementAndGet();
         try {
-            this.setAllWindowFields(true);
-            File songFile = new File(songName);
-            MP3File song = (MP3File) AudioFileIO.read(songFile);
-            Tag tag = song.getID3v2Tag();
-
-            window.FilePathTextField.setText(songFile.getAbsolutePath());
-            window.FileNameTextField.setText(songFile.getAbsolutePath().substring(songFile.getAbsolutePath().lastIndexOf("\\") + 1));
-            window.TitleTextField.setText(tag.getFirst(FieldKey.TITLE));
-            this.removeArtwork();
-
-            window.ArtistTextField.setText(writer.getArtist(tag));
-            window.FeaturingTextField.setText(writer.getFeaturedArtist(tag));
-            window.AlbumTextField.setText(tag.getFirst(FieldKey.ALBUM));
-            window.AlbumArtistTextField.setText(tag.getFirst(FieldKey.ALBUM_ARTIST));
-            window.ComposerTextField.setText(tag.getFirst(FieldKey.COMPOSER));
-            window.YearTextField.setText(tag.getFirst(FieldKey.YEAR));
-            window.GenreTextField.setText(tag.getFirst(FieldKey.GENRE));
-            window.TrackNumberTextField.setText(tag.getFirst(FieldKey.TRACK));
-
-            this.paintArtwork(tag.getFirstArtwork());
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
+            this.showView(TagViewModel.of(this.prefetcher.get(songName), writer), sequence);
+        } catch (IOException | KeyNotFoundException e) {
         }
     }
 
     /**
-     * Fills the tag information from selected files.
+     * Fills the tag information from selected files. The files are read on
+     * the calling thread and the fields are set in one step on the event
+     * dispatch thread.
      *
      * @param filler The filler to use for uncommon tag information across the
      * files
      */
-    public synchronized void fillInfoOnLoadMultipleFiles(String filler) {
+    public void fillInfoOnLoadMultipleFiles(String filler) {
+        long sequence = this.viewSequence.incrementAndGet();
         try {
-            this.clearMultipleFieldInfos(filler);
-            window.AlbumTextField.setText(writer.getSimilarAlbum(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel()));
-            window.AlbumArtistTextField.setText(writer.getSimilarAlbumArtist(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel()));
-            window.ArtistTextField.setText(writer.getSimilarArtist(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel()));
-            window.ComposerTextField.setText(writer.getSimilarComposer(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel()));
-            window.GenreTextField.setText(writer.getSimilarGenre(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel()));
-            window.YearTextField.setText(writer.getSimilarYear(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel()));
-
-            Artwork albumArt = writer.getSimilarAlbumArt(window.FileListViewer.getSelectedIndices(), (DefaultListModel) window.FileListViewer.getModel());
-            this.paintArtwork(albumArt);
+            TagSummary summary = writer.summarize(window.FileListViewer.getSelectedIndices(), (PathListModel) window.FileListViewer.getModel());
+            this.showView(TagViewModel.of(summary, writer, filler), sequence);
         } catch (Exception e) {
         }
     }
+
+    /**
+     * Shows a view in the window's fields in one batch on the event dispatch
+     * thread. A view is dropped if a newer one was requested meanwhile, so a
+     * slow load cannot overwrite a later selection.
+     *
+     * @param view The view to show
+     * @param sequence The number the view was requested under
+     */
+    private void showView(final TagViewModel view, final long sequence) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (sequence < shownSequence) {
+                    return;
+                }
+                shownSequence = sequence;
+                setAllWindowFields(true);
+                window.FilePathTextField.setText(view.filePath);
+                window.FileNameTextField.setText(view.fileName);
+                window.TitleTextField.setText(view.title);
+                window.ArtistTextField.setText(view.artist);
+                window.FeaturingTextField.setText(view.featuring);
+                window.AlbumTextField.setText(view.album);
+                window.AlbumArtistTextField.setText(view.albumArtist);
+                window.ComposerTextField.setText(view.composer);
+                window.YearTextField.setText(view.year);
+                window.GenreTextField.setText(view.genre);
+                window.TrackNumberTextField.setText(view.track);
+                pictureView.setSize(window.AlbumArtPane.getWidth(), window.AlbumArtPane.getHeight());
+                pictureView.setImage(view.artwork);
+                shownView = view;
+                if (restored != null && view.filePath.equals(restored.editedSong)) {
+                    JTextField[] fields = editFields();
+                    for (int i = 0; i < fields.length; i++) {
+                        String edit = restored.edits.get(EDIT_FIELDS[i]);
+                        if (edit != null) {
+                            fields[i].setText(edit);
+                        }
+                    }
+                    restored = null;
+                } else if (sequence > restoredSequence) {
+                    restored = null;
+                }
+            }
+        });
+    }
 }
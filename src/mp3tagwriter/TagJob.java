@@ -0,0 +1,328 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * This class is used to describe a tagging job: one TagWriter operation
+ * applied to a list of songs, with its progress.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagJob {
+
+    /**
+     * Names of the operations a job can run.
+     */
+    public static final List<String> OPERATIONS = Collections.unmodifiableList(java.util.Arrays.asList("set", "clean", "art", "copy", "case", "title"));
+
+    /**
+     * Lifecycle of a job.
+     */
+    public enum State {
+
+        QUEUED, RUNNING, DONE, CANCELLED;
+
+        /**
+         * Determines if a job in this state will not run again
+         *
+         * @return true for finished states
+         */
+        public boolean isFinal() {
+            return this == DONE || this == CANCELLED;
+        }
+    }
+
+    private static final int MAX_FAILURES = 100;
+    public final String id;
+    public final String operation;
+    public final Map<String, String> params;
+    public final List<String> songs;
+    public final AtomicInteger done = new AtomicInteger();
+    public final AtomicInteger failed = new AtomicInteger();
+    private final List<String> failures = new ArrayList<>();
+    private final List<SongOutcome> checking = new ArrayList<>();
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelRequested = false;
+
+    /**
+     * Constructor for TagJob.
+     *
+     * @param id Unique id of the job
+     * @param operation One of OPERATIONS
+     * @param params Parameters of the operation
+     * @param songs Names of the song files to run on
+     */
+    public TagJob(String id, String operation, Map<String, String> params, List<String> songs) {
+        if (!OPERATIONS.contains(operation)) {
+            throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+        if ("art".equals(operation) && params.get("artwork") == null) {
+            throw new IllegalArgumentException("Operation art needs an artwork parameter");
+        }
+        if ("copy".equals(operation) && params.get("from") == null) {
+            throw new IllegalArgumentException("Operation copy needs a from parameter");
+        }
+        if ("set".equals(operation)) {
+            for (String field : params.keySet()) {
+                fieldKey(field);
+            }
+        }
+        this.id = id;
+        this.operation = operation;
+        this.params = Collections.unmodifiableMap(new LinkedHashMap<>(params));
+        this.songs = Collections.unmodifiableList(new ArrayList<>(songs));
+    }
+
+    /**
+     * Builds a job from a submitted JSON document of the form
+     * {"operation": "...", "params": {...}, "songs": ["...", ...]}
+     *
+     * @param id Unique id of the job
+     * @param document The parsed JSON document
+     * @return job The job
+     * @throws IllegalArgumentException if the document is not a valid job
+     */
+    public static TagJob fromJson(String id, Object document) {
+        if (!(document instanceof Map)) {
+            throw new IllegalArgumentException("Job must be an object");
+        }
+        Map<?, ?> map = (Map<?, ?>) document;
+        Map<String, String> params = new LinkedHashMap<>();
+        if (map.get("params") instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) map.get("params")).entrySet()) {
+                if (e.getValue() instanceof Map || e.getValue() instanceof List) {
+                    throw new IllegalArgumentException("Parameter " + e.getKey() + " must be a plain value");
+                }
+                params.put((String) e.getKey(), (String) e.getValue());
+            }
+        }
+        List<String> songs = new ArrayList<>();
+        if (!(map.get("songs") instanceof List)) {
+            throw new IllegalArgumentException("Job needs a songs array");
+        }
+        for (Object song : (List<?>) map.get("songs")) {
+            if (!(song instanceof String)) {
+                throw new IllegalArgumentException("Songs must be strings");
+            }
+            songs.add((String) song);
+        }
+        return new TagJob(id, (String) map.get("operation"), params, songs);
+    }
+
+    /**
+     * Runs the job's operation on one song
+     *
+     * @param writer The writer to run the operation with
+     * @param songName Name of song file
+     * @return outcome How the operation ended
+     */
+    public SongOutcome apply(TagWriter writer, String songName) {
+        switch (this.operation) {
+            case "set":
+                Map<FieldKey, String> values = new EnumMap<>(FieldKey.class);
+                for (Map.Entry<String, String> e : this.params.entrySet()) {
+                    values.put(fieldKey(e.getKey()), e.getValue());
+                }
+                return writer.setFields(songName, values);
+            case "clean":
+                return writer.cleanFileTags(songName);
+            case "art":
+                return writer.addAlbumArt(songName, new File(this.params.get("artwork")));
+            case "copy":
+                return writer.copyTagInfo(this.params.get("from"), songName);
+            case "case":
+                return writer.fixTextCase(songName);
+            case "title":
+                return writer.titleFromFileName(songName);
+            default:
+                throw new IllegalStateException("Unknown operation: " + this.operation);
+        }
+    }
+
+    /**
+     * Runs the job's operation on one song and counts the song as done or
+     * failed from how the operation ended. A song that was skipped because
+     * its batch was cancelled counts as failed. A saved song whose commit is
+     * still being checked is kept until verify is called
+     *
+     * @param writer The writer to run the operation with
+     * @param songName Name of song file
+     * @return outcome How the operation ended
+     */
+    public SongOutcome process(TagWriter writer, String songName) {
+        SongOutcome outcome;
+        if (!new File(songName).isFile()) {
+            outcome = new SongOutcome(songName, this.operation, SongOutcome.Status.FAILED, 0, "No such file", false);
+        } else {
+            try {
+                outcome = this.apply(writer, songName);
+            } catch (RuntimeException e) {
+                outcome = new SongOutcome(songName, this.operation, SongOutcome.Status.FAILED, 1, String.valueOf(e.getMessage()), false);
+            }
+        }
+        boolean pending = outcome.isChecking();
+        if (outcome.status == SongOutcome.Status.SAVED) {
+            this.done.incrementAndGet();
+            if (pending) {
+                synchronized (this.checking) {
+                    this.checking.add(outcome);
+                }
+            }
+        } else {
+            this.recordFailure(songName, outcome.status == SongOutcome.Status.SKIPPED ? "Skipped" : outcome.reason);
+        }
+        return outcome;
+    }
+
+    /**
+     * Takes in the checks of the songs counted as done so far, counting the
+     * songs whose audio was changed by their commit as failed instead.
+     * Called before the job's counts are written out
+     *
+     * @param wait true to wait for checks still running, false to leave
+     * their songs for a later call
+     */
+    public void verify(boolean wait) {
+        List<SongOutcome> outcomes = new ArrayList<>();
+        synchronized (this.checking) {
+            for (Iterator<SongOutcome> it = this.checking.iterator(); it.hasNext();) {
+                SongOutcome outcome = it.next();
+                if (wait || !outcome.isChecking()) {
+                    outcomes.add(outcome);
+                    it.remove();
+                }
+            }
+        }
+        for (SongOutcome outcome : outcomes) {
+            outcome.awaitChecks();
+            if (outcome.status == SongOutcome.Status.FAILED) {
+                this.done.decrementAndGet();
+                this.recordFailure(outcome.songName, outcome.reason);
+            }
+        }
+    }
+
+    /**
+     * Gets the tag field a set parameter names
+     *
+     * @param field Lowercase field name, as in exported sheets
+     * @return key The field
+     * @throws IllegalArgumentException if the field cannot be set by a job
+     */
+    private static FieldKey fieldKey(String field) {
+        try {
+            FieldKey key = FieldKey.valueOf(field.toUpperCase());
+            if (TagWriter.PRESERVED_FIELDS.contains(key) && key != FieldKey.COVER_ART) {
+                return key;
+            }
+        } catch (IllegalArgumentException e) {
+        }
+        throw new IllegalArgumentException("Field cannot be set: " + field);
+    }
+
+    /**
+     * Gets the state of the job
+     *
+     * @return state The current state
+     */
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * Moves the job to a new state
+     *
+     * @param state The new state
+     */
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Asks a queued or running job to stop. Songs already written stay
+     * written
+     */
+    public void cancel() {
+        this.cancelRequested = true;
+    }
+
+    /**
+     * Determines if the job was asked to stop
+     *
+     * @return true if cancel was called
+     */
+    public boolean isCancelRequested() {
+        return this.cancelRequested;
+    }
+
+    /**
+     * Records a song the operation failed on. Only the first MAX_FAILURES
+     * are kept for the job's results
+     *
+     * @param songName Name of song file
+     * @param message Why it failed
+     */
+    public void recordFailure(String songName, String message) {
+        this.failed.incrementAndGet();
+        synchronized (this.failures) {
+            if (this.failures.size() < MAX_FAILURES) {
+                this.failures.add(songName + ": " + message);
+            }
+        }
+    }
+
+    /**
+     * Describes the job as JSON, without its song list
+     *
+     * @return json The job status
+     */
+    public String statusJson() {
+        StringBuilder params = new StringBuilder("{");
+        for (Map.Entry<String, String> e : this.params.entrySet()) {
+            if (params.length() > 1) {
+                params.append(',');
+            }
+            params.append(Json.quote(e.getKey())).append(':').append(Json.quote(e.getValue()));
+        }
+        params.append('}');
+        StringBuilder failures = new StringBuilder("[");
+        synchronized (this.failures) {
+            for (String failure : this.failures) {
+                failures.append(failures.length() > 1 ? "," : "").append(Json.quote(failure));
+            }
+        }
+        failures.append(']');
+        return "{\"id\":" + Json.quote(this.id) + ",\"operation\":" + Json.quote(this.operation) + ",\"params\":" + params
+                + ",\"state\":" + Json.quote(this.state.name()) + ",\"cancel_requested\":" + this.cancelRequested
+                + ",\"total\":" + this.songs.size() + ",\"done\":" + this.done.get() + ",\"failed\":" + this.failed.get() + ",\"failures\":" + failures + "}";
+    }
+
+    /**
+     * Describes the job as JSON, including its song list, as it is submitted
+     * and persisted
+     *
+     * @return json The job definition
+     */
+    public String definitionJson() {
+        StringBuilder json = new StringBuilder("{\"operation\":").append(Json.quote(this.operation)).append(",\"params\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> e : this.params.entrySet()) {
+            json.append(first ? "" : ",").append(Json.quote(e.getKey())).append(':').append(Json.quote(e.getValue()));
+            first = false;
+        }
+        json.append("},\"songs\":[");
+        for (int i = 0; i < this.songs.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(Json.quote(this.songs.get(i)));
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,277 @@
+package mp3tagwriter;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.swing.ListModel;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.datatype.Artwork;
+
+/**
+ * This class is used to make stepping through the file list feel instant.
+ * After each selection it loads the tags and artwork thumbnails of the rows
+ * around it on a low priority thread, into a small cache that the window
+ * reads from. Loads still queued when the direction of travel changes are
+ * dropped.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagPrefetcher implements TagWriter.CommitListener {
+
+    private static final Logger log = Logger.getLogger(TagPrefetcher.class.getName());
+    private final int radius;
+    private final int capacity;
+    private final int thumbnailSize;
+    private final Map<String, Loaded> cache;
+    private final ThreadPoolExecutor loader;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private int lastIndex = -1;
+    private int direction = 1;
+
+    /**
+     * The tag and artwork thumbnail of one song, as loaded.
+     */
+    public static class Loaded {
+
+        public final String songName;
+        public final Tag tag;
+        /**
+         * The first artwork scaled to fit the thumbnail size, or null if
+         * there is none or it cannot be decoded
+         */
+        public final BufferedImage thumbnail;
+        private final long modified;
+        private final long length;
+
+        private Loaded(String songName, Tag tag, BufferedImage thumbnail, long modified, long length) {
+            this.songName = songName;
+            this.tag = tag;
+            this.thumbnail = thumbnail;
+            this.modified = modified;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Constructor for TagPrefetcher. Prefetches four rows on each side and
+     * keeps up to 32 songs with 200 pixel thumbnails.
+     */
+    public TagPrefetcher() {
+        this(4, 32, 200);
+    }
+
+    /**
+     * Constructor for TagPrefetcher.
+     *
+     * @param radius Number of rows to prefetch on each side of the selection
+     * @param capacity Number of songs to keep
+     * @param thumbnailSize Largest width or height of cached thumbnails
+     */
+    public TagPrefetcher(int radius, final int capacity, int thumbnailSize) {
+        this.radius = radius;
+        this.capacity = Math.max(capacity, radius * 2 + 1);
+        this.thumbnailSize = thumbnailSize;
+        this.cache = new LinkedHashMap<String, Loaded>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Loaded> eldest) {
+                return this.size() > TagPrefetcher.this.capacity;
+            }
+        };
+        this.loader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Tag prefetcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Gets the tag and thumbnail of a song, from the cache if it is still
+     * current, otherwise by reading the file now
+     *
+     * @param songName Name of song file
+     * @return loaded The loaded song
+     * @throws IOException if the song cannot be read
+     */
+    public Loaded get(String songName) throws IOException {
+        Loaded loaded = this.cached(songName);
+        if (loaded != null) {
+            this.hits.incrementAndGet();
+            return loaded;
+        }
+        this.misses.incrementAndGet();
+        return this.load(songName);
+    }
+
+    /**
+     * Tells the prefetcher a row was selected, queueing loads of the rows
+     * around it, nearest first and ahead of the direction of travel first. If
+     * the direction changed, loads still queued are dropped
+     *
+     * @param list The list of songs
+     * @param index The selected row
+     */
+    public void selected(final ListModel<String> list, int index) {
+        final int gen;
+        final int ahead;
+        synchronized (this) {
+            int step = this.lastIndex < 0 || index == this.lastIndex ? this.direction : Integer.signum(index - this.lastIndex);
+            if (step != this.direction) {
+                this.loader.getQueue().clear();
+                this.direction = step;
+            }
+            this.lastIndex = index;
+            gen = this.generation.incrementAndGet();
+            ahead = this.direction;
+        }
+        for (int distance = 1; distance <= this.radius; distance++) {
+            for (int side : new int[]{ahead, -ahead}) {
+                final int row = index + side * distance;
+                if (row < 0 || row >= list.getSize()) {
+                    continue;
+                }
+                final String songName = list.getElementAt(row);
+                this.loader.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation.get() != gen || cached(songName) != null) {
+                            return;
+                        }
+                        try {
+                            load(songName);
+                            prefetched.incrementAndGet();
+                        } catch (IOException e) {
+                            log.log(Level.FINE, "Could not prefetch " + songName, e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Drops a committed song from the cache
+     *
+     * @param songFile The song file
+     * @param tag The tag as written
+     */
+    @Override
+    public synchronized void committed(File songFile, Tag tag) {
+        this.cache.remove(songFile.getPath());
+        this.cache.remove(songFile.getAbsolutePath());
+    }
+
+    /**
+     * Gets the share of requests served from the cache
+     *
+     * @return rate Hits divided by requests, or 0 if there were none
+     */
+    public double getHitRate() {
+        long total = this.hits.get() + this.misses.get();
+        return total == 0 ? 0 : (double) this.hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.0f%% hit rate), %d songs prefetched", this.hits.get(), this.misses.get(), this.getHitRate() * 100, this.prefetched.get());
+    }
+
+    /**
+     * Gets a cached song if its file has not changed since it was loaded
+     *
+     * @param songName Name of song file
+     * @return loaded The cached song, or null
+     */
+    private Loaded cached(String songName) {
+        Loaded loaded;
+        synchronized (this) {
+            loaded = this.cache.get(songName);
+        }
+        if (loaded == null) {
+            return null;
+        }
+        File songFile = new File(songName);
+        if (songFile.lastModified() != loaded.modified || songFile.length() != loaded.length) {
+            synchronized (this) {
+                this.cache.remove(songName);
+            }
+            return null;
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads a song's tag and decodes its thumbnail, and caches them
+     *
+     * @param songName Name of song file
+     * @return loaded The loaded song
+     * @throws IOException if the song cannot be read
+     */
+    private Loaded load(String songName) throws IOException {
+        File songFile = new File(songName);
+        long modified = songFile.lastModified();
+        long length = songFile.length();
+        Tag tag = FastTagReader.read(songFile);
+        if (tag == null) {
+            throw new IOException("No tag in " + songName);
+        }
+        Loaded loaded = new Loaded(songName, tag, this.thumbnail(tag.getFirstArtwork()), modified, length);
+        synchronized (this) {
+            this.cache.put(songName, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Decodes artwork and scales it down to the thumbnail size
+     *
+     * @param art The artwork
+     * @return thumbnail The scaled image, or null
+     */
+    private BufferedImage thumbnail(Artwork art) {
+        if (art == null || art.getBinaryData() == null) {
+            return null;
+        }
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(art.getBinaryData()));
+        } catch (IOException e) {
+            return null;
+        }
+        if (image == null) {
+            return null;
+        }
+        double scale = Math.min(1.0, (double) this.thumbnailSize / Math.max(image.getWidth(), image.getHeight()));
+        if (scale == 1.0) {
+            return image;
+        }
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+}
@@ -0,0 +1,312 @@
+package mp3tagwriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+
+/**
+ * This class is used to select songs with expressions over their tags, such
+ * as {@code genre = "Rock" AND year < 2000 AND artist ~ "Feat."}. A query is
+ * parsed once into a tree of predicates over an array of field values, so it
+ * can be run over an in-memory index of many songs without reading files.
+ *
+ * <pre>
+ * query      := or
+ * or         := and ("OR" and)*
+ * and        := not ("AND" not)*
+ * not        := "NOT" not | "(" query ")" | field operator value
+ * field      := album | album_artist | artist | composer | genre | title | track | track_total | year
+ * operator   := = | != | &lt; | &lt;= | &gt; | &gt;= | ~ (contains) | !~ (does not contain)
+ * value      := "quoted text" | word
+ * </pre>
+ *
+ * Text comparisons ignore case. Ordering operators compare numbers when both
+ * sides start with digits, such as a year of "1999-05-01" or a track of
+ * "3/12", and text otherwise.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagQuery {
+
+    /**
+     * The fields a query can use, in the order of the value arrays it is run
+     * against.
+     */
+    public static final List<FieldKey> FIELDS;
+    private final Node root;
+
+    static {
+        List<FieldKey> fields = new ArrayList<>();
+        for (FieldKey key : TagWriter.PRESERVED_FIELDS) {
+            if (key != FieldKey.COVER_ART) {
+                fields.add(key);
+            }
+        }
+        FIELDS = Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * A node of the predicate tree.
+     */
+    private interface Node {
+
+        boolean matches(String[] values);
+    }
+
+    private TagQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses a query
+     *
+     * @param text The query text
+     * @return query The parsed query
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public static TagQuery parse(String text) {
+        Parser parser = new Parser(text);
+        Node root = parser.or();
+        if (parser.peek() != null) {
+            throw parser.error("Unexpected " + parser.peek());
+        }
+        return new TagQuery(root);
+    }
+
+    /**
+     * Gets the values of the query fields from a tag
+     *
+     * @param tag The tag
+     * @return values Values in the order of FIELDS
+     */
+    public static String[] valuesOf(Tag tag) {
+        String[] values = new String[FIELDS.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = tag.getFirst(FIELDS.get(i));
+        }
+        return values;
+    }
+
+    /**
+     * Determines if a song's values match the query
+     *
+     * @param values Values in the order of FIELDS
+     * @return true if they match
+     */
+    public boolean matches(String[] values) {
+        return this.root.matches(values);
+    }
+
+    /**
+     * Recursive descent parser over the query tokens.
+     */
+    private static class Parser {
+
+        private final String text;
+        private final List<String> tokens = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+        private int next = 0;
+
+        private Parser(String text) {
+            this.text = text;
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                if (c == '"') {
+                    StringBuilder value = new StringBuilder("\"");
+                    i++;
+                    while (i < text.length() && text.charAt(i) != '"') {
+                        if (text.charAt(i) == '\\' && i + 1 < text.length()) {
+                            i++;
+                        }
+                        value.append(text.charAt(i++));
+                    }
+                    if (i >= text.length()) {
+                        throw new IllegalArgumentException("Unterminated string at " + start);
+                    }
+                    i++;
+                    this.add(value.toString(), start);
+                } else if ("()=~".indexOf(c) >= 0) {
+                    this.add(String.valueOf(c), i++);
+                } else if ("!<>".indexOf(c) >= 0) {
+                    i++;
+                    if (i < text.length() && (text.charAt(i) == '=' || (c == '!' && text.charAt(i) == '~'))) {
+                        i++;
+                    }
+                    this.add(text.substring(start, i), start);
+                } else {
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i)) && "()=~!<>\"".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    this.add(text.substring(start, i), start);
+                }
+            }
+        }
+
+        private void add(String token, int position) {
+            this.tokens.add(token);
+            this.positions.add(position);
+        }
+
+        private String peek() {
+            return this.next < this.tokens.size() ? this.tokens.get(this.next) : null;
+        }
+
+        private boolean accept(String keyword) {
+            String token = this.peek();
+            if (token != null && token.equalsIgnoreCase(keyword)) {
+                this.next++;
+                return true;
+            }
+            return false;
+        }
+
+        private IllegalArgumentException error(String message) {
+            int position = this.next < this.positions.size() ? this.positions.get(this.next) : this.text.length();
+            return new IllegalArgumentException(message + " at " + position);
+        }
+
+        private Node or() {
+            final Node left = this.and();
+            if (!this.accept("OR")) {
+                return left;
+            }
+            final Node right = this.or();
+            return new Node() {
+                @Override
+                public boolean matches(String[] values) {
+                    return left.matches(values) || right.matches(values);
+                }
+            };
+        }
+
+        private Node and() {
+            final Node left = this.not();
+            if (!this.accept("AND")) {
+                return left;
+            }
+            final Node right = this.and();
+            return new Node() {
+                @Override
+                public boolean matches(String[] values) {
+                    return left.matches(values) && right.matches(values);
+                }
+            };
+        }
+
+        private Node not() {
+            if (this.accept("NOT")) {
+                final Node inner = this.not();
+                return new Node() {
+                    @Override
+                    public boolean matches(String[] values) {
+                        return !inner.matches(values);
+                    }
+                };
+            }
+            if (this.accept("(")) {
+                Node inner = this.or();
+                if (!this.accept(")")) {
+                    throw this.error("Expected )");
+                }
+                return inner;
+            }
+            return this.comparison();
+        }
+
+        private Node comparison() {
+            String field = this.peek();
+            if (field == null) {
+                throw this.error("Expected a field");
+            }
+            final int index;
+            try {
+                index = FIELDS.indexOf(FieldKey.valueOf(field.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw this.error("Unknown field " + field);
+            }
+            if (index < 0) {
+                throw this.error("Unknown field " + field);
+            }
+            this.next++;
+            final String operator = this.peek();
+            if (operator == null || !Arrays.asList("=", "!=", "<", "<=", ">", ">=", "~", "!~").contains(operator)) {
+                throw this.error("Expected an operator");
+            }
+            this.next++;
+            String token = this.peek();
+            if (token == null || "()".contains(token)) {
+                throw this.error("Expected a value");
+            }
+            this.next++;
+            final String value = token.startsWith("\"") ? token.substring(1) : token;
+            final String lower = value.toLowerCase(Locale.ROOT);
+            final long number = leadingNumber(value);
+            return new Node() {
+                @Override
+                public boolean matches(String[] values) {
+                    String actual = values[index] == null ? "" : values[index];
+                    switch (operator) {
+                        case "=":
+                            return actual.equalsIgnoreCase(value);
+                        case "!=":
+                            return !actual.equalsIgnoreCase(value);
+                        case "~":
+                            return actual.toLowerCase(Locale.ROOT).contains(lower);
+                        case "!~":
+                            return !actual.toLowerCase(Locale.ROOT).contains(lower);
+                        default:
+                            int c = compare(actual, value, number);
+                            if (c == Integer.MIN_VALUE) {
+                                return false;
+                            }
+                            return operator.equals("<") ? c < 0 : operator.equals("<=") ? c <= 0 : operator.equals(">") ? c > 0 : c >= 0;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Compares a song's value with a query value, as numbers if both start
+     * with digits
+     *
+     * @param actual The song's value
+     * @param value The query value
+     * @param number The query value's leading number, or -1
+     * @return comparison Negative, zero or positive, or Integer.MIN_VALUE if
+     * a number is compared with a value that has none
+     */
+    private static int compare(String actual, String value, long number) {
+        if (number >= 0) {
+            long own = leadingNumber(actual);
+            return own < 0 ? Integer.MIN_VALUE : Long.compare(own, number);
+        }
+        return actual.compareToIgnoreCase(value);
+    }
+
+    /**
+     * Parses the digits a value starts with
+     *
+     * @param value The value
+     * @return number The number, or -1 if the value does not start with a
+     * digit
+     */
+    private static long leadingNumber(String value) {
+        String trimmed = value.trim();
+        int end = 0;
+        while (end < trimmed.length() && end < 18 && Character.isDigit(trimmed.charAt(end))) {
+            end++;
+        }
+        return end == 0 ? -1 : Long.parseLong(trimmed.substring(0, end));
+    }
+}
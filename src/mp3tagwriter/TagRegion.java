@@ -0,0 +1,365 @@
+package mp3tagwriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class is used for locating tag regions in song files without parsing
+ * the tags themselves: ID3 and APE tags, FLAC metadata blocks, Ogg header
+ * pages and MP4 atoms. Only headers are read.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagRegion {
+
+    public static final int ID3V2_HEADER_LENGTH = 10;
+    public static final int ID3V1_LENGTH = 128;
+    public static final int APE_FOOTER_LENGTH = 32;
+    public static final int FLAC_BLOCK_HEADER_LENGTH = 4;
+    public static final int OGG_PAGE_HEADER_LENGTH = 27;
+    public static final int MP4_ATOM_HEADER_LENGTH = 8;
+    private static final int OGG_HEADER_PACKETS = 3;
+
+    /**
+     * Layout of an ID3v2 tag, read from its frame headers only.
+     */
+    public static class Id3v2Layout {
+
+        public int version;
+        public long length;
+        public long padding;
+        public int frames;
+        public int artworkCount;
+        public long artworkBytes;
+    }
+
+    /**
+     * Reads the length of the ID3v2 tag at the start of a file, including its
+     * header, padding and footer
+     *
+     * @param channel The file to read from
+     * @return length The tag length in bytes, or 0 if there is no ID3v2 tag
+     * @throws IOException if the file cannot be read
+     */
+    public static long id3v2Length(FileChannel channel) throws IOException {
+        byte[] h = read(channel, 0, ID3V2_HEADER_LENGTH);
+        if (h == null || h[0] != 'I' || h[1] != 'D' || h[2] != '3') {
+            return 0;
+        }
+        long length = ID3V2_HEADER_LENGTH + syncSafe(h, 6);
+        if (h[3] == 4 && (h[5] & 0x10) != 0) {
+            length += ID3V2_HEADER_LENGTH;
+        }
+        return Math.min(length, channel.size());
+    }
+
+    /**
+     * Walks the frame headers of the ID3v2 tag at the start of a file,
+     * skipping over frame bodies
+     *
+     * @param channel The file to read from
+     * @return layout The tag layout, or null if there is no ID3v2 tag
+     * @throws IOException if the file cannot be read
+     */
+    public static Id3v2Layout id3v2Layout(FileChannel channel) throws IOException {
+        long length = id3v2Length(channel);
+        if (length == 0) {
+            return null;
+        }
+        byte[] h = read(channel, 0, ID3V2_HEADER_LENGTH);
+        Id3v2Layout layout = new Id3v2Layout();
+        layout.version = h[3];
+        layout.length = length;
+        long end = ID3V2_HEADER_LENGTH + syncSafe(h, 6);
+        long position = ID3V2_HEADER_LENGTH;
+        if ((h[5] & 0x40) != 0 && layout.version >= 3) {
+            byte[] ext = read(channel, position, 4);
+            if (ext == null) {
+                return layout;
+            }
+            position += layout.version == 4 ? syncSafe(ext, 0) : 4 + ByteBuffer.wrap(ext).getInt();
+        }
+
+        int headerLength = layout.version == 2 ? 6 : 10;
+        while (position + headerLength <= end) {
+            byte[] frame = read(channel, position, headerLength);
+            if (frame == null || frame[0] == 0) {
+                break;
+            }
+            long size;
+            boolean artwork;
+            if (layout.version == 2) {
+                size = ((frame[3] & 0xff) << 16) | ((frame[4] & 0xff) << 8) | (frame[5] & 0xff);
+                artwork = frame[0] == 'P' && frame[1] == 'I' && frame[2] == 'C';
+            } else {
+                size = layout.version == 4 ? syncSafe(frame, 4) : ByteBuffer.wrap(frame, 4, 4).getInt() & 0xffffffffL;
+                artwork = frame[0] == 'A' && frame[1] == 'P' && frame[2] == 'I' && frame[3] == 'C';
+            }
+            layout.frames++;
+            if (artwork) {
+                layout.artworkCount++;
+                layout.artworkBytes += size;
+            }
+            position += headerLength + size;
+        }
+        layout.padding = Math.max(0, end - position);
+        return layout;
+    }
+
+    /**
+     * Reads the length of the ID3v1 tag at the end of a file
+     *
+     * @param channel The file to read from
+     * @return length 128 if there is an ID3v1 tag, otherwise 0
+     * @throws IOException if the file cannot be read
+     */
+    public static int id3v1Length(FileChannel channel) throws IOException {
+        byte[] t = read(channel, channel.size() - ID3V1_LENGTH, 3);
+        return t != null && t[0] == 'T' && t[1] == 'A' && t[2] == 'G' ? ID3V1_LENGTH : 0;
+    }
+
+    /**
+     * Reads the length of an APEv1/APEv2 tag that ends at the given offset
+     *
+     * @param channel The file to read from
+     * @param end Offset just past the APE footer, usually the file size less
+     * any ID3v1 tag
+     * @return length The tag length including header and footer, or 0 if
+     * there is no APE tag
+     * @throws IOException if the file cannot be read
+     */
+    public static long apeLength(FileChannel channel, long end) throws IOException {
+        byte[] footer = read(channel, end - APE_FOOTER_LENGTH, APE_FOOTER_LENGTH);
+        if (footer == null || !"APETAGEX".equals(new String(footer, 0, 8, "US-ASCII"))) {
+            return 0;
+        }
+        ByteBuffer b = ByteBuffer.wrap(footer).order(ByteOrder.LITTLE_ENDIAN);
+        long size = b.getInt(12) & 0xffffffffL;
+        boolean hasHeader = (b.getInt(20) & 0x80000000) != 0;
+        return Math.min(end, size + (hasHeader ? APE_FOOTER_LENGTH : 0));
+    }
+
+    /**
+     * Reads the end of the metadata blocks of a FLAC stream, which may follow
+     * an ID3v2 tag
+     *
+     * @param channel The file to read from
+     * @return end Offset of the first audio frame, or 0 if the file is not
+     * FLAC
+     * @throws IOException if the file cannot be read
+     */
+    public static long flacMetadataEnd(FileChannel channel) throws IOException {
+        long position = id3v2Length(channel);
+        byte[] marker = read(channel, position, 4);
+        if (marker == null || marker[0] != 'f' || marker[1] != 'L' || marker[2] != 'a' || marker[3] != 'C') {
+            return 0;
+        }
+        position += 4;
+        while (true) {
+            byte[] block = read(channel, position, FLAC_BLOCK_HEADER_LENGTH);
+            if (block == null) {
+                return channel.size();
+            }
+            position += FLAC_BLOCK_HEADER_LENGTH + (((block[1] & 0xff) << 16) | ((block[2] & 0xff) << 8) | (block[3] & 0xff));
+            if ((block[0] & 0x80) != 0) {
+                return Math.min(position, channel.size());
+            }
+        }
+    }
+
+    /**
+     * Reads the end of the pages that hold the three Vorbis header packets of
+     * an Ogg stream, the second of which is the comment packet
+     *
+     * @param channel The file to read from
+     * @return end Offset of the first audio page, or 0 if the file is not Ogg
+     * @throws IOException if the file cannot be read
+     */
+    public static long oggHeaderEnd(FileChannel channel) throws IOException {
+        long position = 0;
+        int packets = 0;
+        while (packets < OGG_HEADER_PACKETS) {
+            byte[] page = read(channel, position, OGG_PAGE_HEADER_LENGTH);
+            if (page == null || page[0] != 'O' || page[1] != 'g' || page[2] != 'g' || page[3] != 'S') {
+                return position == 0 ? 0 : channel.size();
+            }
+            byte[] lacing = read(channel, position + OGG_PAGE_HEADER_LENGTH, page[26] & 0xff);
+            if (lacing == null) {
+                return channel.size();
+            }
+            long body = 0;
+            for (byte segment : lacing) {
+                body += segment & 0xff;
+                if ((segment & 0xff) < 255) {
+                    packets++;
+                }
+            }
+            position += OGG_PAGE_HEADER_LENGTH + lacing.length + body;
+        }
+        return Math.min(position, channel.size());
+    }
+
+    /**
+     * Determines if a file is an MP4 container
+     *
+     * @param channel The file to read from
+     * @return true if it starts with an ftyp atom
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isMp4(FileChannel channel) throws IOException {
+        byte[] h = read(channel, 0, MP4_ATOM_HEADER_LENGTH);
+        return h != null && h[4] == 'f' && h[5] == 't' && h[6] == 'y' && h[7] == 'p';
+    }
+
+    /**
+     * Finds an atom by its path of ids, skipping over the bodies of every
+     * other atom. The meta atom's version and flags are stepped over
+     *
+     * @param channel The file to read from
+     * @param start Offset of the first atom to search
+     * @param end Offset past the last atom to search
+     * @param path Ids of the atom and its parents, outermost first
+     * @return region Start and end offsets of the atom's body, or null if
+     * there is no such atom
+     * @throws IOException if the file cannot be read
+     */
+    public static long[] mp4Atom(FileChannel channel, long start, long end, String... path) throws IOException {
+        long position = start;
+        int depth = 0;
+        while (position + MP4_ATOM_HEADER_LENGTH <= end) {
+            byte[] h = read(channel, position, MP4_ATOM_HEADER_LENGTH);
+            if (h == null) {
+                return null;
+            }
+            long size = ByteBuffer.wrap(h).getInt() & 0xffffffffL;
+            long body = position + MP4_ATOM_HEADER_LENGTH;
+            if (size == 1) {
+                byte[] large = read(channel, body, 8);
+                if (large == null) {
+                    return null;
+                }
+                size = ByteBuffer.wrap(large).getLong();
+                body += 8;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < body - position) {
+                return null;
+            }
+            long atomEnd = Math.min(end, position + size);
+            String id = new String(h, 4, 4, "ISO-8859-1");
+            if (!id.equals(path[depth])) {
+                position = atomEnd;
+                continue;
+            }
+            if ("meta".equals(id)) {
+                body += 4;
+            }
+            if (++depth == path.length) {
+                return new long[]{body, atomEnd};
+            }
+            position = body;
+            end = atomEnd;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the ilst atom that holds the items of an MP4 file's tag, under
+     * moov.udta.meta or moov.meta
+     *
+     * @param channel The file to read from
+     * @return region Start and end offsets of the atom's body, or null if
+     * there is no such atom
+     * @throws IOException if the file cannot be read
+     */
+    public static long[] mp4ItemList(FileChannel channel) throws IOException {
+        long[] ilst = mp4Atom(channel, 0, channel.size(), "moov", "udta", "meta", "ilst");
+        return ilst != null ? ilst : mp4Atom(channel, 0, channel.size(), "moov", "meta", "ilst");
+    }
+
+    /**
+     * Reads the length of the start of a song file that holds its tags, such
+     * that putting back an earlier copy of it puts back the earlier tags. The
+     * tags of Ogg and MP4 files move data after them, page sequence numbers
+     * and chunk offsets, so for those this is the whole file
+     *
+     * @param channel The file to read from
+     * @return length The length in bytes
+     * @throws IOException if the file cannot be read
+     */
+    public static long tagRegionLength(FileChannel channel) throws IOException {
+        long flac = flacMetadataEnd(channel);
+        if (flac > 0) {
+            return flac;
+        }
+        if (oggHeaderEnd(channel) > 0 || isMp4(channel)) {
+            return channel.size();
+        }
+        return id3v2Length(channel);
+    }
+
+    /**
+     * Locates the audio of a song file: after the ID3v2 tag of an mp3 file,
+     * the metadata blocks of a FLAC file or the header pages of an Ogg file,
+     * and before any APE and ID3v1 tags; for MP4 files, the body of the mdat
+     * atom
+     *
+     * @param channel The file to read from
+     * @return region Start and end offsets of the audio
+     * @throws IOException if the file cannot be read
+     */
+    public static long[] audioRegion(FileChannel channel) throws IOException {
+        if (isMp4(channel)) {
+            long[] mdat = mp4Atom(channel, 0, channel.size(), "mdat");
+            if (mdat != null) {
+                return mdat;
+            }
+        }
+        long start = flacMetadataEnd(channel);
+        if (start == 0) {
+            start = oggHeaderEnd(channel);
+        }
+        if (start == 0) {
+            start = id3v2Length(channel);
+        }
+        long end = channel.size() - id3v1Length(channel);
+        end -= apeLength(channel, end);
+        return new long[]{start, Math.max(start, end)};
+    }
+
+    /**
+     * Decodes a 28 bit synchsafe integer as used in ID3v2 headers
+     *
+     * @param b The bytes to decode
+     * @param offset Offset of the first of the four bytes
+     * @return value The decoded value
+     */
+    public static int syncSafe(byte[] b, int offset) {
+        return ((b[offset] & 0x7f) << 21) | ((b[offset + 1] & 0x7f) << 14) | ((b[offset + 2] & 0x7f) << 7) | (b[offset + 3] & 0x7f);
+    }
+
+    /**
+     * Reads bytes at a position
+     *
+     * @param channel The file to read from
+     * @param position Offset to read at
+     * @param length Number of bytes to read
+     * @return bytes The bytes, or null if the file is too short
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        if (position < 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                return null;
+            }
+        }
+        return buffer.array();
+    }
+}
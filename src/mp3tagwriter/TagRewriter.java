@@ -0,0 +1,227 @@
+package mp3tagwriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Arrays;
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.exceptions.CannotWriteException;
+import org.jaudiotagger.tag.id3.AbstractID3v2Tag;
+
+/**
+ * This class is used to write an ID3v2 tag by rebuilding the song beside
+ * itself: the new tag region is written to a temporary file next to the song,
+ * the audio and anything after it are copied behind it by the kernel with
+ * FileChannel.transferTo, and the temporary file is moved over the song
+ * atomically. Tags that outgrow their region get one padded so the next edit
+ * fits in place. Songs of other formats are copied and written by their own
+ * writer before the copy is moved over them the same way.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagRewriter {
+
+    /**
+     * Size that tag regions are rounded up to, so audio starts on a block
+     */
+    public static final int BLOCK_SIZE = 4096;
+    /**
+     * Smallest padding left after a rewrite
+     */
+    public static final int MIN_PADDING = 4096;
+    private static final int SIZE_OFFSET = 6;
+
+    /**
+     * Renders a tag as it would be written, without padding
+     *
+     * @param tag The tag
+     * @return bytes The header and frames of the tag
+     * @throws IOException if the tag cannot be rendered
+     */
+    public static byte[] render(AbstractID3v2Tag tag) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tag.write(Channels.newChannel(out));
+        byte[] bytes = out.toByteArray();
+        if (bytes.length < TagRegion.ID3V2_HEADER_LENGTH || bytes[0] != 'I' || bytes[1] != 'D' || bytes[2] != '3' || (bytes[5] & 0x10) != 0) {
+            throw new IOException("Unexpected ID3v2 rendering");
+        }
+        return bytes;
+    }
+
+    /**
+     * Determines if a rendered tag fits in the tag region a song already has
+     *
+     * @param songFile The song file
+     * @param rendered The rendered tag
+     * @return true if it can be written in place
+     * @throws IOException if the song cannot be read
+     */
+    public static boolean fitsInPlace(File songFile, byte[] rendered) throws IOException {
+        try (FileChannel channel = FileChannel.open(songFile.toPath(), StandardOpenOption.READ)) {
+            return rendered.length <= TagRegion.id3v2Length(channel);
+        }
+    }
+
+    /**
+     * Gets the length of the region a rewritten tag gets: the tag, at least
+     * MIN_PADDING or an eighth of the tag, rounded up to BLOCK_SIZE
+     *
+     * @param tagLength Length of the rendered tag
+     * @return length Length of the tag region including padding
+     */
+    public static long regionLength(int tagLength) {
+        long wanted = (long) tagLength + Math.max(MIN_PADDING, tagLength / 8);
+        return (wanted + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * Replaces a song's tag region with a rendered tag, rebuilding the file
+     * beside the original and swapping it in as durably as asked. A tag that
+     * fits the current region keeps its length, so the audio does not move;
+     * a larger one gets a new padded region
+     *
+     * @param songFile The song file
+     * @param rendered The rendered tag, as returned by render
+     * @param durability How the new file reaches the disk
+     * @param group The group to sync with, for GROUP durability
+     * @return padding Bytes of padding written after the tag
+     * @throws IOException if the song cannot be rewritten; the original is
+     * then left untouched
+     */
+    public static long rewrite(File songFile, byte[] rendered, Durability durability, GroupSync group) throws IOException {
+        Path song = songFile.toPath();
+        Path temp = song.resolveSibling("." + songFile.getName() + ".tag.tmp");
+        long region;
+        boolean announced = durability == Durability.GROUP;
+        if (announced) {
+            group.open();
+        }
+        try {
+            try (FileChannel source = FileChannel.open(song, StandardOpenOption.READ);
+                    FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = TagRegion.id3v2Length(source);
+                region = rendered.length <= position ? position : regionLength(rendered.length);
+                byte[] header = Arrays.copyOf(rendered, rendered.length);
+                writeSyncSafe(header, SIZE_OFFSET, region - TagRegion.ID3V2_HEADER_LENGTH);
+                writeFully(target, ByteBuffer.wrap(header), 0);
+                writeFully(target, ByteBuffer.allocate((int) (region - rendered.length)), rendered.length);
+                long size = source.size();
+                long written = region;
+                while (position < size) {
+                    long moved = source.transferTo(position, size - position, target.position(written));
+                    position += moved;
+                    written += moved;
+                }
+            }
+            copyPermissions(song, temp);
+            announced = false;
+            replace(temp, song, durability, group);
+        } finally {
+            if (announced) {
+                group.abandon();
+            }
+            Files.deleteIfExists(temp);
+        }
+        return region - rendered.length;
+    }
+
+    /**
+     * Writes the tag of a song that is not an mp3 file to a copy of it with
+     * the song's own format writer, and swaps the copy in as durably as asked
+     *
+     * @param song The read song with its edited tag
+     * @param durability How the new file reaches the disk
+     * @param group The group to sync with, for GROUP durability
+     * @throws IOException if the song cannot be rewritten; the original is
+     * then left untouched
+     */
+    public static void rewrite(AudioFile song, Durability durability, GroupSync group) throws IOException {
+        File songFile = song.getFile();
+        String name = songFile.getName();
+        int dot = name.lastIndexOf('.');
+        Path temp = songFile.toPath().resolveSibling("." + name.substring(0, dot) + ".tag.tmp" + name.substring(dot));
+        boolean announced = durability == Durability.GROUP;
+        if (announced) {
+            group.open();
+        }
+        try {
+            Files.copy(songFile.toPath(), temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            song.setFile(temp.toFile());
+            try {
+                song.commit();
+            } catch (CannotWriteException e) {
+                throw new IOException(e);
+            } finally {
+                song.setFile(songFile);
+            }
+            announced = false;
+            replace(temp, songFile.toPath(), durability, group);
+        } finally {
+            if (announced) {
+                group.abandon();
+            }
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Moves a fully written temporary file over a song
+     *
+     * @param temp The temporary file, beside the song
+     * @param song The song
+     * @param durability How the new file reaches the disk
+     * @param group The group to sync with, for GROUP durability, which the
+     * caller has announced itself to
+     * @throws IOException if the file cannot be moved
+     */
+    static void replace(Path temp, Path song, Durability durability, GroupSync group) throws IOException {
+        switch (durability) {
+            case GROUP:
+                group.replace(temp, song);
+                break;
+            case STRICT:
+                GroupSync.replaceNow(temp, song);
+                break;
+            default:
+                Files.move(temp, song, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                break;
+        }
+    }
+
+    /**
+     * Gives a rebuilt file the permissions of the file it replaces
+     *
+     * @param from The file being replaced
+     * @param to The rebuilt file
+     * @throws IOException if the permissions cannot be read or set
+     */
+    static void copyPermissions(Path from, Path to) throws IOException {
+        if (Files.getFileAttributeView(from, PosixFileAttributeView.class) != null) {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void writeSyncSafe(byte[] b, int offset, long value) throws IOException {
+        if (value >= 1L << 28) {
+            throw new IOException("ID3v2 tag too large");
+        }
+        for (int i = 3; i >= 0; i--) {
+            b[offset + i] = (byte) (value & 0x7f);
+            value >>= 7;
+        }
+    }
+}
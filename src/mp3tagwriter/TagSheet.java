@@ -0,0 +1,309 @@
+package mp3tagwriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+
+/**
+ * This class is used to export the preserved tag fields of many songs to a
+ * CSV or JSON lines sheet, and to import an edited sheet back. Both
+ * directions work through fixed size windows of rows, so memory does not
+ * grow with the number of songs.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagSheet {
+
+    private static final Logger log = Logger.getLogger(TagSheet.class.getName());
+    private static final String PATH_COLUMN = "path";
+    private static final int WINDOW = 256;
+    private static final List<FieldKey> COLUMNS = new ArrayList<>();
+    private final TagWriter writer;
+
+    static {
+        for (FieldKey key : TagWriter.PRESERVED_FIELDS) {
+            if (key != FieldKey.COVER_ART) {
+                COLUMNS.add(key);
+            }
+        }
+    }
+
+    /**
+     * Counts of an import.
+     */
+    public static class ImportResult {
+
+        public final AtomicInteger rows = new AtomicInteger();
+        public final AtomicInteger changed = new AtomicInteger();
+        public final AtomicInteger failed = new AtomicInteger();
+
+        @Override
+        public String toString() {
+            return rows + " rows, " + changed + " files changed, " + (rows.get() - changed.get() - failed.get()) + " unchanged, " + failed + " failed";
+        }
+    }
+
+    /**
+     * Constructor for TagSheet.
+     *
+     * @param writer The writer to read and apply tags with
+     */
+    public TagSheet(TagWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Exports the given songs, in order
+     *
+     * @param songs Names of song files
+     * @param out Where to write the sheet
+     * @param format The sheet format
+     * @return count Number of rows written
+     * @throws IOException if the sheet cannot be written
+     */
+    public int export(List<String> songs, Writer out, RecordFormat format) throws IOException {
+        this.writeHeader(out, format);
+        for (int start = 0; start < songs.size(); start += WINDOW) {
+            this.exportWindow(songs.subList(start, Math.min(songs.size(), start + WINDOW)), out, format);
+        }
+        out.flush();
+        return songs.size();
+    }
+
+    /**
+     * Exports every song file under a directory, streaming the walk
+     *
+     * @param root The directory to scan
+     * @param out Where to write the sheet
+     * @param format The sheet format
+     * @return count Number of rows written
+     * @throws IOException if the tree cannot be walked or the sheet written
+     */
+    public int exportTree(Path root, final Writer out, final RecordFormat format) throws IOException {
+        this.writeHeader(out, format);
+        final List<String> window = new ArrayList<>(WINDOW);
+        final int[] count = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && SongFormat.isSong(file.getFileName().toString())) {
+                    window.add(file.toAbsolutePath().toString());
+                    if (window.size() == WINDOW) {
+                        exportWindow(window, out, format);
+                        count[0] += window.size();
+                        window.clear();
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        this.exportWindow(window, out, format);
+        out.flush();
+        return count[0] + window.size();
+    }
+
+    /**
+     * Imports a sheet, applying each row in parallel. Rows whose values match
+     * the file already are not committed. A song listed more than once in a
+     * window of rows is written and counted once, with the last of its rows,
+     * so no two workers write it at once. The whole import is one undo batch
+     *
+     * @param in The sheet to read
+     * @param format The sheet format
+     * @return result Counts of the import
+     * @throws IOException if the sheet cannot be read or has no path column
+     */
+    public ImportResult importSheet(BufferedReader in, RecordFormat format) throws IOException {
+        final ImportResult result = new ImportResult();
+        List<String> header = null;
+        if (format == RecordFormat.CSV) {
+            header = Csv.readRecord(in);
+            if (header == null || !header.contains(PATH_COLUMN)) {
+                throw new IOException("Sheet has no " + PATH_COLUMN + " column");
+            }
+        }
+
+        final Map<String, Map<FieldKey, String>> window = Collections.synchronizedMap(new HashMap<String, Map<FieldKey, String>>());
+        List<String> order = new ArrayList<>(WINDOW);
+        this.writer.getJournal().begin("Import tags");
+        try {
+            while (true) {
+                Map<String, String> row = this.readRow(in, format, header);
+                if (row != null) {
+                    String songName = row.get(PATH_COLUMN);
+                    if (songName == null || songName.isEmpty()) {
+                        continue;
+                    }
+                    if (window.put(songName, fieldsOf(row)) == null) {
+                        order.add(songName);
+                        result.rows.incrementAndGet();
+                    }
+                }
+                if (order.size() == WINDOW || (row == null && !order.isEmpty())) {
+                    this.writer.getScheduler().run(order, new BatchScheduler.FileTask() {
+                        @Override
+                        public void process(String songName) {
+                            try {
+                                if (writer.applyFields(songName, window.get(songName))) {
+                                    result.changed.incrementAndGet();
+                                }
+                            } catch (IOException e) {
+                                result.failed.incrementAndGet();
+                                log.log(Level.WARNING, "Could not import " + songName, e);
+                            }
+                        }
+                    });
+                    window.clear();
+                    order = new ArrayList<>(WINDOW);
+                }
+                if (row == null) {
+                    break;
+                }
+            }
+        } finally {
+            this.writer.getJournal().end();
+        }
+        return result;
+    }
+
+    /**
+     * Reads the tags of a window of songs in parallel and writes their rows
+     * in the window's order
+     *
+     * @param songs Names of song files
+     * @param out Where to write the rows
+     * @param format The sheet format
+     * @throws IOException if the rows cannot be written
+     */
+    private void exportWindow(List<String> songs, Writer out, final RecordFormat format) throws IOException {
+        final Map<String, String> rows = Collections.synchronizedMap(new HashMap<String, String>());
+        this.writer.getScheduler().run(songs, new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                Tag tag = null;
+                try {
+                    tag = FastTagReader.read(new File(songName));
+                } catch (IOException e) {
+                    log.log(Level.FINE, "Could not export " + songName, e);
+                    return;
+                }
+                rows.put(songName, formatRow(songName, tag, format));
+            }
+        });
+        for (String songName : songs) {
+            String row = rows.get(songName);
+            if (row != null) {
+                out.write(row);
+                out.write('\n');
+            }
+        }
+    }
+
+    private void writeHeader(Writer out, RecordFormat format) throws IOException {
+        if (format != RecordFormat.CSV) {
+            return;
+        }
+        StringBuilder header = new StringBuilder(PATH_COLUMN);
+        for (FieldKey key : COLUMNS) {
+            header.append(',').append(columnName(key));
+        }
+        out.write(header.toString());
+        out.write('\n');
+    }
+
+    private static String formatRow(String songName, Tag tag, RecordFormat format) {
+        StringBuilder row = new StringBuilder();
+        if (format == RecordFormat.CSV) {
+            row.append(Csv.quote(songName));
+            for (FieldKey key : COLUMNS) {
+                row.append(',').append(Csv.quote(tag == null ? "" : tag.getFirst(key)));
+            }
+        } else {
+            row.append("{\"").append(PATH_COLUMN).append("\":").append(Json.quote(songName));
+            for (FieldKey key : COLUMNS) {
+                row.append(",\"").append(columnName(key)).append("\":").append(Json.quote(tag == null ? "" : tag.getFirst(key)));
+            }
+            row.append('}');
+        }
+        return row.toString();
+    }
+
+    /**
+     * Reads the next row of a sheet
+     *
+     * @param in The sheet to read
+     * @param format The sheet format
+     * @param header Column names of a CSV sheet
+     * @return row Values by column name, or null at the end of the sheet
+     * @throws IOException if the sheet cannot be read or a row is malformed
+     */
+    private Map<String, String> readRow(BufferedReader in, RecordFormat format, List<String> header) throws IOException {
+        if (format == RecordFormat.CSV) {
+            List<String> fields = Csv.readRecord(in);
+            if (fields == null) {
+                return null;
+            }
+            Map<String, String> row = new HashMap<>();
+            for (int i = 0; i < Math.min(header.size(), fields.size()); i++) {
+                row.put(header.get(i), fields.get(i));
+            }
+            return row;
+        }
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (line.trim().isEmpty());
+        try {
+            return Json.parseObject(line);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed sheet row: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Picks the known tag fields out of a row. Columns missing from the row
+     * are left alone in the file
+     *
+     * @param row Values by column name
+     * @return fields Values by field
+     */
+    private static Map<FieldKey, String> fieldsOf(Map<String, String> row) {
+        Map<FieldKey, String> fields = new EnumMap<>(FieldKey.class);
+        for (FieldKey key : COLUMNS) {
+            String column = columnName(key);
+            if (row.containsKey(column)) {
+                fields.put(key, row.get(column));
+            }
+        }
+        return fields;
+    }
+
+    private static String columnName(FieldKey key) {
+        return key.name().toLowerCase();
+    }
+}
@@ -0,0 +1,92 @@
+package mp3tagwriter;
+
+import java.util.Arrays;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.datatype.Artwork;
+
+/**
+ * This class is used to hold a compact summary of the tags of several files.
+ * Only the first file's value of each field and whether any file differs from
+ * it are kept, so tags can be released as soon as they are summarized.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagSummary {
+
+    private static final FieldKey[] FIELDS = {FieldKey.ALBUM, FieldKey.ALBUM_ARTIST, FieldKey.ARTIST, FieldKey.COMPOSER, FieldKey.GENRE, FieldKey.YEAR};
+    private final String[] values = new String[FIELDS.length];
+    private final boolean[] differs = new boolean[FIELDS.length];
+    private final Artwork artwork;
+    private boolean artworkDiffers = false;
+    private int differing = 0;
+
+    /**
+     * Constructor for TagSummary. Starts the summary from the first file.
+     *
+     * @param first The tag of the first selected file
+     */
+    public TagSummary(Tag first) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            this.values[i] = first.getFirst(FIELDS[i]);
+        }
+        this.artwork = first.getFirstArtwork();
+    }
+
+    /**
+     * Adds a file to the summary
+     *
+     * @param tag The tag of the file
+     */
+    public synchronized void add(Tag tag) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (!this.differs[i] && !this.values[i].equals(tag.getFirst(FIELDS[i]))) {
+                this.differs[i] = true;
+                this.differing++;
+            }
+        }
+        if (!this.artworkDiffers && !Arrays.equals(binaryData(this.artwork), binaryData(tag.getFirstArtwork()))) {
+            this.artworkDiffers = true;
+        }
+    }
+
+    /**
+     * Determines if every summarized field already differs, in which case
+     * adding more files cannot change the summary
+     *
+     * @return true if the summary is settled
+     */
+    public synchronized boolean isSettled() {
+        return this.differing == FIELDS.length && this.artworkDiffers;
+    }
+
+    /**
+     * Gets the common value of a field
+     *
+     * @param key The field to look up
+     * @param multiSelect The value to return if the files differ
+     * @return The common value, or multiSelect if there is none
+     */
+    public synchronized String get(FieldKey key, String multiSelect) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i] == key) {
+                return this.differs[i] ? multiSelect : this.values[i];
+            }
+        }
+        throw new IllegalArgumentException(key.name());
+    }
+
+    /**
+     * Gets the common artwork. Artwork is shared only when every file holds
+     * the same image bytes, whatever their albums
+     *
+     * @return The first file's artwork, or null if the images differ
+     */
+    public synchronized Artwork getArtwork() {
+        return this.artworkDiffers ? null : this.artwork;
+    }
+
+    private static byte[] binaryData(Artwork art) {
+        return art == null ? null : art.getBinaryData();
+    }
+}
@@ -0,0 +1,606 @@
+package mp3tagwriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import javax.swing.table.AbstractTableModel;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+
+/**
+ * This class is used to show the listed songs as a table of their tags and
+ * audio details. Cells are filled from the album index and the audio
+ * analyzer; a song that is not indexed or analyzed yet shows blank and is
+ * read in the background when its row is first painted, so only the rows on
+ * screen cost anything. Sorting and filtering run as a task that
+ * builds an int array of list rows and hands it to the table in one step, so
+ * the window stays responsive however long the list is.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagTableModel extends AbstractTableModel implements ListDataListener, TagWriter.CommitListener {
+
+    private static final long serialVersionUID = 1L;
+    private static final FieldKey[] COLUMNS = {FieldKey.TITLE, FieldKey.ARTIST, FieldKey.ALBUM, FieldKey.ALBUM_ARTIST, FieldKey.TRACK, FieldKey.YEAR, FieldKey.GENRE, FieldKey.COMPOSER};
+    private static final String[] NAMES = {"Title", "Artist", "Album", "Album Artist", "Track", "Year", "Genre", "Composer", "Length", "Bitrate", "Sample Rate"};
+    private static final int LENGTH = COLUMNS.length;
+    private static final int BITRATE = LENGTH + 1;
+    private static final int SAMPLE_RATE = LENGTH + 2;
+    private static final int[] VALUE_INDEX = new int[COLUMNS.length];
+    private static final String[] EMPTY = new String[TagQuery.FIELDS.size()];
+    private static final int MAX_SORT_KEYS = 3;
+    private static final int MISSING = Integer.MAX_VALUE;
+    private final PathListModel list;
+    private final AlbumIndex albums;
+    private final AudioAnalyzer analyzer;
+    private final TaskRuntime tasks;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private final AtomicBoolean repaintQueued = new AtomicBoolean();
+    private final BitSet requested = new BitSet();
+    private final List<String> pending = new ArrayList<>();
+    private final List<Integer> pendingIds = new ArrayList<>();
+    private TaskRuntime.Task loader = null;
+    private volatile int[] sortKeys = new int[0];
+    private volatile String filter = "";
+    private int[] rows = null;
+    private int[] viewRows = null;
+    private int size;
+    private final Runnable repaintRows = new Runnable() {
+        @Override
+        public void run() {
+            repaintRows();
+        }
+    };
+
+    static {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            VALUE_INDEX[i] = TagQuery.FIELDS.indexOf(COLUMNS[i]);
+        }
+        Arrays.fill(EMPTY, "");
+    }
+
+    /**
+     * Orders list rows by the sort keys, then by list position. Each key
+     * column is turned into one int per row first: the number of track and
+     * year, the value of the audio columns, and the rank of the text of other
+     * columns, so that sorting compares ints only.
+     */
+    private static class RowOrder {
+
+        private final boolean[] ascending;
+        private final int[][] ranks;
+
+        private RowOrder(String[][] values, List<AudioInfo> infos, int[] keys) {
+            this.ascending = new boolean[keys.length];
+            this.ranks = new int[keys.length][];
+            for (int k = 0; k < keys.length; k++) {
+                int column = Math.abs(keys[k]) - 1;
+                this.ascending[k] = keys[k] > 0;
+                this.ranks[k] = new int[values.length];
+                if (column >= LENGTH) {
+                    for (int row = 0; row < values.length; row++) {
+                        this.ranks[k][row] = audioRank(infos.get(row), column);
+                    }
+                    continue;
+                }
+                int index = VALUE_INDEX[column];
+                if (COLUMNS[column] == FieldKey.TRACK || COLUMNS[column] == FieldKey.YEAR) {
+                    for (int row = 0; row < values.length; row++) {
+                        this.ranks[k][row] = leadingNumber(values[row][index]);
+                    }
+                } else {
+                    Map<String, Integer> rankOf = rankTexts(values, index);
+                    for (int row = 0; row < values.length; row++) {
+                        this.ranks[k][row] = rankOf.get(values[row][index]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the value of an audio column
+         *
+         * @param info The analysis of a song, or null
+         * @param column The audio column
+         * @return value The value, or MISSING if the song has none
+         */
+        private static int audioRank(AudioInfo info, int column) {
+            if (info == null) {
+                return MISSING;
+            }
+            if (column == LENGTH) {
+                return (int) Math.min(info.durationMillis, MISSING - 1);
+            }
+            return column == BITRATE ? info.bitrate : info.sampleRate;
+        }
+
+        /**
+         * Ranks the distinct texts of a column, ignoring case. Empty text
+         * ranks MISSING
+         *
+         * @param values The values of every row
+         * @param index The value index of the column
+         * @return ranks Rank by text
+         */
+        private static Map<String, Integer> rankTexts(String[][] values, int index) {
+            Map<String, Integer> rankOf = new HashMap<>();
+            for (String[] row : values) {
+                rankOf.put(row[index], MISSING);
+            }
+            List<String> texts = new ArrayList<>(rankOf.keySet());
+            texts.remove("");
+            Collections.sort(texts, String.CASE_INSENSITIVE_ORDER);
+            int rank = 0;
+            for (int i = 0; i < texts.size(); i++) {
+                if (i > 0 && !texts.get(i).equalsIgnoreCase(texts.get(i - 1))) {
+                    rank++;
+                }
+                rankOf.put(texts.get(i), rank);
+            }
+            return rankOf;
+        }
+
+        /**
+         * Compares two list rows. Empty values come last either way
+         *
+         * @param a The first row
+         * @param b The second row
+         * @return order Negative if a comes first, positive if b does
+         */
+        private int compare(int a, int b) {
+            for (int k = 0; k < this.ranks.length; k++) {
+                int x = this.ranks[k][a];
+                int y = this.ranks[k][b];
+                if (x != y) {
+                    if (x == MISSING || y == MISSING) {
+                        return x == MISSING ? 1 : -1;
+                    }
+                    return (x < y) == this.ascending[k] ? -1 : 1;
+                }
+            }
+            return a < b ? -1 : (a > b ? 1 : 0);
+        }
+    }
+
+    /**
+     * Constructor for TagTableModel. The model follows the changes of the
+     * list.
+     *
+     * @param list The list of songs to show
+     * @param albums The index the tags are taken from
+     * @param analyzer The analyzer the audio columns are taken from
+     * @param tasks The runtime that loads and sorts in the background
+     */
+    public TagTableModel(PathListModel list, AlbumIndex albums, AudioAnalyzer analyzer, TaskRuntime tasks) {
+        this.list = list;
+        this.albums = albums;
+        this.analyzer = analyzer;
+        this.tasks = tasks;
+        this.size = list.size();
+        list.addListDataListener(this);
+    }
+
+    @Override
+    public int getRowCount() {
+        return this.rows == null ? this.size : this.rows.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return NAMES.length;
+    }
+
+    /**
+     * Gets the name of a column, marked with its direction and rank if the
+     * rows are sorted by it
+     *
+     * @param column The column
+     * @return name The header text
+     */
+    @Override
+    public String getColumnName(int column) {
+        int[] keys = this.sortKeys;
+        for (int k = 0; k < keys.length; k++) {
+            if (Math.abs(keys[k]) == column + 1) {
+                return NAMES[column] + (keys[k] > 0 ? " \u25b2" : " \u25bc") + (keys.length > 1 ? k + 1 : "");
+            }
+        }
+        return NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int listRow = this.getListRow(row);
+        int id;
+        String songName;
+        try {
+            id = this.list.getId(listRow);
+            songName = this.list.get(listRow);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return "";
+        }
+        if (column >= LENGTH) {
+            AudioInfo info = this.analyzer.request(new File(songName), this.repaintRows);
+            if (info == null) {
+                return "";
+            }
+            return column == LENGTH ? info.formatDuration() : column == BITRATE ? info.formatBitrate() : info.sampleRate + " Hz";
+        }
+        String[] values = this.albums.getValues(id);
+        if (values == null) {
+            this.requestLoad(id, songName);
+            return "";
+        }
+        return values[VALUE_INDEX[column]];
+    }
+
+    /**
+     * Gets the list row shown in a table row
+     *
+     * @param row The table row
+     * @return listRow The row of the song in the list
+     */
+    public int getListRow(int row) {
+        return this.rows == null ? row : this.rows[row];
+    }
+
+    /**
+     * Gets the table row that shows a list row
+     *
+     * @param listRow The row of a song in the list
+     * @return row The table row, or -1 if the song is filtered out
+     */
+    public int getViewRow(int listRow) {
+        if (this.rows == null) {
+            return listRow < this.size ? listRow : -1;
+        }
+        if (this.viewRows == null) {
+            this.viewRows = new int[this.size];
+            Arrays.fill(this.viewRows, -1);
+            for (int row = 0; row < this.rows.length; row++) {
+                if (this.rows[row] < this.size) {
+                    this.viewRows[this.rows[row]] = row;
+                }
+            }
+        }
+        return listRow < this.viewRows.length ? this.viewRows[listRow] : -1;
+    }
+
+    /**
+     * Sorts by a column first, keeping the previous sort columns as tie
+     * breakers. Sorting by the first column again reverses it, and a third
+     * time drops it
+     *
+     * @param column The column
+     */
+    public void sortBy(int column) {
+        int key = column + 1;
+        int[] keys = this.sortKeys;
+        List<Integer> next = new ArrayList<>();
+        if (keys.length == 0 || Math.abs(keys[0]) != key) {
+            next.add(key);
+        } else if (keys[0] == key) {
+            next.add(-key);
+        }
+        for (int k : keys) {
+            if (Math.abs(k) != key && next.size() < MAX_SORT_KEYS) {
+                next.add(k);
+            }
+        }
+        int[] sorted = new int[next.size()];
+        for (int k = 0; k < sorted.length; k++) {
+            sorted[k] = next.get(k);
+        }
+        this.sortKeys = sorted;
+        this.refresh();
+    }
+
+    /**
+     * Shows only the songs matching a filter. The filter is a query such as
+     * genre = "Rock", or else text that any tag column must contain
+     *
+     * @param text The filter, or an empty string to show every song
+     */
+    public void setFilter(String text) {
+        this.filter = text.trim();
+        this.refresh();
+    }
+
+    @Override
+    public void intervalAdded(ListDataEvent e) {
+        this.listChanged();
+    }
+
+    @Override
+    public void intervalRemoved(ListDataEvent e) {
+        this.listChanged();
+    }
+
+    @Override
+    public void contentsChanged(ListDataEvent e) {
+        this.listChanged();
+    }
+
+    /**
+     * Repaints the rows once a song is committed. The order is kept until
+     * the next sort or filter
+     *
+     * @param songFile The song file
+     * @param tag The tag as written
+     */
+    @Override
+    public void committed(File songFile, Tag tag) {
+        this.repaintRows();
+    }
+
+    /**
+     * Rebuilds the rows on the event dispatch thread after the list changed.
+     * A burst of changes rebuilds them once
+     */
+    private void listChanged() {
+        if (this.refreshQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    refreshQueued.set(false);
+                    refresh();
+                }
+            });
+        }
+    }
+
+    /**
+     * Rebuilds the rows for the current sort and filter. Without either the
+     * table shows the list as it is at once; otherwise a task orders the
+     * rows, and only the latest request is shown. Must be called on the
+     * event dispatch thread
+     */
+    private void refresh() {
+        final long current = this.generation.incrementAndGet();
+        final int[] keys = this.sortKeys;
+        final String text = this.filter;
+        if (keys.length == 0 && text.isEmpty()) {
+            this.show(null, this.list.size());
+            return;
+        }
+        this.tasks.submit("Sort Tag Table", TaskRuntime.READS, new Runnable() {
+            @Override
+            public void run() {
+                order(current, keys, text);
+            }
+        });
+    }
+
+    /**
+     * Filters and sorts the list rows, reading the songs that are not
+     * indexed yet first
+     *
+     * @param current The request the rows are built for
+     * @param keys The sort keys: column plus one, negative for descending
+     * @param text The filter
+     */
+    private void order(final long current, int[] keys, String text) {
+        int count = this.list.size();
+        List<String> songs = new ArrayList<>(count);
+        int[] ids = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                ids[i] = this.list.getId(i);
+                songs.add(this.list.get(i));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return;
+        }
+        this.albums.scan(songs);
+        List<AudioInfo> infos = null;
+        for (int key : keys) {
+            if (Math.abs(key) - 1 >= LENGTH && infos == null) {
+                infos = this.analyzer.getAll(songs);
+            }
+        }
+        if (this.generation.get() != current) {
+            return;
+        }
+        String[][] values = new String[count][];
+        for (int i = 0; i < count; i++) {
+            values[i] = this.albums.getValues(ids[i]);
+            if (values[i] == null) {
+                values[i] = EMPTY;
+            }
+        }
+        TagQuery query = null;
+        if (!text.isEmpty()) {
+            try {
+                query = TagQuery.parse(text);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        String needle = text.toLowerCase(Locale.ROOT);
+        int[] kept = new int[count];
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (query != null ? query.matches(values[i]) : contains(values[i], needle)) {
+                kept[matched++] = i;
+            }
+        }
+        kept = Arrays.copyOf(kept, matched);
+        if (keys.length > 0) {
+            sort(kept, new RowOrder(values, infos, keys));
+        }
+        final int[] ordered = kept;
+        final int listSize = count;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (generation.get() == current) {
+                    show(ordered, listSize);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows new rows. Must be called on the event dispatch thread
+     *
+     * @param ordered The list rows to show, or null for the whole list
+     * @param listSize The size of the list the rows were built from
+     */
+    private void show(int[] ordered, int listSize) {
+        this.rows = ordered;
+        this.viewRows = null;
+        this.size = listSize;
+        this.fireTableDataChanged();
+    }
+
+    /**
+     * Asks for a song to be read in the background. Songs asked for while a
+     * read is running are read together after it
+     *
+     * @param id The path id of the song
+     * @param songName Name of song file
+     */
+    private void requestLoad(int id, String songName) {
+        synchronized (this.pending) {
+            if (this.requested.get(id)) {
+                return;
+            }
+            this.requested.set(id);
+            this.pending.add(songName);
+            this.pendingIds.add(id);
+            if (this.loader != null && !this.loader.isCancelled()) {
+                return;
+            }
+            this.loader = this.tasks.submit("Load Tag Table", TaskRuntime.READS, new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the songs asked for until none are left
+     */
+    private void load() {
+        while (true) {
+            List<String> songs;
+            List<Integer> ids;
+            synchronized (this.pending) {
+                if (this.pending.isEmpty()) {
+                    this.loader = null;
+                    return;
+                }
+                songs = new ArrayList<>(this.pending);
+                ids = new ArrayList<>(this.pendingIds);
+                this.pending.clear();
+                this.pendingIds.clear();
+            }
+            this.albums.scan(songs);
+            synchronized (this.pending) {
+                for (int id : ids) {
+                    if (this.albums.getValues(id) != null) {
+                        this.requested.clear(id);
+                    }
+                }
+            }
+            this.repaintRows();
+        }
+    }
+
+    /**
+     * Repaints every row on the event dispatch thread, asking again for
+     * values that are not loaded yet. A burst of calls repaints once
+     */
+    public void repaintRows() {
+        if (this.repaintQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    repaintQueued.set(false);
+                    if (getRowCount() > 0) {
+                        fireTableRowsUpdated(0, getRowCount() - 1);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Determines if any column contains a text
+     *
+     * @param values The values of a song
+     * @param needle The text, in lower case
+     * @return true if a column contains it
+     */
+    private static boolean contains(String[] values, String needle) {
+        for (int index : VALUE_INDEX) {
+            if (values[index].toLowerCase(Locale.ROOT).contains(needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the number a field starts with, such as the track of "03/12"
+     * or the year of "1999-04-01"
+     *
+     * @param value The field
+     * @return number The number, or MISSING if there is none
+     */
+    private static int leadingNumber(String value) {
+        int number = 0;
+        int i = 0;
+        while (i < value.length() && value.charAt(i) == ' ') {
+            i++;
+        }
+        int start = i;
+        while (i < value.length() && Character.isDigit(value.charAt(i)) && i - start < 9) {
+            number = number * 10 + Character.digit(value.charAt(i), 10);
+            i++;
+        }
+        return i == start ? MISSING : number;
+    }
+
+    /**
+     * Sorts rows with a merge sort on primitive arrays, so no row is boxed
+     *
+     * @param rows The rows
+     * @param order The order to sort them in
+     */
+    private static void sort(int[] rows, RowOrder order) {
+        int[] buffer = new int[rows.length];
+        for (int width = 1; width < rows.length; width *= 2) {
+            for (int low = 0; low < rows.length - width; low += 2 * width) {
+                int middle = low + width;
+                int high = Math.min(low + 2 * width, rows.length);
+                if (order.compare(rows[middle - 1], rows[middle]) <= 0) {
+                    continue;
+                }
+                System.arraycopy(rows, low, buffer, low, high - low);
+                int left = low;
+                int right = middle;
+                for (int i = low; i < high; i++) {
+                    if (right >= high || (left < middle && order.compare(buffer[left], buffer[right]) <= 0)) {
+                        rows[i] = buffer[left++];
+                    } else {
+                        rows[i] = buffer[right++];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package mp3tagwriter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.datatype.Artwork;
+
+/**
+ * This class is used to hold everything the tag fields of the window show,
+ * computed away from the event dispatch thread so the window can show it in
+ * one step. Instances are immutable.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TagViewModel {
+
+    public final String filePath;
+    public final String fileName;
+    public final String title;
+    public final String artist;
+    public final String featuring;
+    public final String album;
+    public final String albumArtist;
+    public final String composer;
+    public final String year;
+    public final String genre;
+    public final String track;
+    /**
+     * The decoded artwork, or null to show none
+     */
+    public final BufferedImage artwork;
+
+    private TagViewModel(String filePath, String fileName, String title, String artist, String featuring, String album, String albumArtist, String composer, String year, String genre, String track, BufferedImage artwork) {
+        this.filePath = filePath;
+        this.fileName = fileName;
+        this.title = title;
+        this.artist = artist;
+        this.featuring = featuring;
+        this.album = album;
+        this.albumArtist = albumArtist;
+        this.composer = composer;
+        this.year = year;
+        this.genre = genre;
+        this.track = track;
+        this.artwork = artwork;
+    }
+
+    /**
+     * Builds the view of one song
+     *
+     * @param loaded The song's tag and thumbnail
+     * @param writer The writer that splits featured artists from artists
+     * @return view The view
+     */
+    public static TagViewModel of(TagPrefetcher.Loaded loaded, TagWriter writer) {
+        File songFile = new File(loaded.songName);
+        Tag tag = loaded.tag;
+        return new TagViewModel(songFile.getAbsolutePath(), songFile.getName(), tag.getFirst(FieldKey.TITLE), writer.getArtist(tag), writer.getFeaturedArtist(tag),
+                tag.getFirst(FieldKey.ALBUM), tag.getFirst(FieldKey.ALBUM_ARTIST), tag.getFirst(FieldKey.COMPOSER), tag.getFirst(FieldKey.YEAR),
+                tag.getFirst(FieldKey.GENRE), tag.getFirst(FieldKey.TRACK), loaded.thumbnail);
+    }
+
+    /**
+     * Builds the view of several songs. Per-song fields show the filler, and
+     * common fields show their common value or the writer's multiSelect
+     * marker. Shared artwork is decoded here
+     *
+     * @param summary The summary of the songs' tags
+     * @param writer The writer whose multiSelect marker is used
+     * @param filler The text for per-song fields
+     * @return view The view
+     */
+    public static TagViewModel of(TagSummary summary, TagWriter writer, String filler) {
+        BufferedImage image = null;
+        Artwork art = summary.getArtwork();
+        if (art != null) {
+            try {
+                image = art.getImage();
+            } catch (IOException e) {
+            }
+        }
+        return new TagViewModel(filler, filler, filler, summary.get(FieldKey.ARTIST, writer.multiSelect), filler,
+                summary.get(FieldKey.ALBUM, writer.multiSelect), summary.get(FieldKey.ALBUM_ARTIST, writer.multiSelect),
+                summary.get(FieldKey.COMPOSER, writer.multiSelect), summary.get(FieldKey.YEAR, writer.multiSelect),
+                summary.get(FieldKey.GENRE, writer.multiSelect), filler, image);
+    }
+
+    /**
+     * Builds a view with every field set to the same text and no artwork
+     *
+     * @param filler The text for every field
+     * @return view The view
+     */
+    public static TagViewModel filled(String filler) {
+        return new TagViewModel(filler, filler, filler, filler, filler, filler, filler, filler, filler, filler, filler, null);
+    }
+}
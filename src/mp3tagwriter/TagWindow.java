@@ -49,7 +49,7 @@ public class TagWindow extends javax.swing.JFrame {
         AlbumArtButton = new javax.swing.JButton();
         CleanTagsButton = new javax.swing.JButton();
         FileListViewerPane = new javax.swing.JScrollPane();
-        FileListViewer = new javax.swing.JList();
+        FileListViewer = new javax.swing.JList<>();
         ChooseFilesButton = new javax.swing.JButton();
         RemoveButton = new javax.swing.JButton();
         ApplyButton = new javax.swing.JButton();
@@ -148,7 +148,7 @@ public class TagWindow extends javax.swing.JFrame {
             }
         });
 
-        FileListViewer.setModel(new DefaultListModel());
+        FileListViewer.setModel(new DefaultListModel<String>());
         FileListViewer.addListSelectionListener(new javax.swing.event.ListSelectionListener() {
             public void valueChanged(javax.swing.event.ListSelectionEvent evt) {
                 FileListViewerValueChanged(evt);
@@ -456,7 +456,7 @@ public class TagWindow extends javax.swing.JFrame {
     public javax.swing.JLabel FeaturingLabel;
     public javax.swing.JTextField FeaturingTextField;
     public javax.swing.JLabel FileLabel;
-    public javax.swing.JList FileListViewer;
+    public javax.swing.JList<String> FileListViewer;
     public javax.swing.JScrollPane FileListViewerPane;
     public javax.swing.JLabel FileNameLabel;
     public javax.swing.JTextField FileNameTextField;
@@ -1,42 +1,174 @@
 package mp3tagwriter;
 
-import java.awt.HeadlessException;
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.DefaultListModel;
+import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
 import org.jaudiotagger.audio.exceptions.CannotReadException;
 import org.jaudiotagger.audio.exceptions.CannotWriteException;
 import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
 import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
+import org.jaudiotagger.audio.flac.metadatablock.MetadataBlockDataPicture;
 import org.jaudiotagger.audio.mp3.MP3File;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.KeyNotFoundException;
 import org.jaudiotagger.tag.Tag;
 import org.jaudiotagger.tag.TagException;
 import org.jaudiotagger.tag.datatype.Artwork;
+import org.jaudiotagger.tag.flac.FlacTag;
+import org.jaudiotagger.tag.id3.ID3v24Tag;
+import org.jaudiotagger.tag.vorbiscomment.VorbisCommentTag;
 
 /**
- * This class is used for managing tagging operations on mp3 files. It handles
- * formatting, opening, closing, writing and reading tags from files.
+ * This class is used for managing tagging operations on song files of every
+ * supported format. It handles formatting, opening, closing, writing and
+ * reading tags from files.
  *
  * @author Aditya Nivarthi
  */
 public class TagWriter {
 
     private static final Logger log = Logger.getLogger(TagWriter.class.getName());
+    public static final File DATA_DIRECTORY = new File(System.getProperty("user.home"), ".mp3tagwriter");
+    public static final List<FieldKey> PRESERVED_FIELDS = Collections.unmodifiableList(Arrays.asList(FieldKey.ALBUM, FieldKey.ALBUM_ARTIST, FieldKey.ARTIST, FieldKey.COMPOSER, FieldKey.COVER_ART, FieldKey.GENRE, FieldKey.TITLE, FieldKey.TRACK, FieldKey.TRACK_TOTAL, FieldKey.YEAR));
+    private static final int GROUP_SYNC_FILES = 32;
+    private static final long GROUP_SYNC_MILLIS = 50;
+    private static final int RETRY_ATTEMPTS = 4;
+    private static final long RETRY_BASE_MILLIS = 250;
+    private static final long RETRY_MAX_MILLIS = 8000;
+    private static final int BREAKER_WINDOW = 20;
+    private static final int BREAKER_MIN_SAMPLES = 8;
+    private static final double BREAKER_FAILURE_RATIO = 0.5;
+    private static final long BREAKER_COOLDOWN_MILLIS = 2000;
+    private static final long BREAKER_MAX_COOLDOWN_MILLIS = 60000;
+    private static final long PAUSE_POLL_MILLIS = 250;
     private ArrayList<FieldKey> tagsToClear;
+    private final PathStore paths = new PathStore();
+    private final BatchScheduler scheduler = new BatchScheduler();
+    private final StreamingBatch batch = new StreamingBatch(scheduler);
+    private final UndoJournal journal;
+    private final List<CommitListener> listeners = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<BatchProgress> progress = new ThreadLocal<>();
+    private volatile Durability durability = Durability.parse(System.getProperty("mp3tagwriter.durability", "none"));
+    private final GroupSync groupSync = new GroupSync(GROUP_SYNC_FILES, GROUP_SYNC_MILLIS);
+    private final RetryPolicy retryPolicy = new RetryPolicy(RETRY_ATTEMPTS, RETRY_BASE_MILLIS, RETRY_MAX_MILLIS);
+    private final CircuitBreaker breaker = new CircuitBreaker(BREAKER_WINDOW, BREAKER_MIN_SAMPLES, BREAKER_FAILURE_RATIO, BREAKER_COOLDOWN_MILLIS, BREAKER_MAX_COOLDOWN_MILLIS);
+    private final Quarantine quarantine = new Quarantine();
+    private final Map<String, SongLock> songLocks = new HashMap<>();
+    private volatile FaultInjector faults = FaultInjector.fromSystemProperty();
+    private final AudioVerifier verifier = new AudioVerifier(Verification.parse(System.getProperty("mp3tagwriter.verify", "off")));
+    private final ThreadLocal<Performing> performing = new ThreadLocal<>();
     public final String multiSelect = "<multiple values>";
     public final String emptyString = "";
 
+    /**
+     * Receives the tag of every song this writer commits.
+     */
+    public interface CommitListener {
+
+        /**
+         * Called after a song was committed, on the thread that committed it
+         *
+         * @param songFile The song file
+         * @param tag The tag as written
+         */
+        void committed(File songFile, Tag tag);
+    }
+
+    /**
+     * An edit of one song that can be tried again if it fails.
+     */
+    private interface SongEdit {
+
+        /**
+         * Reads the song, edits its tag and commits it
+         *
+         * @throws IOException if the song cannot be read or written
+         * @throws CannotReadException if the song is not valid audio
+         * @throws CannotWriteException if the song cannot be written
+         * @throws InvalidAudioFrameException if the song's audio is corrupt
+         * @throws ReadOnlyFileException if the song cannot be written to
+         * @throws TagException if the song's tag cannot be read
+         */
+        void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException;
+    }
+
+    /**
+     * The lock of one song path, kept while any thread holds or waits for it.
+     */
+    private static class SongLock {
+
+        private final String path;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users = 0;
+
+        private SongLock(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * The edit a thread is performing: the progress its outcome goes to and
+     * the checks of the commits it made.
+     */
+    private static class Performing {
+
+        private final BatchProgress progress;
+        private final List<AudioVerifier.Check> checks = new ArrayList<>();
+
+        private Performing(BatchProgress progress) {
+            this.progress = progress;
+        }
+    }
+
     /**
      * Constructor for TagWriter. Initializes tags to be saved when cleaning
      * files
      */
     public TagWriter() {
+        this(new File(DATA_DIRECTORY, "journal"));
+    }
+
+    /**
+     * Constructor for TagWriter that keeps its undo journal in the given
+     * directory. Workers of the scheduler report to the progress of the
+     * thread that runs them.
+     *
+     * @param journalDirectory The directory of the undo journal
+     */
+    public TagWriter(File journalDirectory) {
+        this.journal = new UndoJournal(journalDirectory, this.scheduler);
+        this.journal.setDurability(this.durability, this.groupSync);
+        this.scheduler.inherit(new BatchScheduler.ThreadState() {
+            @Override
+            public Object capture() {
+                return progress.get();
+            }
+
+            @Override
+            public Object attach(Object state) {
+                BatchProgress previous = progress.get();
+                setProgress((BatchProgress) state);
+                return previous;
+            }
+
+            @Override
+            public void detach(Object previous) {
+                setProgress((BatchProgress) previous);
+            }
+        });
         this.initSavedTags();
     }
 
@@ -70,16 +202,7 @@ public class TagWriter {
     private void initSavedTags() {
         tagsToClear = new ArrayList<>();
         tagsToClear.addAll(Arrays.asList(FieldKey.values()));
-        tagsToClear.remove(FieldKey.ALBUM);
-        tagsToClear.remove(FieldKey.ALBUM_ARTIST);
-        tagsToClear.remove(FieldKey.ARTIST);
-        tagsToClear.remove(FieldKey.COMPOSER);
-        tagsToClear.remove(FieldKey.COVER_ART);
-        tagsToClear.remove(FieldKey.GENRE);
-        tagsToClear.remove(FieldKey.TITLE);
-        tagsToClear.remove(FieldKey.TRACK);
-        tagsToClear.remove(FieldKey.TRACK_TOTAL);
-        tagsToClear.remove(FieldKey.YEAR);
+        tagsToClear.removeAll(PRESERVED_FIELDS);
     }
 
     /**
@@ -121,26 +244,52 @@ public class TagWriter {
     }
 
     /**
-     * Determines if list of songs has a common album
+     * Summarizes the common tags of a list of songs in a single streaming
+     * pass. Stops reading once every field is known to differ
      *
      * @param selectedIndices List of selected indexes in window
      * @param list List of songs in window
-     * @return "" if nothing common, the common string if there is one
+     * @return summary The summary, with empty values if the first song cannot
+     * be read
      */
-    public String getSimilarAlbum(int[] selectedIndices, DefaultListModel list) {
-        String album = "";
+    public TagSummary summarize(int[] selectedIndices, PathListModel list) {
+        Tag first = null;
         try {
-            Tag firstTag = ((MP3File) AudioFileIO.read(new File((String) list.get(selectedIndices[0])))).getID3v2Tag();
-            album = firstTag.getFirst(FieldKey.ALBUM);
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                if (!firstTag.getFirst(FieldKey.ALBUM).equals(tag.getFirst(FieldKey.ALBUM))) {
-                    return this.multiSelect;
+            first = FastTagReader.read(new File(list.get(selectedIndices[0])));
+        } catch (IOException e) {
+        }
+        if (first == null) {
+            return new TagSummary(new ID3v24Tag());
+        }
+        final TagSummary summary = new TagSummary(first);
+        first = null;
+        this.batch.run(Arrays.copyOfRange(selectedIndices, 1, selectedIndices.length), list, new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                if (summary.isSettled()) {
+                    return;
+                }
+                try {
+                    Tag tag = FastTagReader.read(new File(songName));
+                    if (tag != null) {
+                        summary.add(tag);
+                    }
+                } catch (IOException e) {
                 }
             }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
-        return album;
+        });
+        return summary;
+    }
+
+    /**
+     * Determines if list of songs has a common album
+     *
+     * @param selectedIndices List of selected indexes in window
+     * @param list List of songs in window
+     * @return "" if nothing common, the common string if there is one
+     */
+    public String getSimilarAlbum(int[] selectedIndices, PathListModel list) {
+        return this.summarize(selectedIndices, list).get(FieldKey.ALBUM, this.multiSelect);
     }
 
     /**
@@ -150,20 +299,8 @@ public class TagWriter {
      * @param list List of songs in window
      * @return null if nothing common, the common artwork if there is one
      */
-    public Artwork getSimilarAlbumArt(int[] selectedIndices, DefaultListModel list) {
-        Artwork album = null;
-        try {
-            Tag firstTag = ((MP3File) AudioFileIO.read(new File((String) list.get(selectedIndices[0])))).getID3v2Tag();
-            album = firstTag.getFirstArtwork();
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                if (!firstTag.getFirst(FieldKey.ALBUM).equals(tag.getFirst(FieldKey.ALBUM))) {
-                    return null;
-                }
-            }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
-        return album;
+    public Artwork getSimilarAlbumArt(int[] selectedIndices, PathListModel list) {
+        return this.summarize(selectedIndices, list).getArtwork();
     }
 
     /**
@@ -173,20 +310,8 @@ public class TagWriter {
      * @param list List of songs in window
      * @return "" if nothing common, the common string if there is one
      */
-    public String getSimilarAlbumArtist(int[] selectedIndices, DefaultListModel list) {
-        String albumArtist = "";
-        try {
-            Tag firstTag = ((MP3File) AudioFileIO.read(new File((String) list.get(selectedIndices[0])))).getID3v2Tag();
-            albumArtist = firstTag.getFirst(FieldKey.ALBUM_ARTIST);
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                if (!firstTag.getFirst(FieldKey.ALBUM_ARTIST).equals(tag.getFirst(FieldKey.ALBUM_ARTIST))) {
-                    return this.multiSelect;
-                }
-            }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
-        return albumArtist;
+    public String getSimilarAlbumArtist(int[] selectedIndices, PathListModel list) {
+        return this.summarize(selectedIndices, list).get(FieldKey.ALBUM_ARTIST, this.multiSelect);
     }
 
     /**
@@ -196,21 +321,8 @@ public class TagWriter {
      * @param list List of songs in window
      * @return "" if nothing common, the common string if there is one
      */
-    public String getSimilarArtist(int[] selectedIndices, DefaultListModel list) {
-        String artist = "";
-        try {
-            Tag firstTag = ((MP3File) AudioFileIO.read(new File((String) list.get(selectedIndices[0])))).getID3v2Tag();
-            artist = firstTag.getFirst(FieldKey.ARTIST);
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                if (!firstTag.getFirst(FieldKey.ARTIST).equals(tag.getFirst(FieldKey.ARTIST))) {
-                    System.out.println(firstTag.getFirst(FieldKey.ARTIST) + tag.getFirst(FieldKey.ARTIST));
-                    return this.multiSelect;
-                }
-            }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
-        return artist;
+    public String getSimilarArtist(int[] selectedIndices, PathListModel list) {
+        return this.summarize(selectedIndices, list).get(FieldKey.ARTIST, this.multiSelect);
     }
 
     /**
@@ -220,20 +332,8 @@ public class TagWriter {
      * @param list List of songs in window
      * @return "" if nothing common, the common string if there is one
      */
-    public String getSimilarComposer(int[] selectedIndices, DefaultListModel list) {
-        String composer = "";
-        try {
-            Tag firstTag = ((MP3File) AudioFileIO.read(new File((String) list.get(selectedIndices[0])))).getID3v2Tag();
-            composer = firstTag.getFirst(FieldKey.COMPOSER);
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                if (!firstTag.getFirst(FieldKey.COMPOSER).equals(tag.getFirst(FieldKey.COMPOSER))) {
-                    return this.multiSelect;
-                }
-            }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
-        return composer;
+    public String getSimilarComposer(int[] selectedIndices, PathListModel list) {
+        return this.summarize(selectedIndices, list).get(FieldKey.COMPOSER, this.multiSelect);
     }
 
     /**
@@ -243,20 +343,8 @@ public class TagWriter {
      * @param list List of songs in window
      * @return "" if nothing common, the common string if there is one
      */
-    public String getSimilarGenre(int[] selectedIndices, DefaultListModel list) {
-        String genre = "";
-        try {
-            Tag firstTag = ((MP3File) AudioFileIO.read(new File((String) list.get(selectedIndices[0])))).getID3v2Tag();
-            genre = firstTag.getFirst(FieldKey.GENRE);
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                if (!firstTag.getFirst(FieldKey.GENRE).equals(tag.getFirst(FieldKey.GENRE))) {
-                    return this.multiSelect;
-                }
-            }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
-        return genre;
+    public String getSimilarGenre(int[] selectedIndices, PathListModel list) {
+        return this.summarize(selectedIndices, list).get(FieldKey.GENRE, this.multiSelect);
     }
 
     /**
@@ -266,38 +354,31 @@ public class TagWriter {
      * @param list List of songs in window
      * @return "" if nothing common, the common string if there is one
      */
-    public String getSimilarYear(int[] selectedIndices, DefaultListModel list) {
-        String year = "";
-        try {
-            Tag firstTag = ((MP3File) AudioFileIO.read(new File((String) list.get(selectedIndices[0])))).getID3v2Tag();
-            year = firstTag.getFirst(FieldKey.YEAR);
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                if (!firstTag.getFirst(FieldKey.YEAR).equals(tag.getFirst(FieldKey.YEAR))) {
-                    return this.multiSelect;
-                }
-            }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
-        return year;
+    public String getSimilarYear(int[] selectedIndices, PathListModel list) {
+        return this.summarize(selectedIndices, list).get(FieldKey.YEAR, this.multiSelect);
     }
 
     /**
      * Gets name of song file and writes it to "title" tag field
      *
      * @param songName Name of song to analyze
+     * @return outcome How the edit ended
      */
-    public synchronized void titleFromFileName(String songName) {
-        try {
-            File songFile = new File(songName);
-            MP3File song = (MP3File) AudioFileIO.read(songFile);
-            Tag tag = song.getID3v2Tag();
-            String temp = songFile.getAbsolutePath().substring(songFile.getAbsolutePath().lastIndexOf("\\") + 1);
-            temp = temp.substring(0, temp.length() - 4);
-            tag.setField(FieldKey.TITLE, temp);
-            song.commit();
-        } catch (IOException | CannotReadException | CannotWriteException | InvalidAudioFrameException | ReadOnlyFileException | TagException e) {
-        }
+    public SongOutcome titleFromFileName(final String songName) {
+        return this.perform("Title from file name", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                File songFile = new File(songName);
+                AudioFile song = AudioFileIO.read(songFile);
+                Tag tag = SongFormat.tagOrCreate(song);
+                String temp = songFile.getName();
+                if (temp.lastIndexOf('.') > 0) {
+                    temp = temp.substring(0, temp.lastIndexOf('.'));
+                }
+                tag.setField(FieldKey.TITLE, temp);
+                commit(song);
+            }
+        });
     }
 
     /**
@@ -307,9 +388,17 @@ public class TagWriter {
      * renamed
      * @param list List of all songs in window
      */
-    public void titleFromFileNameMultipleFiles(int[] selectedIndices, DefaultListModel list) {
-        for (int i : selectedIndices) {
-            this.titleFromFileName((String) list.get(i));
+    public void titleFromFileNameMultipleFiles(int[] selectedIndices, PathListModel list) {
+        this.journal.begin("Title from file name");
+        try {
+            this.batch.run(selectedIndices, list, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    titleFromFileName(songName);
+                }
+            }, this.progress.get());
+        } finally {
+            this.journal.end();
         }
     }
 
@@ -318,19 +407,21 @@ public class TagWriter {
      *
      * @param songName Name of song to analyze
      * @param artwork Artwork file to write as album artwork
+     * @return outcome How the edit ended
      */
-    public synchronized void addAlbumArt(String songName, File artwork) {
-        try {
-            File songFile = new File(songName);
-            MP3File song = (MP3File) AudioFileIO.read(songFile);
-            Tag tag = song.getID3v2Tag();
-            Artwork art = new Artwork();
-            art.setFromFile(artwork);
-            tag.deleteArtworkField();
-            tag.setField(art);
-            song.commit();
-        } catch (IOException | CannotReadException | CannotWriteException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
-        }
+    public SongOutcome addAlbumArt(final String songName, final File artwork) {
+        return this.perform("Add album art", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                AudioFile song = AudioFileIO.read(new File(songName));
+                Tag tag = SongFormat.tagOrCreate(song);
+                Artwork art = new Artwork();
+                art.setFromFile(artwork);
+                tag.deleteArtworkField();
+                tag.setField(art);
+                commit(song);
+            }
+        });
     }
 
     /**
@@ -341,30 +432,256 @@ public class TagWriter {
      * @param list List of all songs in window
      * @param artwork Artwork file to write as album artwork
      */
-    public void addAlbumArtMultipleFiles(int[] selectedIndices, DefaultListModel list, File artwork) {
-        for (int i : selectedIndices) {
-            this.addAlbumArt((String) list.get(i), artwork);
+    public void addAlbumArtMultipleFiles(int[] selectedIndices, PathListModel list, final File artwork) {
+        this.journal.begin("Add album art");
+        try {
+            this.batch.run(selectedIndices, list, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    addAlbumArt(songName, artwork);
+                }
+            }, this.progress.get());
+        } finally {
+            this.journal.end();
         }
     }
 
     /**
-     * Cleans excess tag fields from file. Maintains tags not defined in
-     * tagsToClear
+     * Replaces the first artwork of a song with a smaller version from the
+     * recompressor, if there is one. Any other artwork is kept as it is
      *
      * @param songName Name of song to analyze
+     * @param recompressor The recompressor to shrink artwork with
+     * @return outcome How the edit ended
      */
-    public synchronized void cleanFileTags(String songName) {
+    public SongOutcome recompressAlbumArt(final String songName, final ArtworkRecompressor recompressor) {
+        return this.perform("Recompress album art", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                AudioFile song = AudioFileIO.read(new File(songName));
+                Tag tag = SongFormat.tagOrCreate(song);
+                List<Artwork> artworks = tag.getArtworkList();
+                Artwork art = artworks.isEmpty() ? null : artworks.get(0);
+                if (art == null || art.getBinaryData() == null) {
+                    return;
+                }
+                byte[] smaller = recompressor.recompress(art.getBinaryData());
+                if (smaller == null) {
+                    return;
+                }
+                long saved = art.getBinaryData().length - smaller.length;
+                replaceFirstArtwork(tag, artworks, smaller);
+                commit(song);
+                recompressor.recordSaving(saved);
+            }
+        });
+    }
+
+    /**
+     * Replaces the first artwork of a tag with a JPEG image, keeping the
+     * other artwork, the picture type and the description. FLAC pictures
+     * are kept as they were read, and the new one states its own size
+     *
+     * @param tag The tag
+     * @param artworks The tag's artwork, as listed by getArtworkList
+     * @param jpeg The JPEG image bytes
+     * @throws IOException if the size of the image cannot be read
+     * @throws TagException if the artwork cannot be written to the tag
+     */
+    private static void replaceFirstArtwork(Tag tag, List<Artwork> artworks, byte[] jpeg) throws IOException, TagException {
+        if (tag instanceof FlacTag) {
+            FlacTag flac = (FlacTag) tag;
+            List<MetadataBlockDataPicture> images = new ArrayList<>(flac.getImages());
+            MetadataBlockDataPicture first = images.get(0);
+            Dimension size = ArtworkRecompressor.size(jpeg);
+            flac.deleteArtworkField();
+            flac.addField(flac.createArtworkField(jpeg, first.getPictureType(), ArtworkRecompressor.JPEG_MIME_TYPE, first.getDescription(), size.width, size.height, 24, 0));
+            for (int i = 1; i < images.size(); i++) {
+                flac.addField(images.get(i));
+            }
+            return;
+        }
+        Artwork first = artworks.get(0);
+        first.setBinaryData(jpeg);
+        first.setMimeType(ArtworkRecompressor.JPEG_MIME_TYPE);
+        tag.deleteArtworkField();
+        for (Artwork art : artworks) {
+            tag.addField(art);
+        }
+    }
+
+    /**
+     * Replaces the artwork of each song in list with a smaller version
+     *
+     * @param selectedIndices List of selected indexes in window
+     * @param list List of all songs in window
+     * @param recompressor The recompressor to shrink artwork with. It holds
+     * the bytes saved once this returns
+     */
+    public void recompressAlbumArtMultipleFiles(int[] selectedIndices, PathListModel list, final ArtworkRecompressor recompressor) {
+        this.journal.begin("Recompress album art");
         try {
-            File songFile = new File(songName);
-            MP3File song = (MP3File) AudioFileIO.read(songFile);
-            Tag tag = song.getID3v2Tag();
-            for (FieldKey e : tagsToClear) {
-                System.out.println(tag.getFirst(FieldKey.TRACK + "hi " + e.name()));
-                tag.deleteField(e);
+            this.batch.run(selectedIndices, list, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    recompressAlbumArt(songName, recompressor);
+                }
+            }, this.progress.get());
+        } finally {
+            this.journal.end();
+        }
+    }
+
+    /**
+     * Writes field values to a song, committing only if at least one of them
+     * differs from what the song already holds. Empty values delete the field
+     *
+     * @param songName Name of song file
+     * @param values The field values to write
+     * @return true if the song was changed and committed
+     * @throws IOException if the song cannot be read or written
+     */
+    public boolean applyFields(String songName, Map<FieldKey, String> values) throws IOException {
+        return this.applyFields(songName, values, null);
+    }
+
+    /**
+     * Writes field values and artwork to a song, committing only if at least
+     * one of them differs from what the song already holds. Empty values
+     * delete the field
+     *
+     * @param songName Name of song file
+     * @param values The field values to write
+     * @param artwork The artwork to write, or null to leave artwork alone
+     * @return true if the song was changed and committed
+     * @throws IOException if the song cannot be read or written, after any
+     * retries
+     */
+    public boolean applyFields(String songName, Map<FieldKey, String> values, Artwork artwork) throws IOException {
+        boolean[] changed = new boolean[1];
+        SongOutcome outcome = this.writeFields(songName, values, artwork, changed);
+        if (outcome.status != SongOutcome.Status.SAVED) {
+            throw new IOException(outcome.reason);
+        }
+        return changed[0];
+    }
+
+    /**
+     * Writes field values to a song, committing only if at least one of them
+     * differs from what the song already holds. Empty values delete the field
+     *
+     * @param songName Name of song file
+     * @param values The field values to write
+     * @return outcome How the edit ended
+     */
+    public SongOutcome setFields(String songName, Map<FieldKey, String> values) {
+        return this.writeFields(songName, values, null, new boolean[1]);
+    }
+
+    /**
+     * Writes field values and artwork to a song, committing only if at least
+     * one of them differs from what the song already holds
+     *
+     * @param songName Name of song file
+     * @param values The field values to write
+     * @param artwork The artwork to write, or null to leave artwork alone
+     * @param changed Set to whether the song was changed and committed
+     * @return outcome How the edit ended
+     */
+    private SongOutcome writeFields(final String songName, final Map<FieldKey, String> values, final Artwork artwork, final boolean[] changed) {
+        return this.perform("Apply fields", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                AudioFile song = AudioFileIO.read(new File(songName));
+                Tag tag = SongFormat.tagOrCreate(song);
+                changed[0] = false;
+                for (Map.Entry<FieldKey, String> e : values.entrySet()) {
+                    String value = e.getValue() == null ? emptyString : e.getValue();
+                    if (value.equals(tag.getFirst(e.getKey()))) {
+                        continue;
+                    }
+                    if (value.isEmpty()) {
+                        tag.deleteField(e.getKey());
+                    } else {
+                        tag.setField(e.getKey(), value);
+                    }
+                    changed[0] = true;
+                }
+                Artwork current = tag.getFirstArtwork();
+                if (artwork != null && (current == null || !Arrays.equals(current.getBinaryData(), artwork.getBinaryData()))) {
+                    tag.deleteArtworkField();
+                    tag.setField(artwork);
+                    changed[0] = true;
+                }
+                if (changed[0]) {
+                    commit(song);
+                }
             }
-            song.commit();
-        } catch (HeadlessException | IOException | CannotReadException | CannotWriteException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
+        });
+    }
+
+    /**
+     * Writes fields that have no generic key, such as ReplayGain fields, to a
+     * song, committing only if at least one of them differs from what the
+     * song already holds
+     *
+     * @param songName Name of song file
+     * @param values The field values to write, by field name
+     * @return true if the song was changed and committed
+     * @throws IOException if the song cannot be read or written, after any
+     * retries
+     */
+    public boolean applyCustomFields(final String songName, final Map<String, String> values) throws IOException {
+        final boolean[] changed = new boolean[1];
+        SongOutcome outcome = this.perform("Apply custom fields", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                AudioFile song = AudioFileIO.read(new File(songName));
+                Tag tag = SongFormat.tagOrCreate(song);
+                changed[0] = false;
+                for (Map.Entry<String, String> e : values.entrySet()) {
+                    if (!e.getValue().equals(SongFormat.getCustomField(tag, e.getKey()))) {
+                        SongFormat.setCustomField(tag, e.getKey(), e.getValue());
+                        changed[0] = true;
+                    }
+                }
+                if (changed[0]) {
+                    commit(song);
+                }
+            }
+        });
+        if (outcome.status != SongOutcome.Status.SAVED) {
+            throw new IOException(outcome.reason);
         }
+        return changed[0];
+    }
+
+    /**
+     * Cleans excess tag fields from file. Maintains tags not defined in
+     * tagsToClear
+     *
+     * @param songName Name of song to analyze
+     * @return outcome How the edit ended
+     */
+    public SongOutcome cleanFileTags(final String songName) {
+        return this.perform("Clean extra tags", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                AudioFile song = AudioFileIO.read(new File(songName));
+                Tag tag = SongFormat.tagOrCreate(song);
+                for (FieldKey e : tagsToClear) {
+                    if (e == FieldKey.ENCODER && tag instanceof VorbisCommentTag) {
+                        // The Ogg writer drops the last comment when the vendor string is empty
+                        continue;
+                    }
+                    try {
+                        tag.deleteField(e);
+                    } catch (KeyNotFoundException ex) {
+                    }
+                }
+                commit(song);
+            }
+        });
     }
 
     /**
@@ -374,13 +691,17 @@ public class TagWriter {
      * @param selectedIndices List of selected indexes in window
      * @param list List of all songs in window
      */
-    public synchronized void cleanFileTagsMultipleFiles(int[] selectedIndices, DefaultListModel list) {
+    public void cleanFileTagsMultipleFiles(int[] selectedIndices, PathListModel list) {
+        this.journal.begin("Clean extra tags");
         try {
-            for (int i : selectedIndices) {
-                this.cleanFileTags((String) list.get(i));
-            }
-        } catch (Exception e) {
-
+            this.batch.run(selectedIndices, list, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    cleanFileTags(songName);
+                }
+            }, this.progress.get());
+        } finally {
+            this.journal.end();
         }
     }
 
@@ -397,50 +718,94 @@ public class TagWriter {
      * @param title Title of song
      * @param track Track number
      * @param year Year of release
+     * @return outcome How the edit ended
      */
-    public synchronized void changeTags(String songName, String album, String albumArtist, String artist, String composer, String featuring, String genre, String title, String track, String year) {
-        try {
-            File songFile = new File(songName);
-            MP3File song = (MP3File) AudioFileIO.read(songFile);
-            Tag tag = song.getID3v2Tag();
-
-            if (!album.equals(multiSelect)) {
-                tag.setField(FieldKey.ALBUM, album);
+    public SongOutcome changeTags(final String songName, final String album, final String albumArtist, final String artist, final String composer, final String featuring, final String genre, final String title, final String track, final String year) {
+        return this.perform("Change tags", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                writeTags(songName, album, albumArtist, artist, composer, featuring, genre, title, track, year);
             }
-            if (!albumArtist.equals(multiSelect)) {
-                tag.setField(FieldKey.ALBUM_ARTIST, albumArtist);
+        });
+    }
+
+    /**
+     * Reads a song, changes its tags to the given values and commits it
+     *
+     * @param songName Name of song file
+     * @param album Album
+     * @param albumArtist Album artist
+     * @param artist Main artist
+     * @param composer Composer
+     * @param featuring Featured artist(s)
+     * @param genre Genre
+     * @param title Title of song
+     * @param track Track number, left alone if blank or not a number
+     * @param year Year of release
+     * @throws IOException if the song cannot be read or written
+     * @throws CannotReadException if the song is not valid audio
+     * @throws CannotWriteException if the song cannot be written
+     * @throws InvalidAudioFrameException if the song's audio is corrupt
+     * @throws ReadOnlyFileException if the song cannot be written to
+     * @throws TagException if the song's tag cannot be read
+     */
+    private void writeTags(String songName, String album, String albumArtist, String artist, String composer, String featuring, String genre, String title, String track, String year) throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+        File songFile = new File(songName);
+        AudioFile song = AudioFileIO.read(songFile);
+        Tag tag = SongFormat.tagOrCreate(song);
+
+        if (!album.equals(multiSelect)) {
+            tag.setField(FieldKey.ALBUM, album);
+        }
+        if (!albumArtist.equals(multiSelect)) {
+            tag.setField(FieldKey.ALBUM_ARTIST, albumArtist);
+        }
+        if (!composer.equals(multiSelect)) {
+            tag.setField(FieldKey.COMPOSER, composer);
+        }
+        if (featuring.equals(multiSelect) || featuring.equals(emptyString)) {
+            if (!artist.equals(multiSelect)) {
+                tag.setField(FieldKey.ARTIST, artist);
             }
-            if (!composer.equals(multiSelect)) {
-                tag.setField(FieldKey.COMPOSER, composer);
+        } else {
+            if (!artist.equals(multiSelect) && !featuring.equals(multiSelect) && !featuring.equals(emptyString)) {
+                tag.setField(FieldKey.ARTIST, artist + " Feat. " + featuring);
             }
-            if (featuring.equals(multiSelect) || featuring.equals(emptyString)) {
-                if (!artist.equals(multiSelect)) {
-                    tag.setField(FieldKey.ARTIST, artist);
-                }
+        }
+        if (!genre.equals(multiSelect)) {
+            tag.setField(FieldKey.GENRE, genre);
+        }
+        if (!title.equals(multiSelect)) {
+            tag.setField(FieldKey.TITLE, title);
+        }
+        int number = track.equals(multiSelect) ? -1 : trackNumber(track);
+        if (number >= 0) {
+            if (number < 10) {
+                tag.setField(FieldKey.TRACK, "00" + number);
             } else {
-                if (!artist.equals(multiSelect) && !featuring.equals(multiSelect) && !featuring.equals(emptyString)) {
-                    tag.setField(FieldKey.ARTIST, artist + " Feat. " + featuring);
-                }
-            }
-            if (!genre.equals(multiSelect)) {
-                tag.setField(FieldKey.GENRE, genre);
+                tag.setField(FieldKey.TRACK, String.valueOf(number));
             }
-            if (!title.equals(multiSelect)) {
-                tag.setField(FieldKey.TITLE, title);
-            }
-            if (!track.equals(multiSelect)) {
-                if (Integer.parseInt(track) < 10) {
-                    tag.setField(FieldKey.TRACK, "00" + track);
-                } else {
-                    tag.setField(FieldKey.TRACK, track);
-                }
-            }
-            if (!year.equals(multiSelect)) {
-                tag.setField(FieldKey.YEAR, year);
-            }
-            song.commit();
-        } catch (HeadlessException | IOException | CannotReadException | CannotWriteException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
         }
+        if (!year.equals(multiSelect)) {
+            tag.setField(FieldKey.YEAR, year);
+        }
+        this.commit(song);
+    }
+
+    /**
+     * Reads the track number a TRACK value starts with, such as 3 in "3/12"
+     *
+     * @param track The TRACK value
+     * @return number The track number, or -1 if the value is blank or does
+     * not start with one
+     */
+    private static int trackNumber(String track) {
+        String value = track.trim();
+        int digits = 0;
+        while (digits < value.length() && digits < 9 && Character.isDigit(value.charAt(digits))) {
+            digits++;
+        }
+        return digits == 0 ? -1 : Integer.parseInt(value.substring(0, digits));
     }
 
     /**
@@ -459,12 +824,17 @@ public class TagWriter {
      * @param track Track number
      * @param year Year of release
      */
-    public void changeMultipleTags(int[] selectedIndices, DefaultListModel list, String album, String albumArtist, String artist, String composer, String featuring, String genre, String title, String track, String year) {
+    public void changeMultipleTags(int[] selectedIndices, PathListModel list, final String album, final String albumArtist, final String artist, final String composer, final String featuring, final String genre, final String title, final String track, final String year) {
+        this.journal.begin("Change tags");
         try {
-            for (int i : selectedIndices) {
-                this.changeTags((String) list.get(i), album, albumArtist, artist, composer, featuring, genre, title, track, year);
-            }
-        } catch (Exception e) {
+            this.batch.run(selectedIndices, list, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    changeTags(songName, album, albumArtist, artist, composer, featuring, genre, title, track, year);
+                }
+            }, this.progress.get());
+        } finally {
+            this.journal.end();
         }
     }
 
@@ -481,12 +851,35 @@ public class TagWriter {
      * @param title Title of song
      * @param track Track number
      * @param year Year of release
+     * @return outcome How the edit ended
      */
-    public void fixTextCase(String songName, String album, String albumArtist, String artist, String composer, String featuring, String genre, String title, String track, String year) {
-        try {
-            this.changeTags(songName, this.toCamelCase(album), this.toCamelCase(albumArtist), this.toCamelCase(artist), this.toCamelCase(composer), this.toCamelCase(featuring), this.toCamelCase(genre), this.toCamelCase(title), this.toCamelCase(track), this.toCamelCase(year));
-        } catch (Exception e) {
-        }
+    public SongOutcome fixTextCase(final String songName, final String album, final String albumArtist, final String artist, final String composer, final String featuring, final String genre, final String title, final String track, final String year) {
+        return this.perform("Fix text case", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                writeTags(songName, toCamelCase(album), toCamelCase(albumArtist), toCamelCase(artist), toCamelCase(composer), toCamelCase(featuring), toCamelCase(genre), toCamelCase(title), toCamelCase(track), toCamelCase(year));
+            }
+        });
+    }
+
+    /**
+     * Converts all tags of given song, as currently saved, to proper camel
+     * case
+     *
+     * @param songName Name of song file
+     * @return outcome How the edit ended
+     */
+    public SongOutcome fixTextCase(final String songName) {
+        return this.perform("Fix text case", songName, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                Tag tag = FastTagReader.read(new File(songName));
+                if (tag == null) {
+                    return;
+                }
+                writeTags(songName, toCamelCase(tag.getFirst(FieldKey.ALBUM)), toCamelCase(tag.getFirst(FieldKey.ALBUM_ARTIST)), toCamelCase(getArtist(tag)), toCamelCase(tag.getFirst(FieldKey.COMPOSER)), toCamelCase(getFeaturedArtist(tag)), toCamelCase(tag.getFirst(FieldKey.GENRE)), toCamelCase(tag.getFirst(FieldKey.TITLE)), toCamelCase(tag.getFirst(FieldKey.TRACK)), toCamelCase(tag.getFirst(FieldKey.YEAR)));
+            }
+        });
     }
 
     /**
@@ -496,13 +889,17 @@ public class TagWriter {
      * converted
      * @param list List of all songs in window
      */
-    public void fixTextCaseMultipleFiles(int[] selectedIndices, DefaultListModel list) {
+    public void fixTextCaseMultipleFiles(int[] selectedIndices, PathListModel list) {
+        this.journal.begin("Fix text case");
         try {
-            for (int i : selectedIndices) {
-                Tag tag = ((MP3File) AudioFileIO.read(new File((String) list.get(i)))).getID3v2Tag();
-                this.fixTextCase((String) list.get(i), tag.getFirst(FieldKey.ALBUM), tag.getFirst(FieldKey.ALBUM_ARTIST), this.getArtist(tag), tag.getFirst(FieldKey.COMPOSER), this.getFeaturedArtist(tag), tag.getFirst(FieldKey.GENRE), tag.getFirst(FieldKey.TITLE), tag.getFirst(FieldKey.TRACK), tag.getFirst(FieldKey.YEAR));
-            }
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
+            this.batch.run(selectedIndices, list, new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    fixTextCase(songName);
+                }
+            }, this.progress.get());
+        } finally {
+            this.journal.end();
         }
     }
 
@@ -511,12 +908,421 @@ public class TagWriter {
      *
      * @param fromFile File to copy from
      * @param toFile File to copy to
+     * @return outcome How the edit ended
+     */
+    public SongOutcome copyTagInfo(final String fromFile, final String toFile) {
+        return this.perform("Copy tags", toFile, new SongEdit() {
+            @Override
+            public void apply() throws IOException, CannotReadException, CannotWriteException, InvalidAudioFrameException, ReadOnlyFileException, TagException {
+                Tag fromTag = FastTagReader.read(new File(fromFile));
+                if (fromTag == null) {
+                    throw new CannotReadException("No tag in " + fromFile);
+                }
+                writeTags(toFile, fromTag.getFirst(FieldKey.ALBUM), fromTag.getFirst(FieldKey.ALBUM_ARTIST), fromTag.getFirst(FieldKey.ARTIST), fromTag.getFirst(FieldKey.COMPOSER), "", fromTag.getFirst(FieldKey.GENRE), fromTag.getFirst(FieldKey.TITLE), fromTag.getFirst(FieldKey.TRACK), fromTag.getFirst(FieldKey.YEAR));
+            }
+        });
+    }
+
+    /**
+     * Sets how safely later commits reach the disk
+     *
+     * @param durability The durability
+     */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+        this.journal.setDurability(durability, this.groupSync);
+    }
+
+    /**
+     * Gets how safely commits reach the disk
+     *
+     * @return durability The durability
+     */
+    public Durability getDurability() {
+        return this.durability;
+    }
+
+    /**
+     * Sets how the audio of later commits is checked
+     *
+     * @param verification The verification
+     */
+    public void setVerification(Verification verification) {
+        this.verifier.setMode(verification);
+    }
+
+    /**
+     * Gets how the audio of commits is checked
+     *
+     * @return verification The verification
+     */
+    public Verification getVerification() {
+        return this.verifier.getMode();
+    }
+
+    /**
+     * Gets the verifier that checks the audio of commits, which also counts
+     * the commits it checked
+     *
+     * @return verifier The audio verifier
+     */
+    public AudioVerifier getVerifier() {
+        return this.verifier;
+    }
+
+    /**
+     * Waits until the audio of every commit so far has been checked, so that
+     * any damage is recorded in its batch before the batch is reported
+     */
+    public void awaitVerification() {
+        this.verifier.await();
+    }
+
+    /**
+     * Gets the store that holds the paths of listed and indexed songs
+     *
+     * @return paths The path store
+     */
+    public PathStore getPaths() {
+        return this.paths;
+    }
+
+    /**
+     * Gets the scheduler batch work is run with
+     *
+     * @return scheduler The batch scheduler
+     */
+    public BatchScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Gets the undo journal that original tags are saved to before writing
+     *
+     * @return journal The undo journal
+     */
+    public UndoJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Sets the progress that batch operations started by the calling thread
+     * report to, and that failures of its single-song operations are
+     * recorded in. Workers of the scheduler report to the progress of the
+     * thread that runs them, so batches on other threads keep their own
+     *
+     * @param progress The progress, or null to stop reporting
+     */
+    public void setProgress(BatchProgress progress) {
+        if (progress == null) {
+            this.progress.remove();
+        } else {
+            this.progress.set(progress);
+        }
+    }
+
+    /**
+     * Sets the fault injector that makes reads and writes fail, so failure
+     * handling can be tried on local files
+     *
+     * @param faults The injector, or null to stop injecting faults
+     */
+    public void setFaultInjector(FaultInjector faults) {
+        this.faults = faults;
+    }
+
+    /**
+     * Gets the songs that operations gave up on
+     *
+     * @return quarantine The quarantine
+     */
+    public Quarantine getQuarantine() {
+        return this.quarantine;
+    }
+
+    /**
+     * Runs the operations that gave up on songs again, one song at a time per
+     * worker. Songs that fail again go back into quarantine
+     *
+     * @return count Number of operations run
+     */
+    public int retryQuarantined() {
+        final BatchProgress current = this.progress.get();
+        final List<Quarantine.Entry> entries = this.quarantine.drain();
+        final Map<String, List<Quarantine.Entry>> bySong = new LinkedHashMap<>();
+        for (Quarantine.Entry entry : entries) {
+            List<Quarantine.Entry> operations = bySong.get(entry.outcome.songName);
+            if (operations == null) {
+                operations = new ArrayList<>();
+                bySong.put(entry.outcome.songName, operations);
+            }
+            operations.add(entry);
+        }
+        if (current != null) {
+            current.addTotal(bySong.size());
+        }
+        this.journal.begin("Retry quarantined files");
+        try {
+            this.scheduler.run(new ArrayList<>(bySong.keySet()), new BatchScheduler.FileTask() {
+                @Override
+                public void process(String songName) {
+                    if (current != null && current.isCancelled()) {
+                        quarantine.addAll(bySong.get(songName));
+                        return;
+                    }
+                    for (Quarantine.Entry entry : bySong.get(songName)) {
+                        entry.retry();
+                    }
+                    if (current != null) {
+                        current.processed(songName);
+                    }
+                }
+            });
+        } finally {
+            this.journal.end();
+        }
+        return entries.size();
+    }
+
+    /**
+     * Runs an edit of one song as a journaled batch of its own, or as part of
+     * the open batch. Storage failures are tried again after a growing,
+     * jittered wait, and every attempt first waits for the song's mount to
+     * let work through. A song that still fails is quarantined, and its
+     * outcome is recorded in the current progress, if there is one. Checks
+     * of the edit's commits that are still running mark the outcome failed
+     * if they find the audio changed
+     *
+     * @param label Name of the operation
+     * @param songName Name of song file
+     * @param edit The edit
+     * @return outcome How the edit ended
+     */
+    private SongOutcome perform(final String label, final String songName, final SongEdit edit) {
+        BatchProgress current = this.progress.get();
+        File songFile = new File(songName);
+        SongOutcome outcome;
+        int attempts = 0;
+        Performing previous = this.performing.get();
+        Performing performed = new Performing(current);
+        this.performing.set(performed);
+        this.journal.begin(label);
+        try {
+            while (true) {
+                if (!this.breaker.acquire(songFile, current)) {
+                    outcome = new SongOutcome(songName, label, SongOutcome.Status.SKIPPED, attempts, "Cancelled", false);
+                    break;
+                }
+                attempts++;
+                Exception failure = null;
+                try {
+                    FaultInjector injector = this.faults;
+                    if (injector != null) {
+                        injector.check(songFile, "read");
+                    }
+                    SongLock songLock = this.lockSong(songFile);
+                    try {
+                        edit.apply();
+                    } finally {
+                        this.unlockSong(songLock);
+                    }
+                } catch (IOException | CannotReadException | CannotWriteException | InvalidAudioFrameException | ReadOnlyFileException | TagException | RuntimeException e) {
+                    failure = e;
+                }
+                boolean storage = failure != null && RetryPolicy.isTransient(failure);
+                this.breaker.record(songFile, storage);
+                if (failure == null) {
+                    outcome = new SongOutcome(songName, label, SongOutcome.Status.SAVED, attempts, null, false);
+                    break;
+                }
+                if (!this.retryPolicy.shouldRetry(attempts, failure) || !pause(this.retryPolicy.delayMillis(attempts), current)) {
+                    String reason = failure.getMessage() == null ? failure.getClass().getSimpleName() : failure.getMessage();
+                    outcome = new SongOutcome(songName, label, SongOutcome.Status.FAILED, attempts, reason, storage);
+                    log.log(Level.FINE, label + " failed on " + songName, failure);
+                    this.quarantine.add(outcome, new Runnable() {
+                        @Override
+                        public void run() {
+                            perform(label, songName, edit);
+                        }
+                    });
+                    break;
+                }
+                log.fine(label + " on " + songName + " failed, trying again: " + failure);
+            }
+        } finally {
+            this.journal.end();
+            this.performing.set(previous);
+        }
+        if (current != null) {
+            current.recordOutcome(outcome);
+        }
+        for (AudioVerifier.Check check : performed.checks) {
+            check.attach(outcome);
+        }
+        return outcome;
+    }
+
+    /**
+     * Takes the lock that edits of a song hold, so that a song listed twice
+     * in one or more running batches is never written by two workers at
+     * once. Each path has a lock of its own, so edits of other songs never
+     * wait, and the lock is dropped once no thread holds or waits for it
+     *
+     * @param songFile The song file
+     * @return lock The lock taken, to be passed to unlockSong
+     */
+    private SongLock lockSong(File songFile) {
+        String path = songFile.getAbsoluteFile().toPath().normalize().toString();
+        SongLock songLock;
+        synchronized (this.songLocks) {
+            songLock = this.songLocks.get(path);
+            if (songLock == null) {
+                songLock = new SongLock(path);
+                this.songLocks.put(path, songLock);
+            }
+            songLock.users++;
+        }
+        songLock.lock.lock();
+        return songLock;
+    }
+
+    /**
+     * Releases a lock taken with lockSong
+     *
+     * @param songLock The lock
+     */
+    private void unlockSong(SongLock songLock) {
+        songLock.lock.unlock();
+        synchronized (this.songLocks) {
+            if (--songLock.users == 0) {
+                this.songLocks.remove(songLock.path);
+            }
+        }
+    }
+
+    /**
+     * Waits before a retry, giving up early if the batch is cancelled
+     *
+     * @param millis Time to wait
+     * @param progress The batch, or null
+     * @return true if the whole time passed
      */
-    public void copyTagInfo(String fromFile, String toFile) {
+    private static boolean pause(long millis, BatchProgress progress) {
+        long end = System.nanoTime() + millis * 1000000L;
+        long left;
+        while ((left = (end - System.nanoTime()) / 1000000L) > 0) {
+            if (progress != null && progress.isCancelled()) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(left, PAUSE_POLL_MILLIS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Registers a listener for every song this writer commits
+     *
+     * @param listener The listener
+     */
+    public void addCommitListener(CommitListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Commits a song's tag, journaling its original tag first and telling the
+     * commit listeners afterwards. An mp3 tag that fits the song's tag region
+     * is written in place; a larger one goes through TagRewriter instead of a
+     * full stream copy of the file. Other formats are written by their own
+     * writer, on a copy of the song unless durability is NONE. When commits
+     * are verified, the audio is hashed while the snapshot is taken and again
+     * in the background once the write ends, whether or not it succeeded
+     *
+     * @param song The song to commit
+     * @throws CannotWriteException if the song cannot be written
+     */
+    private void commit(AudioFile song) throws CannotWriteException {
+        Performing performed = this.performing.get();
+        AudioVerifier.Check check = this.verifier.begin(song.getFile(), performed == null ? this.progress.get() : performed.progress);
+        if (check != null) {
+            if (performed != null) {
+                performed.checks.add(check);
+            } else {
+                check.attach(null);
+            }
+        }
         try {
-            Tag fromTag = ((MP3File) AudioFileIO.read(new File(fromFile))).getID3v2Tag();
-            this.changeTags(toFile, fromTag.getFirst(FieldKey.ALBUM), fromTag.getFirst(FieldKey.ALBUM_ARTIST), fromTag.getFirst(FieldKey.ARTIST), fromTag.getFirst(FieldKey.COMPOSER), "", fromTag.getFirst(FieldKey.GENRE), fromTag.getFirst(FieldKey.TITLE), fromTag.getFirst(FieldKey.TRACK), fromTag.getFirst(FieldKey.YEAR));
-        } catch (IOException | CannotReadException | InvalidAudioFrameException | ReadOnlyFileException | KeyNotFoundException | TagException e) {
+            try {
+                this.journal.snapshot(song.getFile());
+            } catch (IOException e) {
+                throw new CannotWriteException(e);
+            }
+            FaultInjector injector = this.faults;
+            if (injector != null) {
+                try {
+                    injector.check(song.getFile(), "write");
+                } catch (IOException e) {
+                    throw new CannotWriteException(e);
+                }
+            }
+            if (check != null) {
+                check.awaitBefore();
+            }
+            if (song instanceof MP3File) {
+                this.commitMp3((MP3File) song);
+            } else if (this.durability == Durability.NONE) {
+                song.commit();
+            } else {
+                try {
+                    TagRewriter.rewrite(song, this.durability, this.groupSync);
+                } catch (IOException e) {
+                    throw new CannotWriteException(e);
+                }
+            }
+        } finally {
+            if (check != null) {
+                check.finish();
+            }
+        }
+        for (CommitListener listener : this.listeners) {
+            listener.committed(song.getFile(), SongFormat.tagOf(song));
+        }
+    }
+
+    /**
+     * Writes the ID3v2 tag of an mp3 file, in place or through TagRewriter
+     *
+     * @param song The song to write
+     * @throws CannotWriteException if the song cannot be written
+     */
+    private void commitMp3(MP3File song) throws CannotWriteException {
+        Durability mode = this.durability;
+        byte[] rendered = null;
+        try {
+            if (song.getID3v2Tag() != null) {
+                rendered = TagRewriter.render(song.getID3v2Tag());
+                if (mode == Durability.NONE && TagRewriter.fitsInPlace(song.getFile(), rendered)) {
+                    rendered = null;
+                }
+            }
+        } catch (IOException e) {
+            if (mode != Durability.NONE) {
+                throw new CannotWriteException(e);
+            }
+            rendered = null;
+        }
+        if (rendered == null) {
+            song.commit();
+        } else {
+            try {
+                TagRewriter.rewrite(song.getFile(), rendered, mode, this.groupSync);
+            } catch (IOException e) {
+                throw new CannotWriteException(e);
+            }
         }
     }
 }
@@ -0,0 +1,110 @@
+package mp3tagwriter;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.List;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+/**
+ * This class is used to show the tasks of a runtime that are waiting or
+ * running, and to cancel them.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TaskListDialog extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+    private static final int REFRESH_MILLIS = 500;
+    private final TaskRuntime runtime;
+    private final DefaultListModel<TaskRuntime.Task> shown = new DefaultListModel<>();
+    private final JList<TaskRuntime.Task> list = new JList<>(this.shown);
+    private final Timer timer;
+
+    /**
+     * Constructor for TaskListDialog. Must be called on the event dispatch
+     * thread; the dialog refreshes itself until it is closed.
+     *
+     * @param owner The window the dialog belongs to
+     * @param runtime The runtime whose tasks are shown
+     */
+    public TaskListDialog(Window owner, TaskRuntime runtime) {
+        super(owner, "Running Tasks", ModalityType.MODELESS);
+        this.runtime = runtime;
+        this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        JScrollPane taskPane = new JScrollPane(this.list);
+        taskPane.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+
+        JButton cancel = new JButton("Cancel Selected");
+        cancel.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                for (TaskRuntime.Task task : list.getSelectedValuesList()) {
+                    task.cancel();
+                }
+                refresh();
+            }
+        });
+        JButton close = new JButton("Close");
+        close.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(cancel);
+        buttons.add(close);
+
+        this.getContentPane().add(taskPane, BorderLayout.CENTER);
+        this.getContentPane().add(buttons, BorderLayout.SOUTH);
+        this.setSize(460, 260);
+        this.setLocationRelativeTo(owner);
+
+        this.timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+            }
+        });
+        this.timer.start();
+        this.refresh();
+    }
+
+    /**
+     * Copies the runtime's tasks into the list, keeping the selection of tasks
+     * still shown
+     */
+    private void refresh() {
+        List<TaskRuntime.Task> selected = this.list.getSelectedValuesList();
+        List<TaskRuntime.Task> current = this.runtime.getTasks();
+        this.shown.clear();
+        for (TaskRuntime.Task task : current) {
+            this.shown.addElement(task);
+        }
+        for (TaskRuntime.Task task : selected) {
+            int index = current.indexOf(task);
+            if (index >= 0) {
+                this.list.addSelectionInterval(index, index);
+            }
+        }
+    }
+}
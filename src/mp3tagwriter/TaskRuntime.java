@@ -0,0 +1,330 @@
+package mp3tagwriter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is used to run the window's background work as named tasks.
+ * Each task draws on a resource with its own concurrency cap, so tag writes
+ * queue behind each other instead of piling up blocked threads. A task
+ * started from inside another task belongs to it, and cancelling a task
+ * cancels its children, its batch progress and the per-file work of batches
+ * it runs. A child on the resource its parent holds shares the parent's
+ * permit instead of waiting for one the parent would never give back.
+ * Cancelling is cooperative: a song being written is always finished, since
+ * interrupting file I/O could leave it half written.
+ *
+ * @author Aditya Nivarthi
+ */
+public class TaskRuntime {
+
+    /**
+     * Resource for work that writes tags. One task at a time
+     */
+    public static final String WRITES = "writes";
+    /**
+     * Resource for work that only reads song files
+     */
+    public static final String READS = "reads";
+    private static final Logger log = Logger.getLogger(TaskRuntime.class.getName());
+    private static final ThreadLocal<Task> current = new ThreadLocal<>();
+    private final ExecutorService threads;
+    private final Map<String, Semaphore> limits = new HashMap<>();
+    private final Set<Task> tasks = new LinkedHashSet<>();
+
+    /**
+     * States a task goes through.
+     */
+    public enum State {
+
+        /**
+         * Waiting for its resource
+         */
+        WAITING,
+        /**
+         * Running
+         */
+        RUNNING,
+        /**
+         * Finished, whether or not it was cancelled while running
+         */
+        DONE
+    }
+
+    /**
+     * A permit of a resource, shared by the task that took it and the
+     * children it starts on the same resource. Given back once the last of
+     * them finishes.
+     */
+    private static class Permit {
+
+        private final Semaphore limit;
+        private int users = 1;
+
+        private Permit(Semaphore limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Shares the permit with another task, if it is still held
+         *
+         * @return true if the permit was shared
+         */
+        private synchronized boolean share() {
+            if (this.users == 0) {
+                return false;
+            }
+            this.users++;
+            return true;
+        }
+
+        /**
+         * Drops one task's share, giving the permit back after the last one
+         */
+        private void release() {
+            synchronized (this) {
+                if (--this.users > 0) {
+                    return;
+                }
+            }
+            this.limit.release();
+        }
+    }
+
+    /**
+     * A named unit of background work.
+     */
+    public static class Task {
+
+        private final String name;
+        private final String resource;
+        private final Task parent;
+        private final List<Task> children = new ArrayList<>();
+        private final long startNanos = System.nanoTime();
+        private volatile State state = State.WAITING;
+        private volatile boolean cancelled = false;
+        private volatile BatchProgress progress;
+        private volatile Permit permit;
+
+        private Task(String name, String resource, Task parent) {
+            this.name = name;
+            this.resource = resource;
+            this.parent = parent;
+        }
+
+        /**
+         * Asks the task, its children and its batch to stop
+         */
+        public void cancel() {
+            this.cancelled = true;
+            BatchProgress batch = this.progress;
+            if (batch != null) {
+                batch.cancel();
+            }
+            List<Task> running;
+            synchronized (this.children) {
+                running = new ArrayList<>(this.children);
+            }
+            for (Task child : running) {
+                child.cancel();
+            }
+        }
+
+        /**
+         * Determines if the task or one of its parents was cancelled
+         *
+         * @return true if the task should stop
+         */
+        public boolean isCancelled() {
+            return this.cancelled || (this.parent != null && this.parent.isCancelled());
+        }
+
+        /**
+         * Attaches the progress of the batch the task runs, so cancelling
+         * the task cancels the batch
+         *
+         * @param progress The progress, or null to detach it
+         */
+        public void setProgress(BatchProgress progress) {
+            this.progress = progress;
+            if (progress != null && this.isCancelled()) {
+                progress.cancel();
+            }
+        }
+
+        /**
+         * Gets the name of the task
+         *
+         * @return name The name
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the state of the task
+         *
+         * @return state The state
+         */
+        public State getState() {
+            return this.state;
+        }
+
+        @Override
+        public String toString() {
+            long seconds = (System.nanoTime() - this.startNanos) / 1000000000L;
+            String status = this.state == State.WAITING ? "waiting for " + this.resource : String.format("%d:%02d", seconds / 60, seconds % 60);
+            BatchProgress batch = this.progress;
+            if (batch != null && this.state == State.RUNNING) {
+                status += ", " + batch.getProcessed() + " of " + batch.getTotal() + " files";
+            }
+            return this.name + " (" + status + (this.isCancelled() ? ", cancelling" : "") + ")";
+        }
+    }
+
+    /**
+     * Constructor for TaskRuntime. Writes run one at a time and reads up to
+     * four at a time; other resources are uncapped.
+     */
+    public TaskRuntime() {
+        final AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "task-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.setLimit(WRITES, 1);
+        this.setLimit(READS, 4);
+    }
+
+    /**
+     * Caps the number of tasks that run on a resource at once
+     *
+     * @param resource Name of the resource
+     * @param permits Highest number of tasks at once
+     */
+    public synchronized void setLimit(String resource, int permits) {
+        this.limits.put(resource, new Semaphore(Math.max(1, permits), true));
+    }
+
+    /**
+     * Gets the task the calling thread runs
+     *
+     * @return task The task, or null outside of tasks
+     */
+    public static Task current() {
+        return current.get();
+    }
+
+    /**
+     * Starts a task. A task started from inside another task is its child
+     *
+     * @param name Name shown for the task
+     * @param resource The resource it draws on, or null for none
+     * @param work The work
+     * @return task The task
+     */
+    public Task submit(String name, String resource, final Runnable work) {
+        final Task task = new Task(name, resource, current());
+        final Semaphore limit;
+        synchronized (this) {
+            limit = resource == null ? null : this.limits.get(resource);
+            this.tasks.add(task);
+        }
+        if (limit != null) {
+            task.permit = sharedPermit(task.parent, limit);
+        }
+        if (task.parent != null) {
+            synchronized (task.parent.children) {
+                task.parent.children.add(task);
+            }
+        }
+        this.threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                String threadName = thread.getName();
+                try {
+                    while (limit != null && task.permit == null && !task.isCancelled()) {
+                        if (limit.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                            task.permit = new Permit(limit);
+                        }
+                    }
+                    if (task.isCancelled()) {
+                        return;
+                    }
+                    thread.setName(threadName + " " + task.name);
+                    task.state = State.RUNNING;
+                    current.set(task);
+                    work.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Task " + task.name + " failed", e);
+                } finally {
+                    current.remove();
+                    thread.setName(threadName);
+                    if (task.permit != null) {
+                        task.permit.release();
+                    }
+                    finished(task);
+                }
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Shares the permit of the nearest task above a new one that holds a
+     * permit of the same limit
+     *
+     * @param parent The parent of the new task, or null
+     * @param limit The limit the new task draws on
+     * @return permit The shared permit, or null if no parent holds one
+     */
+    private static Permit sharedPermit(Task parent, Semaphore limit) {
+        for (Task task = parent; task != null; task = task.parent) {
+            Permit held = task.permit;
+            if (held != null && held.limit == limit && held.share()) {
+                return held;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the tasks that are waiting or running
+     *
+     * @return tasks Copy of the tasks, oldest first
+     */
+    public synchronized List<Task> getTasks() {
+        return new ArrayList<>(this.tasks);
+    }
+
+    private void finished(Task task) {
+        task.state = State.DONE;
+        synchronized (this) {
+            this.tasks.remove(task);
+        }
+        if (task.parent != null) {
+            synchronized (task.parent.children) {
+                task.parent.children.remove(task);
+            }
+        }
+    }
+}
@@ -0,0 +1,652 @@
+package mp3tagwriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.audio.exceptions.CannotReadException;
+import org.jaudiotagger.audio.exceptions.CannotWriteException;
+import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
+import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.TagException;
+
+/**
+ * This class is used for keeping an undo journal of tag writes. Before a file
+ * is committed for the first time in a batch, the original bytes of its tag
+ * region, as located by TagRegion.tagRegionLength, are appended, compressed,
+ * to that batch's journal file. Reverting a batch rewrites only those tag
+ * regions. Tags of Ogg and MP4 files move the data after them, so for those
+ * only the header pages that hold the comment packet, or the body of the
+ * ilst atom, are kept, and reverting writes the tag they hold back through
+ * the format's own writer. Each operation has a batch of its own: a thread
+ * that begins an operation outside of any batch opens one, and nested
+ * operations, as well as the scheduler workers the operation runs, join it,
+ * so operations running side by side never share a batch. Other threads
+ * started meanwhile do not. A song whose tag cannot be journaled is not
+ * written, and unless durability is NONE its record reaches the disk before
+ * the song is written.
+ *
+ * @author Aditya Nivarthi
+ */
+public class UndoJournal {
+
+    private static final Logger log = Logger.getLogger(UndoJournal.class.getName());
+    private static final int MAGIC = 0x4d545756;
+    private static final byte REGION = 0;
+    private static final byte OGG_HEADERS = 1;
+    private static final byte MP4_ITEMS = 2;
+    private static final String SUFFIX = ".undo";
+    private final File directory;
+    private final int maxBatches;
+    private final long maxBatchBytes;
+    private final BatchScheduler scheduler;
+    private final Set<Batch> open = new HashSet<>();
+    private long sequence = -1;
+    private final ThreadLocal<Frame> frames = new ThreadLocal<>();
+    private volatile Durability durability = Durability.NONE;
+    private volatile GroupSync group;
+
+    /**
+     * The batch a thread writes to, and how deeply the thread is nested in
+     * operations of it.
+     */
+    private static class Frame {
+
+        private final Batch batch;
+        private final boolean owner;
+        private int depth = 0;
+
+        private Frame(Batch batch, boolean owner) {
+            this.batch = batch;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * The original tag of one song, as read back from a journal.
+     */
+    private static class Original {
+
+        private final byte kind;
+        private final byte[] bytes;
+
+        private Original(byte kind, byte[] bytes) {
+            this.kind = kind;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A group of snapshots written by one operation.
+     */
+    public class Batch {
+
+        private final File file;
+        private final Set<String> journaled = new HashSet<>();
+        private final FileOutputStream stream;
+        private DataOutputStream out;
+        private boolean synced = false;
+        private long bytes;
+        private boolean full = false;
+        private volatile boolean closed = false;
+
+        private Batch(File file, String label) throws IOException {
+            this.file = file;
+            this.stream = new FileOutputStream(file, true);
+            this.out = new DataOutputStream(new BufferedOutputStream(this.stream));
+            this.out.writeInt(MAGIC);
+            this.out.writeUTF(label);
+            this.bytes = this.out.size();
+        }
+
+        /**
+         * Appends the original tag of a song, unless it was already journaled
+         * in this batch. Unless durability is NONE, the record is on disk
+         * when this returns
+         *
+         * @param songFile The song about to be written
+         * @throws IOException if the tag cannot be journaled, because it
+         * cannot be read, is too large, the batch has reached its size limit
+         * or the journal cannot be written
+         */
+        private synchronized void snapshot(File songFile) throws IOException {
+            String songName = songFile.getAbsolutePath();
+            if (this.journaled.contains(songName)) {
+                return;
+            }
+            if (this.out == null) {
+                throw new IOException("Undo journal " + this.file.getName() + " is closed");
+            }
+            if (this.full) {
+                throw new IOException("Undo journal " + this.file.getName() + " is full");
+            }
+            try (FileChannel channel = FileChannel.open(songFile.toPath(), StandardOpenOption.READ)) {
+                byte kind = REGION;
+                long start = 0;
+                long end = TagRegion.flacMetadataEnd(channel);
+                if (end == 0 && (end = TagRegion.oggHeaderEnd(channel)) > 0) {
+                    kind = OGG_HEADERS;
+                } else if (end == 0 && TagRegion.isMp4(channel)) {
+                    kind = MP4_ITEMS;
+                    long[] ilst = TagRegion.mp4ItemList(channel);
+                    start = ilst == null ? 0 : ilst[0];
+                    end = ilst == null ? 0 : ilst[1];
+                } else if (end == 0) {
+                    end = TagRegion.id3v2Length(channel);
+                }
+                if (end - start > Math.min(maxBatchBytes, Integer.MAX_VALUE - 8)) {
+                    throw new IOException("Tag of " + songName + " is too large to journal");
+                }
+                ByteBuffer tag = ByteBuffer.allocate((int) (end - start));
+                while (tag.hasRemaining() && channel.read(tag, start + tag.position()) > 0) {
+                }
+                byte[] packed = deflate(tag.array(), tag.position());
+                if (this.bytes + packed.length > maxBatchBytes) {
+                    this.full = true;
+                    throw new IOException("Undo journal " + this.file.getName() + " is full");
+                }
+                this.out.writeUTF(songName);
+                this.out.writeByte(kind);
+                this.out.writeInt(tag.position());
+                this.out.writeInt(packed.length);
+                this.out.write(packed);
+                this.out.flush();
+                this.bytes += packed.length;
+            }
+            if (durability != Durability.NONE) {
+                this.stream.getChannel().force(false);
+                if (!this.synced) {
+                    GroupSync.forceDirectory(this.file.getAbsoluteFile().toPath().getParent());
+                    this.synced = true;
+                }
+            }
+            this.journaled.add(songName);
+        }
+
+        /**
+         * Closes the batch journal
+         */
+        private synchronized void close() {
+            this.closed = true;
+            try {
+                if (this.out != null) {
+                    this.out.close();
+                }
+            } catch (IOException e) {
+            }
+            this.out = null;
+        }
+
+        /**
+         * Gets the journal file of this batch
+         *
+         * @return file The journal file
+         */
+        public File getFile() {
+            return this.file;
+        }
+    }
+
+    /**
+     * Constructor for UndoJournal. Keeps the last 20 batches, each up to 64 MB
+     * compressed, in the given directory.
+     *
+     * @param directory Directory to keep journal files in
+     * @param scheduler The scheduler to revert batches with
+     */
+    public UndoJournal(File directory, BatchScheduler scheduler) {
+        this(directory, scheduler, 20, 64L * 1024 * 1024);
+    }
+
+    /**
+     * Constructor for UndoJournal. Workers of the scheduler join the batch
+     * of the thread that runs them
+     *
+     * @param directory Directory to keep journal files in
+     * @param scheduler The scheduler to revert batches with
+     * @param maxBatches Number of batches to retain
+     * @param maxBatchBytes Compressed size limit of one batch
+     */
+    public UndoJournal(File directory, BatchScheduler scheduler, int maxBatches, long maxBatchBytes) {
+        this.directory = directory;
+        this.scheduler = scheduler;
+        this.maxBatches = maxBatches;
+        this.maxBatchBytes = maxBatchBytes;
+        scheduler.inherit(new BatchScheduler.ThreadState() {
+            @Override
+            public Object capture() {
+                Frame frame = frames.get();
+                return frame == null ? null : frame.batch;
+            }
+
+            @Override
+            public Object attach(Object state) {
+                Frame previous = frames.get();
+                if (state == null) {
+                    frames.remove();
+                } else {
+                    frames.set(new Frame((Batch) state, false));
+                }
+                return previous;
+            }
+
+            @Override
+            public void detach(Object previous) {
+                if (previous == null) {
+                    frames.remove();
+                } else {
+                    frames.set((Frame) previous);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets how restored files reach the disk
+     *
+     * @param durability The durability
+     * @param group The group to sync with, for GROUP durability
+     */
+    public void setDurability(Durability durability, GroupSync group) {
+        this.group = group;
+        this.durability = durability;
+    }
+
+    /**
+     * Opens a batch for an operation on this thread, or joins the batch of
+     * the operation this thread is part of. Every call must be paired with a
+     * call to end on the same thread
+     *
+     * @param label Description of the operation
+     */
+    public void begin(String label) {
+        Frame frame = this.frames.get();
+        if (frame != null && (frame.depth > 0 || (frame.batch != null && !frame.batch.closed))) {
+            frame.depth++;
+            return;
+        }
+        Batch batch = null;
+        try {
+            synchronized (this) {
+                this.directory.mkdirs();
+                this.prune();
+                batch = new Batch(this.nextFile(), label);
+                this.open.add(batch);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not open undo journal", e);
+        }
+        frame = new Frame(batch, true);
+        frame.depth = 1;
+        this.frames.set(frame);
+    }
+
+    /**
+     * Leaves the current operation, closing its batch once the outermost
+     * operation of the thread that opened it ends
+     */
+    public void end() {
+        Frame frame = this.frames.get();
+        if (frame == null || frame.depth == 0 || --frame.depth > 0) {
+            return;
+        }
+        if (!frame.owner) {
+            return;
+        }
+        this.frames.remove();
+        if (frame.batch != null) {
+            frame.batch.close();
+            synchronized (this) {
+                this.open.remove(frame.batch);
+            }
+            if (frame.batch.journaled.isEmpty()) {
+                frame.batch.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Journals the original tag of a song before it is written, in the batch
+     * of the operation this thread is part of. Does nothing outside of a
+     * batch
+     *
+     * @param songFile The song about to be written
+     * @throws IOException if the song cannot be journaled, in which case it
+     * must not be written
+     */
+    public void snapshot(File songFile) throws IOException {
+        Frame frame = this.frames.get();
+        if (frame == null) {
+            return;
+        }
+        if (frame.batch == null) {
+            throw new IOException("Undo journal could not be opened");
+        }
+        frame.batch.snapshot(songFile);
+    }
+
+    /**
+     * Lists the retained batch journals, oldest first
+     *
+     * @return journals The journal files
+     */
+    public File[] listBatches() {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> journals = new ArrayList<>();
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)) {
+                journals.add(f);
+            }
+        }
+        File[] sorted = journals.toArray(new File[journals.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long c = batchNumber(a) - batchNumber(b);
+                return c != 0 ? (c < 0 ? -1 : 1) : a.getName().compareTo(b.getName());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Creates the journal file of a new batch, numbered one past the highest
+     * batch seen, so batches sort in the order they were opened even when
+     * several open within the same millisecond
+     *
+     * @return file The new, empty journal file
+     * @throws IOException if the file cannot be created
+     */
+    private synchronized File nextFile() throws IOException {
+        if (this.sequence < 0) {
+            this.sequence = 0;
+            for (File batch : this.listBatches()) {
+                this.sequence = Math.max(this.sequence, batchNumber(batch));
+            }
+        }
+        while (true) {
+            File file = new File(this.directory, String.format("%019d", ++this.sequence) + SUFFIX);
+            if (file.createNewFile()) {
+                return file;
+            }
+        }
+    }
+
+    /**
+     * Reads the number a batch journal is named with. Journals written
+     * before batches were numbered are named by the time they were opened,
+     * which orders them before every numbered one
+     *
+     * @param journal The journal file
+     * @return number The number, or 0 if the name does not start with one
+     * that fits a long
+     */
+    private static long batchNumber(File journal) {
+        String name = journal.getName();
+        int digits = 0;
+        while (digits < name.length() && digits < 19 && Character.isDigit(name.charAt(digits))) {
+            digits++;
+        }
+        try {
+            return digits == 0 ? 0 : Long.parseLong(name.substring(0, digits));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reverts the most recent batch whose operation has finished
+     *
+     * @return count Number of files restored, or -1 if there is no batch
+     */
+    public int revertLast() {
+        File[] batches = this.listBatches();
+        for (int i = batches.length - 1; i >= 0; i--) {
+            if (!this.isOpen(batches[i])) {
+                return this.revert(batches[i]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determines if a journal file belongs to an operation still running
+     *
+     * @param journal The journal file
+     * @return true if its batch is open
+     */
+    private synchronized boolean isOpen(File journal) {
+        for (Batch batch : this.open) {
+            if (batch.file.equals(journal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restores the original tags of every file in a batch, in parallel, and
+     * removes the batch from the journal
+     *
+     * @param journal The batch journal file
+     * @return count Number of files restored
+     */
+    public int revert(File journal) {
+        final Map<String, Original> originals = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an undo journal: " + journal);
+            }
+            in.readUTF();
+            while (true) {
+                String songName;
+                try {
+                    songName = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte kind = in.readByte();
+                byte[] tag = new byte[in.readInt()];
+                byte[] packed = new byte[in.readInt()];
+                in.readFully(packed);
+                inflate(packed, tag);
+                if (!originals.containsKey(songName)) {
+                    originals.put(songName, new Original(kind, tag));
+                }
+            }
+        } catch (IOException | DataFormatException e) {
+            log.log(Level.WARNING, "Could not read undo journal " + journal, e);
+        }
+
+        final Set<String> restored = new HashSet<>();
+        this.scheduler.run(new ArrayList<>(originals.keySet()), new BatchScheduler.FileTask() {
+            @Override
+            public void process(String songName) {
+                try {
+                    restore(new File(songName), originals.get(songName));
+                    synchronized (restored) {
+                        restored.add(songName);
+                    }
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Could not restore " + songName, e);
+                }
+            }
+        });
+        if (restored.size() == originals.size()) {
+            journal.delete();
+        }
+        return restored.size();
+    }
+
+    /**
+     * Puts an original tag back into a song
+     *
+     * @param songFile The song to restore
+     * @param original The song's original tag, as journaled
+     * @throws IOException if the tag cannot be decoded or the file cannot be
+     * rewritten
+     */
+    private void restore(File songFile, Original original) throws IOException {
+        switch (original.kind) {
+            case REGION:
+                this.restoreRegion(songFile, original.bytes);
+                break;
+            case OGG_HEADERS:
+                try {
+                    this.restoreTag(songFile, FastTagReader.oggComment(original.bytes));
+                } catch (CannotReadException e) {
+                    throw new IOException(e);
+                }
+                break;
+            case MP4_ITEMS:
+                this.restoreTag(songFile, FastTagReader.mp4Items(original.bytes));
+                break;
+            default:
+                throw new IOException("Unknown journal entry for " + songFile);
+        }
+    }
+
+    /**
+     * Writes a decoded original tag to a song through its format's writer, as
+     * durably as tag writes are
+     *
+     * @param songFile The song to restore
+     * @param tag The original tag
+     * @throws IOException if the song cannot be read or written
+     */
+    private void restoreTag(File songFile, Tag tag) throws IOException {
+        Durability mode = this.durability;
+        try {
+            AudioFile song = AudioFileIO.read(songFile);
+            song.setTag(tag);
+            if (mode == Durability.NONE) {
+                song.commit();
+            } else {
+                TagRewriter.rewrite(song, mode, this.group);
+            }
+        } catch (CannotReadException | CannotWriteException | InvalidAudioFrameException | ReadOnlyFileException | TagException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Puts an original tag region back in front of a song's audio. Without
+     * durability the tag is overwritten in place when the current tag has
+     * the same length; otherwise the file is rebuilt next to the original,
+     * with its permissions, and swapped in as durably as tag writes are
+     *
+     * @param songFile The song to restore
+     * @param tag The original tag region bytes
+     * @throws IOException if the file cannot be rewritten
+     */
+    private void restoreRegion(File songFile, byte[] tag) throws IOException {
+        Durability mode = this.durability;
+        long current;
+        try (FileChannel channel = FileChannel.open(songFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            current = TagRegion.tagRegionLength(channel);
+            if (current == tag.length && mode == Durability.NONE) {
+                writeFully(channel, ByteBuffer.wrap(tag), 0);
+                return;
+            }
+        }
+        Path song = songFile.toPath();
+        Path temp = song.resolveSibling("." + songFile.getName() + ".undo.tmp");
+        boolean announced = mode == Durability.GROUP;
+        if (announced) {
+            this.group.open();
+        }
+        try {
+            try (FileChannel source = FileChannel.open(song, StandardOpenOption.READ);
+                    FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(target, ByteBuffer.wrap(tag), 0);
+                target.position(tag.length);
+                long position = current;
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+            TagRewriter.copyPermissions(song, temp);
+            announced = false;
+            TagRewriter.replace(temp, song, mode, this.group);
+        } finally {
+            if (announced) {
+                this.group.abandon();
+            }
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Removes the oldest finished batches beyond the retention limit
+     */
+    private void prune() {
+        File[] batches = this.listBatches();
+        for (int i = 0; i < batches.length - this.maxBatches + 1; i++) {
+            if (!this.isOpen(batches[i])) {
+                batches[i].delete();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static byte[] deflate(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, length / 2)];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+        deflater.end();
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private static void inflate(byte[] packed, byte[] target) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(packed);
+        int size = 0;
+        while (size < target.length && !inflater.finished()) {
+            size += inflater.inflate(target, size, target.length - size);
+        }
+        inflater.end();
+    }
+}
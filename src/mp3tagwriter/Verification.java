@@ -0,0 +1,39 @@
+package mp3tagwriter;
+
+import java.util.Locale;
+
+/**
+ * Ways the audio of a song is checked after its tag is committed.
+ *
+ * @author Aditya Nivarthi
+ */
+public enum Verification {
+
+    /**
+     * Commits are not checked
+     */
+    OFF,
+    /**
+     * A fixed number of blocks spread over the audio, and its length, are
+     * hashed before and after each commit. This costs the same for every
+     * song however long it is, and still catches audio that was cut short or
+     * shifted
+     */
+    SAMPLED,
+    /**
+     * All of the audio is hashed before and after each commit
+     */
+    FULL;
+
+    /**
+     * Parses a verification name, ignoring case
+     *
+     * @param name The name
+     * @return verification The verification
+     * @throws IllegalArgumentException if there is no verification of that
+     * name
+     */
+    public static Verification parse(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}